@@ -34,6 +34,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.moppyandroid.main.service.MoppyMediaService;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -54,9 +55,15 @@ public class BrowserActivity extends AppCompatActivity {
      */
     public static final String EXTRA_ERROR_REASON = "BROWSER_ERROR_REASON";
 
+    private static final int PAGE_SIZE = 50; // The number of items requested from the service at a time
+
     private boolean initialized = false;
     private String mediaRoot;
     private List<String> currentPathSegments;
+    private String currentId;           // The media ID of the folder being shown
+    private int loadedPages;            // The number of pages of currentId in the file recycler
+    private boolean loadingPage;        // Whether a page of currentId has been requested but not yet received
+    private boolean allPagesLoaded;     // Whether the last page of currentId has been received
     private MediaBrowserCompat mediaBrowser;
     private RecyclerView fileRecycler;
     private RecyclerView pathRecycler;
@@ -88,6 +95,10 @@ public class BrowserActivity extends AppCompatActivity {
         pathRecycler = findViewById(R.id.path_recycler);
         fileRecycler.setAdapter(new BrowserAdapter(null, null));
         fileRecycler.setLayoutManager(new LinearLayoutManager(this));
+        fileRecycler.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) { loadNextPageIfNearEnd(); }
+        }); // End OnScrollListener implementation
         pathRecycler.setAdapter(new PathAdapter(null, null));
         pathRecycler.setLayoutManager(new LinearLayoutManager(BrowserActivity.this, LinearLayoutManager.HORIZONTAL, false));
 
@@ -153,23 +164,72 @@ public class BrowserActivity extends AppCompatActivity {
 
     // Uses a media ID to load the file recycler and recreate the path recycler
     private void loadRecyclers(String loadId) {
-        if (mediaBrowser.isConnected()) { // In case connection suspended we just ignore input
-            mediaBrowser.subscribe(loadId, new MediaBrowserCompat.SubscriptionCallback() {
-                @Override
-                public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
-                    super.onChildrenLoaded(parentId, children);
+        if (!mediaBrowser.isConnected()) { return; } // In case connection suspended we just ignore input
+        currentId = loadId;
+        loadedPages = 0;
+        loadingPage = false;
+        allPagesLoaded = false;
+        loadNextPage();
+    } // End loadRecyclers method
+
+    // Requests the next page of the current folder, which replaces the recyclers if it is the first page and is
+    //      otherwise added to the end of the file recycler
+    private void loadNextPage() {
+        if (loadingPage || allPagesLoaded || !mediaBrowser.isConnected()) { return; }
+        loadingPage = true;
+        Bundle options = new Bundle();
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, loadedPages);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+        mediaBrowser.subscribe(currentId, options, new MediaBrowserCompat.SubscriptionCallback() {
+            @Override
+            public void onChildrenLoaded(
+                    @NonNull String parentId,
+                    @NonNull List<MediaBrowserCompat.MediaItem> children,
+                    @NonNull Bundle options
+            ) {
+                super.onChildrenLoaded(parentId, children, options);
+                mediaBrowser.unsubscribe(parentId, this);
+
+                // Ignore pages of a folder the user has since left
+                if (!parentId.equals(currentId) || options.getInt(MediaBrowserCompat.EXTRA_PAGE) != loadedPages) {
+                    return;
+                }
+                loadingPage = false;
+                allPagesLoaded = children.size() < PAGE_SIZE;
+                if (loadedPages++ > 0) { ((BrowserAdapter) fileRecycler.getAdapter()).addItems(children); }
+                else {
                     // Create the file recycler and set it to call loadItem when an item is clicked
-                    fileRecycler.setAdapter(new BrowserAdapter(children, (item) -> loadItem(item)));
+                    fileRecycler.setAdapter(new BrowserAdapter(new ArrayList<>(children), (item) -> loadItem(item)));
 
                     // Create the path recycler and set it to call backupToId when a segment is clicked
                     currentPathSegments = Arrays.asList(parentId.substring(mediaRoot.length() + 1).split("/"));
                     pathRecycler.setAdapter(new PathAdapter(currentPathSegments, (segments) -> backupToId(segments)));
+                } // End if(loadedPages > 0) {} else
 
-                    mediaBrowser.unsubscribe(parentId);
-                } // End subscribe(loadId)->onChildrenLoaded method
-            }); // End SubscriptionCallback implementation
-        } // End if(isConnected)
-    } // End loadRecyclers method
+                // If the loaded items don't fill the file recycler, it can't be scrolled to request the next page, so
+                //      check once the new items have been laid out
+                if (!allPagesLoaded) { fileRecycler.post(() -> loadNextPageIfNearEnd()); }
+            } // End subscribe(currentId)->onChildrenLoaded method
+
+            @Override
+            public void onError(@NonNull String parentId, @NonNull Bundle options) {
+                super.onError(parentId, options);
+                mediaBrowser.unsubscribe(parentId, this);
+                if (!parentId.equals(currentId)) { return; }
+                loadingPage = false;
+                allPagesLoaded = true; // Folder no longer exists, stop requesting pages of it
+            } // End subscribe(currentId)->onError method
+        }); // End SubscriptionCallback implementation
+    } // End loadNextPage method
+
+    // Requests the next page once the last visible item of the file recycler is within half a page of the end of the
+    //      loaded items
+    private void loadNextPageIfNearEnd() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) fileRecycler.getLayoutManager();
+        RecyclerView.Adapter<?> adapter = fileRecycler.getAdapter();
+        if (layoutManager == null || adapter == null) { return; }
+        if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - PAGE_SIZE / 2) { loadNextPage(); }
+    } // End loadNextPageIfNearEnd method
 
     private void loadItem(MediaBrowserCompat.MediaItem item) {
         if (item.isBrowsable()) { loadRecyclers(item.getMediaId()); }
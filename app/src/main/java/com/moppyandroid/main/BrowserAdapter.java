@@ -50,6 +50,17 @@ public class BrowserAdapter extends RecyclerView.Adapter<BrowserAdapter.Holder>
         this.clickListener = clickListener;
     } // End BrowserAdapter(List<MediaItem>) constructor
 
+    /**
+     * Adds items to the end of the displayed {@link List}, e.g. when another page of a folder is loaded.
+     *
+     * @param items the items to add
+     */
+    public void addItems(List<MediaBrowserCompat.MediaItem> items) {
+        int start = dataset.size();
+        dataset.addAll(items);
+        notifyItemRangeInserted(start, items.size());
+    } // End addItems method
+
     /**
      * Method triggered when a {@link androidx.recyclerview.widget.RecyclerView.ViewHolder} is created.
      */
@@ -67,6 +67,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.RemoteException;
@@ -105,6 +106,7 @@ import com.moppy.core.comms.bridge.BridgeSerial;
 import com.moppyandroid.main.service.MidiLibrary;
 import com.moppyandroid.main.service.MidiLibrary.MidiFile;
 import com.moppyandroid.main.service.MoppyMediaService;
+import com.moppyandroid.main.service.ParsedSong;
 import com.sothree.slidinguppanel.SlidingUpPanelLayout;
 import com.sothree.slidinguppanel.SlidingUpPanelLayout.PanelState;
 
@@ -480,6 +482,13 @@ public class MainActivity extends AppCompatActivity implements SeekBar.OnSeekBar
                 // Most after-load processing handled through the media controller metadata change listener
                 midiFile = resultData.getParcelable(MoppyMediaService.EXTRA_MEDIA_MIDI_FILE);
                 createSheetMusic();
+
+                // Let the user know if parts of a damaged file were skipped
+                ArrayList<String> problems = resultData.getStringArrayList(MoppyMediaService.EXTRA_LOAD_PROBLEMS);
+                if (problems != null && !problems.isEmpty()) {
+                    showMessageDialog("'" + item.getDescription().getTitle() + "' is damaged, parts of it could not be read:\n\n" + problems.get(0) +
+                            (problems.size() > 1 ? "\n(and " + (problems.size() - 1) + " more)" : ""), null);
+                } // End if(problems != null && !problems.isEmpty())
                 super.onResult(action, extras, resultData);
             }
 
@@ -496,9 +505,44 @@ public class MainActivity extends AppCompatActivity implements SeekBar.OnSeekBar
         if (midiFile == null) { return; }
         shadeSheetMusic = false;
 
-        FileUri sheetFileUri = new FileUri(midiFile.getUri(), midiFile.getPath());
-        byte[] bytes = sheetFileUri.getData(MainActivity.this);
-        com.midisheetmusic.MidiFile sheetFile = new com.midisheetmusic.MidiFile(bytes, midiFile.getName());
+        // Use the sequence already parsed for playback if possible, otherwise read the file
+        ParsedSong parsedSong = ParsedSong.getLoaded(midiFile.getUri());
+        if (parsedSong != null && !parsedSong.hasSheetMusicFile()) {
+            // The sequence may still be loading in the background, build the sheet music once it is done
+            Uri uri = midiFile.getUri();
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        com.midisheetmusic.MidiFile sheetFile = parsedSong.getSheetMusicFile();
+                        uiHandler.post(() -> {
+                            // Skip if another file was loaded in the meantime
+                            if (midiFile != null && uri.equals(midiFile.getUri())) { showSheetMusic(sheetFile); }
+                        });
+                    } // End try {getSheetMusicFile}
+                    catch (InterruptedException e) {
+                        Log.w(MainActivity.class.getName() + "->createSheetMusic", "Interrupted while building sheet music", e);
+                    } // End try {getSheetMusicFile} catch(InterruptedException)
+                } // End run method
+            }.start();
+            return;
+        } // End if(parsedSong != null && !parsedSong.hasSheetMusicFile())
+
+        com.midisheetmusic.MidiFile sheetFile;
+        if (parsedSong != null) {
+            try { sheetFile = parsedSong.getSheetMusicFile(); }
+            catch (InterruptedException e) { return; } // Already built, doesn't wait
+        } // End if(parsedSong != null)
+        else {
+            FileUri sheetFileUri = new FileUri(midiFile.getUri(), midiFile.getPath());
+            byte[] bytes = sheetFileUri.getData(MainActivity.this);
+            sheetFile = new com.midisheetmusic.MidiFile(bytes, midiFile.getName());
+        } // End if(parsedSong != null) {} else
+        showSheetMusic(sheetFile);
+    } // End createSheetMusic method
+
+    // Shows the provided sheet music in the slider
+    private void showSheetMusic(com.midisheetmusic.MidiFile sheetFile) {
         MidiOptions options = new MidiOptions(sheetFile);
         options.showPiano = false;
         options.twoStaffs = false;
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import java.util.function.Consumer;
+
+/**
+ * A store of MIDI files that a {@link MidiLibraryIndex} is kept in sync with. The store on a device is
+ * {@link MediaStoreSource}; other implementations let the index be driven without a device.
+ * <br><br>
+ * Each file has an ID that stays the same while the file exists, and a modification stamp that increases whenever
+ * the file is added or changed, so only the files changed since the last sync need to be read.
+ */
+public interface MediaSource {
+    /**
+     * Gets the version of the store. Modification stamps and IDs are only comparable between syncs with the same
+     * version, so a different version causes a full sync.
+     *
+     * @return the version {@link String}
+     */
+    String getVersion();
+
+    /**
+     * Reads the files added or changed at or after a modification stamp. Files that may not have changed can be
+     * included as well. The durations of the files are 0 if the store doesn't know them.
+     *
+     * @param modifiedSince the earliest modification stamp to read, or -1 to read all files
+     * @param consumer      the {@link Consumer} to pass each file to
+     * @see #probeDuration(long)
+     */
+    void queryFiles(long modifiedSince, Consumer<MidiLibraryIndex.Record> consumer);
+
+    /**
+     * Reads the ID, name and path of every file, which is enough to find the files that were deleted, renamed or moved
+     * without being changed.
+     *
+     * @param consumer the {@link LocationConsumer} to pass each file to
+     */
+    void queryLocations(LocationConsumer consumer);
+
+    /**
+     * Calculates the duration of a file by reading it.
+     *
+     * @param id the ID of the file
+     * @return the duration in milliseconds, or {@code 0} if it couldn't be calculated
+     */
+    int probeDuration(long id);
+
+    /**
+     * Sets the observer notified whenever the files of the store may have changed. The observer may be called on any
+     * thread, and multiple changes may cause a single call.
+     *
+     * @param observer the observer to call, or {@code null} to stop observing
+     */
+    void setObserver(Runnable observer);
+
+    /**
+     * Receives the locations read by {@link #queryLocations(LocationConsumer)}.
+     */
+    interface LocationConsumer {
+        /**
+         * Receives the location of a file.
+         *
+         * @param id   the ID of the file
+         * @param name the name of the file
+         * @param path the relative path of the folder containing the file
+         */
+        void accept(long id, String name, String path);
+    } // End LocationConsumer interface
+} // End MediaSource interface
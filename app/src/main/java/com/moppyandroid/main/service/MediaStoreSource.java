@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import android.annotation.SuppressLint;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.io.MidiFileProbe;
+
+/**
+ * The {@link MediaSource} of the MIDI files in the {@link MediaStore.Audio} table of the device.
+ * <br><br>
+ * The modification stamp of a file is the later of its {@link MediaStore.MediaColumns#DATE_ADDED} and
+ * {@link MediaStore.MediaColumns#DATE_MODIFIED}, so copied files that keep their modification time are still read.
+ * Both are in seconds, so the files of the last second of a sync are read again by the next one.
+ */
+public class MediaStoreSource implements MediaSource {
+    private static final String TAG = MediaStoreSource.class.getName();
+    private static final String SELECTION = "is_music != 0 AND " + MediaStore.Audio.Media.MIME_TYPE + "=?";
+    private static final String[] SELECTION_ARGS = new String[]{ "audio/midi" };
+
+    // IDE Complains about minimum SDK version of 29 needed for MediaStore.Audio.Media.Duration, however
+    // the documentation is incorrect and it does exist on earlier SDKs
+    @SuppressLint("InlinedApi")
+    private static final String[] FILE_PROJECTION = new String[]{ // The fields to retrieve for each changed file
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DISPLAY_NAME,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.RELATIVE_PATH,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+    }; // End FILE_PROJECTION initialization
+    private static final String[] LOCATION_PROJECTION = new String[]{ // The fields to retrieve for every file
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DISPLAY_NAME,
+            MediaStore.Audio.Media.RELATIVE_PATH,
+    }; // End LOCATION_PROJECTION initialization
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private ContentObserver contentObserver;
+
+    /**
+     * Constructs a {@code MediaStoreSource}.
+     *
+     * @param context the context to use for querying the files
+     */
+    public MediaStoreSource(Context context) {
+        this.context = context.getApplicationContext();
+        resolver = this.context.getContentResolver();
+        contentObserver = null;
+    } // End MediaStoreSource constructor
+
+    /**
+     * Gets the {@link Uri} used to open a MIDI file.
+     *
+     * @param id the ID of the file
+     * @return the content {@code Uri} of the file
+     */
+    public static Uri getContentUri(long id) {
+        // Android 10 changed how file system access works; see https://stackoverflow.com/questions/63111091/java-lang-illegalargumentexception-volume-external-primary-not-found-in-android
+        // While using EXTERNAL_CONTENT_URI works, it causes the service to crash when the device is rebooted
+        return ContentUris.withAppendedId(MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL), id);
+    } // End getContentUri method
+
+    @Override
+    public String getVersion() { return MediaStore.getVersion(context); }
+
+    @Override
+    public void queryFiles(long modifiedSince, Consumer<MidiLibraryIndex.Record> consumer) {
+        String selection = SELECTION;
+        String[] selectionArgs = SELECTION_ARGS;
+        if (modifiedSince >= 0) {
+            selection += " AND (" + MediaStore.Audio.Media.DATE_ADDED + ">=? OR " + MediaStore.Audio.Media.DATE_MODIFIED + ">=?)";
+            selectionArgs = new String[]{ SELECTION_ARGS[0], Long.toString(modifiedSince), Long.toString(modifiedSince) };
+        }
+
+        // Open up a query for the MIDI files in the MediaStore.Audio table, closing it automatically
+        try (Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, FILE_PROJECTION, selection, selectionArgs, null)) {
+            if (cursor == null) { return; }
+
+            // Get the column offsets for each field
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DISPLAY_NAME);
+            int durationColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
+            int pathColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.RELATIVE_PATH);
+            int artistColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            int albumColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+            int addedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_ADDED);
+            int modifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED);
+
+            // Loop through all the files selected
+            while (cursor.moveToNext()) {
+                long modified = Math.max(cursor.getLong(addedColumn), cursor.getLong(modifiedColumn));
+                consumer.accept(new MidiLibraryIndex.Record(
+                        cursor.getLong(idColumn),
+                        modified,
+                        cursor.getString(nameColumn),
+                        cursor.getInt(durationColumn),
+                        cursor.getString(artistColumn),
+                        cursor.getString(albumColumn),
+                        cursor.getString(pathColumn)
+                )); // End consumer.accept call
+            } // End while(cursor.next)
+        } // End try(cursor = query(EXTERNAL_CONTENT_URI))
+    } // End queryFiles method
+
+    @Override
+    public void queryLocations(LocationConsumer consumer) {
+        try (Cursor cursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, LOCATION_PROJECTION, SELECTION, SELECTION_ARGS, null)) {
+            if (cursor == null) { return; }
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DISPLAY_NAME);
+            int pathColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.RELATIVE_PATH);
+            while (cursor.moveToNext()) {
+                consumer.accept(cursor.getLong(idColumn), cursor.getString(nameColumn), cursor.getString(pathColumn));
+            }
+        } // End try(cursor = query(EXTERNAL_CONTENT_URI))
+    } // End queryLocations method
+
+    /**
+     * Calculates the duration of a MIDI file by probing its tempo and timing information, without
+     * fully parsing it. MediaStore often has no duration for MIDI files.
+     *
+     * @param id the ID of the file
+     * @return the duration in milliseconds, or {@code 0} if the file couldn't be probed
+     */
+    @Override
+    public int probeDuration(long id) {
+        Uri contentUri = getContentUri(id);
+        try (ParcelFileDescriptor descriptor = resolver.openFileDescriptor(contentUri, "r")) {
+            if (descriptor == null) { return 0; }
+            MidiFileProbe probe = MidiFileProbe.probe(descriptor.getFileDescriptor());
+            return (int) Math.min(probe.getMicrosecondLength() / 1000, Integer.MAX_VALUE);
+        } // End try(descriptor = open(contentUri))
+        catch (IOException | InvalidMidiDataException e) {
+            Log.w(TAG + "->probeDuration:", "Unable to probe duration of '" + contentUri + "'", e);
+            return 0;
+        } // End try(descriptor = open(contentUri)) {} catch(IOException | InvalidMidiDataException)
+    } // End probeDuration method
+
+    @Override
+    public synchronized void setObserver(Runnable observer) {
+        if (contentObserver != null) {
+            resolver.unregisterContentObserver(contentObserver);
+            contentObserver = null;
+        }
+        if (observer == null) { return; }
+
+        // No handler is given, so the observer is called on a binder thread
+        contentObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) { observer.run(); }
+        };
+        resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, contentObserver);
+    } // End setObserver method
+} // End MediaStoreSource class
@@ -26,7 +26,7 @@ import jp.kshoji.javax.sound.midi.Receiver;
  * {@link Receiver} that simply forwards received messages to another {@link Receiver} set with {@link #setReceiver(Receiver)}.
  */
 public class MidiForwarder implements Receiver {
-    private Receiver receiver;
+    private volatile Receiver receiver; // Set from the service thread, used from the MIDI input threads
 
     /**
      * Constructs a new {@code MidiForwarder}.
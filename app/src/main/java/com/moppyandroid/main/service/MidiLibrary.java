@@ -18,18 +18,14 @@
 package com.moppyandroid.main.service;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
-import android.os.Build;
+import android.os.Handler;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.provider.MediaStore;
 import android.support.v4.media.MediaMetadataCompat;
 import android.util.Log;
 
@@ -40,24 +36,37 @@ import androidx.core.content.ContextCompat;
 
 import com.moppyandroid.main.BuildConfig;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.InvalidPathException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 /**
  * Represents the MIDI file library of an Android device.
+ * <br><br>
+ * The files are kept in a {@link MidiLibraryIndex} persisted in the cache directory, so creating the library only
+ * reads the files that changed since the previous service start. Once {@link #startWatching(Handler, ChangeListener)}
+ * is called, the library keeps itself up to date as files are added, changed, or deleted.
  */
 public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
     /**
      * The package and name of the {@code MidiLibrary} class. Refactors <b>must</b> ensure this is accurate.
      */
     protected static final String CLASS_NAME = "com.moppyandroid.main.service.MidiLibrary";
+    private static final String TAG = MidiLibrary.class.getName();
     /**
      * The ID of the root folder.
      */
@@ -91,19 +100,17 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
      */
     public static final String MUSIC_FILE_ICON_URI = ContentResolver.SCHEME_ANDROID_RESOURCE + "://" + BuildConfig.APPLICATION_ID + "/drawable/ic_musicfile";
 
-    private Folder rootFolder; // The root folder containing all categories
+    private static final String INDEX_FILE_NAME = "midi_library.index"; // The name of the index snapshot in the cache directory
 
-    // IDE Complains about minimum SDK version of 29 needed for MediaStore.Audio.Media.Duration, however
-    // the documentation is incorrect and it does exist on earlier SDKs
-    @SuppressLint("InlinedApi")
-    private static String[] projection = new String[]{ // The fields to retrieve for each file
-            MediaStore.Audio.Media._ID,
-            MediaStore.Audio.Media.DISPLAY_NAME,
-            MediaStore.Audio.Media.DURATION,
-            MediaStore.Audio.Media.RELATIVE_PATH,
-            MediaStore.Audio.Media.ARTIST,
-            MediaStore.Audio.Media.ALBUM,
-    }; // End projection initialization
+    private Folder rootFolder;                  // The root folder containing all categories
+    private final Folder pathFolder;            // The folder containing the songs sorted by path
+    private final Folder artistFolder;          // The folder containing the songs sorted by artist
+    private final Folder albumFolder;           // The folder containing the songs sorted by album
+    private final MidiLibraryIndex index;       // The files of this library
+    private final MediaSource source;           // The store the index is kept in sync with
+    private final File indexFile;               // The snapshot file of the index, or null if it isn't persisted
+    private final AtomicBoolean syncQueued;     // Whether a sync has been started for a change but hasn't begun reading yet
+    private final TrigramSearchIndex<MidiLibraryIndex.Record> searchIndex; // The files by title, artist and album
 
     /**
      * Checks if the provided context has permission to read external storage.
@@ -139,65 +146,34 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
     @Nullable
     public static MidiLibrary getMidiLibrary(Context context) {
         if (!hasStoragePermission(context)) { return null; }
+        return getMidiLibrary(new MediaStoreSource(context), new File(context.getCacheDir(), INDEX_FILE_NAME));
+    } // End getMidiLibrary(Context) method
 
-        // Create the root folder and the category folders
-        // Since we access the "root" folder by a path represented by ROOT_ID, it can't actually be the
-        //      root folder. Therefore, we create realRootFolder to contain ROOT_ID as its only child.
-        RootFolder realRootFolder = new RootFolder();
-        Folder rootFolder = realRootFolder.createFolder(ROOT_ID);
-        Folder pathFolder = rootFolder.createFolder("PATH");
-        Folder artistFolder = rootFolder.createFolder("ARTIST", ARTIST_ICON_URI);
-        Folder albumFolder = rootFolder.createFolder("ALBUM", ALBUM_ICON_URI);
-
-        // Open up a query for all MIDI files in the MediaStore.Audio table, closing it automatically
-        ContentResolver resolver = context.getApplicationContext().getContentResolver();
-        try (
-                Cursor cursor = resolver.query(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        projection,
-                        "is_music != 0 AND " + MediaStore.Audio.Media.MIME_TYPE + "=?",
-                        new String[]{ "audio/midi" },
-                        MediaStore.Audio.Media.DISPLAY_NAME + " ASC"
-                )) {
-            if (cursor != null) {
-                // Get the column offsets for each field
-                int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
-                int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DISPLAY_NAME);
-                int durationColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
-                int pathColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.RELATIVE_PATH);
-                int artistColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
-                int albumColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
-
-                // Loop through all the files selected
-                while (cursor.moveToNext()) {
-                    // Get the fields of the current file
-                    long id = cursor.getLong(idColumn);
-                    String name = cursor.getString(nameColumn);
-                    int duration = cursor.getInt(durationColumn);
-                    String path = cursor.getString(pathColumn);
-                    String artist = cursor.getString(artistColumn);
-                    String album = cursor.getString(albumColumn);
-                    // Android 10 changed how file system access works; see https://stackoverflow.com/questions/63111091/java-lang-illegalargumentexception-volume-external-primary-not-found-in-android
-                    // While using EXTERNAL_CONTENT_URI works, it causes the service to crash when the device is rebooted
-                    Uri contentUri;
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                        contentUri = ContentUris.withAppendedId(MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL), id);
-                    }
-                    else {
-                        contentUri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
-                    }
-
-                    // Use the retrieved information to create a MidiFile in each folder category
-                    createFileInFolder(pathFolder, path, contentUri, name, duration, artist, album, path);
-                    createFileInFolder(artistFolder, ARTIST_ICON_URI, artist, contentUri, name, duration, artist, album, path);
-                    createFileInFolder(albumFolder, ALBUM_ICON_URI, album, contentUri, name, duration, artist, album, path);
-                } // End while(cursor.next)
-            } // End if(cursor != null)
-        } // End try(cursor = query(EXTERNAL_CONTENT_URI)
-
-        // Create and return the MidiLibrary object
-        return new MidiLibrary(realRootFolder);
-    } // End getMidiLibrary method
+    /**
+     * Factory method for creating a MIDI library of the files of a {@link MediaSource}. The index snapshot is loaded
+     * and synced with the source, and written back if anything changed; an unreadable snapshot is replaced.
+     *
+     * @param source    the source of the files
+     * @param indexFile the file to persist the {@link MidiLibraryIndex} in, or {@code null} to sync from scratch
+     * @return the MIDI library
+     */
+    public static MidiLibrary getMidiLibrary(MediaSource source, @Nullable File indexFile) {
+        MidiLibraryIndex index = null;
+        if (indexFile != null) {
+            try { index = MidiLibraryIndex.load(indexFile); }
+            catch (IOException e) { Log.w(TAG + "->getMidiLibrary:", "Rebuilding unreadable library index", e); }
+        }
+        if (index == null) { index = new MidiLibraryIndex(); }
+
+        // Bring the index up to date, then build the folders from it in name order so name conflicts always
+        //      resolve the same way
+        MidiLibrary library = new MidiLibrary(index, source, indexFile);
+        if (!index.sync(source).isEmpty()) { library.saveIndex(); }
+        List<MidiLibraryIndex.Record> records = new ArrayList<>(index.getRecords());
+        records.sort(Comparator.comparing(MidiLibraryIndex.Record::getName, Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (MidiLibraryIndex.Record record : records) { library.addRecord(record, null); }
+        return library;
+    } // End getMidiLibrary(MediaSource, File) method
 
     public static void getMidiLibraryAsync(Context context, MidiLibrary.Callback callback) {
         new Thread() {
@@ -206,8 +182,140 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
         }.start();
     } // End getMidiLibraryAsync method
 
-    // Constructs a MIDI library with the passed root folder. See getMidiLibrary for explanation about root folder to pass
-    private MidiLibrary(Folder rootFolder) { this.rootFolder = rootFolder; }
+    // Constructs an empty MIDI library backed by the provided index
+    private MidiLibrary(MidiLibraryIndex index, MediaSource source, File indexFile) {
+        this.index = index;
+        this.source = source;
+        this.indexFile = indexFile;
+        syncQueued = new AtomicBoolean(false);
+        searchIndex = new TrigramSearchIndex<>();
+
+        // Create the root folder and the category folders
+        // Since we access the "root" folder by a path represented by ROOT_ID, it can't actually be the
+        //      root folder. Therefore, we create rootFolder to contain ROOT_ID as its only child.
+        rootFolder = new RootFolder();
+        Folder categoriesFolder = rootFolder.createFolder(ROOT_ID);
+        pathFolder = categoriesFolder.createFolder("PATH");
+        artistFolder = categoriesFolder.createFolder("ARTIST", ARTIST_ICON_URI);
+        albumFolder = categoriesFolder.createFolder("ALBUM", ALBUM_ICON_URI);
+    } // End MidiLibrary constructor
+
+    /**
+     * Starts keeping this library up to date with its files. Whenever the files change they are synced on a
+     * background thread, and the changes are applied to the folders on the thread of {@code handler}, which must be
+     * the thread this library is read on.
+     *
+     * @param handler  the {@link Handler} of the thread to apply changes on
+     * @param listener the {@link ChangeListener} to call on the thread of {@code handler} after each change
+     * @see #stopWatching()
+     */
+    public void startWatching(Handler handler, ChangeListener listener) {
+        source.setObserver(() -> {
+            // Bursts of changes only need one sync, since a sync reads everything changed until it starts
+            if (!syncQueued.compareAndSet(false, true)) { return; }
+            new Thread() {
+                @Override
+                public void run() {
+                    syncQueued.set(false);
+                    // Syncs post their changes in order, since each change builds on the previous one
+                    synchronized (index) {
+                        MidiLibraryIndex.Delta delta = index.sync(source);
+                        if (delta.isEmpty()) { return; }
+                        saveIndex();
+                        handler.post(() -> listener.onLibraryChanged(MidiLibrary.this, apply(delta)));
+                    } // End synchronized(index)
+                } // End run method
+            }.start();
+        }); // End setObserver call
+    } // End startWatching method
+
+    /**
+     * Stops keeping this library up to date with its files.
+     *
+     * @see #startWatching(Handler, ChangeListener)
+     */
+    public void stopWatching() { source.setObserver(null); }
+
+    // Writes the snapshot of the index, logging any failure since the index can always be rebuilt
+    private void saveIndex() {
+        if (indexFile == null) { return; }
+        try { index.save(indexFile); }
+        catch (IOException e) { Log.w(TAG + "->saveIndex:", "Unable to write library index", e); }
+    } // End saveIndex method
+
+    // Applies the changes of a sync to the folders, returning the IDs of the folders whose children changed
+    private Set<String> apply(MidiLibraryIndex.Delta delta) {
+        Set<String> changedFolders = new HashSet<>();
+        for (MidiLibraryIndex.Record record : delta.getRemoved()) { removeRecord(record, changedFolders); }
+        for (MidiLibraryIndex.Record record : delta.getAdded()) { addRecord(record, changedFolders); }
+        return changedFolders;
+    } // End apply method
+
+    // Creates the MidiFile of an indexed file in each folder category
+    private void addRecord(MidiLibraryIndex.Record record, @Nullable Set<String> changedFolders) {
+        Uri contentUri = MediaStoreSource.getContentUri(record.getId());
+        String name = record.getName();
+        int duration = record.getDuration();
+        String path = record.getPath();
+        String artist = record.getArtist();
+        String album = record.getAlbum();
+        createFileInFolder(pathFolder, path, contentUri, name, duration, artist, album, path);
+        createFileInFolder(artistFolder, ARTIST_ICON_URI, artist, contentUri, name, duration, artist, album, path);
+        createFileInFolder(albumFolder, ALBUM_ICON_URI, album, contentUri, name, duration, artist, album, path);
+        searchIndex.add(record.getId(), record, name, artist, album);
+        if (changedFolders != null) { addFolderIds(changedFolders, record); }
+    } // End addRecord method
+
+    // Removes the MidiFile of an indexed file from each folder category, along with the folders left empty
+    private void removeRecord(MidiLibraryIndex.Record record, Set<String> changedFolders) {
+        Uri contentUri = MediaStoreSource.getContentUri(record.getId());
+        removeFileFromFolder(pathFolder, record.getPath(), contentUri);
+        removeFileFromFolder(artistFolder, record.getArtist(), contentUri);
+        removeFileFromFolder(albumFolder, record.getAlbum(), contentUri);
+        searchIndex.remove(record.getId());
+        addFolderIds(changedFolders, record);
+    } // End removeRecord method
+
+    // Adds the IDs of the folders containing an indexed file in each category, and of their parents
+    private void addFolderIds(Set<String> folderIds, MidiLibraryIndex.Record record) {
+        Folder[] categories = { pathFolder, artistFolder, albumFolder };
+        String[] folderPaths = { record.getPath(), record.getArtist(), record.getAlbum() };
+        for (int i = 0; i < categories.length; ++i) {
+            String folderId = categories[i].getNameGlobal();
+            folderIds.add(folderId);
+            if (folderPaths[i] == null) { continue; }
+            for (String segment : folderPaths[i].split("/")) {
+                if (segment.isEmpty()) { continue; }
+                folderId += "/" + segment;
+                folderIds.add(folderId);
+            }
+        } // End for(i < categories.length)
+    } // End addFolderIds method
+
+    // Removes the MidiFile with the provided Uri from a folder, then removes the folders it leaves empty
+    private static void removeFileFromFolder(Folder folder, String folderPath, Uri contentUri) {
+        if (folderPath == null) { return; }
+        while (folderPath.endsWith("/")) { folderPath = folderPath.substring(0, folderPath.length() - 1); }
+        MapNode node = folder.get(folderPath);
+        if (!(node instanceof Folder)) { return; }
+
+        // Files are matched by Uri since their names may have had their paths added to resolve a conflict
+        for (MapNode child : node.getChildren()) {
+            if (child instanceof MidiFile && contentUri.equals(((MidiFile) child).getUri())) {
+                ((Folder) node).remove(child.getName());
+                break;
+            }
+        } // End for(child : node.children)
+
+        // Remove the folders left empty, from the deepest up
+        while (!folderPath.isEmpty()) {
+            node = folder.get(folderPath);
+            if (!(node instanceof Folder) || node.hasChildren()) { break; }
+            folder.remove(folderPath);
+            int index = folderPath.lastIndexOf('/');
+            folderPath = (index == -1) ? "" : folderPath.substring(0, index);
+        } // End while(folderPath ≠ "")
+    } // End removeFileFromFolder method
 
     /**
      * Gets the number of items in the root of this MIDI library.
@@ -353,6 +461,18 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
     @NonNull
     public Collection<MapNode> valuesRecursive() { return rootFolder.getChildrenRecursive(); }
 
+    /**
+     * Visits all of the dead-end {@link MapNode} objects in this MIDI library, in the order of
+     * {@link #valuesRecursive()}, without allocating once the library has been cached.
+     *
+     * @param visitor the {@link Predicate} called with each item, returning {@code false} to stop visiting
+     * @return {@code true} if every item was visited, {@code false} if {@code visitor} stopped early
+     * @see Folder#forEachChildRecursive(Predicate)
+     */
+    public boolean forEachValueRecursive(Predicate<? super MapNode> visitor) {
+        return rootFolder.forEachChildRecursive(visitor);
+    } // End forEachValueRecursive method
+
     /**
      * <b>DISABLED METHOD</b><br>
      * throws {@link UnsupportedOperationException}.
@@ -367,10 +487,10 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
      * Searches for a MIDI file with a similar name
      *
      * @param query the name to search for
-     * @return {@code null} if {@code query} didn't match any files, otherwise the first matched file
+     * @return {@code null} if {@code query} didn't match any files, otherwise the best matched file
      */
     @Nullable
-    public MidiFile searchFileFuzzy(String query) { return searchFileFuzzy(query, (f) -> true); }
+    public MidiFile searchFileFuzzy(String query) { return searchFileFuzzy(query, null); }
 
     /**
      * Searches for a {@link MidiFile} using a {@link Predicate} to allow the caller to specify
@@ -379,36 +499,60 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
      * e.g. predicate could be {@code (file) -> { return file.getAlbum() == "Greatest Hits"; } }
      *
      * @param query     the name of the file to search for
-     * @param predicate the functional interface used to validate a matching {@code MidiFile}
-     * @return {@code null} if no matching files were found, otherwise the first matched file
+     * @param predicate the functional interface used to validate a matching {@code MidiFile}, or {@code null}
+     * @return {@code null} if no matching files were found, otherwise the best matched file
      */
     @Nullable
-    public MidiFile searchFileFuzzy(String query, Predicate<MidiFile> predicate) {
-        // Replace _ and spaces with nothing and convert to lowercase for better search results
-        query = query.replace("_", "");
-        query = query.replace(" ", "");
-        query = query.toLowerCase();
-
-        // Retrieve the children of the requested branch and return the queried file if found
-        MapNode node = get(PATH_ID);
-        if (!(node instanceof Folder)) {
-            throw new IllegalStateException("PATH folder not created in MidiLibrary instance");
-        }
-        Set<MapNode> collection = node.getChildrenRecursive();
-        for (MapNode item : collection) {
-            if (!(item instanceof MidiFile)) { continue; }
-            String name = item.getName();
-            name = name.replace("_", "");
-            name = name.replace(" ", "");
-            name = name.toLowerCase();
-            if ((query.contains(name) || name.contains(query)) && predicate.test((MidiFile) item)) {
-                return (MidiFile) item;
-            }
-        } // End for(item : collection)
+    public MidiFile searchFileFuzzy(String query, @Nullable Predicate<MidiFile> predicate) {
+        List<MidiFile> files = searchFiles(query, TrigramSearchIndex.FIELD_TITLE, 1, predicate);
+        return files.isEmpty() ? null : files.get(0);
+    } // End searchFileFuzzy(String, Predicate) method
 
-        // Return null if no MidiFiles are found matching the query
-        return null;
-    } // End searchFuzzy(String, String) method
+    /**
+     * Searches for the {@link MidiFile}s best matching a query, using a trigram index of the library that is kept up
+     * to date with it. Misspelled and partial queries still match, and results are ranked by how closely they match.
+     *
+     * @param query     the text to search for
+     * @param fields    the fields to search, a combination of {@link TrigramSearchIndex#FIELD_TITLE},
+     *                  {@link TrigramSearchIndex#FIELD_ARTIST}, and {@link TrigramSearchIndex#FIELD_ALBUM}
+     * @param limit     the maximum number of files to return
+     * @param predicate the functional interface used to validate a matching {@code MidiFile}, or {@code null}
+     * @return the {@link List} of matched files, best match first
+     */
+    @NonNull
+    public List<MidiFile> searchFiles(String query, int fields, int limit, @Nullable Predicate<MidiFile> predicate) {
+        List<MidiLibraryIndex.Record> records = searchIndex.search(query, fields, limit,
+                (predicate == null) ? null : (record) -> {
+                    MidiFile file = findFile(record);
+                    return file != null && predicate.test(file);
+                }
+        ); // End searchIndex.search call
+
+        // Retrieve the MidiFile of each matched record from the PATH folder
+        List<MidiFile> files = new ArrayList<>(records.size());
+        for (MidiLibraryIndex.Record record : records) {
+            MidiFile file = findFile(record);
+            if (file != null) { files.add(file); }
+        }
+        return files;
+    } // End searchFiles method
+
+    // Gets the MidiFile of an indexed file from the PATH folder, or null if it isn't there
+    private MidiFile findFile(MidiLibraryIndex.Record record) {
+        String path = record.getPath();
+        if (path == null || record.getName() == null) { return null; }
+        while (path.endsWith("/")) { path = path.substring(0, path.length() - 1); }
+        MapNode folder = path.isEmpty() ? pathFolder : pathFolder.get(path);
+        if (!(folder instanceof Folder)) { return null; }
+
+        // The file has its path added to its name if it conflicted with another file, see createFileInFolder
+        Uri contentUri = MediaStoreSource.getContentUri(record.getId());
+        MapNode node = ((Folder) folder).get(record.getName());
+        if (!(node instanceof MidiFile) || !contentUri.equals(((MidiFile) node).getUri())) {
+            node = ((Folder) folder).get(record.getName() + " (" + record.getPath().replace('/', '⧸') + ")");
+        }
+        return (node instanceof MidiFile && contentUri.equals(((MidiFile) node).getUri())) ? (MidiFile) node : null;
+    } // End findFile method
 
     // Calls other createFileInFolder overload with a null icon
     private static boolean createFileInFolder(
@@ -512,6 +656,21 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
         void onLoadCompletion(MidiLibrary midiLibrary);
     }
 
+    /**
+     * Callback interface used for running code after a {@link MidiLibrary} has applied changes to its files.
+     *
+     * @see #startWatching(Handler, ChangeListener)
+     */
+    public interface ChangeListener {
+        /**
+         * Triggered after files have been added, changed, or deleted.
+         *
+         * @param midiLibrary     the library that changed
+         * @param changedFolderIds the IDs of the folders whose children may have changed
+         */
+        void onLibraryChanged(MidiLibrary midiLibrary, Set<String> changedFolderIds);
+    }
+
     /**
      * A structure representing a MIDI file that can be contained in a {@link Folder}.
      */
@@ -786,7 +945,8 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
     } // End MidiFile class
 
     /**
-     * A structure representing a folder in a {@link MidiLibrary}. Backed by a {@link TreeMap}.
+     * A structure representing a folder in a {@link MidiLibrary}. Backed by a {@link TreeMap}, which is only accessed
+     * while holding its lock, so that a {@code Folder} changed on one thread can be read on another.
      */
     public static class Folder implements MapNode {
         private final String name;
@@ -794,7 +954,12 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
         private final String parentName;
         private final String iconUri;
         private final MediaMetadataCompat metadata;
-        private TreeMap<String, MapNode> children;
+        private final TreeMap<String, MapNode> children;                // Guarded by itself
+        private final AtomicLong version;                               // Incremented on every change to the children table
+        private volatile Snapshot<MapNode> childrenSnapshot;            // Cached result of getChildren
+        private volatile Snapshot<String> keysSnapshot;                 // Cached result of getKeys
+        private volatile Snapshot<MapNode> childrenRecursiveSnapshot;   // Cached result of getChildrenRecursive
+        private volatile Snapshot<String> keysRecursiveSnapshot;        // Cached result of getKeysRecursive
 
         /**
          * Creates a folder to house the provided {@link MidiFile}. The default folder icon is used for all new folders.
@@ -849,6 +1014,7 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          */
         public Folder(String folderName, String parentName, String iconUri) {
             this.children = new TreeMap<>();
+            this.version = new AtomicLong();
 
             // Overridable function used to validate the folder names
             this.name = validateFolderNames(folderName, parentName);
@@ -872,6 +1038,7 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
         // Used for cloning
         private Folder(Folder sourceFolder) {
             this.children = sourceFolder.children;
+            this.version = sourceFolder.version;
             this.name = sourceFolder.name;
             this.parentName = sourceFolder.parentName;
             this.globalName = sourceFolder.globalName;
@@ -980,19 +1147,25 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
         public void addChild(@Nullable MapNode node) throws InvalidPathException {
             if (node == null) { return; }
             // Attempt to merge nodes if the node to be added already exists, otherwise add it
-            if (children.containsKey(node.getName())) {
-                // Ensure both nodes folders, and then combine them
-                MapNode existingNode = children.get(node.getName());
-                if ((!(existingNode instanceof Folder)) || (!(node instanceof Folder))) {
-                    throw new InvalidPathException(
-                            getNameGlobal() + "/" + node.getName(),
-                            "Both instances of " + node.getName() + " are not folders"
-                    );
-                } // End if(existingNode ∉ Folder)
-                Set<MapNode> nodeChildren = node.getChildren();
-                for (MapNode child : nodeChildren) { ((Folder) existingNode).addChild(child); }
-            } // End if(children ∋ node.name)
-            else { children.put(node.getName(), node); }
+            MapNode existingNode;
+            synchronized (children) {
+                existingNode = children.get(node.getName());
+                if (existingNode == null) {
+                    children.put(node.getName(), node);
+                    version.incrementAndGet();
+                    return;
+                }
+            } // End synchronized(children)
+
+            // Ensure both nodes folders, and then combine them
+            if ((!(existingNode instanceof Folder)) || (!(node instanceof Folder))) {
+                throw new InvalidPathException(
+                        getNameGlobal() + "/" + node.getName(),
+                        "Both instances of " + node.getName() + " are not folders"
+                );
+            } // End if(existingNode ∉ Folder)
+            Set<MapNode> nodeChildren = node.getChildren();
+            for (MapNode child : nodeChildren) { ((Folder) existingNode).addChild(child); }
         } // End addChild method
 
         /**
@@ -1003,12 +1176,15 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          */
         public MapNode get(String key) {
             int index = key.indexOf("/");
-            if (index == -1 || index + 1 >= key.length()) { return children.get(key); }
-            MapNode node = children.get(key.substring(0, index));
+            if (index == -1 || index + 1 >= key.length()) { return getChild(key); }
+            MapNode node = getChild(key.substring(0, index));
             if (!(node instanceof Folder)) { return null; }
             return ((Folder) node).get(key.substring(index + 1));
         } // End get method
 
+        // Gets a direct child of this Folder by name
+        private MapNode getChild(String name) { synchronized (children) { return children.get(name); } }
+
         /**
          * Removes a child of this {@code Folder}.
          *
@@ -1017,9 +1193,15 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          */
         public MapNode remove(String key) {
             int index = key.indexOf("/");
-            if (index == -1 || index + 1 >= key.length()) { return children.remove(key); }
-            MapNode node = children.get(key.substring(0, index));
-            if (node == null) { return null; } // Not found
+            if (index == -1 || index + 1 >= key.length()) {
+                synchronized (children) {
+                    MapNode removed = children.remove(key);
+                    if (removed != null) { version.incrementAndGet(); }
+                    return removed;
+                }
+            } // End if(key ∌ "/")
+            MapNode node = getChild(key.substring(0, index));
+            if (!(node instanceof Folder)) { return null; } // Not found
             return ((Folder) node).remove(key.substring(index + 1));
         } // End remove method
 
@@ -1029,7 +1211,7 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          * @param key the name of the item
          * @return {@code true} if {@code key} is the name of an item is in this {@code Folder}, otherwise {@code false}
          */
-        public boolean containsKey(String key) { return children.containsKey(key); }
+        public boolean containsKey(String key) { synchronized (children) { return children.containsKey(key); } }
 
         /**
          * Checks if a {@link MapNode} is a direct child of this {@code Folder}.
@@ -1037,7 +1219,7 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          * @param value the item to check for
          * @return {@code true} if {@code value} is an item is in this {@code Folder}, otherwise {@code false}
          */
-        public boolean containsValue(MapNode value) { return children.containsValue(value); }
+        public boolean containsValue(MapNode value) { synchronized (children) { return children.containsValue(value); } }
 
         /**
          * Creates a new {@code Folder} with the same properties as this {@code Folder}.
@@ -1058,13 +1240,12 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          */
         public Set<Folder> getFoldersRecursive() {
             Set<Folder> result = new TreeSet<>();
-            Collection<MapNode> nodes = children.values();
-            for (MapNode node : nodes) {
+            for (Object node : getChildrenSnapshot().items) {
                 if (node instanceof Folder) {
                     result.add((Folder) node);
                     result.addAll(((Folder) node).getFoldersRecursive());
                 } // End if(node ∈ Folder)
-            } // End for(node : nodes)
+            } // End for(node : children)
             return result;
         } // End getFoldersRecursive method
 
@@ -1084,33 +1265,92 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          * @return {@code true} if this {@code Folder} has children, otherwise {@code false}
          */
         @Override
-        public boolean hasChildren() { return !children.isEmpty(); }
+        public boolean hasChildren() { synchronized (children) { return !children.isEmpty(); } }
 
         /**
-         * Gets all of the children of this {@code Folder}.
+         * Gets all of the children of this {@code Folder}. The returned {@link Set} is cached until this
+         * {@code Folder} changes, so repeated calls don't allocate.
          *
-         * @return the {@link Set} of all children
+         * @return the read-only {@code Set} of all children
          */
         @Override
-        public Set<MapNode> getChildren() { return new TreeSet<>(children.values()); }
+        public Set<MapNode> getChildren() { return getChildrenSnapshot().view; }
+
+        /**
+         * Gets a child of this {@code Folder} by its position in {@link #getChildren()}, so that a range of children
+         * can be read without iterating over the ones before it.
+         *
+         * @param index the position of the child, from 0 to {@code getChildren().size() - 1}
+         * @return the child at {@code index}
+         * @throws IndexOutOfBoundsException if {@code index} is outside the children
+         */
+        public MapNode getChildAt(int index) {
+            Object[] items = getChildrenSnapshot().items;
+            if (index < 0 || index >= items.length) {
+                throw new IndexOutOfBoundsException("index " + index + " outside " + items.length + " children");
+            }
+            return (MapNode) items[index];
+        } // End getChildAt method
+
+        // Gets the cached children, copying them from the children table if it changed since
+        private Snapshot<MapNode> getChildrenSnapshot() {
+            Snapshot<MapNode> snapshot = childrenSnapshot;
+            if (snapshot == null || snapshot.version != version.get()) {
+                synchronized (children) { snapshot = new Snapshot<>(version.get(), new TreeSet<>(children.values())); }
+                childrenSnapshot = snapshot;
+            }
+            return snapshot;
+        } // End getChildrenSnapshot method
 
         /**
          * Recursively gets all the dead-end children of this {@code Folder}. In other words,
          * any {@link MapNode}s without children (e.g. an empty {@code Folder} or a {@link MidiFile})
-         * are found and returned.
+         * are found and returned. The returned {@link Set} is cached until this {@code Folder} or a subfolder changes.
          *
-         * @return the {@link Set} of all children which have no children
+         * @return the read-only {@code Set} of all children which have no children
+         * @see #forEachChildRecursive(Predicate)
          */
         @Override
-        public Set<MapNode> getChildrenRecursive() {
-            Set<MapNode> childrenSet = new TreeSet<>();
-            Collection<MapNode> nodes = children.values();
-            for (MapNode node : nodes) {
-                if (node.hasChildren()) { childrenSet.addAll(node.getChildrenRecursive()); }
+        public Set<MapNode> getChildrenRecursive() { return getChildrenRecursiveSnapshot().view; }
+
+        /**
+         * Visits the dead-end children of this {@code Folder} in the order of {@link #getChildrenRecursive()},
+         * without allocating once the children have been cached. The children are visited from a snapshot, so this
+         * {@code Folder} may be changed on another thread meanwhile.
+         *
+         * @param visitor the {@link Predicate} called with each child, returning {@code false} to stop visiting
+         * @return {@code true} if every child was visited, {@code false} if {@code visitor} stopped early
+         */
+        public boolean forEachChildRecursive(Predicate<? super MapNode> visitor) {
+            for (Object node : getChildrenRecursiveSnapshot().items) {
+                if (!visitor.test((MapNode) node)) { return false; }
+            }
+            return true;
+        } // End forEachChildRecursive method
+
+        // Gets the cached dead-end children, merging the cached dead-end children of the subfolders if outdated
+        private Snapshot<MapNode> getChildrenRecursiveSnapshot() {
+            Snapshot<MapNode> childrenSnapshot = getChildrenSnapshot();
+            Snapshot<MapNode> snapshot = childrenRecursiveSnapshot;
+            if (snapshot != null && snapshot.isMergedFrom(childrenSnapshot, false)) { return snapshot; }
+
+            TreeSet<MapNode> childrenSet = new TreeSet<>();
+            Snapshot<?>[] parts = new Snapshot<?>[childrenSnapshot.items.length];
+            for (int i = 0; i < parts.length; ++i) {
+                MapNode node = (MapNode) childrenSnapshot.items[i];
+                if (node instanceof Folder) {
+                    Snapshot<MapNode> part = ((Folder) node).getChildrenRecursiveSnapshot();
+                    if (part.items.length == 0) { childrenSet.add(node); }
+                    else { childrenSet.addAll(part.view); }
+                    parts[i] = part;
+                } // End if(node ∈ Folder)
+                else if (node.hasChildren()) { childrenSet.addAll(node.getChildrenRecursive()); }
                 else { childrenSet.add(node); }
-            } // End for(node : nodes)
-            return childrenSet;
-        } // End getChildrenRecursive method
+            } // End for(i < parts.length)
+            snapshot = new Snapshot<>(childrenSnapshot, parts, childrenSet);
+            childrenRecursiveSnapshot = snapshot;
+            return snapshot;
+        } // End getChildrenRecursiveSnapshot method
 
         /**
          * Gets the number children this {@code Folder} has.
@@ -1118,33 +1358,59 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          * @return the size of the children table
          */
         @Override
-        public int getChildrenCount() { return children.size(); }
+        public int getChildrenCount() { synchronized (children) { return children.size(); } }
 
         /**
-         * Gets the names of all direct children of this {@code Folder}.
+         * Gets the names of all direct children of this {@code Folder}. The returned {@link Set} is cached until this
+         * {@code Folder} changes.
          *
-         * @return the {@link Set} of all children names
+         * @return the read-only {@link Set} of all children names
          */
         @Override
-        public Set<String> getKeys() { return children.keySet(); }
+        public Set<String> getKeys() {
+            Snapshot<String> snapshot = keysSnapshot;
+            if (snapshot == null || snapshot.version != version.get()) {
+                synchronized (children) { snapshot = new Snapshot<>(version.get(), new TreeSet<>(children.keySet())); }
+                keysSnapshot = snapshot;
+            }
+            return snapshot.view;
+        } // End getKeys method
 
         /**
          * Recursively gets the names of all dead-end children children of this {@code Folder}. In other words,
          * the names of any {@link MapNode}s without children (e.g. an empty {@code Folder} or a {@link MidiFile})
          * are found and returned.
          *
-         * @return the {@link Set} of all names of children which have no children
+         * The returned {@link Set} is cached until this {@code Folder} or a subfolder changes.
+         *
+         * @return the read-only {@code Set} of all names of children which have no children
          */
         @Override
-        public Set<String> getKeysRecursive() {
-            Set<String> keys = new TreeSet<>();
-            Collection<MapNode> nodes = children.values();
-            for (MapNode node : nodes) {
-                if (node.hasChildren()) { keys.addAll(node.getKeysRecursive()); }
+        public Set<String> getKeysRecursive() { return getKeysRecursiveSnapshot().view; }
+
+        // Gets the cached names of the dead-end children, merging those of the subfolders if outdated
+        private Snapshot<String> getKeysRecursiveSnapshot() {
+            Snapshot<MapNode> childrenSnapshot = getChildrenSnapshot();
+            Snapshot<String> snapshot = keysRecursiveSnapshot;
+            if (snapshot != null && snapshot.isMergedFrom(childrenSnapshot, true)) { return snapshot; }
+
+            TreeSet<String> keys = new TreeSet<>();
+            Snapshot<?>[] parts = new Snapshot<?>[childrenSnapshot.items.length];
+            for (int i = 0; i < parts.length; ++i) {
+                MapNode node = (MapNode) childrenSnapshot.items[i];
+                if (node instanceof Folder) {
+                    Snapshot<String> part = ((Folder) node).getKeysRecursiveSnapshot();
+                    if (part.items.length == 0) { keys.add(node.getName()); }
+                    else { keys.addAll(part.view); }
+                    parts[i] = part;
+                } // End if(node ∈ Folder)
+                else if (node.hasChildren()) { keys.addAll(node.getKeysRecursive()); }
                 else { keys.add(node.getName()); }
-            } // End for(node : nodes)
-            return keys;
-        } // End getKeysRecursive method
+            } // End for(i < parts.length)
+            snapshot = new Snapshot<>(childrenSnapshot, parts, keys);
+            keysRecursiveSnapshot = snapshot;
+            return snapshot;
+        } // End getKeysRecursiveSnapshot method
 
         /**
          * Always returns {@code false}.
@@ -1195,6 +1461,51 @@ public class MidiLibrary implements Map<String, MidiLibrary.MapNode> {
          */
         @Override
         public int compareTo(MapNode node) { return this.name.compareToIgnoreCase(node.getName()); }
+
+        // An immutable copy of a sorted set of children. A snapshot of the direct children is valid until the version
+        //      of its folder changes; a recursive snapshot is valid while it was merged from the current snapshot of
+        //      the direct children and the current recursive snapshots of the subfolders, since folders have no
+        //      parent links to invalidate it. Since every field is final, a snapshot built on one thread can be safely
+        //      read on another
+        private static final class Snapshot<E> {
+            final long version;         // The folder version the snapshot was taken at, for direct children
+            final Object[] items;       // The items of the snapshot in order, for iterating without an Iterator
+            final Set<E> view;          // The read-only view of the items
+            final Snapshot<?> source;   // The snapshot of the direct children merged, for recursive snapshots
+            final Snapshot<?>[] parts;  // The recursive snapshot of each subfolder in source merged, null for files
+
+            Snapshot(long version, TreeSet<E> set) {
+                this.version = version;
+                this.items = set.toArray();
+                this.view = Collections.unmodifiableSet(set);
+                this.source = null;
+                this.parts = null;
+            }
+
+            Snapshot(Snapshot<MapNode> source, Snapshot<?>[] parts, TreeSet<E> set) {
+                this.version = source.version;
+                this.items = set.toArray();
+                this.view = Collections.unmodifiableSet(set);
+                this.source = source;
+                this.parts = parts;
+            }
+
+            // Checks if this recursive snapshot was merged from the current snapshots, walking the subfolders
+            //      without allocating
+            boolean isMergedFrom(Snapshot<MapNode> childrenSnapshot, boolean keys) {
+                if (source != childrenSnapshot) { return false; }
+                for (int i = 0; i < parts.length; ++i) {
+                    Object node = source.items[i];
+                    if (node instanceof Folder) {
+                        Folder folder = (Folder) node;
+                        Snapshot<?> part = keys ? folder.getKeysRecursiveSnapshot() : folder.getChildrenRecursiveSnapshot();
+                        if (part != parts[i]) { return false; }
+                    } // End if(node ∈ Folder)
+                    else if (((MapNode) node).hasChildren()) { return false; } // Not cached
+                } // End for(i < parts.length)
+                return true;
+            } // End isMergedFrom method
+        } // End Snapshot class
     } // End Folder class
 
     /**
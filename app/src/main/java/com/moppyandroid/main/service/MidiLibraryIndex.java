@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The files of a {@link MidiLibrary}, persisted between service starts and kept in sync with a {@link MediaSource}.
+ * <br><br>
+ * Loading the index reads a memory-mapped snapshot instead of querying the whole store and probing every file again.
+ * Each {@link #sync(MediaSource)} then reads only the files modified since the newest file of the previous sync, plus
+ * the locations of all files to find the deleted and moved ones, and returns the {@link Delta} to apply to the
+ * library. Durations probed from the files are kept until the files change.
+ * <br><br>
+ * Note: This class doesn't depend on Android, so it can be driven by a fake {@code MediaSource} on the JVM.
+ */
+public class MidiLibraryIndex {
+    private static final int MAGIC = 0x4d4c4958;    // "MLIX", the first bytes of a snapshot
+    private static final int FORMAT_VERSION = 1;    // The version of the snapshot format
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final HashMap<Long, Record> records;    // The indexed files by ID
+    private String sourceVersion;                   // The version of the source last synced with, or null if never synced
+    private long lastModified;                      // The newest modification stamp of the indexed files, or -1 if none
+
+    /**
+     * Constructs an empty {@code MidiLibraryIndex}, which does a full sync the first time it is synced.
+     */
+    public MidiLibraryIndex() {
+        records = new HashMap<>();
+        sourceVersion = null;
+        lastModified = -1;
+    } // End MidiLibraryIndex constructor
+
+    /**
+     * Loads a {@code MidiLibraryIndex} from a snapshot written by {@link #save(File)}.
+     *
+     * @param file the snapshot file
+     * @return the loaded index, or an empty index if {@code file} doesn't exist
+     * @throws IOException if the snapshot couldn't be read, or is damaged or from another version
+     */
+    public static MidiLibraryIndex load(File file) throws IOException {
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        if (!file.isFile()) { return index; }
+
+        try (FileInputStream stream = new FileInputStream(file)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported library index '" + file + "'");
+            }
+            index.sourceVersion = getString(buffer, file);
+            index.lastModified = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0) { throw new IOException("Damaged library index '" + file + "'"); }
+            for (int i = 0; i < count; ++i) {
+                long id = buffer.getLong();
+                long modified = buffer.getLong();
+                int duration = buffer.getInt();
+                String name = getString(buffer, file);
+                String path = getString(buffer, file);
+                String artist = getString(buffer, file);
+                String album = getString(buffer, file);
+                index.records.put(id, new Record(id, modified, name, duration, artist, album, path));
+            } // End for(i < count)
+        } // End try(stream = open(file))
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Damaged library index '" + file + "'", e);
+        } // End try(stream = open(file)) {} catch(BufferUnderflowException | IllegalArgumentException)
+        return index;
+    } // End load method
+
+    /**
+     * Writes a snapshot of this {@code MidiLibraryIndex}, replacing the previous snapshot only once it is fully written.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot couldn't be written
+     */
+    public synchronized void save(File file) throws IOException {
+        // Encode the strings first so the snapshot can be written in one buffer
+        byte[] version = encode(sourceVersion);
+        List<byte[]> strings = new ArrayList<>(records.size() * 4);
+        int size = 4 + 4 + stringSize(version) + 8 + 4;
+        for (Record record : records.values()) {
+            byte[][] fields = { encode(record.name), encode(record.path), encode(record.artist), encode(record.album) };
+            size += 8 + 8 + 4;
+            for (byte[] field : fields) {
+                strings.add(field);
+                size += stringSize(field);
+            }
+        } // End for(record : records.values)
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+        putString(buffer, version);
+        buffer.putLong(lastModified).putInt(records.size());
+        int s = 0;
+        for (Record record : records.values()) {
+            buffer.putLong(record.id).putLong(record.modified).putInt(record.duration);
+            for (int i = 0; i < 4; ++i) { putString(buffer, strings.get(s++)); }
+        }
+        buffer.flip();
+
+        // Write to a temporary file first so a partially written snapshot is never read
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            FileChannel channel = stream.getChannel();
+            while (buffer.hasRemaining()) { channel.write(buffer); }
+        } // End try(stream = open(temp))
+        catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        } // End try(stream = open(temp)) {} catch(IOException)
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Unable to replace library index '" + file + "'");
+        }
+    } // End save method
+
+    /**
+     * Brings this {@code MidiLibraryIndex} up to date with a {@link MediaSource}. Only the files modified since the
+     * previous sync are read, unless the version of the source changed, in which case all files are read. Files
+     * without a duration are probed, unless they haven't changed since they were last probed.
+     *
+     * @param source the {@code MediaSource} to sync with
+     * @return the files removed from and added to the index, with changed files in both
+     */
+    public synchronized Delta sync(MediaSource source) {
+        String version = source.getVersion();
+        Delta delta = sync(source, version, !version.equals(sourceVersion));
+        // A file that is neither new nor known was added while syncing, read everything to be safe
+        if (delta == null) { delta = sync(source, version, true); }
+        return delta;
+    } // End sync(MediaSource) method
+
+    /**
+     * Gets the files in this {@code MidiLibraryIndex}.
+     *
+     * @return a copy of the {@link Collection} of files
+     */
+    public synchronized Collection<Record> getRecords() { return new ArrayList<>(records.values()); }
+
+    /**
+     * Gets the number of files in this {@code MidiLibraryIndex}.
+     *
+     * @return the number of files
+     */
+    public synchronized int size() { return records.size(); }
+
+    // Syncs with the source, returning null if a full sync is needed but full is false
+    private Delta sync(MediaSource source, String version, boolean full) {
+        // Read the changed files, then the locations of all files
+        HashMap<Long, Record> changed = new HashMap<>();
+        source.queryFiles(full ? -1 : lastModified, (record) -> changed.put(record.id, record));
+        Set<Long> present = new HashSet<>();
+        boolean[] unknown = { false };
+        source.queryLocations((id, name, path) -> {
+            present.add(id);
+            if (changed.containsKey(id)) { return; }
+            Record old = records.get(id);
+            if (old == null) { unknown[0] = true; }
+            else if (!Objects.equals(old.name, name) || !Objects.equals(old.path, path)) {
+                changed.put(id, new Record(id, old.modified, name, old.duration, old.artist, old.album, path));
+            }
+        }); // End queryLocations call
+        if (unknown[0] && !full) { return null; }
+
+        // Remove the deleted files
+        List<Record> removed = new ArrayList<>();
+        List<Record> added = new ArrayList<>();
+        for (Iterator<Record> iterator = records.values().iterator(); iterator.hasNext(); ) {
+            Record record = iterator.next();
+            if (!present.contains(record.id)) {
+                removed.add(record);
+                iterator.remove();
+            }
+        } // End for(record : records.values)
+
+        // Add or replace the changed files, keeping the probed durations of unchanged files
+        long newest = full ? -1 : lastModified;
+        for (Record record : changed.values()) {
+            if (!present.contains(record.id)) { continue; } // Deleted while syncing
+            Record old = records.get(record.id);
+            if (record.duration <= 0) {
+                int duration = (old != null && old.modified == record.modified && old.duration > 0) ?
+                               old.duration : source.probeDuration(record.id);
+                record = new Record(record.id, record.modified, record.name, duration, record.artist, record.album, record.path);
+            }
+            newest = Math.max(newest, record.modified);
+            records.put(record.id, record);
+            if (old != null && old.hasSameContent(record)) { continue; }
+            if (old != null) { removed.add(old); }
+            added.add(record);
+        } // End for(record : changed.values)
+
+        sourceVersion = version;
+        lastModified = newest;
+        return new Delta(removed, added);
+    } // End sync(MediaSource, String, boolean) method
+
+    // Gets the number of bytes a string takes in a snapshot
+    private static int stringSize(byte[] bytes) { return 4 + (bytes == null ? 0 : bytes.length); }
+
+    // Encodes a string for a snapshot
+    private static byte[] encode(String string) { return string == null ? null : string.getBytes(StandardCharsets.UTF_8); }
+
+    // Writes a string as its length, or -1 if null, followed by its UTF-8 bytes
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) { buffer.putInt(-1); }
+        else { buffer.putInt(bytes.length).put(bytes); }
+    } // End putString method
+
+    // Reads a string written by putString, checking its length against the rest of the snapshot before allocating it
+    private static String getString(ByteBuffer buffer, File file) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) { return null; }
+        if (length > buffer.remaining()) { throw new IOException("Damaged library index '" + file + "'"); }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    } // End getString method
+
+    /**
+     * A MIDI file in a {@link MidiLibraryIndex}.
+     */
+    public static final class Record {
+        private final long id;
+        private final long modified;
+        private final String name;
+        private final int duration;
+        private final String artist;
+        private final String album;
+        private final String path;
+
+        /**
+         * Constructs a {@code Record}.
+         *
+         * @param id       the ID of the file in its {@link MediaSource}
+         * @param modified the modification stamp of the file
+         * @param name     the file's name
+         * @param duration the duration (in milliseconds), or 0 if unknown
+         * @param artist   the file's artist
+         * @param album    the file's album
+         * @param path     the relative path of the folder containing the file
+         */
+        public Record(long id, long modified, String name, int duration, String artist, String album, String path) {
+            this.id = id;
+            this.modified = modified;
+            this.name = name;
+            this.duration = duration;
+            this.artist = artist;
+            this.album = album;
+            this.path = path;
+        } // End Record constructor
+
+        /**
+         * Gets the ID of the file in its {@link MediaSource}.
+         *
+         * @return the ID
+         */
+        public long getId() { return id; }
+
+        /**
+         * Gets the modification stamp of the file.
+         *
+         * @return the modification stamp
+         */
+        public long getModified() { return modified; }
+
+        /**
+         * Gets the name of the file.
+         *
+         * @return the name
+         */
+        public String getName() { return name; }
+
+        /**
+         * Gets the duration (in milliseconds) of the file.
+         *
+         * @return the duration, or 0 if unknown
+         */
+        public int getDuration() { return duration; }
+
+        /**
+         * Gets the artist of the file.
+         *
+         * @return the artist
+         */
+        public String getArtist() { return artist; }
+
+        /**
+         * Gets the album of the file.
+         *
+         * @return the album
+         */
+        public String getAlbum() { return album; }
+
+        /**
+         * Gets the relative path of the folder containing the file.
+         *
+         * @return the path
+         */
+        public String getPath() { return path; }
+
+        /**
+         * Checks whether this {@code Record} shows the same thing in a {@link MidiLibrary} as another, ignoring
+         * the modification stamp.
+         *
+         * @param record the {@code Record} to compare with
+         * @return {@code true} if the ID, name, duration, artist, album and path are equal
+         */
+        public boolean hasSameContent(Record record) {
+            return id == record.id && duration == record.duration && Objects.equals(name, record.name) &&
+                   Objects.equals(artist, record.artist) && Objects.equals(album, record.album) &&
+                   Objects.equals(path, record.path);
+        } // End hasSameContent method
+    } // End Record class
+
+    /**
+     * The changes made to a {@link MidiLibraryIndex} by a sync. A changed file is both removed, as it was before,
+     * and added, as it is now.
+     */
+    public static final class Delta {
+        private final List<Record> removed;
+        private final List<Record> added;
+
+        // Constructs a Delta with the provided changes
+        private Delta(List<Record> removed, List<Record> added) {
+            this.removed = Collections.unmodifiableList(removed);
+            this.added = Collections.unmodifiableList(added);
+        }
+
+        /**
+         * Gets the files removed from the index, as they were before the sync.
+         *
+         * @return the {@link List} of removed files
+         */
+        public List<Record> getRemoved() { return removed; }
+
+        /**
+         * Gets the files added to the index, as they are after the sync.
+         *
+         * @return the {@link List} of added files
+         */
+        public List<Record> getAdded() { return added; }
+
+        /**
+         * Checks whether the sync changed anything.
+         *
+         * @return {@code true} if no file was removed or added
+         */
+        public boolean isEmpty() { return removed.isEmpty() && added.isEmpty(); }
+    } // End Delta class
+} // End MidiLibraryIndex class
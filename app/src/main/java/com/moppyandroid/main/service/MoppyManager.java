@@ -18,9 +18,16 @@
 package com.moppyandroid.main.service;
 
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 
+import com.github.noahr_atc.midisplitter.ChannelCapabilities;
+import com.github.noahr_atc.midisplitter.SequenceSplitter;
 import com.moppy.core.comms.bridge.BridgeSerial;
+import com.moppy.core.device.DeviceDescriptor;
 import com.moppy.core.events.mapper.MIDIEventMapper;
 import com.moppy.core.events.mapper.MapperCollection;
 import com.moppy.core.events.postprocessor.MessagePostProcessor;
@@ -30,9 +37,11 @@ import com.moppy.core.status.StatusBus;
 import com.moppy.core.status.StatusType;
 import com.moppy.core.status.StatusUpdate;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,15 +49,22 @@ import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
 import jp.kshoji.javax.sound.midi.MidiMessage;
 import jp.kshoji.javax.sound.midi.MidiUnavailableException;
 import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.Sequencer;
-import jp.kshoji.javax.sound.midi.io.StandardMidiFileReader;
-import jp.kshoji.javax.sound.midi.spi.MidiFileReader;
+import jp.kshoji.javax.sound.midi.io.ByteBufferMidiFileReader;
+import jp.kshoji.javax.sound.midi.io.ProgressiveSequence;
+import jp.kshoji.javax.sound.midi.io.RecoveryReport;
 
 /**
  * Manages all objects necessary to operate Moppy and provides methods to control them.
  */
 public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoCloseable {
+    /**
+     * The baud rate {@link BridgeSerial} connects to Moppy devices at, for use with {@link PolyphonyReport}s.
+     */
+    public static final int DEFAULT_BAUD_RATE = 57600;
     private static final String TAG = MoppyManager.class.getName();
+    private static final byte DEVICE_ADDRESS = 0x01; // The address of the device all MIDI channels are mapped to
 
     private boolean paused;
     private long currentSequenceLength;
@@ -58,6 +74,11 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
     private MoppyUsbManager netManager;
     private List<Callback> callbackList;
     private MidiLibrary.MidiFile loadedFile;
+    private volatile Sequence loadedSequence;
+    private volatile RecoveryReport loadedFileReport;
+    private SequenceCache sequenceCache;
+    private volatile SequenceSplitter sequenceSplitter;
+    private volatile ChannelCapabilities channelCapabilities;
 
     /**
      * Constructs a new {@code MoppyManager}.
@@ -70,12 +91,17 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
         callbackList = new ArrayList<>();
         outputReceiverDispatcher = new ReceiverDispatcher();
         loadedFile = null;
+        loadedSequence = null;
+        loadedFileReport = null;
+        sequenceCache = new SequenceCache(new File(context.getCacheDir(), "sequences"), SequenceCache.DEFAULT_MAX_BYTES);
+        sequenceSplitter = null;
+        channelCapabilities = ChannelCapabilities.unrestricted(16);
 
         BridgeSerial.init(context);
         StatusBus statusBus = new StatusBus();
         statusBus.registerConsumer(this);
         MapperCollection<MidiMessage> mappers = new MapperCollection<>();
-        mappers.addMapper(MIDIEventMapper.defaultMapper((byte) 0x01)); // Map to first device
+        mappers.addMapper(MIDIEventMapper.defaultMapper(DEVICE_ADDRESS)); // Map to first device
         netManager = new MoppyUsbManager(statusBus, context);
 
         try {
@@ -107,8 +133,38 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
         else if (update.getType() == StatusType.SEQUENCE_STOPPED) {
             callbackList.forEach(Callback::onStop);
         }
+        else if (update.getType() == StatusType.NET_DEVICES_CHANGED) {
+            // Split across the channels of the devices that are connected now
+            ChannelCapabilities capabilities = getDeviceCapabilities(netManager.getDeviceDescriptors());
+            setChannelCapabilities(capabilities);
+            callbackList.forEach((callback) -> callback.onChannelCapabilitiesChanged(capabilities));
+        } // End if(update == SEQUENCE_END) {} else if(update == SEQUENCE_STOPPED) {} else if(update == NET_DEVICES_CHANGED)
     } // End receiveUpdate method
 
+    /**
+     * Creates the capabilities of the channels played by connected Moppy devices. Channel {@code n} is played by
+     * sub-address {@code n + 1} of the device the MIDI channels are mapped to, and each sub-address is a floppy drive
+     * playing one note at a time from {@link ChannelCapabilities#FLOPPY_LOWEST_NOTE} to
+     * {@link ChannelCapabilities#FLOPPY_HIGHEST_NOTE}. Notes outside that range are transposed into it. Devices at
+     * other addresses receive no notes, so they are ignored.
+     *
+     * @param devices the {@link DeviceDescriptor}s of the connected devices
+     * @return the {@code ChannelCapabilities} of the sub-addresses of {@code devices}, or all 16 channels playing any
+     * notes if none of them receive notes
+     */
+    public static ChannelCapabilities getDeviceCapabilities(List<DeviceDescriptor> devices) {
+        ChannelCapabilities.Builder builder = new ChannelCapabilities.Builder().policy(ChannelCapabilities.UnplayablePolicy.TRANSPOSE);
+        boolean channelAdded = false;
+        for (DeviceDescriptor device : devices) {
+            if (device.getDeviceAddress() != DEVICE_ADDRESS) { continue; }
+            for (int subAddress = Math.max(device.getMinSubAddress(), 1); subAddress <= Math.min(device.getMaxSubAddress(), 16); subAddress++) {
+                builder.channel(subAddress - 1, ChannelCapabilities.FLOPPY_LOWEST_NOTE, ChannelCapabilities.FLOPPY_HIGHEST_NOTE, 1);
+                channelAdded = true;
+            }
+        } // End for(device : devices)
+        return channelAdded ? builder.build() : ChannelCapabilities.unrestricted(16);
+    } // End getDeviceCapabilities method
+
     /**
      * Releases held resources. <b>MUST</b> be called before this {@code MoppyManager}'s destruction.
      */
@@ -167,7 +223,8 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
      * @param file    the file to load
      * @param context the {@link Context} to use to open the file
      * @throws IOException              if the file couldn't be opened
-     * @throws InvalidMidiDataException if the file wasn't a valid MIDI file
+     * @throws InvalidMidiDataException if the file wasn't a MIDI file, or was too damaged to read
+     * @see #getLoadedFileReport()
      */
     public void load(MidiLibrary.MidiFile file, Context context) throws IOException, InvalidMidiDataException {
         if (file == null || file.getUri() == null || file.getName() == null) {
@@ -175,15 +232,72 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
             return;
         }
 
-        // Get an input stream for the file and read it, raising an exception if the stream is invalid
+        // Get a file descriptor for the file and read it, raising an exception if the descriptor is invalid
+        // The file is memory-mapped by the reader instead of being copied through streams, and the parsed
+        // sequence is cached so reloading an unchanged file skips parsing
+        // Uncached files are parsed in the background, so playback can start before the whole file is parsed
+        // Damaged files are parsed leniently, playing what can be read rather than rejecting the whole song:
+        // in the background if they pass the probe, otherwise at once
         // Note: Two try blocks are needed because FileNotFoundException is a subclass of IOException,
         //      but we need to log them differently
-        try (InputStream stream = context.getContentResolver().openInputStream(file.getUri())) {
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(file.getUri(), "r")) {
             try {
-                MidiFileReader reader = new StandardMidiFileReader();
-                if (stream == null) { throw new IOException("Unable to open file"); }
-                seq.loadSequence(reader.getSequence(stream));
+                if (descriptor == null) { throw new IOException("Unable to open file"); }
+                StructStat stat = Os.fstat(descriptor.getFileDescriptor());
+                Sequence sequence = sequenceCache.get(file.getUri(), stat.st_size, stat.st_mtime);
+                RecoveryReport report = null;
+                if (sequence == null) {
+                    // Progressive sequences are always kept in compact tracks, so large files don't use a MidiEvent object per event
+                    ByteBufferMidiFileReader reader = new ByteBufferMidiFileReader(ByteBufferMidiFileReader.getDefaultExecutor());
+                    // Don't close the stream, it would close the descriptor
+                    ByteBuffer data = ByteBufferMidiFileReader.map(new FileInputStream(descriptor.getFileDescriptor()).getChannel());
+                    try {
+                        // Problems found in the background are added to the report while the song is already playing
+                        RecoveryReport progressiveReport = new RecoveryReport();
+                        ProgressiveSequence progressiveSequence = reader.getSequenceProgressively(data, progressiveReport);
+                        long size = stat.st_size;
+                        long lastModified = stat.st_mtime;
+                        progressiveSequence.addLoadListener((loadedSequence, error) -> {
+                            // Only cache completely and cleanly parsed sequences, so the damage is reported on every load
+                            if (error != null) { Log.w(TAG + "->load:", "File '" + file.getName() + "' was only partially parsed", error); }
+                            else if (progressiveReport.hasProblems()) {
+                                for (RecoveryReport.Problem problem : progressiveReport.getProblems()) {
+                                    Log.w(TAG + "->load:", "File '" + file.getName() + "': " + problem);
+                                }
+                            } // End if(error != null) {} else if(progressiveReport.hasProblems())
+                            else { sequenceCache.put(file.getUri(), size, lastModified, loadedSequence); }
+                        });
+                        sequence = progressiveSequence;
+                        report = progressiveReport;
+                    } // End try {getSequenceProgressively(data)}
+                    catch (InvalidMidiDataException e) {
+                        // Damaged file failing the probe, read what can be read at once. Not cached, so the damage is reported on every load
+                        Log.w(TAG + "->load:", "File '" + file.getName() + "' is damaged, reading it leniently", e);
+                        report = new RecoveryReport();
+                        reader.setCompactTracks(true);
+                        sequence = reader.getSequence(data, report);
+                        for (RecoveryReport.Problem problem : report.getProblems()) {
+                            Log.w(TAG + "->load:", "File '" + file.getName() + "': " + problem);
+                        }
+                    } // End try {getSequenceProgressively(data)} catch(InvalidMidiDataException)
+                } // End if(sequence == null)
+
+                // Split the chords of the whole song ahead of time if enabled, so playback needs no runtime splitting
+                // The parsed sequence is kept unsplit for the cache and the sheet music view
+                SequenceSplitter splitter = sequenceSplitter;
+                Sequence playbackSequence = sequence;
+                if (splitter != null) { playbackSequence = splitSequence(splitter, sequence, file.getName()); }
+                seq.loadSequence(playbackSequence);
+                loadedSequence = playbackSequence;
+                loadedFileReport = report;
+
+                // Share the parsed sequence with the sheet music view, so it doesn't read the file again
+                ParsedSong.setLoaded(new ParsedSong(file.getUri(), file.getName(), sequence));
             } // End try {loadSequence}
+            catch (ErrnoException e) {
+                Log.e(TAG + "->load:", "Unable to stat file '" + file.getName() + "'", e);
+                throw new IOException(e);
+            } // End try {loadSequence} catch(ErrnoException)
             catch (IOException e) {
                 // Show a message box and exit method
                 Log.e(TAG + "->load:", "Unable to load file '" + file.getName() + "'", e);
@@ -193,17 +307,175 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
                 Log.e(TAG + "->load:", "File '" + file.getName() + "' is not a valid MIDI file", e);
                 throw e;
             } // End try {loadSequence} catch(IOException)
-        } // End try(stream = open(uri))
+        } // End try(descriptor = open(uri))
         catch (FileNotFoundException e) {
             // Show a message box and exit method
             Log.e(TAG + "->load:", "File to load '" + file.getName() + "' not found", e);
             throw e; // Implicitly upcasted to IOException
-        } // End try(stream = open(uri)) {} catch(FileNotFoundException)
+        } // End try(descriptor = open(uri)) {} catch(FileNotFoundException)
         loadedFile = file;
         currentSequenceLength = seq.getMillisecondsLength();
         callbackList.forEach((callback) -> callback.onLoad(file));
     } // End load method
 
+    /**
+     * Splits the chords of a parsed {@link Sequence} across the MIDI channels, waiting for the whole sequence to be
+     * parsed first if it is parsed in the background.
+     *
+     * @param splitter the {@link SequenceSplitter} to use
+     * @param sequence the parsed sequence, which isn't modified
+     * @param name     the name of the file, for logging
+     * @return the split copy of {@code sequence}
+     * @throws IOException              if interrupted while waiting for the sequence to be parsed
+     * @throws InvalidMidiDataException if the split sequence couldn't be created
+     */
+    private static Sequence splitSequence(SequenceSplitter splitter, Sequence sequence, String name) throws IOException, InvalidMidiDataException {
+        // Split and play what could be parsed, the same as without splitting
+        awaitParsed(sequence, name);
+        return splitter.split(sequence);
+    } // End splitSequence method
+
+    /**
+     * Waits for a {@link Sequence} parsed in the background to be parsed completely. Sequences that couldn't be
+     * parsed completely keep what could be parsed.
+     *
+     * @param sequence the parsed sequence
+     * @param name     the name of the file, for logging
+     * @throws IOException if interrupted while waiting for the sequence to be parsed
+     */
+    private static void awaitParsed(Sequence sequence, String name) throws IOException {
+        if (!(sequence instanceof ProgressiveSequence)) { return; }
+        try { ((ProgressiveSequence) sequence).awaitLoaded(); }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing '" + name + "'", e);
+        } // End try {awaitLoaded} catch(InterruptedException)
+        catch (InvalidMidiDataException e) {
+            Log.w(TAG + "->awaitParsed:", "Using partially parsed sequence of '" + name + "'", e);
+        } // End try {awaitLoaded} catch(InvalidMidiDataException)
+    } // End awaitParsed method
+
+    /**
+     * Analyzes the polyphony, note range and link traffic of the loaded song as it is played, after any splitting,
+     * waiting for it to be parsed completely first.
+     *
+     * @param baudRate the baud rate of the serial links, usually {@link #DEFAULT_BAUD_RATE}
+     * @return the {@link PolyphonyReport} of the loaded song, or {@code null} if no song is loaded
+     * @throws IOException if interrupted while waiting for the song to be parsed
+     */
+    public PolyphonyReport analyzeLoadedFile(int baudRate) throws IOException {
+        Sequence sequence = loadedSequence;
+        MidiLibrary.MidiFile file = loadedFile;
+        if (sequence == null) { return null; }
+        awaitParsed(sequence, file == null ? "" : file.getName());
+        return PolyphonyReport.analyze(sequence, baudRate);
+    } // End analyzeLoadedFile method
+
+    /**
+     * Analyzes every song of a {@link MidiLibrary} on a background thread, one at a time. Songs are read through
+     * the {@link SequenceCache}, and songs that weren't cached are cached afterwards, so they load faster later.
+     * Songs are analyzed as they are stored, without splitting.
+     *
+     * @param library  the library to analyze
+     * @param context  the {@link Context} to use to open the files
+     * @param baudRate the baud rate of the serial links, usually {@link #DEFAULT_BAUD_RATE}
+     * @param callback the {@link AnalysisCallback} to report each song to, called on the background thread
+     * @return the background thread, which can be interrupted to stop the analysis
+     */
+    public Thread analyzeLibraryAsync(MidiLibrary library, Context context, int baudRate, AnalysisCallback callback) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                library.forEachValueRecursive((node) -> {
+                    if (isInterrupted()) { return false; }
+                    if (!(node instanceof MidiLibrary.MidiFile)) { return true; }
+                    MidiLibrary.MidiFile file = (MidiLibrary.MidiFile) node;
+                    try { callback.onFileAnalyzed(file, PolyphonyReport.analyze(readSequence(file, context), baudRate)); }
+                    catch (IOException | InvalidMidiDataException e) {
+                        Log.w(TAG + "->analyzeLibraryAsync:", "Unable to analyze file '" + file.getName() + "'", e);
+                    } // End try {analyze(readSequence)} catch(IOException | InvalidMidiDataException)
+                    return true;
+                }); // End forEachValueRecursive call
+                callback.onAnalysisComplete();
+            } // End run method
+        }; // End new Thread
+        thread.start();
+        return thread;
+    } // End analyzeLibraryAsync method
+
+    /**
+     * Reads a {@link MidiLibrary.MidiFile} completely, from the {@link SequenceCache} if possible. Damaged files are
+     * read leniently, and files read without problems are cached.
+     *
+     * @param file    the file to read
+     * @param context the {@link Context} to use to open the file
+     * @return the parsed {@link Sequence}
+     * @throws IOException              if the file couldn't be opened
+     * @throws InvalidMidiDataException if the file wasn't a MIDI file
+     */
+    private Sequence readSequence(MidiLibrary.MidiFile file, Context context) throws IOException, InvalidMidiDataException {
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(file.getUri(), "r")) {
+            if (descriptor == null) { throw new IOException("Unable to open file"); }
+            StructStat stat = Os.fstat(descriptor.getFileDescriptor());
+            Sequence sequence = sequenceCache.get(file.getUri(), stat.st_size, stat.st_mtime);
+            if (sequence != null) { return sequence; }
+
+            // Read the whole file at once, leniently so damaged files are analyzed as they would be played
+            ByteBufferMidiFileReader reader = new ByteBufferMidiFileReader();
+            reader.setCompactTracks(true);
+            RecoveryReport report = new RecoveryReport();
+            // Don't close the stream, it would close the descriptor
+            ByteBuffer data = ByteBufferMidiFileReader.map(new FileInputStream(descriptor.getFileDescriptor()).getChannel());
+            sequence = reader.getSequence(data, report);
+            if (!report.hasProblems()) { sequenceCache.put(file.getUri(), stat.st_size, stat.st_mtime, sequence); }
+            return sequence;
+        } // End try(descriptor = open(uri))
+        catch (ErrnoException e) { throw new IOException(e); }
+    } // End readSequence method
+
+    /**
+     * Sets whether loaded songs have their chords split across the MIDI channels before playback, with a
+     * {@link SequenceSplitter}. Takes effect from the next call to {@link #load(MidiLibrary.MidiFile, Context)}.
+     * Splitting a song waits for it to be parsed completely, so playback of large files starts later.
+     *
+     * @param splitting {@code true} to split loaded songs, {@code false} to play them as they are
+     */
+    public void setSplittingSequences(boolean splitting) {
+        sequenceSplitter = splitting ? new SequenceSplitter(channelCapabilities) : null;
+    } // End setSplittingSequences method
+
+    /**
+     * Checks whether loaded songs have their chords split across the MIDI channels before playback.
+     *
+     * @return {@code true} if loaded songs are split
+     * @see #setSplittingSequences(boolean)
+     */
+    public boolean isSplittingSequences() { return sequenceSplitter != null; }
+
+    /**
+     * Sets the capabilities of the channels that loaded songs are split across, such as the sub-addresses of the
+     * connected devices and the notes their drives can play. Takes effect from the next call to
+     * {@link #load(MidiLibrary.MidiFile, Context)}. Defaults to all 16 channels playing any notes, and is replaced by
+     * {@link #getDeviceCapabilities(List)} of the connected devices whenever they change.
+     *
+     * @param capabilities the {@link ChannelCapabilities} to split songs with
+     * @throws IllegalArgumentException if {@code capabilities} is null
+     * @see #setSplittingSequences(boolean)
+     */
+    public void setChannelCapabilities(ChannelCapabilities capabilities) {
+        if (capabilities == null) { throw new IllegalArgumentException(); }
+        channelCapabilities = capabilities;
+        if (sequenceSplitter != null) { sequenceSplitter = new SequenceSplitter(capabilities); }
+    } // End setChannelCapabilities method
+
+    /**
+     * Retrieves the capabilities of the channels that loaded songs are split across.
+     *
+     * @return the current {@link ChannelCapabilities}
+     * @see #setChannelCapabilities(ChannelCapabilities)
+     */
+    public ChannelCapabilities getChannelCapabilities() { return channelCapabilities; }
+
     /**
      * Uses the calculations of the loaded {@link jp.kshoji.javax.sound.midi.Sequence} to get the song length.
      *
@@ -239,6 +511,13 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
      */
     public boolean isPlaying() { return seq.isPlaying(); }
 
+    /**
+     * Gets the cache of parsed sequences used by {@link #load(MidiLibrary.MidiFile, Context)}.
+     *
+     * @return the {@code SequenceCache}
+     */
+    public SequenceCache getSequenceCache() { return sequenceCache; }
+
     /**
      * Gets the currently loaded {@link MidiLibrary.MidiFile}.
      *
@@ -246,6 +525,17 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
      */
     public MidiLibrary.MidiFile getLoadedFile() { return loadedFile; }
 
+    /**
+     * Gets the damage found in the currently loaded {@link MidiLibrary.MidiFile}, if it had to be read leniently.
+     * Files parsed in the background can have damage reported after they were loaded, until parsing has ended.
+     *
+     * @return the {@link RecoveryReport} of the loaded file, or {@code null} if it was read without problems (so far)
+     */
+    public RecoveryReport getLoadedFileReport() {
+        RecoveryReport report = loadedFileReport;
+        return (report != null && report.hasProblems()) ? report : null;
+    } // End getLoadedFileReport method
+
     /**
      * Gets the {@link Receiver} that can be used to send MIDI messages to Moppy.
      *
@@ -298,6 +588,24 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
      */
     public boolean unregisterCallback(Callback callback) { return callbackList.remove(callback); }
 
+    /**
+     * Callbacks fired by {@link #analyzeLibraryAsync(MidiLibrary, Context, int, AnalysisCallback)}, on its background thread.
+     */
+    public interface AnalysisCallback {
+        /**
+         * Triggered after a song has been analyzed. Songs that can't be read are logged and skipped.
+         *
+         * @param file   the file of the song
+         * @param report the {@link PolyphonyReport} of the song
+         */
+        void onFileAnalyzed(MidiLibrary.MidiFile file, PolyphonyReport report);
+
+        /**
+         * Triggered after every song has been analyzed, or the analysis was interrupted.
+         */
+        void onAnalysisComplete();
+    } // End AnalysisCallback interface
+
     /**
      * Callbacks fired when each method has completed successfully.
      */
@@ -330,5 +638,13 @@ public class MoppyManager implements com.moppy.core.status.StatusConsumer, AutoC
          * @param reset {@code true} if the song progress is to be reset, otherwise {@code false}
          */
         void onSongEnd(boolean reset) {}
+
+        /**
+         * Triggered when the connected devices change, after the capabilities of their channels are set with
+         * {@link #setChannelCapabilities(ChannelCapabilities)}. May be triggered on a serial port thread.
+         *
+         * @param capabilities the {@link ChannelCapabilities} of the connected devices
+         */
+        void onChannelCapabilitiesChanged(ChannelCapabilities capabilities) {}
     } // End MidiManager.Callback class
 } // End MidiManager class
@@ -31,7 +31,9 @@ import android.media.midi.MidiInputPort;
 import android.media.midi.MidiManager;
 import android.media.midi.MidiOutputPort;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
@@ -47,6 +49,7 @@ import androidx.core.app.NotificationCompat;
 import androidx.media.MediaBrowserServiceCompat;
 import androidx.media.session.MediaButtonReceiver;
 
+import com.github.noahr_atc.midisplitter.ChannelCapabilities;
 import com.github.noahr_atc.midisplitter.MidiProcessor;
 import com.moppy.core.comms.bridge.BridgeSerial;
 import com.moppyandroid.main.R;
@@ -56,12 +59,12 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
 import jp.kshoji.javax.sound.midi.MidiUnavailableException;
 import jp.kshoji.javax.sound.midi.Receiver;
 import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.io.RecoveryReport;
 
 /**
  * The media service that controls Moppy playback.
@@ -156,7 +159,8 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
     public static final String ACTION_SET_MIDI_OUT = "com.moppyandroid.main.service.MoppyMediaService.ACTION_SET_MIDI_OUT_DEVICE";
     /**
      * The custom action for setting the service to intercept MIDI messages from the MIDI input devices
-     * and split up chords to distribute their notes across available MIDI channels.
+     * and split up chords to distribute their notes across available MIDI channels. Songs loaded afterwards
+     * are split the same way, ahead of playback instead of while playing.
      * <p>
      * Non-standard {@link Bundle} fields required:
      *     <table border="1">
@@ -164,7 +168,7 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
      *         <tr>
      *             <td>{@link #EXTRA_MIDI_SPLIT_ENABLE}</td>
      *             <td>{@code boolean}</td>
-     *             <td>Whether or not to enable MIDI note splitting on the MIDI input devices</td>
+     *             <td>Whether or not to enable MIDI note splitting on the MIDI input devices and loaded songs</td>
      *         </tr>
      *     </table>
      * </p>
@@ -256,6 +260,11 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
      *             <td>{@link com.moppyandroid.main.service.MidiLibrary.MidiFile} ({@link android.os.Parcelable})</td>
      *             <td>Information about the MIDI file that was loaded</td>
      *         </tr>
+     *         <tr>
+     *             <td>(Result only, optional) {@link #EXTRA_LOAD_PROBLEMS}</td>
+     *             <td>{@link ArrayList}&lt;{@link String}&gt;</td>
+     *             <td>The damage found if the file had to be read leniently</td>
+     *         </tr>
      *     </table>
      * </p>
      *
@@ -318,6 +327,12 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
      * for the MIDI file loaded in an {@link #ACTION_LOAD_ITEM} event.
      */
     public static final String EXTRA_MEDIA_MIDI_FILE = "MOPPY_EXTRA_MIDI_OUT_DEVICE";
+    /**
+     * {@link ArrayList} of {@link String}s extra field describing the damage found in the file loaded in an
+     * {@link #ACTION_LOAD_ITEM} event, at most {@link RecoveryReport#MAX_PROBLEMS} of them. Only present if the file was
+     * damaged and had to be read leniently.
+     */
+    public static final String EXTRA_LOAD_PROBLEMS = "MOPPY_LOAD_PROBLEMS";
     /**
      * {@code boolean} extra field for if the sequencer should be started if file loaded successfully.
      * If an action reads this extra, {@code null} represents {@code false}.
@@ -444,10 +459,11 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
 
         // Attempt to create the MIDI library. Probably will fail due to permissions not having been
         // granted yet, but hopefully the user will grant them so the next attempt is successful
-        midiLibrary = MidiLibrary.getMidiLibrary(this);
+        setMidiLibrary(MidiLibrary.getMidiLibrary(this));
 
         midiInForwarder = new MidiForwarder();
         midiSplitter = new MidiProcessor(moppyManager.getInputReceiver());
+        midiSplitter.setCapabilities(moppyManager.getChannelCapabilities());
         midiInForwarder.setReceiver(moppyManager.getInputReceiver()); // splitingMidi false by default
     } // End onCreate method
 
@@ -503,12 +519,23 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
         // Disconnect from all Moppy devices, stop running in the foreground, and shutdown the media session
         if (moppyManager != null) { moppyManager.close(); }
         if (midiSplitter != null) { midiSplitter.close(); }
+        if (midiLibrary != null) { midiLibrary.stopWatching(); }
         stopForeground(true);
         if (mediaSession != null) { mediaSession.release(); }
 
         super.onDestroy();
     } // End onDestroy method
 
+    // Replaces the MIDI library, keeping the new one up to date and notifying clients of the folders that change
+    private synchronized void setMidiLibrary(MidiLibrary midiLibrary) {
+        if (this.midiLibrary != null) { this.midiLibrary.stopWatching(); }
+        this.midiLibrary = midiLibrary;
+        if (midiLibrary == null) { return; }
+        midiLibrary.startWatching(new Handler(Looper.getMainLooper()), (library, changedFolderIds) -> {
+            for (String folderId : changedFolderIds) { notifyChildrenChanged(folderId); }
+        });
+    } // End setMidiLibrary method
+
     /**
      * Retrieves the node that allows a connecting client to browse the content library's root folder.
      *
@@ -530,9 +557,41 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
      * @param result        where the list of {@link android.support.v4.media.MediaBrowserCompat.MediaItem}s
      *                      contained in the parent node is sent to
      * @see #onGetRoot(String, int, Bundle)
+     * @see #onLoadChildren(String, Result, Bundle)
      */
     @Override
     public void onLoadChildren(final String parentMediaId, final Result<List<MediaBrowserCompat.MediaItem>> result) {
+        loadChildren(parentMediaId, result, -1, -1);
+    } // End onLoadChildren(String, Result) method
+
+    /**
+     * Uses the provided media ID to retrieve one page of the node's children. Only the items of the requested page
+     * are converted to {@link android.support.v4.media.MediaBrowserCompat.MediaItem}s, so large folders can be
+     * browsed without sending every item in a single transaction.
+     *
+     * @param parentMediaId the ID of the node to retrieve items from
+     * @param result        where the list of {@link android.support.v4.media.MediaBrowserCompat.MediaItem}s
+     *                      of the requested page is sent to
+     * @param options       the {@link MediaBrowserCompat#EXTRA_PAGE} (0-based) and
+     *                      {@link MediaBrowserCompat#EXTRA_PAGE_SIZE} of the page to send
+     * @see #onLoadChildren(String, Result)
+     */
+    @Override
+    public void onLoadChildren(
+            final String parentMediaId,
+            final Result<List<MediaBrowserCompat.MediaItem>> result,
+            final Bundle options
+    ) {
+        loadChildren(
+                parentMediaId,
+                result,
+                options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1),
+                options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1)
+        );
+    } // End onLoadChildren(String, Result, Bundle) method
+
+    // Sends a page of the children of a node, or all of them if page and pageSize are both -1
+    private void loadChildren(String parentMediaId, Result<List<MediaBrowserCompat.MediaItem>> result, int page, int pageSize) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
 
         // If the MIDI library isn't loaded yet, Start another thread to load it and recall this method
@@ -544,8 +603,8 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
                         // Send that an empty list if we don't have permission to access storage
                         if (midiLibraryResult == null) { result.sendResult(null); }
                         else {
-                            this.midiLibrary = midiLibraryResult;
-                            onLoadChildren(parentMediaId, result);
+                            setMidiLibrary(midiLibraryResult);
+                            loadChildren(parentMediaId, result, page, pageSize);
                         }
                     } // End MidiLibrary.Callback lambda
             ); // End getMIDILibraryAsync call
@@ -559,21 +618,34 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
             return;
         } // End if(node == null)
         if (node instanceof MidiLibrary.Folder) {
-            Set<MidiLibrary.MapNode> children = node.getChildren();
-            for (MidiLibrary.MapNode child : children) {
+            // Find the range of children in the page, sending an empty page if it is invalid or past the end
+            MidiLibrary.Folder folder = (MidiLibrary.Folder) node;
+            int childrenCount = folder.getChildren().size();
+            int fromIndex = 0;
+            int toIndex = childrenCount;
+            if (page != -1 || pageSize != -1) {
+                if (page < 0 || pageSize < 1) { toIndex = 0; }
+                else {
+                    fromIndex = (int) Math.min((long) page * pageSize, childrenCount);
+                    toIndex = (int) Math.min((long) fromIndex + pageSize, childrenCount);
+                }
+            } // End if(page requested)
+
+            for (int i = fromIndex; i < toIndex; ++i) {
+                MidiLibrary.MapNode child = folder.getChildAt(i);
                 mediaItems.add(new MediaBrowserCompat.MediaItem(
                         child.getMetadata().getDescription(),
                         (child instanceof MidiLibrary.MidiFile) ?
                                 MediaBrowserCompat.MediaItem.FLAG_PLAYABLE :
                                 MediaBrowserCompat.MediaItem.FLAG_BROWSABLE
                 )); // End add call
-            } // End for(child : children)
+            } // End for(i < toIndex)
         } // End if(node ∈ Folder)
 
         // If node is a MidiFile then mediaItems will be an empty list
 
         result.sendResult(mediaItems);
-    } // End onLoadChildren method
+    } // End loadChildren method
 
     /**
      * Called to request a custom action to this service. Primarily invoked with
@@ -1045,7 +1117,9 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
         } // End if(extras == null)
 
         // Set the forwarder to the splitter or direct depending on EXTRA_MIDI_SPLIT_ENABLE
+        // Loaded songs are split ahead of time instead, so the sequencer never goes through the splitter
         splittingMidi = extras.getBoolean(EXTRA_MIDI_SPLIT_ENABLE, false);
+        moppyManager.setSplittingSequences(splittingMidi);
         if (splittingMidi) {
             midiInForwarder.setReceiver(midiSplitter);
         }
@@ -1062,7 +1136,7 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
         if (midiLibrary == null) {
             result.detach();
             MidiLibrary.getMidiLibraryAsync(this, (midiLibrary) -> {
-                this.midiLibrary = midiLibrary;
+                setMidiLibrary(midiLibrary);
                 Bundle resultBundle = new Bundle();
                 resultBundle.putBoolean(EXTRA_LIBRARY_CREATED, midiLibrary != null);
                 if (midiLibrary == null) {
@@ -1217,7 +1291,7 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
                     setPlaybackActions(previousActions, true);
                     return; // Exit lambda
                 } // End if(midiLibraryResult == null)
-                MoppyMediaService.this.midiLibrary = midiLibraryResult;
+                setMidiLibrary(midiLibraryResult);
                 load(mediaId, result, setToPlaying, addToQueue); // Retry
             }); // End MidiLibrary.Callback lambda
 
@@ -1319,6 +1393,14 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
             Bundle resultBundle = new Bundle();
             resultBundle.putString(EXTRA_MEDIA_ID, mediaId);
             resultBundle.putParcelable(EXTRA_MEDIA_MIDI_FILE, (MidiLibrary.MidiFile) node);
+
+            // Report what was dropped from a damaged file
+            RecoveryReport report = moppyManager.getLoadedFileReport();
+            if (report != null) {
+                ArrayList<String> problems = new ArrayList<>();
+                for (RecoveryReport.Problem problem : report.getProblems()) { problems.add(problem.toString()); }
+                resultBundle.putStringArrayList(EXTRA_LOAD_PROBLEMS, problems);
+            } // End if(report != null)
             result.sendResult(resultBundle);
         }
         return true; // Successful playback state set with togglePlayPauseMediaButton call
@@ -1546,7 +1628,7 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
                 // so we will just trigger creation and skip the play event
                 MidiLibrary.getMidiLibraryAsync(
                         MoppyMediaService.this,
-                        midiLibraryResult -> MoppyMediaService.this.midiLibrary = midiLibraryResult
+                        MoppyMediaService.this::setMidiLibrary
                 );
                 return;
             } // End if(midiLibrary == null)
@@ -1566,10 +1648,12 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
                     return;
                 case MediaStore.Audio.Artists.ENTRY_CONTENT_TYPE: // 'Artist' request
                     // TODO: Construct queue of songs by the artist
-                    return;
+                    file = searchFile(extras.getString(MediaStore.EXTRA_MEDIA_ARTIST), TrigramSearchIndex.FIELD_ARTIST);
+                    break;
                 case MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE: // 'Album' request
                     // TODO: Construct queue of songs in the album
-                    return;
+                    file = searchFile(extras.getString(MediaStore.EXTRA_MEDIA_ALBUM), TrigramSearchIndex.FIELD_ALBUM);
+                    break;
                 case MediaStore.Audio.Media.ENTRY_CONTENT_TYPE: // 'Song' request
                     file = midiLibrary.searchFileFuzzy(extras.getString(MediaStore.EXTRA_MEDIA_TITLE));
                     break;
@@ -1577,8 +1661,8 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
                     // Unsupported as of yet
                     return;
                 default: // 'Unstructured' request
-                    // Assume query is the song name, if not then we simply fail to load
-                    file = midiLibrary.searchFileFuzzy(query);
+                    // Search titles first, but also match the query as an artist or album
+                    file = searchFile(query, TrigramSearchIndex.FIELDS_ALL);
                     break;
             } // End switch(mediaFocus)
             if (file == null) {
@@ -1591,6 +1675,13 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
             super.onPlayFromSearch(query, extras);
         } // End onPlayFromSearch method
 
+        // Gets the best match of a search of the MIDI library, or null if there isn't one
+        private MidiLibrary.MidiFile searchFile(String query, int fields) {
+            if (query == null) { return null; }
+            List<MidiLibrary.MidiFile> files = midiLibrary.searchFiles(query, fields, 1, null);
+            return files.isEmpty() ? null : files.get(0);
+        } // End searchFile method
+
         @Override
         public void onPause() {
             PlaybackStateCompat playbackState = mediaController.getPlaybackState();
@@ -1777,5 +1868,12 @@ public class MoppyMediaService extends MediaBrowserServiceCompat {
             } // End if(fileLoaded && currentState == PLAYING | PAUSED)
             super.onSongEnd(reset);
         } // End onSongEnd method
+
+        @Override
+        void onChannelCapabilitiesChanged(ChannelCapabilities capabilities) {
+            // Split live MIDI input across the connected devices too
+            if (midiSplitter != null) { midiSplitter.setCapabilities(capabilities); }
+            super.onChannelCapabilitiesChanged(capabilities);
+        } // End onChannelCapabilitiesChanged method
     } // End MoppyCallback class
 } // End MoppyMediaService class
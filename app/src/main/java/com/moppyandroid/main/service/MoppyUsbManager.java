@@ -25,9 +25,13 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
 
+import com.moppy.core.comms.MoppyMessage;
+import com.moppy.core.comms.NetworkMessageConsumer;
+import com.moppy.core.comms.NetworkReceivedMessage;
 import com.moppy.core.comms.bridge.BridgeSerial;
 import com.moppy.core.comms.bridge.MultiBridge;
 import com.moppy.core.comms.bridge.NetworkBridge;
+import com.moppy.core.device.DeviceDescriptor;
 import com.moppy.core.status.StatusBus;
 import com.moppy.core.status.StatusUpdate;
 
@@ -35,16 +39,22 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Manages the USB serial connections to Moppy devices and provides information about them.
+ * Manages the USB serial connections to Moppy devices and provides information about them. The Moppy devices on each
+ * connected bridge are discovered by pinging the bridge, and a {@link StatusUpdate#NET_DEVICES_CHANGED} is posted
+ * whenever a device answers or its bridge is closed.
  */
-public class MoppyUsbManager {
+public class MoppyUsbManager implements NetworkMessageConsumer {
     private final StatusBus statusBus;
     private final MultiBridge multiBridge;
     private final HashMap<String, NetworkBridge<Integer>> networkBridges;
     private final List<String> bridgeIdentifiers;
     private final UsbManager androidUsbManager;
+    private final Map<String, Set<DeviceDescriptor>> deviceDescriptors; // The devices that answered on each bridge
     private List<String> connectedIdentifiers;
 
     /**
@@ -58,14 +68,17 @@ public class MoppyUsbManager {
         networkBridges = new HashMap<>();
         bridgeIdentifiers = new ArrayList<>();
         connectedIdentifiers = new ArrayList<>();
+        deviceDescriptors = new ConcurrentHashMap<>();
         androidUsbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        multiBridge.registerMessageReceiver(this);
 
         refreshDeviceList();
     } // End MoppyUsbManager constructor
 
     /**
-     * Connects to a specified network bridge using its serial port path (e.g. /dev/bus/usb/001/002).
-     * Potentially throws {@link com.moppy.core.comms.bridge.BridgeSerial.UnableToObtainDeviceException}.
+     * Connects to a specified network bridge using its serial port path (e.g. /dev/bus/usb/001/002), then pings it
+     * to discover its devices. Potentially throws
+     * {@link com.moppy.core.comms.bridge.BridgeSerial.UnableToObtainDeviceException}.
      *
      * @param bridgeIdentifier the identifier of the bridge to connect
      * @throws IOException if unable to create the bridge
@@ -82,7 +95,9 @@ public class MoppyUsbManager {
                 multiBridge.addBridge(newBridge);
                 networkBridges.put(bridgeIdentifier, newBridge);
                 connectedIdentifiers.add(bridgeIdentifier);
+                currentBridge = newBridge;
             } // End if(currentBridge != null) {} else
+            currentBridge.sendMessage(MoppyMessage.SYS_PING);
         } // End try {bridge.connect}
         finally {
             statusBus.receiveUpdate(StatusUpdate.NET_STATUS_CHANGED);
@@ -108,6 +123,7 @@ public class MoppyUsbManager {
         } // End try {bridge.close}
         finally {
             statusBus.receiveUpdate(StatusUpdate.NET_STATUS_CHANGED);
+            if (deviceDescriptors.remove(bridgeIdentifier) != null) { statusBus.receiveUpdate(StatusUpdate.NET_DEVICES_CHANGED); }
         } // End try {networkBridges.put(new BridgeSerial)} finally
     } // End closeBridge method
 
@@ -143,13 +159,15 @@ public class MoppyUsbManager {
         bridgeIdentifiers.clear();
         bridgeIdentifiers.addAll(BridgeSerial.getAvailableSerials());
 
-        // Create a new list of connected bridges and remove any disconnected bridges from the list
+        // Create a new list of connected bridges and remove any disconnected bridges from the list, along with their devices
+        boolean devicesRemoved = false;
         List<String> newConnectedIdentifiers = new ArrayList<>();
         for (int i = 0; i < connectedIdentifiers.size(); ++i) {
             if (bridgeIdentifiers.contains(connectedIdentifiers.get(i))) {
                 newConnectedIdentifiers.add(connectedIdentifiers.get(i));
             } // End if(bridgeIdentifiers ∋ currentConnectedIdentifier)
             else {
+                devicesRemoved |= deviceDescriptors.remove(connectedIdentifiers.get(i)) != null;
                 NetworkBridge<Integer> bridge = networkBridges.get(connectedIdentifiers.get(i));
                 if (bridge == null) { continue; }
                 multiBridge.removeBridge(bridge);
@@ -159,8 +177,50 @@ public class MoppyUsbManager {
         } // End for(i < connectedIdentifiers.size)
 
         connectedIdentifiers = newConnectedIdentifiers;
+        if (devicesRemoved) { statusBus.receiveUpdate(StatusUpdate.NET_DEVICES_CHANGED); }
     } // End refreshDeviceList method
 
+    /**
+     * Triggered when a message is received from any connected bridge. Records the devices answering a ping with their
+     * sub-address ranges, posting a {@link StatusUpdate#NET_DEVICES_CHANGED} for each device not seen before.
+     *
+     * @param networkMessage the received message
+     */
+    @Override
+    public void acceptNetworkMessage(NetworkReceivedMessage networkMessage) {
+        if (!networkMessage.isSystemMessage() || networkMessage.getMessageCommandByte() != MoppyMessage.CommandByte.SYS_PONG) { return; }
+        byte[] payload = networkMessage.getMessageCommandPayload();
+        if (payload.length < 3) {
+            Log.w(MoppyUsbManager.class.getName() + "->acceptNetworkMessage", "Malformed pong from '" + networkMessage.getNetworkIdentifier() + "'");
+            return;
+        } // End if(payload.length < 3)
+
+        DeviceDescriptor descriptor = DeviceDescriptor.builder()
+                .networkAddress(networkMessage.getNetworkIdentifier())
+                .deviceAddress(payload[0])
+                .minSubAddress(payload[1])
+                .maxSubAddress(payload[2])
+                .build();
+        Set<DeviceDescriptor> descriptors = deviceDescriptors.get(networkMessage.getNetworkIdentifier());
+        if (descriptors == null) {
+            descriptors = ConcurrentHashMap.newKeySet();
+            Set<DeviceDescriptor> existing = deviceDescriptors.putIfAbsent(networkMessage.getNetworkIdentifier(), descriptors);
+            if (existing != null) { descriptors = existing; }
+        } // End if(descriptors == null)
+        if (descriptors.add(descriptor)) { statusBus.receiveUpdate(StatusUpdate.NET_DEVICES_CHANGED); }
+    } // End acceptNetworkMessage method
+
+    /**
+     * Retrieves the devices that answered on the connected bridges, with their device addresses and sub-address ranges.
+     *
+     * @return a new list of the {@link DeviceDescriptor}s of the connected devices
+     */
+    public List<DeviceDescriptor> getDeviceDescriptors() {
+        List<DeviceDescriptor> result = new ArrayList<>();
+        for (Set<DeviceDescriptor> descriptors : deviceDescriptors.values()) { result.addAll(descriptors); }
+        return result;
+    } // End getDeviceDescriptors method
+
     /**
      * Retrieves the {@link MultiBridge} this {@code MoppyUsbManager} manages. Needed for registering
      * this {@code MoppyUsbManager} to receive messages from a {@link com.moppy.core.midi.MoppyMIDIReceiverSender}.
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import android.net.Uri;
+import android.util.Log;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.io.ProgressiveSequence;
+
+/**
+ * A song parsed once by {@link MoppyManager} and shared between the sequencer and the sheet music view.
+ * The sheet music model is built from the parsed {@link Sequence} the first time it is requested, so the
+ * file is never read or parsed a second time. The most recently loaded song of the process is available
+ * through {@link #getLoaded(Uri)}.
+ */
+public class ParsedSong {
+    private static final String TAG = ParsedSong.class.getName();
+    private static ParsedSong loadedSong = null;
+
+    private final Uri uri;
+    private final String name;
+    private final Sequence sequence;
+    private volatile com.midisheetmusic.MidiFile sheetMusicFile;
+
+    /**
+     * Constructs a {@code ParsedSong}.
+     *
+     * @param uri      the URI of the parsed file
+     * @param name     the display name of the file
+     * @param sequence the parsed {@link Sequence}, which must not be modified afterwards
+     */
+    public ParsedSong(Uri uri, String name, Sequence sequence) {
+        this.uri = uri;
+        this.name = name;
+        this.sequence = sequence;
+        sheetMusicFile = null;
+    }
+
+    /**
+     * Gets the most recently loaded song if it was parsed from the provided URI.
+     *
+     * @param uri the URI of the wanted file
+     * @return the loaded {@code ParsedSong}, or {@code null} if a different file or no file is loaded
+     */
+    public static synchronized ParsedSong getLoaded(Uri uri) {
+        if (loadedSong == null || uri == null || !uri.equals(loadedSong.uri)) { return null; }
+        return loadedSong;
+    } // End getLoaded method
+
+    /**
+     * Sets the most recently loaded song, releasing the previous one.
+     *
+     * @param song the loaded {@code ParsedSong}
+     */
+    static synchronized void setLoaded(ParsedSong song) { loadedSong = song; }
+
+    /**
+     * Gets the URI of the parsed file.
+     *
+     * @return the URI
+     */
+    public Uri getUri() { return uri; }
+
+    /**
+     * Gets the parsed {@link Sequence}.
+     *
+     * @return the {@code Sequence}
+     */
+    public Sequence getSequence() { return sequence; }
+
+    /**
+     * Checks if the sheet music model has already been built, so {@link #getSheetMusicFile()} won't block.
+     *
+     * @return {@code true} if the sheet music model is available
+     */
+    public boolean hasSheetMusicFile() { return sheetMusicFile != null; }
+
+    /**
+     * Gets the sheet music model of the song, converting the parsed {@link Sequence} on first use.
+     * If the sequence is still being loaded, this waits until loading has ended.
+     *
+     * @return the {@link com.midisheetmusic.MidiFile} of the song
+     * @throws InterruptedException if interrupted while waiting for the sequence to load
+     */
+    public synchronized com.midisheetmusic.MidiFile getSheetMusicFile() throws InterruptedException {
+        if (sheetMusicFile == null) {
+            // The sheet music needs the whole song
+            if (sequence instanceof ProgressiveSequence) {
+                try { ((ProgressiveSequence) sequence).awaitLoaded(); }
+                catch (InvalidMidiDataException e) {
+                    // Show what could be loaded, same as what is played
+                    Log.w(TAG + "->getSheetMusicFile:", "Sequence of '" + name + "' was only partially loaded", e);
+                } // End try {awaitLoaded} catch(InvalidMidiDataException)
+            } // End if(sequence instanceof ProgressiveSequence)
+            sheetMusicFile = new com.midisheetmusic.MidiFile(sequence, name);
+        } // End if(sheetMusicFile == null)
+        return sheetMusicFile;
+    } // End getSheetMusicFile method
+} // End ParsedSong class
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import com.github.noahr_atc.midisplitter.ChannelCapabilities;
+
+import java.util.Arrays;
+
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.TempoMap;
+import jp.kshoji.javax.sound.midi.Track;
+
+/**
+ * Statistics of a {@link Sequence} that decide whether it fits a Moppy setup: the most notes playing at once on each
+ * channel and overall, the notes outside the range of a floppy drive, and the busiest second of traffic on a serial link.
+ * <br><br>
+ * Reports are made by {@link #analyze(Sequence, int)} in a single pass over the events of all tracks in tick order,
+ * with the notes ending at a tick released before the notes starting at that tick, so a note starting as another ends
+ * doesn't count as overlapping it. Notes are matched to their NOTE-OFF by channel and note number, and NOTE-ON
+ * messages with a velocity of 0 count as NOTE-OFF messages.
+ * <br><br>
+ * Note: Every MIDI message that is played is sent as a Moppy message to all connected links, so the traffic of each
+ * link is the traffic of the whole sequence. Only the messages the default mapper sends are counted: NOTE-ON, NOTE-OFF
+ * and PITCH-BEND.
+ */
+public final class PolyphonyReport {
+    /**
+     * The number of bits sent on a serial link per byte, with one start bit, 8 data bits and one stop bit.
+     */
+    public static final int BITS_PER_BYTE = 10;
+
+    private static final int CHANNEL_COUNT = 16;        // The number of MIDI channels
+    private static final int NOTE_COUNT = 128;          // The number of MIDI note numbers
+    private static final long WINDOW_MICROSECONDS = 1000000; // The length of the window message rates are measured over
+    private static final int PLAY_NOTE_BYTES = 7;       // The size of a Moppy play note message
+    private static final int STOP_NOTE_BYTES = 6;       // The size of a Moppy stop note message
+    private static final int PITCH_BEND_BYTES = 7;      // The size of a Moppy pitch bend message
+
+    private final int baudRate;                 // The baud rate of the links
+    private final int[] channelPolyphonies;     // The most notes playing at once on each channel
+    private final int maxPolyphony;             // The most notes playing at once
+    private final int noteCount;                // The number of notes
+    private final int[] channelOutOfRangeNotes; // The number of notes of each channel outside the floppy range
+    private final int outOfRangeNoteCount;      // The number of notes outside the floppy range
+    private final int lowestNote;               // The lowest note, or -1 if there are no notes
+    private final int highestNote;              // The highest note, or -1 if there are no notes
+    private final int messageCount;             // The number of messages sent on each link
+    private final int peakMessagesPerSecond;    // The most messages sent on each link within a second
+    private final int peakBytesPerSecond;       // The most bytes sent on each link within a second
+    private final long peakMicrosecond;         // The start of the second with the most bytes sent
+
+    /**
+     * Constructs a {@code PolyphonyReport} from the results of an {@link Analysis}.
+     *
+     * @param analysis the finished analysis
+     */
+    private PolyphonyReport(Analysis analysis) {
+        baudRate = analysis.baudRate;
+        channelPolyphonies = analysis.channelPolyphonies;
+        maxPolyphony = analysis.maxPolyphony;
+        noteCount = analysis.noteCount;
+        channelOutOfRangeNotes = analysis.channelOutOfRangeNotes;
+        outOfRangeNoteCount = analysis.outOfRangeNoteCount;
+        lowestNote = analysis.lowestNote;
+        highestNote = analysis.highestNote;
+        messageCount = analysis.messageCount;
+        peakMessagesPerSecond = analysis.peakMessages;
+        peakBytesPerSecond = analysis.peakBytes;
+        peakMicrosecond = analysis.peakMicrosecond;
+    } // End PolyphonyReport(Analysis) constructor
+
+    /**
+     * Analyzes a parsed {@link Sequence}. Takes a few milliseconds for most songs, and doesn't modify the sequence.
+     * {@link jp.kshoji.javax.sound.midi.io.ProgressiveSequence}s must be completely parsed first.
+     *
+     * @param sequence the sequence to analyze, which must not be modified while it is analyzed
+     * @param baudRate the baud rate of the serial links, for example 57600
+     * @return the {@code PolyphonyReport} of {@code sequence}
+     * @throws IllegalArgumentException if {@code sequence} is null or {@code baudRate} isn't positive
+     */
+    public static PolyphonyReport analyze(Sequence sequence, int baudRate) {
+        if (sequence == null) { throw new IllegalArgumentException("Sequence is null"); }
+        if (baudRate <= 0) { throw new IllegalArgumentException("Invalid baud rate: " + baudRate); }
+        Track[] tracks = sequence.getTracks();
+        Track.Snapshot[] snapshots = new Track.Snapshot[tracks.length];
+        for (int i = 0; i < tracks.length; i++) { snapshots[i] = tracks[i].getSortedSnapshot(); }
+        Analysis analysis = new Analysis(snapshots, sequence.getTempoMap(), baudRate);
+        analysis.run();
+        return new PolyphonyReport(analysis);
+    } // End analyze method
+
+    /**
+     * Retrieves the baud rate the link statistics were calculated for.
+     *
+     * @return the baud rate
+     */
+    public int getBaudRate() { return baudRate; }
+
+    /**
+     * Retrieves the most notes playing at once on a MIDI channel.
+     *
+     * @param channel the 4-bit number of the channel
+     * @return the maximum polyphony of {@code channel}
+     */
+    public int getMaxPolyphony(int channel) { return channelPolyphonies[channel]; }
+
+    /**
+     * Retrieves the most notes playing at once across all channels, which is the number of drives needed to play every note.
+     *
+     * @return the maximum polyphony of the sequence
+     */
+    public int getMaxPolyphony() { return maxPolyphony; }
+
+    /**
+     * Retrieves the number of notes in the sequence.
+     *
+     * @return the number of NOTE-ON messages with a velocity above 0
+     */
+    public int getNoteCount() { return noteCount; }
+
+    /**
+     * Retrieves the number of notes of a MIDI channel outside the range of a floppy drive, from
+     * {@link ChannelCapabilities#FLOPPY_LOWEST_NOTE} to {@link ChannelCapabilities#FLOPPY_HIGHEST_NOTE}.
+     *
+     * @param channel the 4-bit number of the channel
+     * @return the number of notes of {@code channel} a floppy drive can't play
+     */
+    public int getOutOfRangeNoteCount(int channel) { return channelOutOfRangeNotes[channel]; }
+
+    /**
+     * Retrieves the number of notes outside the range of a floppy drive, from
+     * {@link ChannelCapabilities#FLOPPY_LOWEST_NOTE} to {@link ChannelCapabilities#FLOPPY_HIGHEST_NOTE}.
+     *
+     * @return the number of notes a floppy drive can't play
+     */
+    public int getOutOfRangeNoteCount() { return outOfRangeNoteCount; }
+
+    /**
+     * Retrieves the lowest note of the sequence.
+     *
+     * @return the 7-bit MIDI number of the note, or -1 if the sequence has no notes
+     */
+    public int getLowestNote() { return lowestNote; }
+
+    /**
+     * Retrieves the highest note of the sequence.
+     *
+     * @return the 7-bit MIDI number of the note, or -1 if the sequence has no notes
+     */
+    public int getHighestNote() { return highestNote; }
+
+    /**
+     * Retrieves the number of Moppy messages sent on each link to play the sequence.
+     *
+     * @return the number of messages
+     */
+    public int getMessageCount() { return messageCount; }
+
+    /**
+     * Retrieves the most Moppy messages sent on each link within one second.
+     *
+     * @return the peak number of messages per second
+     */
+    public int getPeakMessagesPerSecond() { return peakMessagesPerSecond; }
+
+    /**
+     * Retrieves the most bytes sent on each link within one second.
+     *
+     * @return the peak number of bytes per second
+     */
+    public int getPeakBytesPerSecond() { return peakBytesPerSecond; }
+
+    /**
+     * Retrieves the start of the busiest second of the sequence.
+     *
+     * @return the time of the first message of the busiest second, in microseconds from the start of the sequence
+     */
+    public long getPeakMicrosecond() { return peakMicrosecond; }
+
+    /**
+     * Retrieves the number of bytes a link can send per second at the baud rate of the report.
+     *
+     * @return the capacity of a link in bytes per second
+     */
+    public int getLinkCapacity() { return baudRate / BITS_PER_BYTE; }
+
+    /**
+     * Retrieves the load of each link during the busiest second of the sequence.
+     *
+     * @return the peak bytes per second as a fraction of the link capacity, above 1 if messages will be delayed
+     */
+    public float getPeakLinkLoad() { return (float) peakBytesPerSecond / getLinkCapacity(); }
+
+    /**
+     * Checks whether the sequence fits a setup of floppy drives.
+     *
+     * @param driveCount the number of drives, each playing one note at a time
+     * @return {@code true} if there are enough drives for every note, no note is outside their range, and the links
+     * can keep up with the busiest second
+     */
+    public boolean fits(int driveCount) {
+        return maxPolyphony <= driveCount && outOfRangeNoteCount == 0 && peakBytesPerSecond <= getLinkCapacity();
+    } // End fits method
+
+    @Override
+    public String toString() {
+        return "PolyphonyReport{maxPolyphony=" + maxPolyphony +
+                ", channelPolyphonies=" + Arrays.toString(channelPolyphonies) +
+                ", notes=" + noteCount +
+                ", outOfRangeNotes=" + outOfRangeNoteCount +
+                ", range=" + lowestNote + "-" + highestNote +
+                ", messages=" + messageCount +
+                ", peakMessagesPerSecond=" + peakMessagesPerSecond +
+                ", peakLinkLoad=" + getPeakLinkLoad() + " at " + baudRate + " baud}";
+    } // End toString method
+
+    /**
+     * The state of the analysis of one {@link Sequence}, walking through the events of all tracks in tick order.
+     */
+    private static class Analysis {
+        private final Track.Snapshot[] snapshots;   // The sorted events of each track
+        private final TempoMap tempoMap;            // The tempo map converting ticks to microseconds
+        private final int baudRate;                 // The baud rate of the links
+        private final short[] activeCounts;         // The number of active notes of each note of each channel
+        private final int[] channelActive;          // The number of active notes of each channel
+        private int active;                         // The number of active notes
+        private long[] windowTimes;                 // The times of the messages in the last second, as a ring buffer
+        private int[] windowSizes;                  // The sizes of the messages in the last second, alongside windowTimes
+        private int windowStart;                    // The ring buffer index of the oldest message in the last second
+        private int windowCount;                    // The number of messages in the last second
+        private int windowBytes;                    // The number of bytes of the messages in the last second
+
+        final int[] channelPolyphonies = new int[CHANNEL_COUNT];
+        final int[] channelOutOfRangeNotes = new int[CHANNEL_COUNT];
+        int maxPolyphony = 0;
+        int noteCount = 0;
+        int outOfRangeNoteCount = 0;
+        int lowestNote = -1;
+        int highestNote = -1;
+        int messageCount = 0;
+        int peakMessages = 0;
+        int peakBytes = 0;
+        long peakMicrosecond = 0;
+
+        /**
+         * Constructs an {@code Analysis} with no active notes.
+         *
+         * @param snapshots the sorted events of each track
+         * @param tempoMap  the tempo map of the sequence
+         * @param baudRate  the baud rate of the links
+         */
+        Analysis(Track.Snapshot[] snapshots, TempoMap tempoMap, int baudRate) {
+            this.snapshots = snapshots;
+            this.tempoMap = tempoMap;
+            this.baudRate = baudRate;
+            activeCounts = new short[CHANNEL_COUNT * NOTE_COUNT];
+            channelActive = new int[CHANNEL_COUNT];
+            active = 0;
+            windowTimes = new long[64];
+            windowSizes = new int[64];
+            windowStart = 0;
+            windowCount = 0;
+            windowBytes = 0;
+        } // End Analysis(Track.Snapshot[], TempoMap, int) constructor
+
+        /**
+         * Goes through the events of every track once, collecting the statistics.
+         */
+        void run() {
+            int[] starts = new int[snapshots.length]; // The index of the first event of each track at the current tick
+            int[] ends = new int[snapshots.length];   // The index after the last event of each track at the current tick
+
+            while (true) {
+                // Find the next tick with events in any track
+                long tick = Long.MAX_VALUE;
+                for (int i = 0; i < snapshots.length; i++) {
+                    if (starts[i] < snapshots[i].size()) { tick = Math.min(tick, snapshots[i].getTick(starts[i])); }
+                }
+                if (tick == Long.MAX_VALUE) { break; }
+                long microsecond = tempoMap.tick2microsecond(tick);
+
+                // Release the notes ending at this tick in all tracks, then start the notes starting at it
+                for (int i = 0; i < snapshots.length; i++) {
+                    int end = starts[i];
+                    while (end < snapshots[i].size() && snapshots[i].getTick(end) == tick) {
+                        int packed = snapshots[i].getPackedMessage(end);
+                        if (packed != -1) {
+                            int command = packed & 0xf0;
+                            boolean noteOn = command == ShortMessage.NOTE_ON && ((packed >>> 16) & 0x7f) != 0;
+                            if (command == ShortMessage.NOTE_OFF || (command == ShortMessage.NOTE_ON && !noteOn)) {
+                                stopNote(packed & 0x0f, (packed >>> 8) & 0x7f);
+                                addMessage(microsecond, STOP_NOTE_BYTES);
+                            }
+                            else if (command == ShortMessage.PITCH_BEND) { addMessage(microsecond, PITCH_BEND_BYTES); }
+                        } // End if(packed != -1)
+                        end++;
+                    } // End while(events at tick)
+                    ends[i] = end;
+                } // End for(i < snapshots.length)
+                for (int i = 0; i < snapshots.length; i++) {
+                    for (int j = starts[i]; j < ends[i]; j++) {
+                        int packed = snapshots[i].getPackedMessage(j);
+                        if (packed != -1 && (packed & 0xf0) == ShortMessage.NOTE_ON && ((packed >>> 16) & 0x7f) != 0) {
+                            playNote(packed & 0x0f, (packed >>> 8) & 0x7f);
+                            addMessage(microsecond, PLAY_NOTE_BYTES);
+                        }
+                    } // End for(j < ends[i])
+                    starts[i] = ends[i];
+                } // End for(i < snapshots.length)
+            } // End while(true)
+        } // End run method
+
+        /**
+         * Starts a note, updating the polyphony and note range statistics.
+         *
+         * @param channel the 4-bit number of the channel of the note
+         * @param note    the 7-bit MIDI number of the note
+         */
+        private void playNote(int channel, int note) {
+            int key = (channel << 7) | note;
+            if (activeCounts[key] < Short.MAX_VALUE) { activeCounts[key]++; }
+            channelPolyphonies[channel] = Math.max(channelPolyphonies[channel], ++channelActive[channel]);
+            maxPolyphony = Math.max(maxPolyphony, ++active);
+
+            noteCount++;
+            if (lowestNote < 0 || note < lowestNote) { lowestNote = note; }
+            if (note > highestNote) { highestNote = note; }
+            if (note < ChannelCapabilities.FLOPPY_LOWEST_NOTE || note > ChannelCapabilities.FLOPPY_HIGHEST_NOTE) {
+                channelOutOfRangeNotes[channel]++;
+                outOfRangeNoteCount++;
+            }
+        } // End playNote method
+
+        /**
+         * Stops the oldest active instance of a note. NOTE-OFF messages without an active note are ignored.
+         *
+         * @param channel the 4-bit number of the channel of the note
+         * @param note    the 7-bit MIDI number of the note
+         */
+        private void stopNote(int channel, int note) {
+            int key = (channel << 7) | note;
+            if (activeCounts[key] == 0) { return; }
+            activeCounts[key]--;
+            channelActive[channel]--;
+            active--;
+        } // End stopNote method
+
+        /**
+         * Adds a message sent on the links to the one second window, updating the peak message rates.
+         *
+         * @param microsecond the time the message is sent, no earlier than the previous message
+         * @param size        the size of the message in bytes
+         */
+        private void addMessage(long microsecond, int size) {
+            messageCount++;
+
+            // Drop the messages that are more than a second older than this one from the window
+            int mask = windowTimes.length - 1;
+            while (windowCount > 0 && windowTimes[windowStart] <= microsecond - WINDOW_MICROSECONDS) {
+                windowBytes -= windowSizes[windowStart];
+                windowStart = (windowStart + 1) & mask;
+                windowCount--;
+            }
+
+            // Grow the ring buffer if it is full, unrolling it so the oldest message is first
+            if (windowCount == windowTimes.length) {
+                long[] times = new long[windowTimes.length * 2];
+                int[] sizes = new int[windowSizes.length * 2];
+                for (int i = 0; i < windowCount; i++) {
+                    times[i] = windowTimes[(windowStart + i) & mask];
+                    sizes[i] = windowSizes[(windowStart + i) & mask];
+                }
+                windowTimes = times;
+                windowSizes = sizes;
+                windowStart = 0;
+                mask = windowTimes.length - 1;
+            } // End if(windowCount == windowTimes.length)
+
+            int slot = (windowStart + windowCount) & mask;
+            windowTimes[slot] = microsecond;
+            windowSizes[slot] = size;
+            windowCount++;
+            windowBytes += size;
+            if (windowCount > peakMessages) { peakMessages = windowCount; }
+            if (windowBytes > peakBytes) {
+                peakBytes = windowBytes;
+                peakMicrosecond = windowTimes[windowStart];
+            }
+        } // End addMessage method
+    } // End Analysis class
+} // End PolyphonyReport class
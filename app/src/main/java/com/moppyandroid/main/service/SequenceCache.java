@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.SequenceCodec;
+
+/**
+ * On-disk cache of parsed {@link Sequence}s, stored in the format of {@link SequenceCodec}. Cached sequences are
+ * decoded into compact track storage.
+ * Entries are keyed by the file's URI, size, and modification time, so edited files are parsed again.
+ * The least recently used entries are deleted when the cache grows over its byte budget.
+ */
+public class SequenceCache {
+    private static final String TAG = SequenceCache.class.getName();
+    private static final String ENTRY_SUFFIX = ".seq";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The default maximum size of the cache, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final File directory;   // The directory holding the cache entries
+    private long maxBytes;          // The maximum total size of the cache entries
+
+    /**
+     * Constructs a {@code SequenceCache} in the provided directory.
+     *
+     * @param directory the directory to store the cache entries in, created if needed
+     * @param maxBytes  the maximum total size of the cache entries
+     */
+    public SequenceCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the maximum total size of the cache entries.
+     *
+     * @return the maximum size in bytes
+     */
+    public synchronized long getMaxBytes() { return maxBytes; }
+
+    /**
+     * Sets the maximum total size of the cache entries, deleting the least recently used entries
+     * if the cache is now too large.
+     *
+     * @param maxBytes the maximum size in bytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Gets the cached {@link Sequence} of a file.
+     *
+     * @param uri          the URI of the file
+     * @param size         the size of the file in bytes
+     * @param lastModified the modification time of the file
+     * @return the cached {@code Sequence}, or {@code null} if it isn't cached
+     */
+    public synchronized Sequence get(Uri uri, long size, long lastModified) {
+        File entry = getEntryFile(uri, size, lastModified);
+        if (!entry.isFile()) { return null; }
+
+        try (FileInputStream stream = new FileInputStream(entry)) {
+            FileChannel channel = stream.getChannel();
+            Sequence sequence = SequenceCodec.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), true);
+            //noinspection ResultOfMethodCallIgnored
+            entry.setLastModified(System.currentTimeMillis()); // Mark as recently used
+            return sequence;
+        } // End try(stream = open(entry))
+        catch (IOException | InvalidMidiDataException e) {
+            // The entry is unreadable or from an older version, drop it
+            Log.w(TAG + "->get:", "Deleting unreadable cache entry for '" + uri + "'", e);
+            //noinspection ResultOfMethodCallIgnored
+            entry.delete();
+            return null;
+        } // End try(stream = open(entry)) {} catch(IOException | InvalidMidiDataException)
+    } // End get method
+
+    /**
+     * Stores the {@link Sequence} of a file, deleting the least recently used entries if the cache
+     * grows too large. Failures are logged and otherwise ignored.
+     *
+     * @param uri          the URI of the file
+     * @param size         the size of the file in bytes
+     * @param lastModified the modification time of the file
+     * @param sequence     the parsed {@code Sequence} of the file
+     */
+    public synchronized void put(Uri uri, long size, long lastModified, Sequence sequence) {
+        ByteBuffer data;
+        try { data = SequenceCodec.encode(sequence); }
+        catch (IllegalArgumentException e) {
+            Log.w(TAG + "->put:", "Unable to encode sequence of '" + uri + "'", e);
+            return;
+        }
+        if (data.remaining() > maxBytes) { return; }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG + "->put:", "Unable to create cache directory '" + directory + "'");
+            return;
+        }
+
+        // Write to a temporary file first so a partially written entry is never read
+        File entry = getEntryFile(uri, size, lastModified);
+        File temp = new File(directory, entry.getName() + TEMP_SUFFIX);
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            FileChannel channel = stream.getChannel();
+            while (data.hasRemaining()) { channel.write(data); }
+        } // End try(stream = open(temp))
+        catch (IOException e) {
+            Log.w(TAG + "->put:", "Unable to write cache entry for '" + uri + "'", e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        } // End try(stream = open(temp)) {} catch(IOException)
+        if (!temp.renameTo(entry)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        trim();
+    } // End put method
+
+    /**
+     * Deletes all cache entries.
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) { return; }
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    } // End clear method
+
+    // Deletes the least recently used entries until the cache is within its byte budget
+    private void trim() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(ENTRY_SUFFIX));
+        if (entries == null) { return; }
+
+        long total = 0;
+        for (File entry : entries) { total += entry.length(); }
+        if (total <= maxBytes) { return; }
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < entries.length && total > maxBytes; ++i) {
+            long length = entries[i].length();
+            if (entries[i].delete()) { total -= length; }
+        }
+    } // End trim method
+
+    // Gets the entry file of the provided file version, named by a hash of its key
+    private File getEntryFile(Uri uri, long size, long lastModified) {
+        String key = uri + "|" + size + "|" + lastModified;
+        StringBuilder name = new StringBuilder();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            for (byte b : digest) { name.append(String.format("%02x", b)); }
+        } // End try {digest(key)}
+        catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required on every Android device, fall back to the hash code anyway
+            name.append(Integer.toHexString(key.hashCode()));
+        } // End try {digest(key)} catch(NoSuchAlgorithmException)
+        return new File(directory, name.append(ENTRY_SUFFIX).toString());
+    } // End getEntryFile method
+} // End SequenceCache class
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2021 Noah Reeder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.moppyandroid.main.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * A fuzzy search index of the titles, artists and albums of files, used by {@link MidiLibrary} to answer searches
+ * without walking the whole library.
+ * <br><br>
+ * Each field is normalized (lowercase, punctuation as spaces, file extension dropped from titles) and split into
+ * trigrams, and every trigram keeps the list of entries containing it. A search counts the trigrams each entry shares
+ * with the query by walking only the lists of the query's trigrams, keeps the best scored candidates, then ranks
+ * them again by the edit distance between the query and the closest part of the field.
+ * <br><br>
+ * Note: This class doesn't depend on Android, so it can be driven on the JVM.
+ *
+ * @param <T> the type of the items returned by searches
+ */
+public class TrigramSearchIndex<T> {
+    /**
+     * Search flag for the title of a file.
+     */
+    public static final int FIELD_TITLE = 1;
+    /**
+     * Search flag for the artist of a file.
+     */
+    public static final int FIELD_ARTIST = 1 << 1;
+    /**
+     * Search flag for the album of a file.
+     */
+    public static final int FIELD_ALBUM = 1 << 2;
+    /**
+     * Search flags for all fields of a file.
+     */
+    public static final int FIELDS_ALL = FIELD_TITLE | FIELD_ARTIST | FIELD_ALBUM;
+
+    private static final int FIELD_COUNT = 3;
+    private static final float[] FIELD_WEIGHTS = { 1.0f, 0.9f, 0.9f }; // Prefer titles when fields match as well
+    private static final float MIN_OVERLAP = 0.3f;          // The fraction of query trigrams a candidate must share
+    private static final float TRIGRAM_WEIGHT = 0.4f;       // The weight of the trigram score in the final ranking
+    private static final int MIN_CANDIDATES = 32;           // The minimum number of candidates ranked by edit distance
+    private static final int CANDIDATES_PER_RESULT = 8;     // The number of candidates ranked per requested result
+
+    private final HashMap<Long, Postings> postings; // The entries containing each field trigram, see key(long, int)
+    private final HashMap<Long, Integer> slots;     // The slot of each entry by ID
+    private Object[] items;                         // The item of the entry in each slot, or null if the slot is free
+    private String[] texts;                         // The normalized fields of each slot, FIELD_COUNT per slot
+    private int[] trigramCounts;                    // The number of distinct trigrams of each field of each slot
+    private int slotCount;                          // The number of slots used, including free slots
+    private int[] freeSlots;                        // The slots of removed entries, for reuse
+    private int freeCount;                          // The number of free slots
+
+    // Scratch space for searches, sized with the slots
+    private int[] counts;           // The number of shared trigrams of each slot for the field being counted
+    private float[] scores;         // The best trigram score of each slot over all fields
+    private byte[] bestFields;      // The field of the best trigram score of each slot
+    private int[] touched;          // The slots with a nonzero count
+    private int[] candidates;       // The slots with a nonzero score
+    private int[] alignmentRow;     // One row of the edit distance table
+
+    /**
+     * Constructs an empty {@code TrigramSearchIndex}.
+     */
+    public TrigramSearchIndex() {
+        postings = new HashMap<>();
+        slots = new HashMap<>();
+        slotCount = 0;
+        freeCount = 0;
+        allocate(16);
+        alignmentRow = new int[64];
+    } // End TrigramSearchIndex constructor
+
+    /**
+     * Adds an entry to this {@code TrigramSearchIndex}, replacing any entry with the same ID.
+     *
+     * @param id     the ID of the entry
+     * @param item   the item returned by searches matching the entry
+     * @param title  the title or file name of the entry, or {@code null}
+     * @param artist the artist of the entry, or {@code null}
+     * @param album  the album of the entry, or {@code null}
+     */
+    public synchronized void add(long id, T item, String title, String artist, String album) {
+        if (item == null) { throw new NullPointerException("item cannot be null"); }
+        remove(id);
+
+        // Find a slot for the entry, growing the arrays if needed
+        int slot;
+        if (freeCount > 0) { slot = freeSlots[--freeCount]; }
+        else {
+            if (slotCount == items.length) { allocate(items.length * 2); }
+            slot = slotCount++;
+        }
+        slots.put(id, slot);
+        items[slot] = item;
+
+        // Add the slot to the postings of each trigram of each field
+        String[] fields = { stripExtension(title), artist, album };
+        for (int field = 0; field < FIELD_COUNT; ++field) {
+            String text = normalize(fields[field]);
+            long[] trigrams = trigrams(text);
+            texts[slot * FIELD_COUNT + field] = text;
+            trigramCounts[slot * FIELD_COUNT + field] = trigrams.length;
+            for (long trigram : trigrams) {
+                Postings list = postings.get(key(trigram, field));
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(key(trigram, field), list);
+                }
+                list.add(slot);
+            } // End for(trigram : trigrams)
+        } // End for(field < FIELD_COUNT)
+    } // End add method
+
+    /**
+     * Removes an entry from this {@code TrigramSearchIndex}.
+     *
+     * @param id the ID of the entry
+     * @return {@code true} if the entry was found and removed, otherwise {@code false}
+     */
+    public synchronized boolean remove(long id) {
+        Integer slot = slots.remove(id);
+        if (slot == null) { return false; }
+
+        // Remove the slot from the postings of each trigram of each field
+        for (int field = 0; field < FIELD_COUNT; ++field) {
+            for (long trigram : trigrams(texts[slot * FIELD_COUNT + field])) {
+                long key = key(trigram, field);
+                Postings list = postings.get(key);
+                if (list != null && list.remove(slot) && list.size == 0) { postings.remove(key); }
+            }
+            texts[slot * FIELD_COUNT + field] = null;
+        } // End for(field < FIELD_COUNT)
+        items[slot] = null;
+        freeSlots[freeCount++] = slot;
+        return true;
+    } // End remove method
+
+    /**
+     * Removes all entries from this {@code TrigramSearchIndex}.
+     */
+    public synchronized void clear() {
+        postings.clear();
+        slots.clear();
+        slotCount = 0;
+        freeCount = 0;
+        allocate(16);
+    } // End clear method
+
+    /**
+     * Gets the number of entries in this {@code TrigramSearchIndex}.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() { return slots.size(); }
+
+    /**
+     * Searches for the entries best matching a query.
+     *
+     * @param query     the text to search for
+     * @param fields    the fields to search, a combination of the {@code FIELD_} flags
+     * @param limit     the maximum number of results
+     * @param predicate the {@link Predicate} an item must pass to be returned, or {@code null} to accept all items
+     * @return the {@link List} of matching items, best match first
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> search(String query, int fields, int limit, Predicate<T> predicate) {
+        List<T> results = new ArrayList<>();
+        String text = normalize(query);
+        if (text.isEmpty() || limit <= 0) { return results; }
+        long[] trigrams = trigrams(text);
+        int minOverlap = Math.max(1, (int) Math.ceil(trigrams.length * MIN_OVERLAP));
+
+        // Count the trigrams each entry shares with the query, keeping the best scored field of each entry
+        int candidateCount = 0;
+        for (int field = 0; field < FIELD_COUNT; ++field) {
+            if ((fields & (1 << field)) == 0) { continue; }
+            int touchedCount = 0;
+            for (long trigram : trigrams) {
+                Postings list = postings.get(key(trigram, field));
+                if (list == null) { continue; }
+                for (int i = 0; i < list.size; ++i) {
+                    int slot = list.slots[i];
+                    if (counts[slot]++ == 0) { touched[touchedCount++] = slot; }
+                }
+            } // End for(trigram : trigrams)
+
+            for (int i = 0; i < touchedCount; ++i) {
+                int slot = touched[i];
+                int overlap = counts[slot];
+                counts[slot] = 0;
+                if (overlap < minOverlap) { continue; }
+
+                // Average how much of the query is found and how similar the whole field is
+                float containment = (float) overlap / trigrams.length;
+                float dice = 2f * overlap / (trigrams.length + trigramCounts[slot * FIELD_COUNT + field]);
+                float score = FIELD_WEIGHTS[field] * (containment + dice) / 2;
+                if (score > scores[slot]) {
+                    if (scores[slot] == 0) { candidates[candidateCount++] = slot; }
+                    scores[slot] = score;
+                    bestFields[slot] = (byte) field;
+                }
+            } // End for(i < touchedCount)
+        } // End for(field < FIELD_COUNT)
+
+        // Keep the best scored candidates that pass the predicate in a min-heap
+        int heapCapacity = Math.max(MIN_CANDIDATES, limit * CANDIDATES_PER_RESULT);
+        int[] heap = new int[Math.min(heapCapacity, candidateCount)];
+        int heapSize = 0;
+        for (int i = 0; i < candidateCount; ++i) {
+            int slot = candidates[i];
+            if (heapSize == heap.length && scores[slot] <= scores[heap[0]]) { continue; }
+            if (predicate != null && !predicate.test((T) items[slot])) { continue; }
+            if (heapSize < heap.length) {
+                heap[heapSize] = slot;
+                siftUp(heap, heapSize++);
+            }
+            else {
+                heap[0] = slot;
+                siftDown(heap, heapSize);
+            }
+        } // End for(i < candidateCount)
+
+        // Rank the kept candidates again by the edit distance between the query and the closest part of their field
+        float[] ranks = new float[heapSize];
+        Integer[] order = new Integer[heapSize];
+        for (int i = 0; i < heapSize; ++i) {
+            int slot = heap[i];
+            int field = bestFields[slot];
+            float similarity = alignmentSimilarity(text, texts[slot * FIELD_COUNT + field]);
+            ranks[i] = TRIGRAM_WEIGHT * scores[slot] + (1 - TRIGRAM_WEIGHT) * FIELD_WEIGHTS[field] * similarity;
+            order[i] = i;
+        } // End for(i < heapSize)
+        for (int i = 0; i < candidateCount; ++i) { scores[candidates[i]] = 0; }
+        Arrays.sort(order, (a, b) -> Float.compare(ranks[b], ranks[a]));
+        for (int i = 0; i < heapSize && i < limit; ++i) { results.add((T) items[heap[order[i]]]); }
+        return results;
+    } // End search method
+
+    /**
+     * Normalizes text for indexing and searching: lowercase letters and digits, with other characters as single
+     * spaces. Apostrophes are dropped so that contractions match their unpunctuated spelling.
+     *
+     * @param text the text to normalize, or {@code null}
+     * @return the normalized text, which is empty if {@code text} is {@code null}
+     */
+    public static String normalize(String text) {
+        if (text == null) { return ""; }
+        StringBuilder builder = new StringBuilder(text.length());
+        boolean space = true; // Whether the previous character was a space, to skip leading and repeated spaces
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '\'' || c == '’') { continue; }
+            if (Character.isLetterOrDigit(c)) {
+                builder.append(c);
+                space = false;
+            }
+            else if (!space) {
+                builder.append(' ');
+                space = true;
+            }
+        } // End for(i < text.length)
+        if (space && builder.length() > 0) { builder.setLength(builder.length() - 1); }
+        return builder.toString().toLowerCase(Locale.ROOT);
+    } // End normalize method
+
+    // Removes the file extension from a file name, if it has one
+    private static String stripExtension(String name) {
+        if (name == null) { return null; }
+        int index = name.lastIndexOf('.');
+        return (index > 0) ? name.substring(0, index) : name;
+    } // End stripExtension method
+
+    // Gets the distinct trigrams of normalized text padded with a space on both ends, each packed as three chars
+    private static long[] trigrams(String text) {
+        if (text == null || text.isEmpty()) { return new long[0]; }
+        String padded = " " + text + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; ++i) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+
+        // Sort and remove duplicates
+        Arrays.sort(trigrams);
+        int count = 1;
+        for (int i = 1; i < trigrams.length; ++i) {
+            if (trigrams[i] != trigrams[count - 1]) { trigrams[count++] = trigrams[i]; }
+        }
+        return (count == trigrams.length) ? trigrams : Arrays.copyOf(trigrams, count);
+    } // End trigrams method
+
+    // Gets the postings key of a trigram in a field; trigrams use the low 48 bits
+    private static long key(long trigram, int field) { return ((long) field << 48) | trigram; }
+
+    // Calculates how closely the query matches any part of the text, from 1 for an exact substring down to 0, using
+    // the edit distance table where skipping the start and end of the text is free
+    private float alignmentSimilarity(String query, String text) {
+        int n = text.length();
+        if (alignmentRow.length < n + 1) { alignmentRow = new int[Math.max(n + 1, alignmentRow.length * 2)]; }
+        int[] row = alignmentRow;
+        Arrays.fill(row, 0, n + 1, 0); // Free to start anywhere in the text
+
+        for (int i = 1; i <= query.length(); ++i) {
+            char c = query.charAt(i - 1);
+            int diagonal = row[0];
+            row[0] = i;
+            for (int j = 1; j <= n; ++j) {
+                int above = row[j];
+                int cost = (text.charAt(j - 1) == c) ? diagonal : diagonal + 1;
+                row[j] = Math.min(cost, Math.min(above, row[j - 1]) + 1);
+                diagonal = above;
+            }
+        } // End for(i ≤ query.length)
+
+        // Free to end anywhere in the text
+        int distance = query.length();
+        for (int j = 0; j <= n; ++j) { distance = Math.min(distance, row[j]); }
+        return 1 - (float) distance / query.length();
+    } // End alignmentSimilarity method
+
+    // Orders heap[index] toward the root of the min-heap
+    private void siftUp(int[] heap, int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (scores[heap[parent]] <= scores[slot]) { break; }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = slot;
+    } // End siftUp method
+
+    // Orders the root of the min-heap toward the leaves
+    private void siftDown(int[] heap, int size) {
+        int index = 0;
+        int slot = heap[0];
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) { break; }
+            if (child + 1 < size && scores[heap[child + 1]] < scores[heap[child]]) { ++child; }
+            if (scores[slot] <= scores[heap[child]]) { break; }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = slot;
+    } // End siftDown method
+
+    // Resizes the per-slot arrays to a capacity, keeping the used slots
+    private void allocate(int capacity) {
+        items = (items == null) ? new Object[capacity] : Arrays.copyOf(items, capacity);
+        texts = (texts == null) ? new String[capacity * FIELD_COUNT] : Arrays.copyOf(texts, capacity * FIELD_COUNT);
+        trigramCounts = (trigramCounts == null) ?
+                new int[capacity * FIELD_COUNT] :
+                Arrays.copyOf(trigramCounts, capacity * FIELD_COUNT);
+        freeSlots = (freeSlots == null) ? new int[capacity] : Arrays.copyOf(freeSlots, capacity);
+        counts = new int[capacity];
+        scores = new float[capacity];
+        bestFields = new byte[capacity];
+        touched = new int[capacity];
+        candidates = new int[capacity];
+    } // End allocate method
+
+    // A growable list of the slots containing a trigram
+    private static class Postings {
+        int[] slots = new int[4];
+        int size = 0;
+
+        void add(int slot) {
+            if (size == slots.length) { slots = Arrays.copyOf(slots, size * 2); }
+            slots[size++] = slot;
+        }
+
+        // Swaps the last slot into the removed one, since the order of postings doesn't matter
+        boolean remove(int slot) {
+            for (int i = 0; i < size; ++i) {
+                if (slots[i] == slot) {
+                    slots[i] = slots[--size];
+                    return true;
+                }
+            }
+            return false;
+        } // End remove method
+    } // End Postings class
+} // End TrigramSearchIndex class
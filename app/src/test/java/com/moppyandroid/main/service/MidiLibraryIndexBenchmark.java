@@ -0,0 +1,59 @@
+package com.moppyandroid.main.service;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of {@link MidiLibraryIndex}: a full sync of a large library against loading its snapshot, and incremental
+ * syncs with no changes and with a few changes. Not part of the unit tests, run with {@code ./gradlew test -Pbenchmarks}.
+ */
+public class MidiLibraryIndexBenchmark {
+    private static final int FILE_COUNT = 20000; // The number of files of the library
+    private static final int PASSES = 7;         // The number of timed passes, the median is printed
+
+    @Test
+    public void syncAndLoad() throws IOException {
+        MidiLibraryIndexTest.FakeMediaSource source = new MidiLibraryIndexTest.FakeMediaSource();
+        for (long id = 1; id <= FILE_COUNT; id++) { source.put(id, "Song " + id + ".mid", "Music/" + (id % 100) + "/"); }
+        long[][] times = new long[5][PASSES]; // The full sync, save, load, unchanged sync and changed sync times of each pass
+        File file = File.createTempFile("MidiLibraryIndexBenchmark", ".index");
+        try {
+            for (int pass = 0; pass < PASSES; pass++) {
+                long start = System.nanoTime();
+                MidiLibraryIndex index = new MidiLibraryIndex();
+                index.sync(source);
+                long synced = System.nanoTime();
+                index.save(file);
+                long saved = System.nanoTime();
+                MidiLibraryIndex loaded = MidiLibraryIndex.load(file);
+                long loadedTime = System.nanoTime();
+                assertTrue(loaded.sync(source).isEmpty());
+                long unchanged = System.nanoTime();
+                for (long id = 1; id <= 100; id++) { source.move(id * 7, "Moved " + pass + " " + id + ".mid", "Music/"); }
+                for (long id = 1; id <= 100; id++) { source.put(FILE_COUNT + pass * 100 + id, "New " + id + ".mid", "Music/"); }
+                assertEquals(200, loaded.sync(source).getAdded().size());
+                long changed = System.nanoTime();
+
+                times[0][pass] = synced - start;
+                times[1][pass] = saved - synced;
+                times[2][pass] = loadedTime - saved;
+                times[3][pass] = unchanged - loadedTime;
+                times[4][pass] = changed - unchanged;
+            } // End for(pass < PASSES)
+        } // End try {sync}
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } // End try {sync} finally
+
+        for (long[] passTimes : times) { Arrays.sort(passTimes); }
+        System.out.printf("MidiLibraryIndexBenchmark, %d files: full sync %.1f ms, save %.1f ms, load %.1f ms, unchanged sync %.1f ms, " +
+                          "sync with 200 changes %.1f ms (median of %d)%n", FILE_COUNT, times[0][PASSES / 2] / 1e6,
+                times[1][PASSES / 2] / 1e6, times[2][PASSES / 2] / 1e6, times[3][PASSES / 2] / 1e6, times[4][PASSES / 2] / 1e6, PASSES);
+    } // End syncAndLoad method
+}
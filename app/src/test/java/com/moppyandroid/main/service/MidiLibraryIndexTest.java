@@ -0,0 +1,280 @@
+package com.moppyandroid.main.service;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link MidiLibraryIndex#sync(MediaSource)} driven by a fake {@link MediaSource}, and of its snapshots.
+ */
+public class MidiLibraryIndexTest {
+    private static final int SOURCE_VERSION_OFFSET = 8; // The offset of the length of the source version in a snapshot
+    private static final int FIRST_NAME_OFFSET = 45;    // The offset of the length of the first file name in a snapshot, with source version "1"
+
+    /**
+     * A {@link MediaSource} keeping its files in memory, counting the files read and probed.
+     */
+    static class FakeMediaSource implements MediaSource {
+        final Map<Long, MidiLibraryIndex.Record> files = new TreeMap<>(); // The files of the store by ID
+        String version = "1";                                              // The version of the store
+        long stamp = 0;                                                    // The newest modification stamp given out
+        long lastModifiedSince = -2;                                       // The stamp of the last queryFiles call
+        int readCount = 0;                                                 // The number of files passed by queryFiles
+        int probeCount = 0;                                                // The number of probeDuration calls
+
+        /**
+         * Adds or replaces a file with a new modification stamp and no known duration.
+         *
+         * @param id   the ID of the file
+         * @param name the name of the file
+         * @param path the relative path of the folder containing the file
+         */
+        void put(long id, String name, String path) {
+            files.put(id, new MidiLibraryIndex.Record(id, ++stamp, name, 0, "Artist " + (id % 7), "Album " + (id % 13), path));
+        } // End put method
+
+        /**
+         * Renames or moves a file without changing its modification stamp, as the store does.
+         *
+         * @param id   the ID of the file
+         * @param name the new name of the file
+         * @param path the new folder of the file
+         */
+        void move(long id, String name, String path) {
+            MidiLibraryIndex.Record old = files.get(id);
+            files.put(id, new MidiLibraryIndex.Record(id, old.getModified(), name, 0, old.getArtist(), old.getAlbum(), path));
+        } // End move method
+
+        @Override
+        public String getVersion() { return version; }
+
+        @Override
+        public void queryFiles(long modifiedSince, Consumer<MidiLibraryIndex.Record> consumer) {
+            lastModifiedSince = modifiedSince;
+            for (MidiLibraryIndex.Record record : files.values()) {
+                if (record.getModified() >= modifiedSince) {
+                    readCount++;
+                    consumer.accept(record);
+                }
+            }
+        } // End queryFiles method
+
+        @Override
+        public void queryLocations(LocationConsumer consumer) {
+            for (MidiLibraryIndex.Record record : files.values()) { consumer.accept(record.getId(), record.getName(), record.getPath()); }
+        }
+
+        @Override
+        public int probeDuration(long id) {
+            probeCount++;
+            return (int) (1000 + id);
+        } // End probeDuration method
+
+        @Override
+        public void setObserver(Runnable observer) {}
+    } // End FakeMediaSource class
+
+    /**
+     * Gets the IDs of a list of records.
+     *
+     * @param records the records
+     * @return the IDs in order
+     */
+    private static List<Long> ids(List<MidiLibraryIndex.Record> records) {
+        List<Long> ids = new ArrayList<>();
+        for (MidiLibraryIndex.Record record : records) { ids.add(record.getId()); }
+        ids.sort(null);
+        return ids;
+    } // End ids method
+
+    /**
+     * Checks that an index holds the same files as a source, with the probed durations.
+     *
+     * @param source the source
+     * @param index  the index synced with {@code source}
+     */
+    private static void assertSameFiles(FakeMediaSource source, MidiLibraryIndex index) {
+        Map<Long, MidiLibraryIndex.Record> records = new HashMap<>();
+        for (MidiLibraryIndex.Record record : index.getRecords()) { records.put(record.getId(), record); }
+        assertEquals(source.files.size(), records.size());
+        for (MidiLibraryIndex.Record file : source.files.values()) {
+            MidiLibraryIndex.Record record = records.get(file.getId());
+            assertNotNull("missing file " + file.getId(), record);
+            assertEquals(file.getName(), record.getName());
+            assertEquals(file.getPath(), record.getPath());
+            assertEquals(1000 + file.getId(), record.getDuration());
+        }
+    } // End assertSameFiles method
+
+    @Test
+    public void addedFiles() {
+        FakeMediaSource source = new FakeMediaSource();
+        for (long id = 1; id <= 3; id++) { source.put(id, id + ".mid", "Music/"); }
+        MidiLibraryIndex index = new MidiLibraryIndex();
+
+        // The first sync reads and probes everything
+        MidiLibraryIndex.Delta delta = index.sync(source);
+        assertEquals(-1, source.lastModifiedSince);
+        assertEquals(ids(new ArrayList<>(source.files.values())), ids(delta.getAdded()));
+        assertTrue(delta.getRemoved().isEmpty());
+        assertEquals(3, source.probeCount);
+
+        // Then only the new file is read and probed
+        source.put(4, "4.mid", "Music/New/");
+        delta = index.sync(source);
+        assertEquals(3, source.lastModifiedSince);
+        assertEquals(1, ids(delta.getAdded()).size());
+        assertEquals(4L, (long) ids(delta.getAdded()).get(0));
+        assertTrue(delta.getRemoved().isEmpty());
+        assertEquals(4, source.probeCount);
+        assertSameFiles(source, index);
+    } // End addedFiles method
+
+    @Test
+    public void removedFiles() {
+        FakeMediaSource source = new FakeMediaSource();
+        for (long id = 1; id <= 5; id++) { source.put(id, id + ".mid", "Music/"); }
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.sync(source);
+
+        source.files.remove(2L);
+        source.files.remove(5L);
+        MidiLibraryIndex.Delta delta = index.sync(source);
+        assertTrue(delta.getAdded().isEmpty());
+        assertEquals(2, delta.getRemoved().size());
+        assertEquals(2L, (long) ids(delta.getRemoved()).get(0));
+        assertEquals(5L, (long) ids(delta.getRemoved()).get(1));
+        assertEquals(5, source.probeCount);
+        assertSameFiles(source, index);
+    } // End removedFiles method
+
+    @Test
+    public void renamedFiles() {
+        FakeMediaSource source = new FakeMediaSource();
+        for (long id = 1; id <= 3; id++) { source.put(id, id + ".mid", "Music/"); }
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.sync(source);
+
+        // A renamed or moved file keeps its stamp, so it is found by its location and keeps its duration
+        source.move(1, "one.mid", "Music/");
+        source.move(3, "3.mid", "Music/Moved/");
+        MidiLibraryIndex.Delta delta = index.sync(source);
+        assertEquals(ids(delta.getRemoved()), ids(delta.getAdded()));
+        assertEquals(2, delta.getAdded().size());
+        for (MidiLibraryIndex.Record record : delta.getRemoved()) { assertEquals(record.getId() + ".mid", record.getName()); }
+        assertEquals(3, source.probeCount);
+        assertSameFiles(source, index);
+
+        // A changed file is read and probed again, but is only in the delta if what the library shows changed
+        source.put(2, "2.mid", "Music/");
+        assertTrue(index.sync(source).isEmpty());
+        assertEquals(4, source.probeCount);
+        source.put(2, "two.mid", "Music/");
+        delta = index.sync(source);
+        assertEquals(1, delta.getAdded().size());
+        assertEquals(1, delta.getRemoved().size());
+        assertEquals(5, source.probeCount);
+        assertSameFiles(source, index);
+    } // End renamedFiles method
+
+    @Test
+    public void unchangedStamps() {
+        FakeMediaSource source = new FakeMediaSource();
+        for (long id = 1; id <= 10; id++) { source.put(id, id + ".mid", "Music/"); }
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.sync(source);
+
+        // Nothing changed: only the newest file may be read again, and nothing is probed
+        int readCount = source.readCount;
+        assertTrue(index.sync(source).isEmpty());
+        assertTrue(source.readCount - readCount <= 1);
+        assertEquals(10, source.probeCount);
+
+        // A file appearing with an old stamp, such as a copied file, can't be found incrementally, so all files are read
+        source.files.put(11L, new MidiLibraryIndex.Record(11, 1, "11.mid", 0, null, null, "Music/"));
+        MidiLibraryIndex.Delta delta = index.sync(source);
+        assertEquals(-1, source.lastModifiedSince);
+        assertEquals(1, delta.getAdded().size());
+        assertTrue(delta.getRemoved().isEmpty());
+        assertEquals(11, source.probeCount);
+
+        // A new version of the store reads all files, but keeps the durations of those with the same stamp
+        source.version = "2";
+        assertTrue(index.sync(source).isEmpty());
+        assertEquals(-1, source.lastModifiedSince);
+        assertEquals(11, source.probeCount);
+        assertSameFiles(source, index);
+    } // End unchangedStamps method
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        FakeMediaSource source = new FakeMediaSource();
+        for (long id = 1; id <= 100; id++) { source.put(id, "Song " + id + " é.mid", "Music/" + (id % 5) + "/"); }
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.sync(source);
+
+        File file = File.createTempFile("MidiLibraryIndexTest", ".index");
+        try {
+            index.save(file);
+            MidiLibraryIndex loaded = MidiLibraryIndex.load(file);
+            assertSameFiles(source, loaded);
+
+            // The loaded index carries on incrementally from where the saved one stopped
+            source.put(101, "101.mid", "Music/");
+            MidiLibraryIndex.Delta delta = loaded.sync(source);
+            assertEquals(100, source.lastModifiedSince);
+            assertEquals(1, delta.getAdded().size());
+            assertEquals(101, source.probeCount);
+        } // End try {save}
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } // End try {save} finally
+    } // End saveAndLoad method
+
+    @Test
+    public void damagedSnapshots() throws IOException {
+        FakeMediaSource source = new FakeMediaSource();
+        for (long id = 1; id <= 10; id++) { source.put(id, "Song " + id + ".mid", "Music/"); }
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.sync(source);
+
+        File file = File.createTempFile("MidiLibraryIndexTest", ".index");
+        try {
+            index.save(file);
+            byte[] snapshot = Files.readAllBytes(file.toPath());
+
+            // Every truncation, and string lengths past the end of the data, which mustn't be allocated
+            List<byte[]> damaged = new ArrayList<>();
+            for (int length = 0; length < snapshot.length; length++) { damaged.add(Arrays.copyOf(snapshot, length)); }
+            for (int offset : new int[]{ SOURCE_VERSION_OFFSET, FIRST_NAME_OFFSET }) {
+                for (int length : new int[]{ Integer.MAX_VALUE, snapshot.length - offset - 3 }) {
+                    damaged.add(ByteBuffer.allocate(snapshot.length).put(snapshot).putInt(offset, length).array());
+                }
+            }
+            for (byte[] data : damaged) {
+                Files.write(file.toPath(), data);
+                try {
+                    MidiLibraryIndex.load(file);
+                    fail("Loaded a damaged snapshot of " + data.length + " bytes");
+                } catch (IOException ignored) {}
+            } // End for(data : damaged)
+        } // End try {save}
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } // End try {save} finally
+    } // End damagedSnapshots method
+}
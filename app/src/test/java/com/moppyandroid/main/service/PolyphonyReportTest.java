@@ -0,0 +1,155 @@
+package com.moppyandroid.main.service;
+
+import com.github.noahr_atc.midisplitter.ChannelCapabilities;
+
+import org.junit.Test;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.Track;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link PolyphonyReport#analyze(Sequence, int)} on small sequences with known statistics.
+ */
+public class PolyphonyReportTest {
+    private static final int RESOLUTION = 500; // The resolution of the test sequences, making a tick 1000 microseconds at the default tempo
+
+    /**
+     * Adds notes to a new track of a sequence, adding the NOTE-OFF of each note before its NOTE-ON so the track
+     * isn't in tick order.
+     *
+     * @param sequence the sequence to add the track to
+     * @param notes    the channel, note number, start tick and end tick of each note
+     * @return the new track
+     */
+    private static Track addNotes(Sequence sequence, int[][] notes) throws InvalidMidiDataException {
+        Track track = sequence.createTrack();
+        for (int[] note : notes) {
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, note[0], note[1], 0), note[3]));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, note[0], note[1], 64), note[2]));
+        }
+        return track;
+    } // End addNotes method
+
+    @Test
+    public void peakPolyphony() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        addNotes(sequence, new int[][]{
+                { 0, 40, 0, 100 },
+                { 0, 42, 50, 150 },
+                { 0, 44, 60, 70 },
+                { 1, 45, 120, 200 },
+                { 1, 45, 130, 140 } // The same note struck again while playing
+        });
+        addNotes(sequence, new int[][]{ { 2, 50, 65, 66 } });
+        PolyphonyReport report = PolyphonyReport.analyze(sequence, 57600);
+
+        // 40, 42, 44 and 50 at tick 65, then 42 and 45 twice at tick 130
+        assertEquals(4, report.getMaxPolyphony());
+        assertEquals(3, report.getMaxPolyphony(0));
+        assertEquals(2, report.getMaxPolyphony(1));
+        assertEquals(1, report.getMaxPolyphony(2));
+        assertEquals(0, report.getMaxPolyphony(3));
+        assertEquals(6, report.getNoteCount());
+        assertEquals(12, report.getMessageCount());
+        assertTrue(report.fits(4));
+        assertFalse(report.fits(3));
+    } // End peakPolyphony method
+
+    @Test
+    public void backToBackNotes() throws InvalidMidiDataException {
+        // Each note ends at the tick the next one starts, in the same track and across tracks
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        addNotes(sequence, new int[][]{ { 0, 40, 0, 100 }, { 0, 42, 100, 200 }, { 0, 40, 300, 400 } });
+        addNotes(sequence, new int[][]{ { 0, 44, 200, 300 } });
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 46, 64), 400));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 46, 0), 500));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 46, 64), 500));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 46, 0), 600));
+        PolyphonyReport report = PolyphonyReport.analyze(sequence, 57600);
+
+        assertEquals(1, report.getMaxPolyphony());
+        assertEquals(1, report.getMaxPolyphony(0));
+        assertEquals(6, report.getNoteCount());
+        assertTrue(report.fits(1));
+    } // End backToBackNotes method
+
+    @Test
+    public void outOfRangeNotes() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        addNotes(sequence, new int[][]{
+                { 0, ChannelCapabilities.FLOPPY_LOWEST_NOTE, 0, 10 },
+                { 0, ChannelCapabilities.FLOPPY_HIGHEST_NOTE, 10, 20 },
+                { 0, ChannelCapabilities.FLOPPY_LOWEST_NOTE - 1, 20, 30 },
+                { 3, ChannelCapabilities.FLOPPY_HIGHEST_NOTE + 1, 30, 40 },
+                { 3, 127, 40, 50 }
+        });
+        PolyphonyReport report = PolyphonyReport.analyze(sequence, 57600);
+
+        assertEquals(3, report.getOutOfRangeNoteCount());
+        assertEquals(1, report.getOutOfRangeNoteCount(0));
+        assertEquals(2, report.getOutOfRangeNoteCount(3));
+        assertEquals(0, report.getOutOfRangeNoteCount(1));
+        assertEquals(ChannelCapabilities.FLOPPY_LOWEST_NOTE - 1, report.getLowestNote());
+        assertEquals(127, report.getHighestNote());
+        assertFalse(report.fits(16));
+    } // End outOfRangeNotes method
+
+    @Test
+    public void emptySequence() throws InvalidMidiDataException {
+        PolyphonyReport report = PolyphonyReport.analyze(new Sequence(Sequence.PPQ, RESOLUTION), 57600);
+        assertEquals(0, report.getMaxPolyphony());
+        assertEquals(0, report.getNoteCount());
+        assertEquals(-1, report.getLowestNote());
+        assertEquals(-1, report.getHighestNote());
+        assertEquals(0, report.getPeakMessagesPerSecond());
+        assertTrue(report.fits(0));
+    } // End emptySequence method
+
+    @Test
+    public void messagesPerSecondWindow() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+
+        // 5 notes within the first second: 10 messages of 65 bytes
+        int[][] notes = new int[5][];
+        for (int i = 0; i < notes.length; i++) { notes[i] = new int[]{ 0, 40 + i, 0, 999 }; }
+        addNotes(sequence, notes);
+
+        // 8 pitch bends at 2 seconds, 4 just before 3 seconds and 4 at 3 seconds, which are a second after the first 8
+        // and so not in their window: 12 messages of 84 bytes at most
+        Track track = sequence.createTrack();
+        for (int i = 0; i < 8; i++) { track.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, i), 2000)); }
+        for (int i = 0; i < 4; i++) { track.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, i), 2999)); }
+        for (int i = 0; i < 4; i++) { track.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, i), 3000)); }
+
+        // A few messages per second fit at 1200 baud, 120 bytes per second, but not at 600
+        PolyphonyReport report = PolyphonyReport.analyze(sequence, 1200);
+        assertEquals(26, report.getMessageCount());
+        assertEquals(12, report.getPeakMessagesPerSecond());
+        assertEquals(84, report.getPeakBytesPerSecond());
+        assertEquals(2000000, report.getPeakMicrosecond());
+        assertEquals(120, report.getLinkCapacity());
+        assertEquals(0.7f, report.getPeakLinkLoad(), 0.0001f);
+        assertTrue(report.fits(5));
+        assertFalse(PolyphonyReport.analyze(sequence, 600).fits(5));
+    } // End messagesPerSecondWindow method
+
+    @Test
+    public void analyzeDoesNotChangeSequence() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        Track track = addNotes(sequence, new int[][]{ { 0, 40, 0, 100 }, { 0, 42, 50, 150 } });
+        MidiEvent[] added = new MidiEvent[track.size()];
+        for (int i = 0; i < added.length; i++) { added[i] = track.get(i); }
+
+        assertEquals(2, PolyphonyReport.analyze(sequence, 57600).getMaxPolyphony());
+
+        // Still in the order of adding, without END_OF_TRACK
+        assertEquals(added.length, track.size());
+        for (int i = 0; i < added.length; i++) { assertSame(added[i], track.get(i)); }
+    } // End analyzeDoesNotChangeSequence method
+}
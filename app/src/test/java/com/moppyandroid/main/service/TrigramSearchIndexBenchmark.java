@@ -0,0 +1,53 @@
+package com.moppyandroid.main.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of {@link TrigramSearchIndex#search} on a library of 50000 files against the original
+ * {@code searchFileFuzzy}, modelled by {@link TrigramSearchIndexTest.ReferenceSearch}. Fails if the median search takes
+ * a millisecond or more. Not part of the unit tests, run with {@code ./gradlew test -Pbenchmarks}.
+ */
+public class TrigramSearchIndexBenchmark {
+    private static final int FILE_COUNT = 50000;         // The number of files of the library
+    private static final int PASSES = 15;                // The number of timed passes, the median is printed
+    private static final int REPEATS = 10;               // The number of times each query is searched per pass
+    private static final double MAX_SEARCH_MILLIS = 1.0; // The median time a search must stay under
+    private static final String[] QUERIES = {
+            "moon light sonata", "mario theme", "prelude fugue", "Artist 42", "blue river waltz 123", "symphny"
+    }; // The queries searched, including a misspelled one
+
+    @Test
+    public void search() {
+        Random random = new Random(2);
+        TrigramSearchIndexTest.ReferenceSearch reference = new TrigramSearchIndexTest.ReferenceSearch();
+        long start = System.nanoTime();
+        TrigramSearchIndex<String> index = TrigramSearchIndexTest.createLibrary(random, FILE_COUNT, reference);
+        long buildTime = System.nanoTime() - start;
+
+        long[] referenceTimes = new long[PASSES];
+        long[] indexTimes = new long[PASSES];
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (String query : QUERIES) {
+                long queryStart = System.nanoTime();
+                for (int i = 0; i < REPEATS; i++) { reference.search(query); }
+                long referenceEnd = System.nanoTime();
+                for (int i = 0; i < REPEATS; i++) { index.search(query, TrigramSearchIndex.FIELDS_ALL, 5, null); }
+                indexTimes[pass] += System.nanoTime() - referenceEnd;
+                referenceTimes[pass] += referenceEnd - queryStart;
+            } // End for(query : QUERIES)
+        } // End for(pass < PASSES)
+
+        Arrays.sort(referenceTimes);
+        Arrays.sort(indexTimes);
+        double referenceMillis = referenceTimes[PASSES / 2] / (1e6 * REPEATS * QUERIES.length);
+        double indexMillis = indexTimes[PASSES / 2] / (1e6 * REPEATS * QUERIES.length);
+        System.out.printf("TrigramSearchIndexBenchmark, %d files: built in %d ms, reference %.3f ms/search, search %.3f ms/search (median of %d)%n",
+                index.size(), buildTime / 1000000, referenceMillis, indexMillis, PASSES);
+        assertTrue(String.format("%.3f ms per search of %d files", indexMillis, FILE_COUNT), indexMillis < MAX_SEARCH_MILLIS);
+    } // End search method
+}
@@ -0,0 +1,195 @@
+package com.moppyandroid.main.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link TrigramSearchIndex}, against a model of the original {@code searchFileFuzzy}
+ * which walked every file of the library for a substring match.
+ */
+public class TrigramSearchIndexTest {
+    private static final String[] WORDS = {
+            "the", "of", "love", "song", "theme", "dance", "night", "blue", "mario", "zelda", "sonic", "piano", "sonata",
+            "waltz", "prelude", "fugue", "march", "symphony", "moon", "light", "star", "river", "overture", "nocturne"
+    }; // The words of the titles of the generated libraries
+
+    /**
+     * The original search: the first file whose name, without underscores and spaces and in lowercase, contains or
+     * is contained in the query treated the same way.
+     */
+    static class ReferenceSearch {
+        final List<String> names = new ArrayList<>(); // The file names in library order
+
+        String search(String query) {
+            query = query.replace("_", "").replace(" ", "").toLowerCase();
+            for (String name : names) {
+                String stripped = name.replace("_", "").replace(" ", "").toLowerCase();
+                if (query.contains(stripped) || stripped.contains(query)) { return name; }
+            }
+            return null;
+        } // End search method
+    } // End ReferenceSearch class
+
+    /**
+     * Creates a random file name of a few words, numbered to make it unique.
+     *
+     * @param random the random source
+     * @param number the number of the file
+     * @return the file name, with an extension
+     */
+    private static String createName(Random random, int number) {
+        StringBuilder builder = new StringBuilder();
+        int wordCount = 2 + random.nextInt(4);
+        for (int i = 0; i < wordCount; i++) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? "_" : " ");
+        }
+        return builder.append(number).append(".mid").toString();
+    } // End createName method
+
+    /**
+     * Creates an index and a reference holding the same random file names, with each item being its name.
+     *
+     * @param random    the random source
+     * @param count     the number of files
+     * @param reference the reference to add the names to
+     * @return the index
+     */
+    static TrigramSearchIndex<String> createLibrary(Random random, int count, ReferenceSearch reference) {
+        TrigramSearchIndex<String> index = new TrigramSearchIndex<>();
+        for (int i = 0; i < count; i++) {
+            String name = createName(random, i);
+            index.add(i, name, name, "Artist " + random.nextInt(500), "Album " + random.nextInt(2000));
+            reference.names.add(name);
+        }
+        return index;
+    } // End createLibrary method
+
+    @Test
+    public void normalization() {
+        assertEquals("", TrigramSearchIndex.normalize(null));
+        assertEquals("", TrigramSearchIndex.normalize(" _-- !"));
+        assertEquals("zeldas lullaby", TrigramSearchIndex.normalize("  Zelda's__Lullaby!! "));
+        assertEquals("dont stop", TrigramSearchIndex.normalize("Don’t Stop"));
+        assertEquals("café del mar 2", TrigramSearchIndex.normalize("CAFÉ-del_Mar (2)"));
+
+        // Files are found with any punctuation, and titles without their extension
+        TrigramSearchIndex<String> index = new TrigramSearchIndex<>();
+        index.add(1, "zelda", "Zelda's_Lullaby.mid", null, null);
+        index.add(2, "mid", "Midnight.MID", null, "Middle of the Night");
+        index.add(3, "song", "Song.mid", null, null);
+        assertEquals(Arrays.asList("zelda"), index.search("zeldas lullaby", TrigramSearchIndex.FIELD_TITLE, 5, null));
+        assertEquals(Arrays.asList("zelda"), index.search("ZELDA'S - LULLABY", TrigramSearchIndex.FIELD_TITLE, 5, null));
+        assertEquals(Arrays.asList("mid"), index.search("mid", TrigramSearchIndex.FIELD_TITLE, 5, null));
+        assertEquals(Arrays.asList("mid"), index.search("middle", TrigramSearchIndex.FIELD_ALBUM, 5, null));
+    } // End normalization method
+
+    @Test
+    public void shortQueries() {
+        TrigramSearchIndex<String> index = new TrigramSearchIndex<>();
+        index.add(1, "mario", "Mario Kart.mid", "Koji Kondo", null);
+        index.add(2, "x", "X.mid", null, null);
+        index.add(3, "sonic", "Sonic.mid", null, null);
+
+        // Queries with no letters or digits and empty limits find nothing
+        assertTrue(index.search("", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+        assertTrue(index.search(" ?! ", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+        assertTrue(index.search("mario", TrigramSearchIndex.FIELDS_ALL, 0, null).isEmpty());
+
+        // Queries shorter than a trigram are padded, so they match the start of words, or whole words of one letter
+        assertEquals(Arrays.asList("x"), index.search("x", TrigramSearchIndex.FIELDS_ALL, 5, null));
+        assertEquals(Arrays.asList("mario"), index.search("ma", TrigramSearchIndex.FIELDS_ALL, 5, null));
+        assertEquals(Arrays.asList("mario"), index.search("ko", TrigramSearchIndex.FIELD_ARTIST, 5, null));
+        assertTrue(index.search("ko", TrigramSearchIndex.FIELD_TITLE, 5, null).isEmpty());
+        assertTrue(index.search("ar", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+    } // End shortQueries method
+
+    @Test
+    public void rankingAgainstReference() {
+        Random random = new Random(1);
+        ReferenceSearch reference = new ReferenceSearch();
+        TrigramSearchIndex<String> index = createLibrary(random, 2000, reference);
+
+        int misspelledFound = 0;
+        for (int i = 0; i < 500; i++) {
+            String name = reference.names.get(random.nextInt(reference.names.size()));
+            String title = name.substring(0, name.length() - ".mid".length());
+
+            // A whole title, as the reference finds it, is the best match
+            assertEquals(name, reference.search(title));
+            assertEquals(name, index.search(title, TrigramSearchIndex.FIELD_TITLE, 1, null).get(0));
+
+            // A title without its number matches files the reference could have returned
+            String words = title.replaceAll("[ _][0-9]+$", "");
+            List<String> results = index.search(words, TrigramSearchIndex.FIELD_TITLE, 1, null);
+            assertNotNull(reference.search(words));
+            assertEquals(1, results.size());
+            String normalized = TrigramSearchIndex.normalize(results.get(0));
+            assertTrue(words + " -> " + results.get(0), normalized.startsWith(TrigramSearchIndex.normalize(words)));
+
+            // A title with a letter dropped usually is still found by the index
+            int dropped = random.nextInt(title.length());
+            String misspelled = title.substring(0, dropped) + title.substring(dropped + 1);
+            List<String> top = index.search(misspelled, TrigramSearchIndex.FIELD_TITLE, 5, null);
+            if (top.contains(name)) { misspelledFound++; }
+        } // End for(i < 500)
+        assertTrue("found " + misspelledFound + " of 500 misspelled titles", misspelledFound > 450);
+    } // End rankingAgainstReference method
+
+    @Test
+    public void predicate() {
+        TrigramSearchIndex<String> index = new TrigramSearchIndex<>();
+        index.add(1, "kart", "Mario Kart.mid", null, null);
+        index.add(2, "bros", "Super Mario Bros.mid", null, null);
+        index.add(3, "party", "Mario Party.mid", null, null);
+
+        List<String> results = index.search("mario", TrigramSearchIndex.FIELD_TITLE, 5, (item) -> !item.equals("kart"));
+        assertEquals(2, results.size());
+        assertFalse(results.contains("kart"));
+        assertEquals(1, index.search("mario", TrigramSearchIndex.FIELD_TITLE, 1, null).size());
+    } // End predicate method
+
+    @Test
+    public void updates() {
+        TrigramSearchIndex<String> index = new TrigramSearchIndex<>();
+        index.add(1, "mario", "Mario Kart.mid", null, null);
+        index.add(2, "zelda", "Zelda.mid", null, null);
+        assertEquals(2, index.size());
+
+        // Adding an entry with the same ID replaces it
+        index.add(1, "kart", "Kart Racing.mid", null, null);
+        assertEquals(2, index.size());
+        assertTrue(index.search("mario", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+        assertEquals(Arrays.asList("kart"), index.search("kart", TrigramSearchIndex.FIELDS_ALL, 5, null));
+
+        // A removed entry isn't found, and its slot is reused by the next added entry
+        assertTrue(index.remove(2));
+        assertFalse(index.remove(2));
+        assertEquals(1, index.size());
+        assertTrue(index.search("zelda", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+        index.add(3, "sonic", "Sonic.mid", null, null);
+        assertTrue(index.search("zelda", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+        assertEquals(Arrays.asList("sonic"), index.search("sonic", TrigramSearchIndex.FIELDS_ALL, 5, null));
+
+        // Growing past the initial capacity, then removing every other entry
+        for (int i = 10; i < 1000; i++) { index.add(i, "song " + i, "Song " + i + ".mid", null, null); }
+        for (int i = 10; i < 1000; i += 2) { assertTrue(index.remove(i)); }
+        assertEquals(2 + 495, index.size());
+        for (int i = 10; i < 1000; i++) {
+            List<String> results = index.search("song " + i, TrigramSearchIndex.FIELD_TITLE, 1, null);
+            if (i % 2 == 0) { assertFalse(!results.isEmpty() && results.get(0).equals("song " + i)); }
+            else { assertEquals("song " + i, results.get(0)); }
+        }
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(index.search("sonic", TrigramSearchIndex.FIELDS_ALL, 5, null).isEmpty());
+        index.add(1, "mario", "Mario.mid", null, null);
+        assertEquals(Arrays.asList("mario"), index.search("mario", TrigramSearchIndex.FIELDS_ALL, 5, null));
+    } // End updates method
+}
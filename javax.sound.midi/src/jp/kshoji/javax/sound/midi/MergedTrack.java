@@ -0,0 +1,298 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable merged index of all the {@link Track}s of a {@link Sequence}, in playback order.
+ * <p>
+ * Each event remembers the index of the Track it came from, so muted, non-solo or recording tracks can be
+ * skipped with a mask while playing, instead of merging the Sequence again. The END_OF_TRACK events of
+ * the source tracks are dropped, and one END_OF_TRACK is appended after the last event.
+ * <p>
+ * The index refers to the events by their position in the {@link Track.Snapshot}s of the source tracks, so
+ * tracks in compact storage are merged and played without creating {@link MidiEvent}s.
+ */
+public final class MergedTrack {
+    // track index of the END_OF_TRACK event appended to the end
+    public static final int NO_TRACK = -1;
+
+    private final long[] ticks;
+    private final int[] trackIndexes;
+    private final int[] eventIndexes; // index of each event in the snapshot of its track
+    private final Track.Snapshot[] snapshots;
+    private final MidiEvent endOfTrack;
+
+    // source information, used to detect stale indexes
+    private final Track[] sourceTracks;
+    private final int[] sourceModificationCounts;
+
+    private MergedTrack(@NonNull final long[] ticks, @NonNull final int[] trackIndexes, @NonNull final int[] eventIndexes, @NonNull final Track.Snapshot[] snapshots, @NonNull final MidiEvent endOfTrack, @NonNull final Track[] sourceTracks, @NonNull final int[] sourceModificationCounts) {
+        this.ticks = ticks;
+        this.trackIndexes = trackIndexes;
+        this.eventIndexes = eventIndexes;
+        this.snapshots = snapshots;
+        this.endOfTrack = endOfTrack;
+        this.sourceTracks = sourceTracks;
+        this.sourceModificationCounts = sourceModificationCounts;
+    }
+
+    /**
+     * Merge the specified {@link Track}s by a k-way merge of the sorted tracks.
+     * Events with the same sort key are ordered by their track index, so the result is the same as
+     * sorting all the events of the tracks with {@link Track.TrackUtils#sortEvents(Track)}.
+     *
+     * @param tracks the Tracks
+     * @return the merged index
+     */
+    @NonNull
+    public static MergedTrack merge(@NonNull final Track[] tracks) {
+        final int trackCount = tracks.length;
+        final Track[] sourceTracks = tracks.clone();
+        final int[] sourceModificationCounts = new int[trackCount];
+
+        // sorted event indexes and keys of each track, END_OF_TRACK removed
+        final Track.Snapshot[] snapshots = new Track.Snapshot[trackCount];
+        final int[][] trackEvents = new int[trackCount][];
+        final long[][] trackKeys = new long[trackCount][];
+        final int[] trackLengths = new int[trackCount];
+        int total = 0;
+        for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+            sourceModificationCounts[trackIndex] = sourceTracks[trackIndex].getModificationCount();
+            final Track.Snapshot snapshot = sourceTracks[trackIndex].getSnapshot();
+            snapshots[trackIndex] = snapshot;
+            final int size = snapshot.size();
+            final int[] sorted = new int[size];
+            final long[] keys = new long[size];
+            int length = 0;
+            boolean inOrder = true;
+            for (int i = 0; i < size; i++) {
+                if (snapshot.isEndOfTrack(i)) {
+                    continue;
+                }
+                final long key = Track.sortKey(snapshot.getTick(i), snapshot.getStatus(i));
+                if (length > 0 && keys[length - 1] > key) {
+                    inOrder = false;
+                }
+                sorted[length] = i;
+                keys[length] = key;
+                length++;
+            }
+            if (!inOrder) {
+                // the track has been changed without sorting, sort the copy
+                Track.sortByKey(keys, sorted, length);
+            }
+
+            trackEvents[trackIndex] = sorted;
+            trackKeys[trackIndex] = keys;
+            trackLengths[trackIndex] = length;
+            total += length;
+        }
+
+        final long[] ticks = new long[total + 1];
+        final int[] trackIndexes = new int[total + 1];
+        final int[] eventIndexes = new int[total + 1];
+
+        // binary min-heap of track indexes, ordered by the key of the next event, then the track index
+        final int[] heap = new int[trackCount];
+        final int[] positions = new int[trackCount];
+        int heapSize = 0;
+        for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+            if (trackLengths[trackIndex] > 0) {
+                heap[heapSize++] = trackIndex;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, trackKeys, positions);
+        }
+
+        int count = 0;
+        while (heapSize > 0) {
+            final int trackIndex = heap[0];
+            final int position = positions[trackIndex]++;
+            final int eventIndex = trackEvents[trackIndex][position];
+            ticks[count] = snapshots[trackIndex].getTick(eventIndex);
+            trackIndexes[count] = trackIndex;
+            eventIndexes[count] = eventIndex;
+            count++;
+
+            if (positions[trackIndex] >= trackLengths[trackIndex]) {
+                // this track is finished
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, trackKeys, positions);
+        }
+
+        // add END_OF_TRACK to last
+        final long endOfTrackTick = (count == 0) ? 0 : ticks[count - 1] + 1;
+        final MidiEvent endOfTrack = new MidiEvent(new MetaMessage(Track.END_OF_TRACK), endOfTrackTick);
+        ticks[count] = endOfTrackTick;
+        trackIndexes[count] = NO_TRACK;
+        eventIndexes[count] = -1;
+
+        return new MergedTrack(ticks, trackIndexes, eventIndexes, snapshots, endOfTrack, sourceTracks, sourceModificationCounts);
+    }
+
+    private static boolean isBefore(final int lhsTrack, final int rhsTrack, @NonNull final long[][] trackKeys, @NonNull final int[] positions) {
+        final long lhsKey = trackKeys[lhsTrack][positions[lhsTrack]];
+        final long rhsKey = trackKeys[rhsTrack][positions[rhsTrack]];
+        if (lhsKey != rhsKey) {
+            return lhsKey < rhsKey;
+        }
+        return lhsTrack < rhsTrack;
+    }
+
+    private static void siftDown(@NonNull final int[] heap, final int heapSize, int index, @NonNull final long[][] trackKeys, @NonNull final int[] positions) {
+        final int trackIndex = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && isBefore(heap[child + 1], heap[child], trackKeys, positions)) {
+                child++;
+            }
+            if (!isBefore(heap[child], trackIndex, trackKeys, positions)) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        if (heapSize > 0) {
+            heap[index] = trackIndex;
+        }
+    }
+
+    /**
+     * Check if this index still reflects the specified {@link Track}s
+     *
+     * @param tracks the current tracks of the sequence
+     * @return true if the index is up to date
+     */
+    public boolean isValidFor(@NonNull final Track[] tracks) {
+        if (tracks.length != sourceTracks.length) {
+            return false;
+        }
+        for (int i = 0; i < tracks.length; i++) {
+            if (tracks[i] != sourceTracks[i] || tracks[i].getModificationCount() != sourceModificationCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of events, including the last END_OF_TRACK
+     *
+     * @return the number of events
+     */
+    public int size() {
+        return ticks.length;
+    }
+
+    /**
+     * Get specified index of {@link MidiEvent}
+     *
+     * @param index the index of event
+     * @return the MidiEvent
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @NonNull
+    public MidiEvent get(final int index) throws ArrayIndexOutOfBoundsException {
+        final int trackIndex = trackIndexes[index];
+        if (trackIndex == NO_TRACK) {
+            return endOfTrack;
+        }
+        return snapshots[trackIndex].get(eventIndexes[index]);
+    }
+
+    /**
+     * Get the {@link MidiMessage} of the specified index of {@link MidiEvent}, without creating a MidiEvent
+     *
+     * @param index the index of event
+     * @return the MidiMessage
+     * @throws ArrayIndexOutOfBoundsException
+     * @see Track.Snapshot#getMessage(int)
+     */
+    @NonNull
+    public MidiMessage getMessage(final int index) throws ArrayIndexOutOfBoundsException {
+        final int trackIndex = trackIndexes[index];
+        if (trackIndex == NO_TRACK) {
+            return endOfTrack.getMessage();
+        }
+        return snapshots[trackIndex].getMessage(eventIndexes[index]);
+    }
+
+    /**
+     * Get the packed {@link ShortMessage} of the specified index of {@link MidiEvent}, without creating any object
+     *
+     * @param index the index of event
+     * @return the packed message, or -1 if the message is not a ShortMessage
+     * @throws ArrayIndexOutOfBoundsException
+     * @see Track.Snapshot#getPackedMessage(int)
+     */
+    public int getPackedMessage(final int index) throws ArrayIndexOutOfBoundsException {
+        final int trackIndex = trackIndexes[index];
+        if (trackIndex == NO_TRACK) {
+            return -1;
+        }
+        return snapshots[trackIndex].getPackedMessage(eventIndexes[index]);
+    }
+
+    /**
+     * Get the tick of the specified index of {@link MidiEvent}
+     *
+     * @param index the index of event
+     * @return the tick
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public long getTick(final int index) throws ArrayIndexOutOfBoundsException {
+        return ticks[index];
+    }
+
+    /**
+     * Get the index of the {@link Track} the specified event came from
+     *
+     * @param index the index of event
+     * @return the track index, {@link #NO_TRACK} for the last END_OF_TRACK
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public int getTrackIndex(final int index) throws ArrayIndexOutOfBoundsException {
+        return trackIndexes[index];
+    }
+
+    /**
+     * Check if the specified event should be played
+     *
+     * @param index          the index of event
+     * @param disabledTracks disabled flags by track index, tracks out of its range are enabled
+     * @return true if the event is not from a disabled track
+     */
+    public boolean isEnabled(final int index, @NonNull final boolean[] disabledTracks) {
+        final int trackIndex = trackIndexes[index];
+        return trackIndex == NO_TRACK || trackIndex >= disabledTracks.length || !disabledTracks[trackIndex];
+    }
+
+    /**
+     * Copy the events of the enabled tracks into a new {@link Track}
+     *
+     * @param disabledTracks disabled flags by track index, tracks out of its range are enabled
+     * @return the Track, ending with END_OF_TRACK
+     */
+    @NonNull
+    public Track toTrack(@NonNull final boolean[] disabledTracks) {
+        final Track track = new Track();
+        long lastTick = -1;
+        synchronized (track.events) {
+            for (int i = 0; i < ticks.length - 1; i++) {
+                if (isEnabled(i, disabledTracks)) {
+                    track.events.add(get(i));
+                    lastTick = ticks[i];
+                }
+            }
+            track.events.add(new MidiEvent(new MetaMessage(Track.END_OF_TRACK), lastTick + 1));
+            track.eventsChanged();
+            track.markSorted();
+        }
+        return track;
+    }
+}
@@ -169,13 +169,10 @@ public class MetaMessage extends MidiMessage {
      * @param value  the value to write
      */
     private static void writeMidiValues(@NonNull final byte[] data, final int offset, final long value) {
-        int shift = 63;
-        while ((shift > 0) && ((value & (0x7f << shift)) == 0)) {
-            shift -= 7;
-        }
+        int shift = 7 * (getMidiValuesLength(value) - 1);
         int currentOffset = offset;
         while (shift > 0) {
-            data[currentOffset++] = (byte) (((value & (0x7f << shift)) >> shift) | 0x80);
+            data[currentOffset++] = (byte) (((value >> shift) & 0x7f) | 0x80);
             shift -= 7;
         }
         data[currentOffset] = (byte) (value & 0x7f);
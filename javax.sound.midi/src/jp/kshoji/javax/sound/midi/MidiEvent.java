@@ -2,12 +2,17 @@ package jp.kshoji.javax.sound.midi;
 
 import androidx.annotation.NonNull;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Represents MIDI Event
  *
  * @author K.Shoji
  */
 public class MidiEvent {
+    // incremented whenever any MidiEvent is changed in place, so Tracks notice that their order may be stale
+    private static final AtomicInteger changeCount = new AtomicInteger();
+
     private final MidiMessage message;
 
     private long tick;
@@ -49,5 +54,23 @@ public class MidiEvent {
      */
     public void setTick(long tick) {
         this.tick = tick;
+        changed();
+    }
+
+    /**
+     * Record that a {@link MidiEvent} has been changed in place
+     */
+    static void changed() {
+        changeCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of in place changes of all {@link MidiEvent}s, used by {@link Track} to notice that its events
+     * may need sorting again
+     *
+     * @return the change count
+     */
+    static int getChangeCount() {
+        return changeCount.get();
     }
 }
\ No newline at end of file
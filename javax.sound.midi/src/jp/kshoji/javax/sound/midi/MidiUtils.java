@@ -2,6 +2,8 @@
 // on 2020-03-22
 
 // Change by Noah Reeder: Visibility of both getTempoMPQAT methods changed from package-private to public
+// Change: TempoCache is backed by the binary-searched TempoMap cached on the Sequence
+// Change: tick2index searches a lock-free Track.Snapshot
 
 /*
  * Copyright (c) 2003, 2013, Oracle and/or its affiliates. All rights reserved.
@@ -31,7 +33,6 @@
 package jp.kshoji.javax.sound.midi;
 
 import jp.kshoji.javax.sound.midi.*;
-import java.util.ArrayList;
 
 // TODO:
 // - define and use a global symbolic constant for 60000000 (see convertTempo)
@@ -136,7 +137,7 @@ public final class MidiUtils {
 
     /**
      * Given a tick, convert to microsecond
-     * @param cache tempo info and current tempo
+     * @param cache tempo info and current tempo, or null to use the tempo map cached on the sequence
      */
     public static long tick2microsecond(Sequence seq, long tick, TempoCache cache) {
         if (seq.getDivisionType() != Sequence.PPQ ) {
@@ -144,45 +145,8 @@ public final class MidiUtils {
             return (long) (1000000 * seconds);
         }
 
-        if (cache == null) {
-            cache = new TempoCache(seq);
-        }
-
-        int resolution = seq.getResolution();
-
-        long[] ticks = cache.ticks;
-        int[] tempos = cache.tempos; // in MPQ
-        int cacheCount = tempos.length;
-
-        // optimization to not always go through entire list of tempo events
-        int snapshotIndex = cache.snapshotIndex;
-        int snapshotMicro = cache.snapshotMicro;
-
-        // walk through all tempo changes and add time for the respective blocks
-        long us = 0; // microsecond
-
-        if (snapshotIndex <= 0
-            || snapshotIndex >= cacheCount
-            || ticks[snapshotIndex] > tick) {
-            snapshotMicro = 0;
-            snapshotIndex = 0;
-        }
-        if (cacheCount > 0) {
-            // this implementation needs a tempo event at tick 0!
-            int i = snapshotIndex + 1;
-            while (i < cacheCount && ticks[i] <= tick) {
-                snapshotMicro += ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], resolution);
-                snapshotIndex = i;
-                i++;
-            }
-            us = snapshotMicro
-                 + ticks2microsec(tick - ticks[snapshotIndex],
-                    tempos[snapshotIndex],
-                    resolution);
-        }
-        cache.snapshotIndex = snapshotIndex;
-        cache.snapshotMicro = snapshotMicro;
-        return us;
+        TempoMap map = (cache == null) ? seq.getTempoMap() : cache.getTempoMap(seq);
+        return map.tick2microsecond(tick);
     }
 
     /**
@@ -202,35 +166,12 @@ public final class MidiUtils {
             return tick;
         }
 
-        if (cache == null) {
-            cache = new TempoCache(seq);
-        }
-        long[] ticks = cache.ticks;
-        int[] tempos = cache.tempos; // in MPQ
-        int cacheCount = tempos.length;
-
-        int resolution = seq.getResolution();
-
-        long us = 0; long tick = 0; int newReadPos = 0; int i = 1;
-
-        // walk through all tempo changes and add time for the respective blocks
-        // to find the right tick
-        if (micros > 0 && cacheCount > 0) {
-            // this loop requires that the first tempo Event is at time 0
-            while (i < cacheCount) {
-                long nextTime = us + ticks2microsec(ticks[i] - ticks[i - 1],
-                        tempos[i - 1], resolution);
-                if (nextTime > micros) {
-                    break;
-                }
-                us = nextTime;
-                i++;
-            }
-            tick = ticks[i - 1] + microsec2ticks(micros - us, tempos[i - 1], resolution);
-            if (Printer.debug) Printer.debug("microsecond2tick(" + (micros / 1000)+") = "+tick+" ticks.");
-            //if (Printer.debug) Printer.debug("   -> convert back = " + (tick2microsecond(seq, tick, null) / 1000)+" microseconds");
+        TempoMap map = (cache == null) ? seq.getTempoMap() : cache.getTempoMap(seq);
+        long tick = map.microsecond2tick(micros);
+        if (Printer.debug) Printer.debug("microsecond2tick(" + (micros / 1000)+") = "+tick+" ticks.");
+        if (cache != null) {
+            cache.currTempo = map.getTempoMPQAtMicrosecond(micros);
         }
-        cache.currTempo = tempos[i - 1];
         return tick;
     }
 
@@ -243,6 +184,18 @@ public final class MidiUtils {
      *   if no entries are found that follow after tick, track.size() is returned
      */
     public static int tick2index(Track track, long tick) {
+        return tick2index(track.getSnapshot(), tick);
+    }
+
+
+    /**
+     * Binary search for the event indexes of the track snapshot
+     *
+     * @param tick - tick number of index to be found in array
+     * @return index in snapshot which is on or after "tick".
+     *   if no entries are found that follow after tick, snapshot.size() is returned
+     */
+    public static int tick2index(Track.Snapshot track, long tick) {
         int ret = 0;
         if (tick > 0) {
             int low = 0;
@@ -251,7 +204,7 @@ public final class MidiUtils {
                 // take the middle event as estimate
                 ret = (low + high) >> 1;
                 // tick of estimate
-                long t = track.get(ret).getTick();
+                long t = track.getTick(ret);
                 if (t == tick) {
                     break;
                 } else if (t < tick) {
@@ -273,24 +226,14 @@ public final class MidiUtils {
 
 
     public static final class TempoCache {
-        long[] ticks;
-        int[] tempos; // in MPQ
-        // index in ticks/tempos at the snapshot
-        int snapshotIndex = 0;
-        // microsecond at the snapshot
-        int snapshotMicro = 0;
+        // immutable, replaced as a whole on refresh
+        private volatile TempoMap map;
 
         int currTempo; // MPQ, used as return value for microsecond2tick
 
-        private boolean firstTempoIsFake = false;
-
         public TempoCache() {
             // just some defaults, to prevents weird stuff
-            ticks = new long[1];
-            tempos = new int[1];
-            tempos[0] = DEFAULT_TEMPO_MPQ;
-            snapshotIndex = 0;
-            snapshotMicro = 0;
+            map = new TempoMap(1);
         }
 
         public TempoCache(Sequence seq) {
@@ -300,45 +243,14 @@ public final class MidiUtils {
 
 
         public synchronized void refresh(Sequence seq) {
-            ArrayList list = new ArrayList();
-            Track[] tracks = seq.getTracks();
-            if (tracks.length > 0) {
-                // tempo events only occur in track 0
-                Track track = tracks[0];
-                int c = track.size();
-                for (int i = 0; i < c; i++) {
-                    MidiEvent ev = track.get(i);
-                    MidiMessage msg = ev.getMessage();
-                    if (isMetaTempo(msg)) {
-                        // found a tempo event. Add it to the list
-                        list.add(ev);
-                    }
-                }
-            }
-            int size = list.size() + 1;
-            firstTempoIsFake = true;
-            if ((size > 1)
-                && (((MidiEvent) list.get(0)).getTick() == 0)) {
-                // do not need to add an initial tempo event at the beginning
-                size--;
-                firstTempoIsFake = false;
-            }
-            ticks  = new long[size];
-            tempos = new int[size];
-            int e = 0;
-            if (firstTempoIsFake) {
-                // add tempo 120 at beginning
-                ticks[0] = 0;
-                tempos[0] = DEFAULT_TEMPO_MPQ;
-                e++;
-            }
-            for (int i = 0; i < list.size(); i++, e++) {
-                MidiEvent evt = (MidiEvent) list.get(i);
-                ticks[e] = evt.getTick();
-                tempos[e] = getTempoMPQ(evt.getMessage());
-            }
-            snapshotIndex = 0;
-            snapshotMicro = 0;
+            map = seq.getTempoMap();
+        }
+
+        /** returns the up-to-date map of seq, remembering it for getTempoMPQAt */
+        TempoMap getTempoMap(Sequence seq) {
+            TempoMap current = seq.getTempoMap();
+            map = current;
+            return current;
         }
 
         public int getCurrTempoMPQ() {
@@ -349,17 +261,8 @@ public final class MidiUtils {
             return getTempoMPQAt(tick, -1.0f);
         }
 
-        public synchronized float getTempoMPQAt(long tick, float startTempoMPQ) {
-            for (int i = 0; i < ticks.length; i++) {
-                if (ticks[i] > tick) {
-                    if (i > 0) i--;
-                    if (startTempoMPQ > 0 && i == 0 && firstTempoIsFake) {
-                        return startTempoMPQ;
-                    }
-                    return (float) tempos[i];
-                }
-            }
-            return tempos[tempos.length - 1];
+        public float getTempoMPQAt(long tick, float startTempoMPQ) {
+            return map.getTempoMPQAt(tick, startTempoMPQ);
         }
 
     }
@@ -1,4 +1,6 @@
 // Removed from library by Noah Reeder due to some issues with track length calculation
+// Change: added getTempoMap(), caching the TempoMap used for microsecond conversions
+// Change: added setTempoMap(), used by SequenceCodec to install a decoded TempoMap
 
 // Pulled from http://hg.openjdk.java.net/jdk8/jdk8/jdk/file/687fd7c7986d/src/share/classes/javax/sound/midi/Sequence.java
 // on 2020-03-28
@@ -118,6 +120,12 @@ public class Sequence {
      */
     protected Vector<Track> tracks = new Vector<Track>();
 
+    /**
+     * The tempo map of track 0, rebuilt when track 0 changes.
+     * @see #getTempoMap
+     */
+    private volatile TempoMap tempoMap = null;
+
 
     /**
      * Constructs a new MIDI sequence with the specified timing division
@@ -303,6 +311,38 @@ public class Sequence {
     }
 
 
+    /**
+     * Obtains the tempo map of this sequence, used to convert between ticks and microseconds.
+     * The map is built from the tempo events of track 0 and cached until that track is modified
+     * or replaced.
+     * @return the tempo map of this sequence
+     */
+    public TempoMap getTempoMap() {
+
+        final Track firstTrack;
+        synchronized(tracks) {
+            firstTrack = tracks.isEmpty() ? null : tracks.firstElement();
+        }
+
+        TempoMap map = tempoMap;
+        if (map == null || !map.isValidFor(firstTrack, resolution)) {
+            map = TempoMap.build(this);
+            tempoMap = map;
+        }
+        return map;
+    }
+
+
+    /**
+     * Installs a tempo map built elsewhere, e.g. decoded from a cache. The map must be bound
+     * to the current track 0, or it is rebuilt on the next call of <code>getTempoMap</code>.
+     * @param map the tempo map
+     */
+    void setTempoMap(TempoMap map) {
+        tempoMap = map;
+    }
+
+
     /**
      * Obtains the duration of this sequence, expressed in MIDI ticks.
      *
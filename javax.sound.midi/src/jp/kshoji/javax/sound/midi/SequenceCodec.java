@@ -0,0 +1,282 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compact binary form of a parsed {@link Sequence}, for caching.
+ * <p>
+ * Each track is stored in columns: the ticks as a long array, and the messages as an int array of packed short
+ * messages or references into a table of longer (SysEx and meta) messages. The tempo map and the length of each
+ * track are stored with it, so decoding does not need to sort tracks or scan for tempo events again.
+ * Decoding reads the columns with bulk gets, so it works well on a memory-mapped buffer. The columns are the same as
+ * the compact storage of {@link Track}, so they can be used as they are.
+ * <p>
+ * The format is only meant to be read by the same version of this library; {@link #decode(ByteBuffer)} rejects
+ * other versions.
+ */
+public final class SequenceCodec {
+    private static final int MAGIC = 0x4d534551; // "MSEQ"
+    private static final int VERSION = 1;
+
+    private static final byte KIND_SYSEX = 1;
+    private static final byte KIND_META = 2;
+
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 4 + 4;
+    private static final int TRACK_HEADER_LENGTH = 4 + 4 + 8;
+
+    private SequenceCodec() {
+    }
+
+    /**
+     * Encode the {@link Sequence}. The tracks must only contain {@link ShortMessage}s, {@link SysexMessage}s and
+     * {@link MetaMessage}s, which is always the case for Sequences read from files.
+     *
+     * @param sequence the Sequence
+     * @return the encoded data, in a buffer positioned at 0 and limited to the data length
+     * @throws IllegalArgumentException the Sequence contains another kind of message
+     */
+    @NonNull
+    public static ByteBuffer encode(@NonNull final Sequence sequence) {
+        final Track[] tracks = sequence.getTracks();
+        final Track.Snapshot[] snapshots = new Track.Snapshot[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            // encoded sorted, so decoding does not need to sort; the tracks themselves are not changed
+            snapshots[i] = tracks[i].getSortedSnapshot();
+        }
+        final TempoMap tempoMap = sequence.getTempoMap();
+
+        // compute the exact size first
+        int size = HEADER_LENGTH + tempoMap.getSegmentCount() * (8 + 4);
+        for (final Track.Snapshot snapshot : snapshots) {
+            size += TRACK_HEADER_LENGTH + snapshot.size() * (8 + 4);
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (snapshot.getPackedMessage(i) == -1) {
+                    size += 1 + 4 + snapshot.getMessage(i).getLength();
+                }
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putFloat(sequence.getDivisionType());
+        buffer.putInt(sequence.getResolution());
+        buffer.putInt(tempoMap.isFirstTempoFake() ? -tempoMap.getSegmentCount() : tempoMap.getSegmentCount());
+        buffer.putInt(snapshots.length);
+        for (int i = 0; i < tempoMap.getSegmentCount(); i++) {
+            buffer.putLong(tempoMap.getSegmentTick(i));
+        }
+        for (int i = 0; i < tempoMap.getSegmentCount(); i++) {
+            buffer.putInt(tempoMap.getSegmentTempoMPQ(i));
+        }
+
+        for (final Track.Snapshot snapshot : snapshots) {
+            final int eventCount = snapshot.size();
+            int longMessageCount = 0;
+            int longMessageBytes = 0;
+            for (int i = 0; i < eventCount; i++) {
+                if (snapshot.getPackedMessage(i) == -1) {
+                    longMessageCount++;
+                    longMessageBytes += 1 + 4 + snapshot.getMessage(i).getLength();
+                }
+            }
+            buffer.putInt(eventCount);
+            buffer.putInt(longMessageBytes);
+            buffer.putLong(eventCount == 0 ? 0 : snapshot.getTick(eventCount - 1));
+
+            for (int i = 0; i < eventCount; i++) {
+                buffer.putLong(snapshot.getTick(i));
+            }
+
+            int longMessageIndex = 0;
+            for (int i = 0; i < eventCount; i++) {
+                final int packed = snapshot.getPackedMessage(i);
+                if (packed != -1) {
+                    buffer.putInt(packed);
+                }
+                else {
+                    buffer.putInt(Track.LONG_MESSAGE_FLAG | longMessageIndex++);
+                }
+            }
+
+            for (int i = 0; i < eventCount && longMessageCount > 0; i++) {
+                if (snapshot.getPackedMessage(i) != -1) {
+                    continue;
+                }
+                final MidiMessage message = snapshot.getMessage(i);
+                if (message instanceof SysexMessage) {
+                    buffer.put(KIND_SYSEX);
+                }
+                else if (message instanceof MetaMessage) {
+                    buffer.put(KIND_META);
+                }
+                else {
+                    throw new IllegalArgumentException("Unsupported message: " + message.getClass().getName());
+                }
+                buffer.putInt(message.getLength());
+                if (message.data != null) {
+                    buffer.put(message.data);
+                }
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a {@link Sequence} encoded by {@link #encode(Sequence)}. The buffer's position is not changed.
+     *
+     * @param buffer the encoded data, from its position to its limit
+     * @return the Sequence, with tracks holding {@link MidiEvent}s
+     * @throws InvalidMidiDataException the data is not a valid encoded Sequence of this version
+     */
+    @NonNull
+    public static Sequence decode(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        return decode(buffer, false);
+    }
+
+    /**
+     * Decode a {@link Sequence} encoded by {@link #encode(Sequence)}. The buffer's position is not changed.
+     *
+     * @param buffer  the encoded data, from its position to its limit
+     * @param compact true to decode the tracks into compact storage, see {@link Track#setEvents(Track.CompactEvents)}
+     * @return the Sequence
+     * @throws InvalidMidiDataException the data is not a valid encoded Sequence of this version
+     */
+    @NonNull
+    public static Sequence decode(@NonNull final ByteBuffer buffer, final boolean compact) throws InvalidMidiDataException {
+        final ByteBuffer source = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (source.getInt() != MAGIC || source.getInt() != VERSION) {
+                throw new InvalidMidiDataException("Invalid encoded sequence header");
+            }
+            final float divisionType = source.getFloat();
+            final int resolution = source.getInt();
+            final int signedSegmentCount = source.getInt();
+            final int trackCount = source.getInt();
+            // Math.abs(Integer.MIN_VALUE) is negative
+            if (signedSegmentCount == 0 || signedSegmentCount == Integer.MIN_VALUE || trackCount < 0) {
+                throw new InvalidMidiDataException("Invalid encoded sequence header");
+            }
+            // check the counts against the data before allocating for them
+            final int segmentCount = Math.abs(signedSegmentCount);
+            if (segmentCount > source.remaining() / (8 + 4) || trackCount > (source.remaining() - segmentCount * (8 + 4)) / TRACK_HEADER_LENGTH) {
+                throw new InvalidMidiDataException("Truncated encoded sequence");
+            }
+
+            final long[] segmentTicks = new long[segmentCount];
+            source.asLongBuffer().get(segmentTicks);
+            source.position(source.position() + segmentCount * 8);
+            final int[] segmentTempos = new int[segmentCount];
+            source.asIntBuffer().get(segmentTempos);
+            source.position(source.position() + segmentCount * 4);
+
+            final Sequence sequence = new Sequence(divisionType, resolution);
+            for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+                final int eventCount = source.getInt();
+                final int longMessageBytes = source.getInt();
+                source.getLong(); // tick length, only used without decoding
+                if (eventCount < 0 || longMessageBytes < 0) {
+                    throw new InvalidMidiDataException("Invalid encoded track header");
+                }
+                if (eventCount > source.remaining() / (8 + 4) || longMessageBytes > source.remaining() - eventCount * (8 + 4)) {
+                    throw new InvalidMidiDataException("Truncated encoded sequence");
+                }
+
+                final long[] ticks = new long[eventCount];
+                source.asLongBuffer().get(ticks);
+                source.position(source.position() + eventCount * 8);
+                final int[] packedMessages = new int[eventCount];
+                source.asIntBuffer().get(packedMessages);
+                source.position(source.position() + eventCount * 4);
+
+                // the long messages are stored in the order they are referenced
+                int longMessageCount = 0;
+                for (int i = 0; i < eventCount; i++) {
+                    if ((packedMessages[i] & Track.LONG_MESSAGE_FLAG) != 0) {
+                        if ((packedMessages[i] & ~Track.LONG_MESSAGE_FLAG) != longMessageCount) {
+                            throw new InvalidMidiDataException("Invalid encoded message reference");
+                        }
+                        longMessageCount++;
+                    }
+                }
+                final MidiMessage[] longMessages = new MidiMessage[longMessageCount];
+                for (int i = 0; i < longMessageCount; i++) {
+                    longMessages[i] = readLongMessage(source);
+                }
+
+                // the events were sorted when encoded
+                final Track track = sequence.createTrack();
+                if (compact) {
+                    track.setCompactSnapshot(new Track.Snapshot(ticks, packedMessages, longMessages));
+                    continue;
+                }
+
+                final MidiEvent[] events = new MidiEvent[eventCount];
+                for (int i = 0; i < eventCount; i++) {
+                    final int packed = packedMessages[i];
+                    final MidiMessage message;
+                    if ((packed & Track.LONG_MESSAGE_FLAG) != 0) {
+                        message = longMessages[packed & ~Track.LONG_MESSAGE_FLAG];
+                    }
+                    else {
+                        message = Track.unpack(packed);
+                    }
+                    events[i] = new MidiEvent(message, ticks[i]);
+                }
+                synchronized (track.events) {
+                    track.events.addAll(Arrays.asList(events));
+                    track.eventsChanged();
+                    track.markSorted();
+                }
+            }
+
+            final Track[] tracks = sequence.getTracks();
+            if (tracks.length > 0) {
+                sequence.setTempoMap(new TempoMap(segmentTicks, segmentTempos, resolution, signedSegmentCount < 0, tracks[0], tracks[0].getModificationCount()));
+            }
+            return sequence;
+        } catch (final BufferUnderflowException e) {
+            throw new InvalidMidiDataException("Truncated encoded sequence");
+        } catch (final IllegalArgumentException e) {
+            throw new InvalidMidiDataException("Invalid encoded sequence: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read a SysEx or meta message
+     *
+     * @param source the buffer, positioned at the message
+     * @return the message
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    private static MidiMessage readLongMessage(@NonNull final ByteBuffer source) throws InvalidMidiDataException {
+        final byte kind = source.get();
+        final int length = source.getInt();
+        if (length < 0 || length > source.remaining()) {
+            throw new InvalidMidiDataException("Invalid encoded message length");
+        }
+        final byte[] data = new byte[length];
+        source.get(data);
+
+        switch (kind) {
+            case KIND_SYSEX:
+                return new SysexMessage(data);
+            case KIND_META:
+                try {
+                    return new MetaMessage(data);
+                } catch (final NegativeArraySizeException e) {
+                    throw new InvalidMidiDataException("Invalid encoded meta message");
+                }
+            default:
+                throw new InvalidMidiDataException("Invalid encoded message kind: " + kind);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Table of shared, immutable {@link ShortMessage}s, one instance for each distinct (status, data1, data2).
+ * <p>
+ * MIDI files repeat the same messages constantly (note offs, identical controller values, ...), so file readers can
+ * use this to create far fewer message objects. The shared messages throw {@link UnsupportedOperationException} when
+ * modified; {@link ShortMessage#clone()} returns a modifiable copy.
+ * <p>
+ * This class is not thread safe, use one instance per thread.
+ */
+public final class ShortMessageInterner {
+    private static final int INITIAL_CAPACITY = 256;
+
+    // open addressing table, keyed by status | data1 << 8 | data2 << 16. 0 is never a valid key, so it marks empty slots
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private ShortMessage[] messages = new ShortMessage[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Get the shared {@link ShortMessage} with the specified data.
+     * The data bytes which the status does not use are ignored.
+     *
+     * @param status the status
+     * @param data1 the first data
+     * @param data2 the second data
+     * @return the shared ShortMessage, must not be modified
+     * @throws InvalidMidiDataException the status is invalid, or the data is out of range
+     */
+    @NonNull
+    public ShortMessage intern(final int status, final int data1, final int data2) throws InvalidMidiDataException {
+        final int dataLength = ShortMessage.getDataLength(status);
+        final int key = (status & 0xff) | (dataLength > 0 ? (data1 & 0xff) << 8 : 0) | (dataLength > 1 ? (data2 & 0xff) << 16 : 0);
+
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return messages[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // validates the data, same as new ShortMessage(status, data1, data2)
+        final ShortMessage validated = new ShortMessage(status, data1, data2);
+        final ShortMessage message = new SharedShortMessage(validated.data);
+        keys[slot] = key;
+        messages[slot] = message;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return message;
+    }
+
+    /**
+     * Get the number of distinct messages in this table
+     *
+     * @return the number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int hash(final int key) {
+        final int hash = key * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        final int[] oldKeys = keys;
+        final ShortMessage[] oldMessages = messages;
+        keys = new int[oldKeys.length * 2];
+        messages = new ShortMessage[oldKeys.length * 2];
+
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            messages[slot] = oldMessages[i];
+        }
+    }
+
+    /**
+     * {@link ShortMessage} shared by a {@link ShortMessageInterner}, which can't be modified
+     */
+    static final class SharedShortMessage extends ShortMessage {
+
+        SharedShortMessage(@NonNull final byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public void setMessage(final int status) {
+            throw new UnsupportedOperationException("Shared ShortMessage can't be modified");
+        }
+
+        @Override
+        public void setMessage(final int status, final int data1, final int data2) {
+            throw new UnsupportedOperationException("Shared ShortMessage can't be modified");
+        }
+
+        @Override
+        public void setMessage(final int command, final int channel, final int data1, final int data2) {
+            throw new UnsupportedOperationException("Shared ShortMessage can't be modified");
+        }
+
+        @Override
+        public void setMessage(final byte[] data, final int length) {
+            throw new UnsupportedOperationException("Shared ShortMessage can't be modified");
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable map of the tempo changes of a {@link Sequence}, used for tick / microsecond conversions.
+ * <p>
+ * Each tempo segment stores its starting tick, its tempo in MPQ and the microsecond offset at which it starts,
+ * so both directions of conversion are a binary search plus one multiplication instead of a walk over every
+ * tempo change. Instances are obtained from {@link Sequence#getTempoMap()}, which caches them until track 0 is
+ * modified.
+ */
+public final class TempoMap {
+    private final long[] ticks;
+    private final int[] tempos;  // in MPQ
+    private final long[] micros; // microsecond offset of each segment start
+    private final int resolution;
+    private final boolean firstTempoIsFake;
+
+    // source information, used to detect stale maps
+    private final Track sourceTrack;
+    private final int sourceModificationCount;
+
+    /**
+     * Create a map holding only the default tempo of 120 bpm.
+     *
+     * @param resolution the ticks per quarter note
+     */
+    TempoMap(final int resolution) {
+        this(new long[]{ 0 }, new int[]{ MidiUtils.DEFAULT_TEMPO_MPQ }, resolution, true, null, 0);
+    }
+
+    TempoMap(@NonNull final long[] ticks, @NonNull final int[] tempos, final int resolution, final boolean firstTempoIsFake, final Track sourceTrack, final int sourceModificationCount) {
+        this.ticks = ticks;
+        this.tempos = tempos;
+        this.resolution = resolution;
+        this.firstTempoIsFake = firstTempoIsFake;
+        this.sourceTrack = sourceTrack;
+        this.sourceModificationCount = sourceModificationCount;
+
+        micros = new long[ticks.length];
+        for (int i = 1; i < ticks.length; i++) {
+            micros[i] = micros[i - 1] + MidiUtils.ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], resolution);
+        }
+    }
+
+    /**
+     * Build the map of the specified {@link Sequence}. Tempo events are only read from track 0.
+     *
+     * @param sequence the Sequence
+     * @return the TempoMap
+     */
+    @NonNull
+    static TempoMap build(@NonNull final Sequence sequence) {
+        final Track[] tracks = sequence.getTracks();
+        if (tracks.length == 0) {
+            return new TempoMap(sequence.getResolution());
+        }
+
+        final Track track = tracks[0];
+        final int modificationCount = track.getModificationCount();
+        final Track.Snapshot events = track.getSnapshot();
+
+        // count the tempo events first, so the arrays can be sized exactly
+        // tempo events are meta messages, so short messages are skipped without reading their MidiMessage
+        final int size = events.size();
+        int tempoCount = 0;
+        long firstTempoTick = -1;
+        for (int i = 0; i < size; i++) {
+            if (events.getPackedMessage(i) == -1 && MidiUtils.isMetaTempo(events.getMessage(i))) {
+                final long tick = events.getTick(i);
+                if (tempoCount == 0 || tick < firstTempoTick) {
+                    firstTempoTick = tick;
+                }
+                tempoCount++;
+            }
+        }
+
+        // this implementation needs a tempo event at tick 0, add 120 bpm if there is none
+        final boolean firstTempoIsFake = firstTempoTick != 0;
+
+        final int segmentCount = firstTempoIsFake ? tempoCount + 1 : tempoCount;
+        final long[] ticks = new long[segmentCount];
+        final int[] tempos = new int[segmentCount];
+        int segment = 0;
+        if (firstTempoIsFake) {
+            ticks[0] = 0;
+            tempos[0] = MidiUtils.DEFAULT_TEMPO_MPQ;
+            segment++;
+        }
+        for (int i = 0; i < size && segment < segmentCount; i++) {
+            if (events.getPackedMessage(i) != -1) {
+                continue;
+            }
+            final int tempo = MidiUtils.getTempoMPQ(events.getMessage(i));
+            if (tempo >= 0) {
+                ticks[segment] = events.getTick(i);
+                tempos[segment] = tempo;
+                segment++;
+            }
+        }
+
+        // the events of a track are in tick order once sorted, but track 0 may not have been sorted yet
+        final int first = firstTempoIsFake ? 1 : 0;
+        for (int i = first + 1; i < segmentCount; i++) {
+            final long tick = ticks[i];
+            final int tempo = tempos[i];
+            int j = i - 1;
+            while (j >= first && ticks[j] > tick) {
+                ticks[j + 1] = ticks[j];
+                tempos[j + 1] = tempos[j];
+                j--;
+            }
+            ticks[j + 1] = tick;
+            tempos[j + 1] = tempo;
+        }
+
+        return new TempoMap(ticks, tempos, sequence.getResolution(), firstTempoIsFake, track, modificationCount);
+    }
+
+    /**
+     * Check if this map still reflects the specified track 0
+     *
+     * @param track the current track 0 of the sequence, null if the sequence has no tracks
+     * @param resolution the current resolution of the sequence
+     * @return true if the map is up to date
+     */
+    boolean isValidFor(final Track track, final int resolution) {
+        if (this.resolution != resolution || sourceTrack != track) {
+            return false;
+        }
+        return track == null || track.getModificationCount() == sourceModificationCount;
+    }
+
+    /**
+     * Get the number of tempo segments in this map
+     *
+     * @return the number of segments, always >= 1
+     */
+    public int getSegmentCount() {
+        return ticks.length;
+    }
+
+    /**
+     * Get the starting tick of the specified tempo segment
+     *
+     * @param segment the index of segment
+     * @return the tick
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public long getSegmentTick(final int segment) throws ArrayIndexOutOfBoundsException {
+        return ticks[segment];
+    }
+
+    /**
+     * Get the tempo of the specified tempo segment
+     *
+     * @param segment the index of segment
+     * @return the tempo in MPQ
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public int getSegmentTempoMPQ(final int segment) throws ArrayIndexOutOfBoundsException {
+        return tempos[segment];
+    }
+
+    /**
+     * Check if the first segment is the default tempo, added because the sequence has no tempo event at tick 0
+     *
+     * @return true if the first segment does not come from a tempo event
+     */
+    boolean isFirstTempoFake() {
+        return firstTempoIsFake;
+    }
+
+    /**
+     * Find the tempo segment containing the specified tick
+     *
+     * @param tick the tick
+     * @return the index of the last segment starting on or before the tick, 0 if the tick is before all segments
+     */
+    public int segmentAtTick(final long tick) {
+        int low = 0;
+        int high = ticks.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (ticks[mid] <= tick) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the tempo segment containing the specified time
+     *
+     * @param microseconds the time in microseconds
+     * @return the index of the last segment starting on or before the time, 0 if the time is before all segments
+     */
+    public int segmentAtMicrosecond(final long microseconds) {
+        int low = 0;
+        int high = micros.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (micros[mid] <= microseconds) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Convert the specified tick to microseconds, taking all tempo changes into account
+     *
+     * @param tick the tick
+     * @return the time in microseconds
+     */
+    public long tick2microsecond(final long tick) {
+        final int segment = segmentAtTick(tick);
+        return micros[segment] + MidiUtils.ticks2microsec(tick - ticks[segment], tempos[segment], resolution);
+    }
+
+    /**
+     * Convert the specified time to ticks, taking all tempo changes into account
+     *
+     * @param microseconds the time in microseconds
+     * @return the tick
+     */
+    public long microsecond2tick(final long microseconds) {
+        if (microseconds <= 0) {
+            return 0;
+        }
+        final int segment = segmentAtMicrosecond(microseconds);
+        return ticks[segment] + MidiUtils.microsec2ticks(microseconds - micros[segment], tempos[segment], resolution);
+    }
+
+    /**
+     * Get the tempo in effect at the specified time
+     *
+     * @param microseconds the time in microseconds
+     * @return the tempo in MPQ
+     */
+    public int getTempoMPQAtMicrosecond(final long microseconds) {
+        if (microseconds <= 0) {
+            return tempos[0];
+        }
+        return tempos[segmentAtMicrosecond(microseconds)];
+    }
+
+    /**
+     * Get the tempo in effect at the specified tick
+     *
+     * @param tick the tick
+     * @return the tempo in MPQ
+     */
+    public int getTempoMPQAt(final long tick) {
+        return tempos[segmentAtTick(tick)];
+    }
+
+    /**
+     * Get the tempo in effect at the specified tick
+     *
+     * @param tick          the tick
+     * @param startTempoMPQ the tempo to report before the first tempo event if the sequence does not set one at tick 0, ignored if <= 0 or if the sequence has no tempo events
+     * @return the tempo in MPQ
+     */
+    public float getTempoMPQAt(final long tick, final float startTempoMPQ) {
+        final int segment = segmentAtTick(tick);
+        // as MidiUtils.TempoCache did, the start tempo only replaces the default tempo before the first tempo event
+        if (startTempoMPQ > 0 && segment == 0 && firstTempoIsFake && ticks.length > 1) {
+            return startTempoMPQ;
+        }
+        return tempos[segment];
+    }
+}
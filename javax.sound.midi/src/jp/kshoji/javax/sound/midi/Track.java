@@ -1,73 +1,614 @@
 package jp.kshoji.javax.sound.midi;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Represents MIDI Track
+ * <p>
+ * A Track is normally a list of {@link MidiEvent}s. It can also hold its events in compact storage (see
+ * {@link #setEvents(CompactEvents)} and {@link #compact()}): ticks in a long array, short messages packed into an
+ * int array, and only SysEx and meta messages as objects. {@link #get(int)} returns views of the compact storage,
+ * which can be changed as usual MidiEvents; adding or removing events converts the Track back to a list of MidiEvents.
  *
  * @author K.Shoji
  */
 public class Track {
-    private static final byte[] END_OF_TRACK = { -1, 47, 0 };
+    // the data of the END_OF_TRACK meta message, also used by MergedTrack
+    static final byte[] END_OF_TRACK = { -1, 47, 0 };
     private static final Track[] emptyTracks = {};
 
-    private final List<MidiEvent> events = new ArrayList<MidiEvent>();
+    // compact storage: bit 31 set for references to the long messages, otherwise data length in bits 24-25 and data in bits 0-23
+    static final int LONG_MESSAGE_FLAG = 0x80000000;
+
+    // empty while the events are in compact storage, then the snapshot holds them
+    final List<MidiEvent> events = new ArrayList<MidiEvent>();
+
+    // incremented on every change of events, used to invalidate data derived from this track
+    private volatile int modificationCount = 0;
+    // modificationCount at the time of the last sortEvents call
+    private int sortedModificationCount = -1;
+    // MidiEvent.getChangeCount() when this track last checked for events changed in place
+    private volatile int knownEventChangeCount = MidiEvent.getChangeCount();
+    // frozen copy of events for lock-free reads, null if events changed since it was taken
+    @Nullable
+    private volatile Snapshot snapshot = null;
+
+    // runs shorter than this are sorted by insertion sort before merging
+    private static final int INSERTION_SORT_THRESHOLD = 16;
 
     /**
-     * {@link Comparator} for MIDI data sorting
+     * Get the sort key of the {@link MidiEvent}: the tick in the upper bits, and the MIDI data priority in the lowest 8 bits.
+     * Events with the same tick are ordered by the MIDI data priority, as:
+     * system message > control messages > note on > note off
+     *
+     * @param event the MidiEvent
+     * @return the key, ascending order of keys is the playback order of events
      */
-    static final Comparator<MidiEvent> midiEventComparator = new Comparator<MidiEvent>() {
-        @Override
-        public int compare(MidiEvent lhs, MidiEvent rhs) {
-            // sort by tick
-            final int tickDifference = (int) (lhs.getTick() - rhs.getTick());
-            if (tickDifference != 0) {
-                return tickDifference * 256;
+    static long sortKey(@NonNull final MidiEvent event) {
+        // apply zero if message is empty
+        return sortKey(event.getTick(), event.getMessage().getStatus());
+    }
+
+    /**
+     * Get the sort key of an event, from its tick and status
+     *
+     * @param tick   the tick
+     * @param status the status of the message, zero if the message is empty
+     * @return the key, ascending order of keys is the playback order of events
+     * @see #sortKey(MidiEvent)
+     */
+    static long sortKey(final long tick, final int status) {
+        int priority = status & 0xf0;
+
+        // swap the priority of note on, and note off
+        if ((priority & 0x90) == 0x80) {
+            priority |= 0x10;
+        }
+        else {
+            priority &= ~0x10;
+        }
+
+        return (tick << 8) | (0xff - priority);
+    }
+
+    /**
+     * Check if the {@link MidiMessage} is END_OF_TRACK, without copying the message data
+     *
+     * @param message the MidiMessage
+     * @return true if the message is END_OF_TRACK
+     */
+    static boolean isEndOfTrack(@NonNull final MidiMessage message) {
+        final byte[] data = message.data;
+        return data != null && data.length == END_OF_TRACK.length && data[0] == END_OF_TRACK[0] && data[1] == END_OF_TRACK[1] && data[2] == END_OF_TRACK[2];
+    }
+
+    /**
+     * Pack the data of a {@link ShortMessage} into an int, in the format of compact storage
+     *
+     * @param message the ShortMessage
+     * @return the packed message, status | data1 << 8 | data2 << 16 | length << 24
+     */
+    static int pack(@NonNull final MidiMessage message) {
+        // subclasses may not keep their data in the data field
+        final Class<?> messageClass = message.getClass();
+        final byte[] data = messageClass == ShortMessage.class || messageClass == ShortMessageInterner.SharedShortMessage.class || messageClass == CompactShortMessage.class ? message.data : message.getMessage();
+        if (data == null) {
+            return 0;
+        }
+        final int length = Math.min(data.length, 3);
+        int packed = length << 24;
+        for (int i = 0; i < length; i++) {
+            packed |= (data[i] & 0xff) << (8 * i);
+        }
+        return packed;
+    }
+
+    /**
+     * Create the {@link ShortMessage} of a packed message
+     *
+     * @param packed the packed message
+     * @return the ShortMessage
+     */
+    @NonNull
+    static ShortMessage unpack(final int packed) {
+        final byte[] data = new byte[(packed >>> 24) & 0x3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (packed >>> (8 * i));
+        }
+        return new ShortMessage(data);
+    }
+
+    /**
+     * Stable sort of values by their keys
+     *
+     * @param keys   the keys, sorted in place
+     * @param values the values of keys, sorted in place
+     * @param length the number of valid entries in the arrays
+     */
+    static void sortByKey(@NonNull final long[] keys, @NonNull final int[] values, final int length) {
+        // sort short runs by insertion sort
+        for (int start = 0; start < length; start += INSERTION_SORT_THRESHOLD) {
+            final int end = Math.min(start + INSERTION_SORT_THRESHOLD, length);
+            for (int i = start + 1; i < end; i++) {
+                final long key = keys[i];
+                final int value = values[i];
+                int j = i - 1;
+                while (j >= start && keys[j] > key) {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+        }
+        if (length <= INSERTION_SORT_THRESHOLD) {
+            return;
+        }
+
+        // merge the runs, bottom-up
+        long[] sourceKeys = keys;
+        int[] sourceValues = values;
+        long[] targetKeys = new long[length];
+        int[] targetValues = new int[length];
+        for (int width = INSERTION_SORT_THRESHOLD; width < length; width *= 2) {
+            for (int start = 0; start < length; start += 2 * width) {
+                final int middle = Math.min(start + width, length);
+                final int end = Math.min(start + 2 * width, length);
+                int left = start;
+                int right = middle;
+                int target = start;
+                if (middle < end && sourceKeys[middle - 1] <= sourceKeys[middle]) {
+                    // already in order
+                    System.arraycopy(sourceKeys, start, targetKeys, start, end - start);
+                    System.arraycopy(sourceValues, start, targetValues, start, end - start);
+                    continue;
+                }
+                while (left < middle && right < end) {
+                    // take from left on equal keys, to keep the sort stable
+                    if (sourceKeys[right] < sourceKeys[left]) {
+                        targetKeys[target] = sourceKeys[right];
+                        targetValues[target++] = sourceValues[right++];
+                    }
+                    else {
+                        targetKeys[target] = sourceKeys[left];
+                        targetValues[target++] = sourceValues[left++];
+                    }
+                }
+                System.arraycopy(sourceKeys, left, targetKeys, target, middle - left);
+                System.arraycopy(sourceValues, left, targetValues, target, middle - left);
+                target += middle - left;
+                System.arraycopy(sourceKeys, right, targetKeys, target, end - right);
+                System.arraycopy(sourceValues, right, targetValues, target, end - right);
             }
 
-            byte[] lhsMessage = lhs.getMessage().getMessage();
-            byte[] rhsMessage = rhs.getMessage().getMessage();
+            final long[] swapKeys = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = swapKeys;
+            final int[] swapValues = sourceValues;
+            sourceValues = targetValues;
+            targetValues = swapValues;
+        }
+
+        if (sourceKeys != keys) {
+            System.arraycopy(sourceKeys, 0, keys, 0, length);
+            System.arraycopy(sourceValues, 0, values, 0, length);
+        }
+    }
+
+    /**
+     * Immutable, array-backed view of the events of a {@link Track} at one point in time.
+     * Reading a snapshot does not take any lock, so it is suited to playback and searching.
+     * Snapshots are not updated by later changes to the Track; get a new one with {@link Track#getSnapshot()}.
+     * The MidiEvents themselves are shared with the Track, so a tick changed with {@link MidiEvent#setTick(long)}
+     * is seen by older snapshots too, without the events being sorted again. The Track drops its snapshot then, and
+     * sorts again on the next {@link Track#ticks()}.
+     * <p>
+     * The snapshot of a Track in compact storage holds the compact storage itself. Its events are best read with
+     * {@link #getTick(int)}, {@link #getPackedMessage(int)} and {@link #getMessage(int)}, which do not create
+     * {@link MidiEvent}s. The MidiEvents returned by {@link #get(int)} are views created on first use and kept, so the
+     * same instance is returned each time. Changing their tick or ShortMessage writes through to the compact storage;
+     * after a tick change, the Track converts its events back to a list of these same MidiEvents and sorts them again
+     * on the next {@link Track#ticks()}.
+     */
+    public static final class Snapshot {
+        // MidiEvent storage, null for compact storage
+        @Nullable
+        private final MidiEvent[] events;
+
+        // compact storage, null for MidiEvent storage
+        @Nullable
+        private final long[] ticks;
+        @Nullable
+        private final int[] messages;
+        @Nullable
+        private final MidiMessage[] longMessages;
+        // MidiEvents of compact storage, created on demand
+        @Nullable
+        private MidiEvent[] views = null;
+        // true once a tick has been changed through a view, so the compact storage may be out of order
+        private volatile boolean changed = false;
+
+        /**
+         * Constructor
+         *
+         * @param events the events, not copied
+         */
+        Snapshot(@NonNull final MidiEvent[] events) {
+            this.events = events;
+            this.ticks = null;
+            this.messages = null;
+            this.longMessages = null;
+        }
+
+        /**
+         * Constructor for compact storage
+         *
+         * @param ticks        the ticks of events, not copied
+         * @param messages     the packed messages of events, not copied
+         * @param longMessages the messages referenced by the packed messages, not copied
+         */
+        Snapshot(@NonNull final long[] ticks, @NonNull final int[] messages, @NonNull final MidiMessage[] longMessages) {
+            this.events = null;
+            this.ticks = ticks;
+            this.messages = messages;
+            this.longMessages = longMessages;
+        }
+
+        /**
+         * Check if this snapshot holds compact storage
+         *
+         * @return true if the events are in compact storage
+         */
+        boolean isCompact() {
+            return events == null;
+        }
 
-            // apply zero if message is empty
-            if (lhsMessage == null || lhsMessage.length < 1) {
-                lhsMessage = new byte[]{ 0 };
+        /**
+         * Get specified index of {@link MidiEvent}
+         *
+         * @param index the index of event
+         * @return the MidiEvent
+         * @throws ArrayIndexOutOfBoundsException
+         */
+        @NonNull
+        public MidiEvent get(final int index) throws ArrayIndexOutOfBoundsException {
+            if (events != null) {
+                return events[index];
             }
-            if (rhsMessage == null || rhsMessage.length < 1) {
-                rhsMessage = new byte[]{ 0 };
+
+            synchronized (this) {
+                if (views == null) {
+                    views = new MidiEvent[ticks.length];
+                }
+                MidiEvent view = views[index];
+                if (view == null) {
+                    final int packed = messages[index];
+                    final MidiMessage message = (packed & LONG_MESSAGE_FLAG) != 0 ? longMessages[packed & ~LONG_MESSAGE_FLAG] : new CompactShortMessage(this, index, packed);
+                    view = new CompactMidiEvent(this, index, message);
+                    views[index] = view;
+                }
+                return view;
             }
+        }
 
-            // same timing
-            // sort by the MIDI data priority order, as:
-            // system message > control messages > note on > note off
-            // swap the priority of note on, and note off
-            int lhsInt = lhsMessage[0] & 0xf0;
-            int rhsInt = rhsMessage[0] & 0xf0;
+        /**
+         * Check if a tick has been changed through a view of the compact storage
+         *
+         * @return true if the compact storage may be out of order
+         */
+        boolean isChanged() {
+            return changed;
+        }
 
-            if ((lhsInt & 0x90) == 0x80) {
-                lhsInt |= 0x10;
+        /**
+         * Get the tick of the specified index of {@link MidiEvent}
+         *
+         * @param index the index of event
+         * @return the tick
+         * @throws ArrayIndexOutOfBoundsException
+         */
+        public long getTick(final int index) throws ArrayIndexOutOfBoundsException {
+            if (events != null) {
+                return events[index].getTick();
             }
-            else {
-                lhsInt &= ~0x10;
+            return ticks[index];
+        }
+
+        /**
+         * Get the {@link MidiMessage} of the specified index of {@link MidiEvent}.
+         * For compact storage, a new {@link ShortMessage} is created on each call.
+         *
+         * @param index the index of event
+         * @return the MidiMessage
+         * @throws ArrayIndexOutOfBoundsException
+         */
+        @NonNull
+        public MidiMessage getMessage(final int index) throws ArrayIndexOutOfBoundsException {
+            if (events != null) {
+                return events[index].getMessage();
             }
-            if ((rhsInt & 0x90) == 0x80) {
-                rhsInt |= 0x10;
+            final int packed = messages[index];
+            if ((packed & LONG_MESSAGE_FLAG) != 0) {
+                return longMessages[packed & ~LONG_MESSAGE_FLAG];
             }
-            else {
-                rhsInt &= ~0x10;
+            return unpack(packed);
+        }
+
+        /**
+         * Get the packed {@link ShortMessage} of the specified index of {@link MidiEvent}, without creating any object
+         *
+         * @param index the index of event
+         * @return status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16 | length &lt;&lt; 24, or -1 if the message is not a ShortMessage
+         * @throws ArrayIndexOutOfBoundsException
+         */
+        public int getPackedMessage(final int index) throws ArrayIndexOutOfBoundsException {
+            if (events != null) {
+                final MidiMessage message = events[index].getMessage();
+                return message instanceof ShortMessage ? pack(message) : -1;
+            }
+            final int packed = messages[index];
+            return (packed & LONG_MESSAGE_FLAG) != 0 ? -1 : packed;
+        }
+
+        /**
+         * Get the status of the message of the specified index of {@link MidiEvent}
+         *
+         * @param index the index of event
+         * @return the status, zero if the message is empty
+         * @throws ArrayIndexOutOfBoundsException
+         */
+        int getStatus(final int index) throws ArrayIndexOutOfBoundsException {
+            final int packed = getPackedMessage(index);
+            if (packed == -1) {
+                return getMessage(index).getStatus();
+            }
+            return packed & 0xff;
+        }
+
+        /**
+         * Check if the message of the specified index of {@link MidiEvent} is END_OF_TRACK
+         *
+         * @param index the index of event
+         * @return true if the message is END_OF_TRACK
+         * @throws ArrayIndexOutOfBoundsException
+         */
+        boolean isEndOfTrack(final int index) throws ArrayIndexOutOfBoundsException {
+            if (events == null && (messages[index] & LONG_MESSAGE_FLAG) == 0) {
+                return false;
             }
+            return Track.isEndOfTrack(getMessage(index));
+        }
 
-            return -(lhsInt - rhsInt);
+        /**
+         * Get the number of events in the snapshot
+         *
+         * @return the number of events
+         */
+        public int size() {
+            if (events != null) {
+                return events.length;
+            }
+            return ticks.length;
         }
-    };
+    }
+
+    /**
+     * {@link MidiEvent} view of an event in compact storage, reading and writing its tick there
+     */
+    private static final class CompactMidiEvent extends MidiEvent {
+        private final Snapshot snapshot;
+        private final int index;
+
+        CompactMidiEvent(@NonNull final Snapshot snapshot, final int index, @NonNull final MidiMessage message) {
+            super(message, snapshot.ticks[index]);
+            this.snapshot = snapshot;
+            this.index = index;
+        }
+
+        @Override
+        public long getTick() {
+            return snapshot.ticks[index];
+        }
+
+        @Override
+        public void setTick(final long tick) {
+            snapshot.ticks[index] = tick;
+            // set before the change count, so a Track noticing the change also sees the flag
+            snapshot.changed = true;
+            changed();
+        }
+    }
+
+    /**
+     * {@link ShortMessage} view of a packed message in compact storage, writing changes of the message there
+     */
+    private static final class CompactShortMessage extends ShortMessage {
+        private final Snapshot snapshot;
+        private final int index;
+
+        CompactShortMessage(@NonNull final Snapshot snapshot, final int index, final int packed) {
+            super(unpack(packed).data);
+            this.snapshot = snapshot;
+            this.index = index;
+        }
+
+        // setMessage(int) and setMessage(int, int, int, int) call setMessage(int, int, int)
+
+        @Override
+        public void setMessage(@Nullable final byte[] data, final int length) throws InvalidMidiDataException {
+            super.setMessage(data, length);
+            snapshot.messages[index] = pack(this);
+        }
+
+        @Override
+        public void setMessage(final int status, final int data1, final int data2) throws InvalidMidiDataException {
+            super.setMessage(status, data1, data2);
+            snapshot.messages[index] = pack(this);
+        }
+    }
+
+    /**
+     * Growable buffer of events for compact storage, filled in file order and set to a {@link Track} with
+     * {@link Track#setEvents(CompactEvents)}. Short messages are packed as they are added, so no {@link MidiEvent}
+     * or {@link ShortMessage} is created for them.
+     */
+    public static final class CompactEvents {
+        private long[] ticks;
+        private int[] messages;
+        private MidiMessage[] longMessages;
+        private int size = 0;
+        private int longMessageCount = 0;
+
+        /**
+         * Constructor
+         */
+        public CompactEvents() {
+            this(16);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param capacity the initial number of events
+         */
+        public CompactEvents(final int capacity) {
+            ticks = new long[Math.max(capacity, 1)];
+            messages = new int[ticks.length];
+            longMessages = new MidiMessage[4];
+        }
+
+        /**
+         * Add a short message, checked the same way as {@link ShortMessage#setMessage(int, int, int)}
+         *
+         * @param tick   the tick
+         * @param status the status
+         * @param data1  the first data
+         * @param data2  the second data, ignored if the status has less than 2 data bytes
+         * @throws InvalidMidiDataException
+         */
+        public void add(final long tick, final int status, final int data1, final int data2) throws InvalidMidiDataException {
+            final int dataLength = ShortMessage.getDataLength(status);
+            if (dataLength > 0) {
+                if (data1 < 0 || data1 > 0x7f) {
+                    throw new InvalidMidiDataException("data1 out of range: " + data1);
+                }
+                if (dataLength > 1) {
+                    if (data2 < 0 || data2 > 0x7f) {
+                        throw new InvalidMidiDataException("data2 out of range: " + data2);
+                    }
+                }
+            }
+
+            int packed = ((dataLength + 1) << 24) | (status & 0xff);
+            if (dataLength > 0) {
+                packed |= (data1 & 0xff) << 8;
+                if (dataLength > 1) {
+                    packed |= (data2 & 0xff) << 16;
+                }
+            }
+            addPacked(tick, packed);
+        }
+
+        /**
+         * Add a message. {@link ShortMessage}s are packed, other messages are kept as they are.
+         *
+         * @param tick    the tick
+         * @param message the message
+         */
+        public void add(final long tick, @NonNull final MidiMessage message) {
+            if (message instanceof ShortMessage) {
+                addPacked(tick, pack(message));
+                return;
+            }
+
+            if (longMessageCount == longMessages.length) {
+                longMessages = Arrays.copyOf(longMessages, longMessageCount * 2);
+            }
+            longMessages[longMessageCount] = message;
+            addPacked(tick, LONG_MESSAGE_FLAG | longMessageCount);
+            longMessageCount++;
+        }
+
+        private void addPacked(final long tick, final int packed) {
+            if (size == ticks.length) {
+                ticks = Arrays.copyOf(ticks, size * 2);
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+            ticks[size] = tick;
+            messages[size] = packed;
+            size++;
+        }
+
+        /**
+         * Get the number of events added
+         *
+         * @return the number of events
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Sort the events the same way as {@link TrackUtils#sortEvents(Track)}: END_OF_TRACK events are removed, and
+         * one END_OF_TRACK is added after the last event.
+         *
+         * @return the sorted compact storage
+         */
+        @NonNull
+        Snapshot toSortedSnapshot() {
+            final long[] keys = new long[size];
+            final int[] sortedMessages = new int[size + 1];
+            int length = 0;
+            boolean inOrder = true;
+            for (int i = 0; i < size; i++) {
+                final int packed = messages[i];
+                final int status;
+                if ((packed & LONG_MESSAGE_FLAG) != 0) {
+                    final MidiMessage message = longMessages[packed & ~LONG_MESSAGE_FLAG];
+                    if (isEndOfTrack(message)) {
+                        continue;
+                    }
+                    status = message.getStatus();
+                }
+                else {
+                    status = packed & 0xff;
+                }
+                final long key = sortKey(ticks[i], status);
+                if (length > 0 && keys[length - 1] > key) {
+                    inOrder = false;
+                }
+                keys[length] = key;
+                sortedMessages[length] = packed;
+                length++;
+            }
+
+            // sort the events
+            if (!inOrder) {
+                sortByKey(keys, sortedMessages, length);
+            }
+
+            // add END_OF_TRACK to last
+            final MidiMessage[] sortedLongMessages = Arrays.copyOf(longMessages, longMessageCount + 1);
+            sortedLongMessages[longMessageCount] = new MetaMessage(END_OF_TRACK);
+            sortedMessages[length] = LONG_MESSAGE_FLAG | longMessageCount;
+
+            final long[] sortedTicks = new long[length + 1];
+            for (int i = 0; i < length; i++) {
+                sortedTicks[i] = keys[i] >> 8;
+            }
+            sortedTicks[length] = length == 0 ? 0 : sortedTicks[length - 1] + 1;
+
+            return new Snapshot(sortedTicks, length + 1 == sortedMessages.length ? sortedMessages : Arrays.copyOf(sortedMessages, length + 1), sortedLongMessages);
+        }
+    }
 
     /**
      * Utilities for {@link Track}
@@ -86,7 +627,6 @@ public class Track {
         @NonNull
         public static Track mergeSequenceToTrack(@NonNull final Sequencer sequencer, @NonNull final Map<Track, Set<Integer>> recordEnable) throws InvalidMidiDataException {
             final Sequence sourceSequence = sequencer.getSequence();
-            final Track mergedTrack = new Track();
 
             // apply track mute and solo
             final Track[] tracks;
@@ -97,6 +637,24 @@ public class Track {
                 tracks = sourceSequence.getTracks();
             }
 
+            final boolean[] disabledTracks = getDisabledTracks(sequencer, tracks, recordEnable);
+
+            // tracks are already sorted, so a k-way merge is enough
+            return MergedTrack.merge(tracks).toTrack(disabledTracks);
+        }
+
+        /**
+         * Get the disabled flags of the specified {@link Sequencer}'s {@link Track}s, from track mute, solo and recording state
+         *
+         * @param sequencer    the Sequencer
+         * @param tracks       the Tracks of the Sequencer's Sequence
+         * @param recordEnable track recordable flags
+         * @return disabled flags by track index
+         */
+        @NonNull
+        public static boolean[] getDisabledTracks(@NonNull final Sequencer sequencer, @NonNull final Track[] tracks, @NonNull final Map<Track, Set<Integer>> recordEnable) {
+            final boolean[] disabledTracks = new boolean[tracks.length];
+
             boolean hasSoloTrack = false;
             for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
                 if (sequencer.getTrackSolo(trackIndex)) {
@@ -108,23 +666,19 @@ public class Track {
             for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
                 if (sequencer.getTrackMute(trackIndex)) {
                     // muted track, ignore
-                    continue;
+                    disabledTracks[trackIndex] = true;
                 }
-                if (hasSoloTrack && sequencer.getTrackSolo(trackIndex) == false) {
+                else if (hasSoloTrack && sequencer.getTrackSolo(trackIndex) == false) {
                     // not solo track, ignore
-                    continue;
+                    disabledTracks[trackIndex] = true;
                 }
-                if (sequencer.isRecording() && (recordEnable.get(tracks[trackIndex]) != null && recordEnable.get(tracks[trackIndex]).size() > 0)) {
+                else if (sequencer.isRecording() && (recordEnable.get(tracks[trackIndex]) != null && recordEnable.get(tracks[trackIndex]).size() > 0)) {
                     // currently recording track, ignore
-                    continue;
+                    disabledTracks[trackIndex] = true;
                 }
-
-                mergedTrack.events.addAll(tracks[trackIndex].events);
             }
 
-            sortEvents(mergedTrack);
-
-            return mergedTrack;
+            return disabledTracks;
         }
 
         /**
@@ -134,27 +688,75 @@ public class Track {
          */
         public static void sortEvents(@NonNull final Track track) {
             synchronized (track.events) {
-                // remove all of END_OF_TRACK
-                final Collection<MidiEvent> filtered = new ArrayList<MidiEvent>();
-                for (final MidiEvent event : track.events) {
-                    if (!Arrays.equals(END_OF_TRACK, event.getMessage().getMessage())) {
-                        filtered.add(event);
+                track.checkEventChanges();
+                if (track.isCompact()) {
+                    if (track.sortedModificationCount == track.modificationCount) {
+                        // compact storage is always sorted when set
+                        return;
                     }
+                    track.expandCompactEvents();
                 }
+
+                final MidiEvent[] sorted = sortedEvents(track.events);
                 track.events.clear();
-                track.events.addAll(filtered);
+                track.events.addAll(Arrays.asList(sorted));
+                track.eventsChanged();
+                track.markSorted();
+            }
+        }
 
-                // sort the events
-                Collections.sort(track.events, midiEventComparator);
+        /**
+         * Sort the {@link MidiEvent}s without changing the list: END_OF_TRACK events are removed, and one END_OF_TRACK
+         * is added after the last event.
+         *
+         * @param events the events
+         * @return the sorted events
+         */
+        @NonNull
+        static MidiEvent[] sortedEvents(@NonNull final List<MidiEvent> events) {
+            // remove all of END_OF_TRACK, and compute the sort keys
+            final int size = events.size();
+            final MidiEvent[] sorted = new MidiEvent[size + 1];
+            final long[] keys = new long[size];
+            int length = 0;
+            boolean inOrder = true;
+            for (int i = 0; i < size; i++) {
+                final MidiEvent event = events.get(i);
+                if (isEndOfTrack(event.getMessage())) {
+                    continue;
+                }
+                final long key = sortKey(event);
+                if (length > 0 && keys[length - 1] > key) {
+                    inOrder = false;
+                }
+                sorted[length] = event;
+                keys[length] = key;
+                length++;
+            }
 
-                // add END_OF_TRACK to last
-                if (track.events.isEmpty()) {
-                    track.events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), 0));
+            // sort the events
+            if (!inOrder) {
+                final int[] order = new int[length];
+                for (int i = 0; i < length; i++) {
+                    order[i] = i;
                 }
-                else {
-                    track.events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), track.events.get(track.events.size() - 1).getTick() + 1));
+                sortByKey(keys, order, length);
+                final MidiEvent[] unsorted = Arrays.copyOf(sorted, length);
+                for (int i = 0; i < length; i++) {
+                    sorted[i] = unsorted[order[i]];
                 }
             }
+
+            // add END_OF_TRACK to last
+            if (length == 0) {
+                sorted[length++] = new MidiEvent(new MetaMessage(END_OF_TRACK), 0);
+            }
+            else {
+                sorted[length] = new MidiEvent(new MetaMessage(END_OF_TRACK), sorted[length - 1].getTick() + 1);
+                length++;
+            }
+
+            return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
         }
     }
 
@@ -166,12 +768,16 @@ public class Track {
      */
     public boolean add(@NonNull final MidiEvent event) {
         synchronized (events) {
-            return events.add(event);
+            expandCompactEvents();
+            final boolean added = events.add(event);
+            eventsChanged();
+            return added;
         }
     }
 
     /**
-     * Get specified index of {@link MidiEvent}
+     * Get specified index of {@link MidiEvent}. For a Track in compact storage, this is a view of the compact storage
+     * (see {@link Snapshot}), so changes to the returned MidiEvent are seen by everything reading this Track.
      *
      * @param index the index of event
      * @return the MidiEvent
@@ -179,7 +785,17 @@ public class Track {
      */
     @NonNull
     public MidiEvent get(final int index) throws ArrayIndexOutOfBoundsException {
+        final Snapshot current = snapshot;
+        if (current != null) {
+            return current.get(index);
+        }
+
+        // don't take a snapshot here, the track is likely still being built
         synchronized (events) {
+            final Snapshot taken = snapshot;
+            if (taken != null) {
+                return taken.get(index);
+            }
             return events.get(index);
         }
     }
@@ -192,7 +808,12 @@ public class Track {
      */
     public boolean remove(@NonNull final MidiEvent event) {
         synchronized (events) {
-            return events.remove(event);
+            expandCompactEvents();
+            final boolean removed = events.remove(event);
+            if (removed) {
+                eventsChanged();
+            }
+            return removed;
         }
     }
 
@@ -202,25 +823,198 @@ public class Track {
      * @return the number of events
      */
     public int size() {
+        final Snapshot current = snapshot;
+        if (current != null) {
+            return current.size();
+        }
+
         synchronized (events) {
             return events.size();
         }
     }
 
+    /**
+     * Get the frozen {@link Snapshot} of the events in this {@link Track}.
+     * The snapshot is shared between readers and only copied again after the Track has been changed.
+     *
+     * @return the current snapshot
+     */
+    @NonNull
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (events) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(events.toArray(new MidiEvent[events.size()]));
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Get a {@link Snapshot} of the events in this {@link Track} in playback order, ending with END_OF_TRACK, the same
+     * as after {@link #ticks()}, but without sorting the Track itself. If the Track is sorted already, this is its
+     * shared snapshot; otherwise the sorted copy is made for this call only.
+     *
+     * @return the sorted snapshot
+     */
+    @NonNull
+    public Snapshot getSortedSnapshot() {
+        synchronized (events) {
+            checkEventChanges();
+            if (sortedModificationCount == modificationCount) {
+                return getSnapshot();
+            }
+            return new Snapshot(TrackUtils.sortedEvents(events));
+        }
+    }
+
+    /**
+     * Replace the events of this {@link Track} with compact storage. The events are sorted, and END_OF_TRACK is added
+     * to last, the same as {@link TrackUtils#sortEvents(Track)}.
+     *
+     * @param compactEvents the events, not changed
+     */
+    public void setEvents(@NonNull final CompactEvents compactEvents) {
+        setCompactSnapshot(compactEvents.toSortedSnapshot());
+    }
+
+    /**
+     * Replace the events of this {@link Track} with compact storage
+     *
+     * @param compactSnapshot the compact storage, already sorted and ending with END_OF_TRACK
+     */
+    void setCompactSnapshot(@NonNull final Snapshot compactSnapshot) {
+        synchronized (events) {
+            events.clear();
+            eventsChanged();
+            snapshot = compactSnapshot;
+            markSorted();
+        }
+    }
+
+    /**
+     * Convert the events of this {@link Track} to compact storage, releasing the {@link MidiEvent}s.
+     * The events are sorted, the same as {@link TrackUtils#sortEvents(Track)}.
+     */
+    public void compact() {
+        synchronized (events) {
+            if (isCompact()) {
+                return;
+            }
+
+            final CompactEvents compactEvents = new CompactEvents(events.size());
+            for (final MidiEvent event : events) {
+                compactEvents.add(event.getTick(), event.getMessage());
+            }
+            setEvents(compactEvents);
+        }
+    }
+
+    /**
+     * Check if the events of this {@link Track} are in compact storage
+     *
+     * @return true if the events are in compact storage
+     */
+    public boolean isCompact() {
+        final Snapshot current = snapshot;
+        return current != null && current.isCompact();
+    }
+
+    /**
+     * Convert compact storage back to the list of {@link MidiEvent}s, before the list is changed or its events are
+     * returned. Must be called while holding the events lock.
+     */
+    private void expandCompactEvents() {
+        final Snapshot current = snapshot;
+        if (current == null || !current.isCompact()) {
+            return;
+        }
+
+        final int size = current.size();
+        final MidiEvent[] expanded = new MidiEvent[size];
+        for (int i = 0; i < size; i++) {
+            // the views of the compact snapshot, so MidiEvents returned by get(int) are still in this Track
+            expanded[i] = current.get(i);
+        }
+        events.addAll(Arrays.asList(expanded));
+        // the list now holds the same events, the snapshot stays valid until the list is changed
+        snapshot = new Snapshot(expanded);
+    }
+
+    /**
+     * Invalidate the data derived from events. Must be called while holding the events lock.
+     */
+    void eventsChanged() {
+        modificationCount++;
+        snapshot = null;
+    }
+
+    /**
+     * Record that events are sorted as they are now. Must be called while holding the events lock.
+     */
+    void markSorted() {
+        sortedModificationCount = modificationCount;
+    }
+
+    /**
+     * Treat the events of this {@link Track} as changed if any {@link MidiEvent} has been changed in place since the
+     * last check, as one of them may be in this Track. The snapshot is dropped, and the Track is sorted again by the
+     * next {@link #ticks()}.
+     */
+    private void checkEventChanges() {
+        final int changeCount = MidiEvent.getChangeCount();
+        if (changeCount == knownEventChangeCount) {
+            return;
+        }
+
+        synchronized (events) {
+            knownEventChangeCount = changeCount;
+            final Snapshot current = snapshot;
+            if (current != null && current.isCompact()) {
+                // only the views of this compact storage can change it
+                if (current.isChanged()) {
+                    expandCompactEvents();
+                    eventsChanged();
+                }
+            }
+            else if (!events.isEmpty()) {
+                eventsChanged();
+            }
+        }
+    }
+
+    /**
+     * Get the modification count of this {@link Track}, incremented whenever its events change, including by
+     * {@link MidiEvent#setTick(long)} on its events
+     *
+     * @return the modification count
+     */
+    int getModificationCount() {
+        checkEventChanges();
+        return modificationCount;
+    }
+
     /**
      * Get length of ticks for this {@link Track}
      *
      * @return the length of ticks
      */
     public long ticks() {
-        TrackUtils.sortEvents(this);
-
         synchronized (events) {
-            if (events.isEmpty()) {
-                return 0L;
+            checkEventChanges();
+            if (sortedModificationCount != modificationCount) {
+                TrackUtils.sortEvents(this);
             }
+        }
 
-            return events.get(events.size() - 1).getTick();
+        final Snapshot current = getSnapshot();
+        if (current.size() == 0) {
+            return 0L;
         }
+        return current.getTick(current.size() - 1);
     }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import java.util.Set;
 
 import jp.kshoji.javax.sound.midi.ControllerEventListener;
 import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MergedTrack;
 import jp.kshoji.javax.sound.midi.MetaEventListener;
 import jp.kshoji.javax.sound.midi.MetaMessage;
 import jp.kshoji.javax.sound.midi.MidiEvent;
@@ -62,6 +63,8 @@ public class SequencerImpl implements Sequencer {
     private SyncMode slaveSyncMode = SyncMode.NO_SYNC;
     private final SparseBooleanArray trackMute = new SparseBooleanArray();
     private final SparseBooleanArray trackSolo = new SparseBooleanArray();
+    // disabled flags by track index, from trackMute, trackSolo and recordEnable
+    private volatile boolean[] disabledTracks = new boolean[0];
     private float tempoInBPM = 120.0f;
 
     private volatile boolean isRunning = false;
@@ -81,7 +84,7 @@ public class SequencerImpl implements Sequencer {
         private Track recordingTrack;
 
         // playing
-        private Track playingTrack = null;
+        private MergedTrack playingTrack = null;
         private long tickPositionSetTime;
         private long runningStoppedTime;
         private boolean needRefreshPlayingTrack = false;
@@ -131,6 +134,7 @@ public class SequencerImpl implements Sequencer {
             recordingStartedTime = System.currentTimeMillis();
             recordStartedTick = getTickPosition();
             isRecording = true;
+            updateDisabledTracks();
         }
 
         /**
@@ -144,6 +148,7 @@ public class SequencerImpl implements Sequencer {
 
             final long recordEndedTime = System.currentTimeMillis();
             isRecording = false;
+            updateDisabledTracks();
 
             final Collection<MidiEvent> eventToRemoval = new HashSet<MidiEvent>();
             for (final Track track : sequence.getTracks()) {
@@ -317,12 +322,18 @@ public class SequencerImpl implements Sequencer {
                     }
 
                     for (int i = 0; i < playingTrack.size(); i++) {
-                        final MidiEvent midiEvent = playingTrack.get(i);
-                        final MidiMessage midiMessage = midiEvent.getMessage();
+                        if (playingTrack.isEnabled(i, disabledTracks) == false) {
+                            // muted, non-solo, or recording track
+                            continue;
+                        }
+
+                        // read the merged index directly, so no MidiEvent is created for compact tracks
+                        final long tick = playingTrack.getTick(i);
+                        final MidiMessage midiMessage = playingTrack.getMessage(i);
 
                         if (needRefreshPlayingTrack) {
                             // skip to lastTick
-                            if (midiEvent.getTick() < tickPosition) {
+                            if (tick < tickPosition) {
                                 if (midiMessage instanceof MetaMessage) {
                                     // process tempo change message
                                     final MetaMessage metaMessage = (MetaMessage) midiMessage;
@@ -368,19 +379,19 @@ public class SequencerImpl implements Sequencer {
                             }
                         }
 
-                        if (midiEvent.getTick() < getLoopStartPoint() || (getLoopEndPoint() != -1 && midiEvent.getTick() > getLoopEndPoint())) {
+                        if (tick < getLoopStartPoint() || (getLoopEndPoint() != -1 && tick > getLoopEndPoint())) {
                             // outer loop
-                            tickPosition = midiEvent.getTick();
+                            tickPosition = tick;
                             tickPositionSetTime = System.currentTimeMillis();
                             continue;
                         }
 
                         try {
-                            final long sleepLength = (long) ((1.0f / getTicksPerMicrosecond()) * (midiEvent.getTick() - tickPosition) / 1000f / getTempoFactor());
+                            final long sleepLength = (long) ((1.0f / getTicksPerMicrosecond()) * (tick - tickPosition) / 1000f / getTempoFactor());
                             if (sleepLength > 0) {
                                 sleep(sleepLength);
                             }
-                            tickPosition = midiEvent.getTick();
+                            tickPosition = tick;
                             tickPositionSetTime = System.currentTimeMillis();
                         }
                         catch (final InterruptedException ignored) {
@@ -445,7 +456,8 @@ public class SequencerImpl implements Sequencer {
         }
 
         /**
-         * Merge current sequence's track to play
+         * Merge current sequence's track to play.
+         * The merged index is only rebuilt if the tracks have been changed, track mute and solo are applied by disabledTracks.
          */
         private void refreshPlayingTrack() {
             if (sequence == null) {
@@ -454,13 +466,11 @@ public class SequencerImpl implements Sequencer {
 
             final Track[] tracks = sequence.getTracks();
             if (tracks.length > 0) {
-                try {
-                    // at first, merge all track into one track
-                    playingTrack = TrackUtils.mergeSequenceToTrack(SequencerImpl.this, recordEnable);
-                }
-                catch (final InvalidMidiDataException ignored) {
-                    // ignore exception
+                // at first, merge all track into one track
+                if (playingTrack == null || playingTrack.isValidFor(tracks) == false) {
+                    playingTrack = MergedTrack.merge(tracks);
                 }
+                updateDisabledTracks();
             }
         }
 
@@ -803,6 +813,7 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setSequence(@Nullable final Sequence sequence) throws InvalidMidiDataException {
         this.sequence = sequence;
+        updateDisabledTracks();
 
         if (sequencerThread != null && sequence != null) {
             sequencerThread.needRefreshPlayingTrack = true;
@@ -895,6 +906,7 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTrackMute(final int track, final boolean mute) {
         trackMute.put(track, mute);
+        updateDisabledTracks();
     }
 
     @Override
@@ -905,6 +917,20 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTrackSolo(final int track, final boolean solo) {
         trackSolo.put(track, solo);
+        updateDisabledTracks();
+    }
+
+    /**
+     * Update disabledTracks from track mute, solo, and recording state. Takes O(number of tracks).
+     */
+    private void updateDisabledTracks() {
+        final Sequence currentSequence = sequence;
+        if (currentSequence == null) {
+            disabledTracks = new boolean[0];
+            return;
+        }
+
+        disabledTracks = TrackUtils.getDisabledTracks(this, currentSequence.getTracks(), recordEnable);
     }
 
     @Override
@@ -920,6 +946,7 @@ public class SequencerImpl implements Sequencer {
                 recordEnable.put(track, null);
             }
         }
+        updateDisabledTracks();
     }
 
     @Override
@@ -940,6 +967,7 @@ public class SequencerImpl implements Sequencer {
             trackRecordEnable.add(channel);
             recordEnable.put(track, trackRecordEnable);
         }
+        updateDisabledTracks();
     }
 
     @Override
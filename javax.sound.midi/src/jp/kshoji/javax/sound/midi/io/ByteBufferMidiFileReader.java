@@ -0,0 +1,1057 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.MidiFileFormat;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.ShortMessageInterner;
+import jp.kshoji.javax.sound.midi.SysexMessage;
+import jp.kshoji.javax.sound.midi.Track;
+import jp.kshoji.javax.sound.midi.Track.TrackUtils;
+import jp.kshoji.javax.sound.midi.spi.MidiFileReader;
+
+/**
+ * SMF reader, parsing directly from a {@link ByteBuffer}.
+ * <p>
+ * Files are memory-mapped where possible, and other sources are read into one heap buffer, so the MIDI data is
+ * never copied through intermediate streams. The chunk lengths are used as bounds: tracks end at the end of their
+ * MTrk chunk, and unknown chunks are skipped.
+ * For valid files, the resulting {@link Sequence} is the same as {@link StandardMidiFileReader}'s.
+ * <p>
+ * When constructed with an {@link Executor}, the tracks are decoded and sorted in parallel. The resulting Sequence is
+ * identical to the one read sequentially.
+ * <p>
+ * With {@link #setCompactTracks(boolean)}, the tracks are read into the compact storage of {@link Track}, without
+ * creating a {@link MidiEvent} or {@link ShortMessage} for each event.
+ * <p>
+ * Damaged files can be read leniently with {@link #getSequence(ByteBuffer, RecoveryReport)}: wrong track chunk
+ * lengths are corrected by looking for the following chunk, and unreadable events are skipped byte by byte until the
+ * track can be read again. Everything dropped is reported. Reading a valid file leniently costs the same as reading it
+ * strictly, and gives the same Sequence.
+ */
+public class ByteBufferMidiFileReader extends MidiFileReader {
+    private static final int CHUNK_HEADER_LENGTH = 8;
+
+    @Nullable
+    private static ExecutorService defaultExecutor = null;
+
+    @Nullable
+    private final Executor executor;
+    private volatile boolean compactTracks = false;
+    private volatile boolean internShortMessages = false;
+
+    /**
+     * Constructor, the tracks are read sequentially on the calling thread
+     */
+    public ByteBufferMidiFileReader() {
+        this(null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param executor the Executor to read tracks in parallel with, or null to read them sequentially on the calling thread
+     */
+    public ByteBufferMidiFileReader(@Nullable final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the shared {@link Executor} for parallel reading, with one daemon thread per processor
+     *
+     * @return the Executor
+     */
+    @NonNull
+    public static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "MidiFileReader-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Set whether the tracks are read into compact storage, see {@link Track#setEvents(Track.CompactEvents)}
+     *
+     * @param compactTracks true to read the tracks into compact storage
+     */
+    public void setCompactTracks(final boolean compactTracks) {
+        this.compactTracks = compactTracks;
+    }
+
+    /**
+     * Check whether the tracks are read into compact storage
+     *
+     * @return true if the tracks are read into compact storage
+     */
+    public boolean isCompactTracks() {
+        return compactTracks;
+    }
+
+    /**
+     * Set whether identical {@link ShortMessage}s share one immutable instance, see {@link ShortMessageInterner}.
+     * Only used when the tracks are not read into compact storage, which creates no messages at all.
+     *
+     * @param internShortMessages true to share identical ShortMessages, they must not be modified afterwards
+     */
+    public void setInternShortMessages(final boolean internShortMessages) {
+        this.internShortMessages = internShortMessages;
+    }
+
+    /**
+     * Check whether identical {@link ShortMessage}s share one immutable instance
+     *
+     * @return true if identical ShortMessages are shared
+     */
+    public boolean isInternShortMessages() {
+        return internShortMessages;
+    }
+
+    /**
+     * Header chunk of a MIDI file
+     */
+    static final class Header {
+        final int type;
+        final float divisionType;
+        final int resolution;
+        final int numberOfTracks;
+        final int fileLength;
+
+        /**
+         * Constructor
+         *
+         * @param type           the MIDI file type (0, 1, or 2)
+         * @param divisionType   the MIDI file division type
+         * @param resolution     the MIDI file timing resolution
+         * @param numberOfTracks the number of tracks in the header
+         * @param fileLength     the MIDI file size in bytes
+         */
+        Header(final int type, final float divisionType, final int resolution, final int numberOfTracks, final int fileLength) {
+            this.type = type;
+            this.divisionType = divisionType;
+            this.resolution = resolution;
+            this.numberOfTracks = numberOfTracks;
+            this.fileLength = fileLength;
+        }
+    }
+
+    /**
+     * Read the header chunk from the buffer. The buffer's position is moved after the header chunk.
+     *
+     * @param buffer the buffer, in big endian order
+     * @return the header
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    static Header readHeader(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        final int fileLength = buffer.remaining();
+        if (buffer.remaining() < CHUNK_HEADER_LENGTH + 6 || buffer.getInt() != MidiFileFormat.HEADER_MThd) {
+            throw new InvalidMidiDataException("Invalid header");
+        }
+
+        final int bytes = buffer.getInt();
+        if (bytes < 6 || bytes > buffer.remaining()) {
+            throw new InvalidMidiDataException("Invalid header");
+        }
+        final int headerEnd = buffer.position() + bytes;
+
+        final int type = buffer.getShort();
+        if (type < 0 || type > 2) {
+            throw new InvalidMidiDataException("Invalid header");
+        }
+
+        final int numberOfTracks = buffer.getShort();
+        if (numberOfTracks <= 0) {
+            throw new InvalidMidiDataException("Invalid tracks");
+        }
+
+        final int division = buffer.getShort() & 0xffff;
+        final float divisionType;
+        final int resolution;
+        if ((division & 0x8000) != 0) {
+            // negative SMPTE format in the upper byte, ticks per frame in the lower byte
+            switch (-(byte) (division >>> 8)) {
+                case 24:
+                    divisionType = Sequence.SMPTE_24;
+                    break;
+                case 25:
+                    divisionType = Sequence.SMPTE_25;
+                    break;
+                case 29:
+                    divisionType = Sequence.SMPTE_30DROP;
+                    break;
+                case 30:
+                    divisionType = Sequence.SMPTE_30;
+                    break;
+
+                default:
+                    throw new InvalidMidiDataException("Invalid sequence information");
+            }
+            resolution = division & 0xff;
+        }
+        else {
+            divisionType = Sequence.PPQ;
+            resolution = division & 0x7fff;
+        }
+
+        buffer.position(headerEnd);
+
+        return new Header(type, divisionType, resolution, numberOfTracks, fileLength);
+    }
+
+    /**
+     * Find the track chunks following the header chunk. Chunks other than MTrk are skipped.
+     *
+     * @param buffer         the buffer, positioned after the header chunk
+     * @param numberOfTracks the number of tracks to find
+     * @return the track data without chunk headers, in order. A chunk longer than the file is cut at the end of the file.
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    static List<ByteBuffer> findTracks(@NonNull final ByteBuffer buffer, final int numberOfTracks) throws InvalidMidiDataException {
+        return findTracks(buffer, numberOfTracks, null);
+    }
+
+    /**
+     * Find the track chunks following the header chunk. Chunks other than MTrk are skipped.
+     * When reading leniently, junk between chunks is skipped, wrong track chunk lengths are corrected, and fewer track
+     * chunks than the header declares are accepted.
+     *
+     * @param buffer         the buffer, positioned after the header chunk
+     * @param numberOfTracks the number of tracks to find
+     * @param report         the report of problems, or null to read strictly
+     * @return the track data without chunk headers, in order. A chunk longer than the file is cut at the end of the file.
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    static List<ByteBuffer> findTracks(@NonNull final ByteBuffer buffer, final int numberOfTracks, @Nullable final RecoveryReport report) throws InvalidMidiDataException {
+        final List<ByteBuffer> tracks = new ArrayList<ByteBuffer>(numberOfTracks);
+        while (tracks.size() < numberOfTracks) {
+            if (buffer.remaining() < CHUNK_HEADER_LENGTH) {
+                if (report == null) {
+                    throw new InvalidMidiDataException("Invalid track header");
+                }
+                report.add(RecoveryReport.FILE, buffer.position(), buffer.remaining(), "Found " + tracks.size() + " of " + numberOfTracks + " tracks");
+                break;
+            }
+
+            final int chunkStart = buffer.position();
+            final int chunkType = buffer.getInt();
+            final long chunkLength = buffer.getInt() & 0xffffffffL;
+            int dataLength = (int) Math.min(chunkLength, buffer.remaining());
+            if (report != null) {
+                if (!isChunkType(chunkType)) {
+                    // not a chunk header, continue at the next track chunk
+                    final int next = findTrackChunk(buffer, chunkStart + 1);
+                    report.add(RecoveryReport.FILE, chunkStart, next - chunkStart, "Invalid chunk header");
+                    buffer.position(next);
+                    continue;
+                }
+                if (chunkType == MidiFileFormat.HEADER_MTrk) {
+                    dataLength = checkTrackLength(buffer, chunkLength, report);
+                }
+            }
+            if (chunkType == MidiFileFormat.HEADER_MTrk) {
+                final ByteBuffer track = buffer.slice();
+                track.limit(dataLength);
+                tracks.add(track);
+            }
+
+            // skip to the next chunk
+            buffer.position(buffer.position() + dataLength);
+        }
+        return tracks;
+    }
+
+    /**
+     * Check the length of the track chunk, and correct it if the chunk does not end where it claims to.
+     * A chunk ends correctly with END_OF_TRACK, at the end of the file, or before another chunk which fits in the file.
+     * Otherwise it is assumed to end at the next MTrk chunk, or at the end of the file.
+     *
+     * @param buffer      the buffer, positioned at the track data
+     * @param chunkLength the length in the chunk header
+     * @param report      the report of problems
+     * @return the length of the track data
+     */
+    private static int checkTrackLength(@NonNull final ByteBuffer buffer, final long chunkLength, @NonNull final RecoveryReport report) {
+        final int dataStart = buffer.position();
+        final long declaredEnd = dataStart + chunkLength;
+        if (declaredEnd == buffer.limit()) {
+            return (int) chunkLength;
+        }
+        if (declaredEnd < buffer.limit()) {
+            final int end = (int) declaredEnd;
+            if (chunkLength >= 3 && buffer.get(end - 3) == (byte) MetaMessage.META && buffer.get(end - 2) == MetaMessage.TYPE_END_OF_TRACK && buffer.get(end - 1) == 0) {
+                return (int) chunkLength;
+            }
+            if (end + CHUNK_HEADER_LENGTH <= buffer.limit() && isChunkType(buffer.getInt(end)) && (buffer.getInt(end + 4) & 0xffffffffL) <= buffer.limit() - end - CHUNK_HEADER_LENGTH) {
+                return (int) chunkLength;
+            }
+        }
+
+        final int actualEnd = findTrackChunk(buffer, dataStart);
+        if (actualEnd == declaredEnd) {
+            // the next track chunk starts where this one should end, only its own length is wrong
+            return (int) chunkLength;
+        }
+        if (declaredEnd > buffer.limit() && actualEnd == buffer.limit()) {
+            report.add(RecoveryReport.FILE, dataStart - CHUNK_HEADER_LENGTH, 0, "Track chunk of " + chunkLength + " bytes is cut off after " + (actualEnd - dataStart) + " bytes");
+        }
+        else {
+            report.add(RecoveryReport.FILE, dataStart - CHUNK_HEADER_LENGTH, 0, "Track chunk length " + chunkLength + " corrected to " + (actualEnd - dataStart));
+        }
+        return actualEnd - dataStart;
+    }
+
+    /**
+     * Find the next MTrk chunk header
+     *
+     * @param buffer the buffer
+     * @param from   the position to start looking from
+     * @return the position of the chunk header, or the limit of the buffer if there is none
+     */
+    private static int findTrackChunk(@NonNull final ByteBuffer buffer, final int from) {
+        for (int position = from; position + CHUNK_HEADER_LENGTH <= buffer.limit(); position++) {
+            if (buffer.getInt(position) == MidiFileFormat.HEADER_MTrk) {
+                return position;
+            }
+        }
+        return buffer.limit();
+    }
+
+    /**
+     * Check if the value looks like a chunk type: four ASCII letters, digits or spaces
+     *
+     * @param chunkType the chunk type
+     * @return true if the value can be a chunk type
+     */
+    private static boolean isChunkType(final int chunkType) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            final int c = (chunkType >>> shift) & 0xff;
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == ' ')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a variable-length quantity, of 4 bytes at most as the Standard MIDI File specification allows
+     *
+     * @param buffer the buffer
+     * @return the value, from 0 to 0x0fffffff
+     * @throws InvalidMidiDataException the quantity is longer than 4 bytes
+     */
+    static int readVariableLengthInt(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        int c = buffer.get();
+        int value = c & 0x7f;
+        for (int length = 1; (c & 0x80) != 0; length++) {
+            if (length == 4) {
+                throw new InvalidMidiDataException("Variable-length quantity longer than 4 bytes");
+            }
+            c = buffer.get();
+            value = (value << 7) | (c & 0x7f);
+        }
+        return value;
+    }
+
+    /**
+     * Read the length of sysex or meta data, and check it against the rest of the track
+     *
+     * @param buffer the buffer
+     * @return the length
+     * @throws InvalidMidiDataException the data would go past the end of the track
+     */
+    private static int readDataLength(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        final int length = readVariableLengthInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new InvalidMidiDataException("Unexpected end of track");
+        }
+        return length;
+    }
+
+    /**
+     * Read the events of a track chunk into the {@link Track}, and sort them.
+     * Reading stops at END_OF_TRACK, or at the end of the chunk.
+     *
+     * @param trackData the track data, without the chunk header
+     * @param track     the Track to add the events to
+     * @param compact   true to read the events into compact storage
+     * @param intern    true to share identical ShortMessages, ignored for compact storage
+     * @param report    the report of problems, or null to read strictly
+     * @param index     the index of the track, for the report
+     * @throws InvalidMidiDataException
+     */
+    static void readTrack(@NonNull final ByteBuffer trackData, @NonNull final Track track, final boolean compact, final boolean intern, @Nullable final RecoveryReport report, final int index) throws InvalidMidiDataException {
+        final TrackReader reader = new TrackReader(trackData, track, compact, intern, report, index);
+        reader.read(Integer.MAX_VALUE);
+        reader.publish();
+    }
+
+    /**
+     * Reader of the events of one track chunk, which can read the chunk in several parts
+     */
+    static final class TrackReader {
+        private final ByteBuffer trackData;
+        private final Track track;
+        @Nullable
+        private final Track.CompactEvents compactEvents;
+        @Nullable
+        private final ShortMessageInterner interner;
+        @Nullable
+        private final RecoveryReport report;
+        private final int index;
+
+        private int runningStatus = -1;
+        private int ticks = 0;
+        private boolean isTrackRunning = true;
+
+        // the bytes skipped last, reported when the next unreadable region starts or the track ends
+        private int skipStart = -1;
+        private int skipEnd = -1;
+        @Nullable
+        private String skipReason = null;
+        private boolean endReported = false;
+
+        /**
+         * Constructor
+         *
+         * @param trackData the track data, without the chunk header
+         * @param track     the Track to add the events to
+         * @param compact   true to read the events into compact storage
+         * @param intern    true to share identical ShortMessages, ignored for compact storage
+         * @param report    the report of problems, or null to read strictly
+         * @param index     the index of the track, for the report
+         */
+        TrackReader(@NonNull final ByteBuffer trackData, @NonNull final Track track, final boolean compact, final boolean intern, @Nullable final RecoveryReport report, final int index) {
+            this.trackData = trackData;
+            this.track = track;
+            this.report = report;
+            this.index = index;
+            // most events take 3 or 4 bytes in the file
+            compactEvents = compact ? new Track.CompactEvents(trackData.remaining() / 4) : null;
+            // one table per track, so tracks read in parallel don't share it. tracks mostly use their own channels anyway
+            interner = intern && !compact ? new ShortMessageInterner() : null;
+        }
+
+        /**
+         * Check if the whole track has been read
+         *
+         * @return true if END_OF_TRACK or the end of the chunk has been reached
+         */
+        boolean isFinished() {
+            return !isTrackRunning || !trackData.hasRemaining();
+        }
+
+        /**
+         * Get the tick of the last event read
+         *
+         * @return the tick
+         */
+        long getTick() {
+            return ticks;
+        }
+
+        /**
+         * Get the number of bytes not read yet
+         *
+         * @return the number of bytes
+         */
+        int remaining() {
+            return trackData.remaining();
+        }
+
+        /**
+         * Read the events of the next part of the track. Reading stops after the event ending at or after the byte count.
+         *
+         * @param byteCount the number of bytes to read, at least
+         * @return true if the whole track has been read
+         * @throws InvalidMidiDataException
+         */
+        boolean read(final int byteCount) throws InvalidMidiDataException {
+            final int limit = byteCount >= trackData.remaining() ? trackData.limit() : trackData.position() + byteCount;
+
+            // Read all of the events.
+            while (isTrackRunning && trackData.hasRemaining() && trackData.position() < limit) {
+                final int eventStart = trackData.position();
+                final int eventTicks = ticks;
+                try {
+                    ticks += readVariableLengthInt(trackData); // add deltaTime
+
+                    final int data = trackData.get() & 0xff;
+                    final MidiMessage message;
+                    if (data < 0x80) {
+                        // data values
+                        if (runningStatus >= 0 && runningStatus < 0xf0) {
+                            addShortMessage(track, compactEvents, interner, ticks, readChannelMessage(runningStatus, data, trackData));
+                            continue;
+                        }
+                        else if (runningStatus >= 0xf0 && runningStatus <= 0xff) {
+                            addShortMessage(track, compactEvents, interner, ticks, readSystemMessage(runningStatus, data, trackData));
+                            continue;
+                        }
+                        else {
+                            throw new InvalidMidiDataException(String.format("Invalid data: %02x %02x", runningStatus, data));
+                        }
+                    }
+                    else if (data < 0xf0) {
+                        // Control messages
+                        addShortMessage(track, compactEvents, interner, ticks, readChannelMessage(data, trackData.get() & 0xff, trackData));
+
+                        runningStatus = data;
+                        continue;
+                    }
+                    else if (data == ShortMessage.START_OF_EXCLUSIVE || data == ShortMessage.END_OF_EXCLUSIVE) {
+                        // System Exclusive event
+                        final int sysexLength = readDataLength(trackData);
+                        final byte[] sysexData = new byte[sysexLength];
+                        trackData.get(sysexData);
+
+                        final SysexMessage sysexMessage = new SysexMessage();
+                        sysexMessage.setMessage(data, sysexData, sysexLength);
+                        message = sysexMessage;
+
+                        runningStatus = -1;
+                    }
+                    else if (data == MetaMessage.META) {
+                        // Meta Message
+                        final int type = trackData.get() & 0xff;
+
+                        final int metaLength = readDataLength(trackData);
+                        final byte[] metaData = new byte[metaLength];
+                        trackData.get(metaData);
+
+                        final MetaMessage metaMessage = new MetaMessage();
+                        metaMessage.setMessage(type, metaData, metaLength);
+                        message = metaMessage;
+
+                        runningStatus = -1;
+
+                        if (type == MetaMessage.TYPE_END_OF_TRACK) {
+                            isTrackRunning = false;
+                        }
+                    }
+                    else {
+                        // f1-f6, f8-fe
+                        addShortMessage(track, compactEvents, interner, ticks, readSystemMessage(data, -1, trackData));
+
+                        runningStatus = data;
+                        continue;
+                    }
+
+                    if (compactEvents != null) {
+                        compactEvents.add(ticks, message);
+                    }
+                    else {
+                        track.add(new MidiEvent(message, ticks));
+                    }
+                } catch (final InvalidMidiDataException e) {
+                    if (report == null) {
+                        throw e;
+                    }
+                    skip(eventStart, eventTicks, e.getMessage());
+                } catch (final BufferUnderflowException e) {
+                    if (report == null) {
+                        throw new InvalidMidiDataException("Unexpected end of track");
+                    }
+                    skip(eventStart, eventTicks, "Unexpected end of track");
+                }
+            }
+
+            if (report != null && isFinished() && !endReported) {
+                reportSkipped();
+                if (isTrackRunning) {
+                    report.add(index, trackData.position(), 0, "Missing END_OF_TRACK");
+                }
+                endReported = true;
+            }
+            return isFinished();
+        }
+
+        /**
+         * Skip the first byte of an unreadable event, and try to read the next event from the following byte
+         *
+         * @param eventStart the position of the event
+         * @param eventTicks the tick before the event
+         * @param reason     the reason the event can't be read
+         */
+        private void skip(final int eventStart, final int eventTicks, @Nullable final String reason) {
+            if (eventStart != skipEnd) {
+                reportSkipped();
+                skipStart = eventStart;
+                skipReason = reason;
+            }
+            skipEnd = eventStart + 1;
+            trackData.position(skipEnd);
+            ticks = eventTicks;
+        }
+
+        /**
+         * Report the bytes skipped last
+         */
+        private void reportSkipped() {
+            if (report != null && skipStart >= 0) {
+                report.add(index, skipStart, skipEnd - skipStart, skipReason != null ? skipReason : "Invalid event");
+                skipStart = -1;
+            }
+        }
+
+        /**
+         * Sort the events read so far in the {@link Track}.
+         * With compact storage, the Track is replaced as a whole, so it can be read while more events are read.
+         */
+        void publish() {
+            if (compactEvents != null) {
+                track.setEvents(compactEvents);
+            }
+            else {
+                TrackUtils.sortEvents(track);
+            }
+        }
+    }
+
+    /**
+     * Add the short message to the {@link Track}, or to the compact events
+     *
+     * @param track         the Track
+     * @param compactEvents the compact events, or null to add a {@link MidiEvent} to the Track
+     * @param interner      the table of shared ShortMessages, or null to create a new ShortMessage
+     * @param tick          the tick
+     * @param message       the message, status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16
+     * @throws InvalidMidiDataException
+     */
+    private static void addShortMessage(@NonNull final Track track, @Nullable final Track.CompactEvents compactEvents, @Nullable final ShortMessageInterner interner, final long tick, final int message) throws InvalidMidiDataException {
+        final int status = message & 0xff;
+        final int data1 = (message >> 8) & 0xff;
+        final int data2 = (message >> 16) & 0xff;
+        if (compactEvents != null) {
+            compactEvents.add(tick, status, data1, data2);
+        }
+        else if (interner != null) {
+            track.add(new MidiEvent(interner.intern(status, data1, data2), tick));
+        }
+        else {
+            track.add(new MidiEvent(new ShortMessage(status, data1, data2), tick));
+        }
+    }
+
+    /**
+     * Read the system common or real time message
+     *
+     * @param status the status
+     * @param data1  the first data, or -1 if not read yet
+     * @param buffer the buffer
+     * @return the message, status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16
+     * @throws InvalidMidiDataException invalid MIDI data inputted
+     */
+    private static int readSystemMessage(final int status, final int data1, @NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        switch (status) {
+            case ShortMessage.SONG_POSITION_POINTER://f2
+                if (data1 < 0) {
+                    final int first = buffer.get() & 0xff;
+                    return packMessage(status, first, buffer.get() & 0xff);
+                }
+                return packMessage(status, data1, buffer.get() & 0xff);
+
+            case ShortMessage.SONG_SELECT://f3
+            case ShortMessage.BUS_SELECT://f5
+                return packMessage(status, data1 < 0 ? buffer.get() & 0xff : data1, 0);
+
+            case ShortMessage.TUNE_REQUEST://f6
+            case ShortMessage.TIMING_CLOCK://f8
+            case ShortMessage.START://fa
+            case ShortMessage.CONTINUE://fb
+            case ShortMessage.STOP://fc
+            case ShortMessage.ACTIVE_SENSING://fe
+                if (data1 >= 0) {
+                    throw new InvalidMidiDataException(String.format("Invalid data: %02x", data1));
+                }
+                return packMessage(status, 0, 0);
+
+            default://f1, f9, fd
+                throw new InvalidMidiDataException(String.format("Invalid data: %02x", status));
+        }
+    }
+
+    /**
+     * Read the channel message
+     *
+     * @param status the status
+     * @param data1  the first data
+     * @param buffer the buffer
+     * @return the message, status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16
+     * @throws InvalidMidiDataException invalid MIDI data inputted
+     */
+    private static int readChannelMessage(final int status, final int data1, @NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        switch (status & ShortMessage.MASK_EVENT) {
+            case ShortMessage.NOTE_OFF://80
+            case ShortMessage.NOTE_ON://90
+            case ShortMessage.POLY_PRESSURE://a0
+            case ShortMessage.CONTROL_CHANGE://b0
+            case ShortMessage.PITCH_BEND://e0
+                return packMessage(status, data1, buffer.get() & 0xff);
+
+            case ShortMessage.PROGRAM_CHANGE://c0
+            case ShortMessage.CHANNEL_PRESSURE://d0
+                return packMessage(status, data1, 0);
+
+            default:
+                throw new InvalidMidiDataException(String.format("Invalid data: %02x %02x", status, data1));
+        }
+    }
+
+    /**
+     * Pack the short message into an int
+     *
+     * @param status the status
+     * @param data1  the first data
+     * @param data2  the second data
+     * @return status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16
+     */
+    private static int packMessage(final int status, final int data1, final int data2) {
+        return status | (data1 << 8) | (data2 << 16);
+    }
+
+    /**
+     * Get the {@link MidiFileFormat} of the MIDI file in the buffer. The buffer's position is not changed.
+     *
+     * @param buffer the buffer, from its position to its limit
+     * @return the MidiFileFormat
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    public MidiFileFormat getMidiFileFormat(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        final Header header = readHeader(buffer.duplicate().order(ByteOrder.BIG_ENDIAN));
+        return new MidiFileFormat(header.type, header.divisionType, header.resolution, header.fileLength, MidiFileFormat.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Get the {@link Sequence} of the MIDI file in the buffer. The buffer's position is not changed.
+     *
+     * @param buffer the buffer, from its position to its limit
+     * @return the Sequence
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    public Sequence getSequence(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException, IOException {
+        return getSequence(buffer, null);
+    }
+
+    /**
+     * Get the {@link Sequence} of the MIDI file in the buffer, leniently if a report is given.
+     * Reading leniently, damaged tracks are read as far as possible and the problems are added to the report;
+     * only a damaged header chunk makes the file unreadable. The buffer's position is not changed.
+     *
+     * @param buffer the buffer, from its position to its limit
+     * @param report the report to add the problems to, or null to read strictly
+     * @return the Sequence
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    public Sequence getSequence(@NonNull final ByteBuffer buffer, @Nullable final RecoveryReport report) throws InvalidMidiDataException, IOException {
+        final ByteBuffer source = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final Header header = readHeader(source);
+        final List<ByteBuffer> trackDataList = findTracks(source, header.numberOfTracks, report);
+
+        final Sequence sequence = new Sequence(header.divisionType, header.resolution);
+        final Track[] tracks = new Track[trackDataList.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = sequence.createTrack();
+        }
+
+        if (executor == null || tracks.length < 2) {
+            for (int i = 0; i < tracks.length; i++) {
+                readTrack(trackDataList.get(i), tracks[i], compactTracks, internShortMessages, report, i);
+            }
+        }
+        else {
+            readTracksInParallel(executor, trackDataList, tracks, compactTracks, internShortMessages, report);
+        }
+        return sequence;
+    }
+
+    /**
+     * Get the {@link Sequence} of the MIDI file in the buffer, reading the tracks in the background.
+     * The file is checked by {@link MidiFileProbe} first, so the lengths of the Sequence are known at once.
+     * The tracks are always read into compact storage; ShortMessages are not interned.
+     * The buffer's position is not changed, and the buffer must not be changed until loading has ended.
+     *
+     * @param buffer the buffer, from its position to its limit
+     * @return the ProgressiveSequence, which is still being read
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    public ProgressiveSequence getSequenceProgressively(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        return getSequenceProgressively(buffer, null);
+    }
+
+    /**
+     * Get the {@link Sequence} of the MIDI file in the buffer, reading the tracks in the background, leniently if a
+     * report is given. The file must pass {@link MidiFileProbe} either way, as its lengths are needed at once; damage
+     * the probe can't detect is then skipped while reading, and added to the report before loading ends.
+     * A file which fails the probe can still be read with {@link #getSequence(ByteBuffer, RecoveryReport)}.
+     *
+     * @param buffer the buffer, from its position to its limit
+     * @param report the report to add the problems to, or null to read strictly
+     * @return the ProgressiveSequence, which is still being read
+     * @throws InvalidMidiDataException the file failed the probe
+     * @see #getSequenceProgressively(ByteBuffer)
+     */
+    @NonNull
+    public ProgressiveSequence getSequenceProgressively(@NonNull final ByteBuffer buffer, @Nullable final RecoveryReport report) throws InvalidMidiDataException {
+        final MidiFileProbe probe = MidiFileProbe.probe(buffer);
+        final ByteBuffer source = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final Header header = readHeader(source);
+        final List<ByteBuffer> trackDataList = findTracks(source, header.numberOfTracks, report);
+
+        final ProgressiveSequence sequence = new ProgressiveSequence(header.divisionType, header.resolution, probe.getTickLength(), probe.getMicrosecondLength());
+        sequence.start(executor != null ? executor : getDefaultExecutor(), trackDataList, report);
+        return sequence;
+    }
+
+    /**
+     * Get the {@link Sequence} of the MIDI file opened as the file descriptor, reading the tracks in the background.
+     * The file is memory-mapped if possible. The descriptor is not closed, and may be closed before loading has ended.
+     *
+     * @param fileDescriptor the file descriptor
+     * @return the ProgressiveSequence, which is still being read
+     * @throws InvalidMidiDataException
+     * @throws IOException
+     * @see #getSequenceProgressively(ByteBuffer)
+     */
+    @NonNull
+    public ProgressiveSequence getSequenceProgressively(@NonNull final FileDescriptor fileDescriptor) throws InvalidMidiDataException, IOException {
+        // don't close the stream, it would close the descriptor
+        return getSequenceProgressively(map(new FileInputStream(fileDescriptor).getChannel()));
+    }
+
+    /**
+     * Read the tracks with the {@link Executor}. The first track is read on the calling thread, and so are the tracks
+     * the Executor rejects.
+     *
+     * @param executor      the Executor
+     * @param trackDataList the track data
+     * @param tracks        the Tracks to read into, same order as trackDataList
+     * @param compact       true to read the events into compact storage
+     * @param intern        true to share identical ShortMessages
+     * @param report        the report of problems, or null to read strictly
+     * @throws InvalidMidiDataException
+     * @throws IOException              interrupted while waiting for the tracks
+     */
+    private static void readTracksInParallel(@NonNull final Executor executor, @NonNull final List<ByteBuffer> trackDataList, @NonNull final Track[] tracks, final boolean compact, final boolean intern, @Nullable final RecoveryReport report) throws InvalidMidiDataException, IOException {
+        final List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(tracks.length - 1);
+        for (int i = 1; i < tracks.length; i++) {
+            final ByteBuffer trackData = trackDataList.get(i);
+            final Track track = tracks[i];
+            final int index = i;
+            final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws InvalidMidiDataException {
+                    readTrack(trackData, track, compact, intern, report, index);
+                    return null;
+                }
+            });
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (final RejectedExecutionException e) {
+                // e.g. the executor has been shut down, read the track on the calling thread
+                task.run();
+            }
+        }
+
+        try {
+            readTrack(trackDataList.get(0), tracks[0], compact, intern, report, 0);
+
+            for (final FutureTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof InvalidMidiDataException) {
+                        throw (InvalidMidiDataException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading tracks");
+        } finally {
+            // no-op for the completed tasks
+            for (final FutureTask<Void> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Map the whole file opened by the {@link FileChannel} into memory.
+     * If the channel can't be mapped, e.g. it is a pipe, it is read into a heap buffer instead.
+     *
+     * @param channel the channel, read from its current position
+     * @return the buffer
+     * @throws IOException
+     */
+    @NonNull
+    public static ByteBuffer map(@NonNull final FileChannel channel) throws IOException {
+        try {
+            final long position = channel.position();
+            final long size = channel.size() - position;
+            if (size > 0 && size <= Integer.MAX_VALUE) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+        } catch (final IOException ignored) {
+            // not a regular file, read it
+        }
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(16384);
+        while (channel.read(buffer) >= 0) {
+            outputStream.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return ByteBuffer.wrap(outputStream.toByteArray());
+    }
+
+    /**
+     * Read the whole {@link InputStream} into a heap buffer
+     *
+     * @param inputStream the InputStream
+     * @return the buffer
+     * @throws IOException
+     */
+    @NonNull
+    private static ByteBuffer read(@NonNull final InputStream inputStream) throws IOException {
+        if (inputStream instanceof FileInputStream) {
+            return map(((FileInputStream) inputStream).getChannel());
+        }
+
+        byte[] data = new byte[Math.max(inputStream.available(), 16384)];
+        int length = 0;
+        int readBytes;
+        while ((readBytes = inputStream.read(data, length, data.length - length)) >= 0) {
+            length += readBytes;
+            if (length == data.length) {
+                final byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
+    /**
+     * Get the {@link Sequence} from the file descriptor, e.g. one opened by {@code ContentResolver.openFileDescriptor}.
+     * The file is memory-mapped if possible. The descriptor is not closed.
+     *
+     * @param fileDescriptor the file descriptor
+     * @return the Sequence
+     * @throws InvalidMidiDataException
+     * @throws IOException
+     */
+    @NonNull
+    public Sequence getSequence(@NonNull final FileDescriptor fileDescriptor) throws InvalidMidiDataException, IOException {
+        // don't close the stream, it would close the descriptor
+        return getSequence(map(new FileInputStream(fileDescriptor).getChannel()));
+    }
+
+    @NonNull
+    @Override
+    public MidiFileFormat getMidiFileFormat(@NonNull final InputStream inputStream) throws InvalidMidiDataException, IOException {
+        return getMidiFileFormat(read(inputStream));
+    }
+
+    @NonNull
+    @Override
+    public MidiFileFormat getMidiFileFormat(@NonNull final URL url) throws InvalidMidiDataException, IOException {
+        final InputStream inputStream = url.openStream();
+        try {
+            return getMidiFileFormat(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @NonNull
+    @Override
+    public MidiFileFormat getMidiFileFormat(@NonNull final File file) throws InvalidMidiDataException, IOException {
+        final FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return getMidiFileFormat(map(inputStream.getChannel()));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Sequence getSequence(@NonNull final InputStream inputStream) throws InvalidMidiDataException, IOException {
+        return getSequence(read(inputStream));
+    }
+
+    @NonNull
+    @Override
+    public Sequence getSequence(@NonNull final URL url) throws InvalidMidiDataException, IOException {
+        final InputStream inputStream = url.openStream();
+        try {
+            return getSequence(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Sequence getSequence(@NonNull final File file) throws InvalidMidiDataException, IOException {
+        final FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return getSequence(map(inputStream.getChannel()));
+        } finally {
+            inputStream.close();
+        }
+    }
+}
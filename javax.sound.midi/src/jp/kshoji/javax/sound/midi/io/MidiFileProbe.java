@@ -0,0 +1,377 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiUtils;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+/**
+ * Summary of a Standard MIDI File, obtained without building a {@link Sequence}.
+ * <p>
+ * Probing scans every track once, decoding only delta times, status bytes, tempo events and END_OF_TRACK.
+ * No message or event objects are created, so it is cheap enough to run over a whole library.
+ * Short messages are checked the same way as by {@link ByteBufferMidiFileReader}, so a file which can be probed
+ * can also be read strictly.
+ * The lengths are the same as {@link Sequence#getTickLength()} and {@link Sequence#getMicrosecondLength()} of
+ * the Sequence read by {@link ByteBufferMidiFileReader}.
+ */
+public final class MidiFileProbe {
+    private final int type;
+    private final float divisionType;
+    private final int resolution;
+    private final int trackCount;
+    private final long tickLength;
+    private final long microsecondLength;
+    private final int tempoChangeCount;
+    private final int noteCount;
+    private final int[] channelNoteCounts;
+    private final int channelMask;
+
+    private MidiFileProbe(final int type, final float divisionType, final int resolution, final int trackCount, final long tickLength, final long microsecondLength, final int tempoChangeCount, final int noteCount, @NonNull final int[] channelNoteCounts, final int channelMask) {
+        this.type = type;
+        this.divisionType = divisionType;
+        this.resolution = resolution;
+        this.trackCount = trackCount;
+        this.tickLength = tickLength;
+        this.microsecondLength = microsecondLength;
+        this.tempoChangeCount = tempoChangeCount;
+        this.noteCount = noteCount;
+        this.channelNoteCounts = channelNoteCounts;
+        this.channelMask = channelMask;
+    }
+
+    /**
+     * Probe the MIDI file in the buffer. The buffer's position is not changed.
+     *
+     * @param buffer the buffer, from its position to its limit
+     * @return the probe result
+     * @throws InvalidMidiDataException
+     */
+    @NonNull
+    public static MidiFileProbe probe(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+        final ByteBuffer source = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final ByteBufferMidiFileReader.Header header = ByteBufferMidiFileReader.readHeader(source);
+        final List<ByteBuffer> trackDataList = ByteBufferMidiFileReader.findTracks(source, header.numberOfTracks);
+
+        final Scanner scanner = new Scanner();
+        for (int trackIndex = 0; trackIndex < trackDataList.size(); trackIndex++) {
+            // tempo events are only used from track 0, same as MidiUtils
+            scanner.scanTrack(trackDataList.get(trackIndex), trackIndex == 0);
+        }
+
+        final long microsecondLength;
+        if (header.divisionType != Sequence.PPQ) {
+            microsecondLength = (long) (1000000 * ((double) scanner.tickLength / (double) (header.divisionType * header.resolution)));
+        }
+        else {
+            microsecondLength = scanner.tick2microsecond(scanner.tickLength, header.resolution);
+        }
+
+        return new MidiFileProbe(header.type, header.divisionType, header.resolution, trackDataList.size(), scanner.tickLength, microsecondLength, scanner.tempoCount, scanner.noteCount, scanner.channelNoteCounts, scanner.channelMask);
+    }
+
+    /**
+     * Probe the MIDI file opened as the file descriptor, e.g. one opened by {@code ContentResolver.openFileDescriptor}.
+     * The file is memory-mapped if possible. The descriptor is not closed.
+     *
+     * @param fileDescriptor the file descriptor
+     * @return the probe result
+     * @throws InvalidMidiDataException
+     * @throws IOException
+     */
+    @NonNull
+    public static MidiFileProbe probe(@NonNull final FileDescriptor fileDescriptor) throws InvalidMidiDataException, IOException {
+        // don't close the stream, it would close the descriptor
+        return probe(ByteBufferMidiFileReader.map(new FileInputStream(fileDescriptor).getChannel()));
+    }
+
+    /**
+     * State of a probe while scanning the tracks
+     */
+    private static final class Scanner {
+        long tickLength = 0;
+        int noteCount = 0;
+        final int[] channelNoteCounts = new int[16];
+        int channelMask = 0;
+
+        // tempo changes of track 0, in file order
+        int tempoCount = 0;
+        long[] tempoTicks = new long[8];
+        int[] tempos = new int[8];
+
+        /**
+         * Scan the events of a track chunk
+         *
+         * @param trackData    the track data, without the chunk header
+         * @param readTempo    true to record the tempo events of this track
+         * @throws InvalidMidiDataException
+         */
+        void scanTrack(@NonNull final ByteBuffer trackData, final boolean readTempo) throws InvalidMidiDataException {
+            int runningStatus = -1;
+            long ticks = 0;
+            long lastEventTick = -1;
+
+            try {
+                while (trackData.hasRemaining()) {
+                    ticks += ByteBufferMidiFileReader.readVariableLengthInt(trackData); // add deltaTime
+
+                    int status = trackData.get() & 0xff;
+                    int data1 = -1;
+                    if (status < 0x80) {
+                        // data values, running status
+                        if (runningStatus < 0) {
+                            throw new InvalidMidiDataException(String.format("Invalid data: %02x %02x", runningStatus, status));
+                        }
+                        data1 = status;
+                        status = runningStatus;
+                    }
+
+                    if (status < 0xf0) {
+                        // Channel messages
+                        if (data1 < 0) {
+                            data1 = checkData(1, trackData.get() & 0xff);
+                        }
+                        final int command = status & ShortMessage.MASK_EVENT;
+                        final int channel = status & ShortMessage.MASK_CHANNEL;
+                        if (command != ShortMessage.PROGRAM_CHANGE && command != ShortMessage.CHANNEL_PRESSURE) {
+                            final int data2 = checkData(2, trackData.get() & 0xff);
+                            if (command == ShortMessage.NOTE_ON && data2 > 0) {
+                                noteCount++;
+                                channelNoteCounts[channel]++;
+                            }
+                        }
+                        channelMask |= 1 << channel;
+
+                        runningStatus = status;
+                    }
+                    else if (status == ShortMessage.START_OF_EXCLUSIVE || status == ShortMessage.END_OF_EXCLUSIVE) {
+                        // System Exclusive event
+                        skip(trackData, ByteBufferMidiFileReader.readVariableLengthInt(trackData));
+
+                        runningStatus = -1;
+                    }
+                    else if (status == MetaMessage.META) {
+                        // Meta Message
+                        final int type = trackData.get() & 0xff;
+                        final int length = ByteBufferMidiFileReader.readVariableLengthInt(trackData);
+                        if (type == MetaMessage.TYPE_END_OF_TRACK) {
+                            // END_OF_TRACK is replaced when the track is sorted, so it doesn't count for the length
+                            // its data is still read by the reader, so it must be in the track
+                            skip(trackData, length);
+                            break;
+                        }
+                        if (readTempo && type == MetaMessage.TYPE_TEMPO && length == 3) {
+                            addTempo(ticks, ((trackData.get() & 0xff) << 16) | ((trackData.get() & 0xff) << 8) | (trackData.get() & 0xff));
+                        }
+                        else {
+                            skip(trackData, length);
+                        }
+
+                        runningStatus = -1;
+                    }
+                    else {
+                        // f1-f6, f8-fe
+                        skipSystemMessage(status, data1, trackData);
+
+                        runningStatus = status;
+                    }
+
+                    lastEventTick = ticks;
+                }
+            } catch (final BufferUnderflowException e) {
+                throw new InvalidMidiDataException("Unexpected end of track");
+            }
+
+            // the sorted track ends with END_OF_TRACK, one tick after the last event
+            tickLength = Math.max(tickLength, lastEventTick + 1);
+        }
+
+        /**
+         * Check a data byte of a short message, the same way as {@link ShortMessage#setMessage(int, int, int)}
+         *
+         * @param index the index of the data byte, 1 or 2
+         * @param data  the data byte
+         * @return the data byte
+         * @throws InvalidMidiDataException the byte is out of range
+         */
+        private static int checkData(final int index, final int data) throws InvalidMidiDataException {
+            if (data > 0x7f) {
+                throw new InvalidMidiDataException("data" + index + " out of range: " + data);
+            }
+            return data;
+        }
+
+        private static void skip(@NonNull final ByteBuffer buffer, final int length) throws InvalidMidiDataException {
+            if (length < 0 || length > buffer.remaining()) {
+                throw new InvalidMidiDataException("Unexpected end of track");
+            }
+            buffer.position(buffer.position() + length);
+        }
+
+        private static void skipSystemMessage(final int status, final int data1, @NonNull final ByteBuffer buffer) throws InvalidMidiDataException {
+            switch (status) {
+                case ShortMessage.SONG_POSITION_POINTER://f2
+                    if (data1 < 0) {
+                        checkData(1, buffer.get() & 0xff);
+                    }
+                    checkData(2, buffer.get() & 0xff);
+                    break;
+
+                case ShortMessage.SONG_SELECT://f3
+                    if (data1 < 0) {
+                        checkData(1, buffer.get() & 0xff);
+                    }
+                    break;
+
+                case ShortMessage.TUNE_REQUEST://f6
+                case ShortMessage.TIMING_CLOCK://f8
+                case ShortMessage.START://fa
+                case ShortMessage.CONTINUE://fb
+                case ShortMessage.STOP://fc
+                case ShortMessage.ACTIVE_SENSING://fe
+                    if (data1 >= 0) {
+                        throw new InvalidMidiDataException(String.format("Invalid data: %02x", data1));
+                    }
+                    break;
+
+                default://f1, f5, f9, fd: not readable as ShortMessage
+                    throw new InvalidMidiDataException(String.format("Invalid data: %02x", status));
+            }
+        }
+
+        private void addTempo(final long tick, final int tempo) {
+            if (tempoCount == tempos.length) {
+                final long[] grownTicks = new long[tempoCount * 2];
+                System.arraycopy(tempoTicks, 0, grownTicks, 0, tempoCount);
+                tempoTicks = grownTicks;
+                final int[] grownTempos = new int[tempoCount * 2];
+                System.arraycopy(tempos, 0, grownTempos, 0, tempoCount);
+                tempos = grownTempos;
+            }
+            tempoTicks[tempoCount] = tick;
+            tempos[tempoCount] = tempo;
+            tempoCount++;
+        }
+
+        /**
+         * Convert the tick to microseconds with the recorded tempo changes, the same way as {@link jp.kshoji.javax.sound.midi.TempoMap}
+         *
+         * @param tick       the tick
+         * @param resolution the resolution
+         * @return the microseconds
+         */
+        long tick2microsecond(final long tick, final int resolution) {
+            long microseconds = 0;
+            long segmentTick = 0;
+            int tempo = MidiUtils.DEFAULT_TEMPO_MPQ;
+            for (int i = 0; i < tempoCount && tempoTicks[i] <= tick; i++) {
+                microseconds += MidiUtils.ticks2microsec(tempoTicks[i] - segmentTick, tempo, resolution);
+                segmentTick = tempoTicks[i];
+                tempo = tempos[i];
+            }
+            return microseconds + MidiUtils.ticks2microsec(tick - segmentTick, tempo, resolution);
+        }
+    }
+
+    /**
+     * Get the MIDI file type
+     *
+     * @return the type (0, 1, or 2)
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Get the division type
+     *
+     * @return the division type
+     */
+    public float getDivisionType() {
+        return divisionType;
+    }
+
+    /**
+     * Get the timing resolution
+     *
+     * @return the resolution
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Get the number of tracks
+     *
+     * @return the number of tracks
+     */
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * Get the length in ticks
+     *
+     * @return the length in ticks
+     */
+    public long getTickLength() {
+        return tickLength;
+    }
+
+    /**
+     * Get the length in microseconds, taking the tempo changes into account
+     *
+     * @return the length in microseconds
+     */
+    public long getMicrosecondLength() {
+        return microsecondLength;
+    }
+
+    /**
+     * Get the number of tempo events in track 0
+     *
+     * @return the number of tempo events
+     */
+    public int getTempoChangeCount() {
+        return tempoChangeCount;
+    }
+
+    /**
+     * Get the number of notes, counted as note on messages with a velocity above 0
+     *
+     * @return the number of notes
+     */
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /**
+     * Get the number of notes on the channel
+     *
+     * @param channel the channel, 0-15
+     * @return the number of notes
+     */
+    public int getNoteCount(final int channel) {
+        return channelNoteCounts[channel];
+    }
+
+    /**
+     * Get the channels used by any channel message
+     *
+     * @return bit n is set if channel n is used
+     */
+    public int getChannelMask() {
+        return channelMask;
+    }
+}
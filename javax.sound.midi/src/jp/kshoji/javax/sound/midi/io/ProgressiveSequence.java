@@ -0,0 +1,321 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.Track;
+
+/**
+ * {@link Sequence} whose tracks are read in the background, obtained by
+ * {@link ByteBufferMidiFileReader#getSequenceProgressively(ByteBuffer)}.
+ * <p>
+ * The tracks are read in parts, always continuing the track that has been read the least far, and each part is
+ * published to its {@link Track} as compact storage. All events up to {@link #getPlayableTick()} are in their final
+ * place in every track, so a sequencer can play up to that tick while the rest is being read.
+ * <p>
+ * While loading, {@link #getTickLength()} and {@link #getMicrosecondLength()} return the lengths of the whole file,
+ * obtained by {@link MidiFileProbe}. The tracks must not be modified until loading has ended.
+ * <p>
+ * Read leniently with {@link ByteBufferMidiFileReader#getSequenceProgressively(ByteBuffer, RecoveryReport)},
+ * unreadable events are skipped instead of stopping loading, and the report is complete when the listeners are called.
+ */
+public final class ProgressiveSequence extends Sequence {
+    // the first part of each track, multiplied by 4 for each following part so each track is only sorted O(log n) times
+    private static final int FIRST_PART_LENGTH = 4096;
+
+    /**
+     * Listener for the end of loading
+     */
+    public interface LoadListener {
+        /**
+         * Called on the loading thread when loading has ended, or immediately if it has already ended
+         *
+         * @param sequence the ProgressiveSequence
+         * @param error    the error that stopped loading, or null if the whole file has been read
+         */
+        void onLoaded(@NonNull ProgressiveSequence sequence, @Nullable InvalidMidiDataException error);
+    }
+
+    private final long expectedTickLength;
+    private final long expectedMicrosecondLength;
+
+    private final Object lock = new Object();
+    private final List<LoadListener> loadListeners = new ArrayList<LoadListener>();
+    private ByteBufferMidiFileReader.TrackReader[] readers;
+    // state of each track, only changed while holding the lock. readers are only used by the worker reading them
+    private boolean[] busy;
+    private boolean[] finished;
+    private long[] publishedTicks;
+    private int[] partLengths;
+    private volatile long playableTick = -1;
+    private volatile boolean loaded = false;
+    @Nullable
+    private volatile InvalidMidiDataException loadError = null;
+
+    /**
+     * Constructor
+     *
+     * @param divisionType              the division type
+     * @param resolution                the resolution
+     * @param expectedTickLength        the length in ticks of the whole file
+     * @param expectedMicrosecondLength the length in microseconds of the whole file
+     * @throws InvalidMidiDataException
+     */
+    ProgressiveSequence(final float divisionType, final int resolution, final long expectedTickLength, final long expectedMicrosecondLength) throws InvalidMidiDataException {
+        super(divisionType, resolution);
+        this.expectedTickLength = expectedTickLength;
+        this.expectedMicrosecondLength = expectedMicrosecondLength;
+    }
+
+    /**
+     * Start reading the tracks in the background
+     *
+     * @param executor      the Executor to read with
+     * @param trackDataList the track data, without the chunk headers
+     * @param report        the report of problems, or null to read strictly
+     */
+    void start(@NonNull final Executor executor, @NonNull final List<ByteBuffer> trackDataList, @Nullable final RecoveryReport report) {
+        final List<LoadListener> listeners;
+        synchronized (lock) {
+            readers = new ByteBufferMidiFileReader.TrackReader[trackDataList.size()];
+            busy = new boolean[readers.length];
+            finished = new boolean[readers.length];
+            publishedTicks = new long[readers.length];
+            partLengths = new int[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new ByteBufferMidiFileReader.TrackReader(trackDataList.get(i), createTrack(), true, false, report, i);
+                finished[i] = readers[i].isFinished();
+                partLengths[i] = FIRST_PART_LENGTH;
+            }
+            listeners = updatePlayableTick();
+        }
+        if (listeners != null) {
+            // no track to read
+            notifyLoaded(listeners);
+            return;
+        }
+
+        final int workerCount = Math.min(readers.length, Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < workerCount; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    readParts();
+                }
+            });
+        }
+    }
+
+    /**
+     * Read parts of the tracks until no track is left to read
+     */
+    private void readParts() {
+        int index;
+        while ((index = nextTrack()) >= 0) {
+            final ByteBufferMidiFileReader.TrackReader reader = readers[index];
+            final boolean trackFinished;
+            try {
+                trackFinished = reader.read(partLengths[index]);
+                if (loaded) {
+                    // another track failed
+                    return;
+                }
+                reader.publish();
+            } catch (final InvalidMidiDataException e) {
+                fail(e);
+                return;
+            } catch (final RuntimeException e) {
+                // e.g. index errors from malformed data, keep the cause so the failure can be diagnosed
+                final InvalidMidiDataException failure = new InvalidMidiDataException(e.getMessage());
+                failure.initCause(e);
+                fail(failure);
+                return;
+            }
+
+            final List<LoadListener> listeners;
+            synchronized (lock) {
+                busy[index] = false;
+                finished[index] = trackFinished;
+                publishedTicks[index] = reader.getTick();
+                partLengths[index] = (int) Math.min(Integer.MAX_VALUE, 4L * partLengths[index]);
+                listeners = updatePlayableTick();
+            }
+            if (listeners != null) {
+                notifyLoaded(listeners);
+            }
+        }
+    }
+
+    /**
+     * Choose the track to read next: the one read the least far, which is not being read by another worker
+     *
+     * @return the index of the track, or -1 if there is none
+     */
+    private int nextTrack() {
+        synchronized (lock) {
+            if (loaded) {
+                return -1;
+            }
+            int next = -1;
+            for (int i = 0; i < readers.length; i++) {
+                if (!busy[i] && !finished[i] && (next < 0 || publishedTicks[i] < publishedTicks[next])) {
+                    next = i;
+                }
+            }
+            if (next >= 0) {
+                busy[next] = true;
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Update the playable tick from the progress of the tracks, and end loading when all tracks have been read.
+     * Must be called while holding the lock.
+     *
+     * @return the listeners to notify if loading has ended, otherwise null
+     */
+    @Nullable
+    private List<LoadListener> updatePlayableTick() {
+        long tick = Long.MAX_VALUE;
+        for (int i = 0; i < readers.length; i++) {
+            if (!finished[i]) {
+                // more events may follow at the tick of the last event read, they are sorted with the next part
+                tick = Math.min(tick, publishedTicks[i] - 1);
+            }
+        }
+        playableTick = tick;
+        if (tick == Long.MAX_VALUE) {
+            return finish(null);
+        }
+        return null;
+    }
+
+    /**
+     * Stop loading because of the error. The events read so far stay playable.
+     *
+     * @param error the error
+     */
+    private void fail(@NonNull final InvalidMidiDataException error) {
+        final List<LoadListener> listeners;
+        synchronized (lock) {
+            if (loaded) {
+                return;
+            }
+            playableTick = Long.MAX_VALUE;
+            listeners = finish(error);
+        }
+        notifyLoaded(listeners);
+    }
+
+    /**
+     * Mark the loading as ended. Must be called while holding the lock.
+     *
+     * @param error the error that stopped loading, or null
+     * @return the listeners to notify, after releasing the lock
+     */
+    @NonNull
+    private List<LoadListener> finish(@Nullable final InvalidMidiDataException error) {
+        loadError = error;
+        loaded = true;
+        lock.notifyAll();
+        final List<LoadListener> listeners = new ArrayList<LoadListener>(loadListeners);
+        loadListeners.clear();
+        return listeners;
+    }
+
+    /**
+     * Notify the listeners of the end of loading
+     *
+     * @param listeners the listeners
+     */
+    private void notifyLoaded(@NonNull final List<LoadListener> listeners) {
+        for (final LoadListener listener : listeners) {
+            listener.onLoaded(this, loadError);
+        }
+    }
+
+    /**
+     * Get the last tick up to which every track has been read. Events up to this tick won't change anymore.
+     *
+     * @return the tick, Long.MAX_VALUE after loading has ended, or -1 if nothing is playable yet
+     */
+    public long getPlayableTick() {
+        return playableTick;
+    }
+
+    /**
+     * Check if loading has ended
+     *
+     * @return true if the whole file has been read, or loading has stopped because of an error
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Get the error that stopped loading
+     *
+     * @return the error, or null if there was none (yet)
+     */
+    @Nullable
+    public InvalidMidiDataException getLoadError() {
+        return loadError;
+    }
+
+    /**
+     * Wait until loading has ended
+     *
+     * @throws InterruptedException     interrupted while waiting
+     * @throws InvalidMidiDataException loading stopped because of an error
+     */
+    public void awaitLoaded() throws InterruptedException, InvalidMidiDataException {
+        synchronized (lock) {
+            while (!loaded) {
+                lock.wait();
+            }
+        }
+        final InvalidMidiDataException error = loadError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Add the listener for the end of loading. If loading has already ended, it is called immediately on this thread.
+     *
+     * @param listener the listener
+     */
+    public void addLoadListener(@NonNull final LoadListener listener) {
+        synchronized (lock) {
+            if (!loaded) {
+                loadListeners.add(listener);
+                return;
+            }
+        }
+        listener.onLoaded(this, loadError);
+    }
+
+    @Override
+    public long getTickLength() {
+        if (!loaded) {
+            return expectedTickLength;
+        }
+        return super.getTickLength();
+    }
+
+    @Override
+    public long getMicrosecondLength() {
+        if (!loaded) {
+            return expectedMicrosecondLength;
+        }
+        return super.getMicrosecondLength();
+    }
+}
@@ -0,0 +1,159 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Report of the damage found while reading a MIDI file leniently, see
+ * {@link ByteBufferMidiFileReader#getSequence(java.nio.ByteBuffer, RecoveryReport)}.
+ * <p>
+ * Each problem describes a region of the file which could not be read and was dropped, or a structural fault which
+ * was worked around. Adjacent unreadable bytes of a track are reported as one problem.
+ * Only the first {@link #MAX_PROBLEMS} problems are kept, all of them are counted.
+ * <p>
+ * This class is thread safe, tracks read in parallel report to the same instance.
+ */
+public final class RecoveryReport {
+    /**
+     * The maximum number of problems kept
+     */
+    public static final int MAX_PROBLEMS = 64;
+
+    /**
+     * The track index of problems in the file structure, outside of the track chunks
+     */
+    public static final int FILE = -1;
+
+    /**
+     * A problem found in the file
+     */
+    public static final class Problem {
+        private final int track;
+        private final int offset;
+        private final int droppedBytes;
+        @NonNull
+        private final String description;
+
+        /**
+         * Constructor
+         *
+         * @param track        the track index, or {@link #FILE}
+         * @param offset       the byte offset in the track data, or in the file for {@link #FILE}
+         * @param droppedBytes the number of bytes dropped
+         * @param description  the description of the problem
+         */
+        Problem(final int track, final int offset, final int droppedBytes, @NonNull final String description) {
+            this.track = track;
+            this.offset = offset;
+            this.droppedBytes = droppedBytes;
+            this.description = description;
+        }
+
+        /**
+         * Get the track index
+         *
+         * @return the index of the track chunk, or {@link #FILE} for the file structure
+         */
+        public int getTrack() {
+            return track;
+        }
+
+        /**
+         * Get the position of the problem
+         *
+         * @return the byte offset in the data of the track chunk, or in the file for {@link #FILE}
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the number of bytes which were dropped
+         *
+         * @return the number of bytes, 0 if nothing was dropped
+         */
+        public int getDroppedBytes() {
+            return droppedBytes;
+        }
+
+        /**
+         * Get the description of the problem
+         *
+         * @return the description
+         */
+        @NonNull
+        public String getDescription() {
+            return description;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            final String location = track == FILE ? "File at byte " + offset : "Track " + track + " at byte " + offset;
+            if (droppedBytes > 0) {
+                return location + ": " + description + " (" + droppedBytes + " bytes dropped)";
+            }
+            return location + ": " + description;
+        }
+    }
+
+    private final List<Problem> problems = new ArrayList<Problem>();
+    private int problemCount = 0;
+    private long droppedBytes = 0;
+
+    /**
+     * Add a problem
+     *
+     * @param track        the track index, or {@link #FILE}
+     * @param offset       the byte offset in the track data, or in the file for {@link #FILE}
+     * @param droppedBytes the number of bytes dropped
+     * @param description  the description of the problem
+     */
+    synchronized void add(final int track, final int offset, final int droppedBytes, @NonNull final String description) {
+        if (problems.size() < MAX_PROBLEMS) {
+            problems.add(new Problem(track, offset, droppedBytes, description));
+        }
+        problemCount++;
+        this.droppedBytes += droppedBytes;
+    }
+
+    /**
+     * Check if any problem was found
+     *
+     * @return true if the file was damaged
+     */
+    public synchronized boolean hasProblems() {
+        return problemCount > 0;
+    }
+
+    /**
+     * Get the problems kept, in the order they were found in each track
+     *
+     * @return the problems, at most {@link #MAX_PROBLEMS}
+     */
+    @NonNull
+    public synchronized List<Problem> getProblems() {
+        return Collections.unmodifiableList(new ArrayList<Problem>(problems));
+    }
+
+    /**
+     * Get the number of problems found, including those which were not kept
+     *
+     * @return the number of problems
+     */
+    public synchronized int getProblemCount() {
+        return problemCount;
+    }
+
+    /**
+     * Get the total number of bytes dropped
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+}
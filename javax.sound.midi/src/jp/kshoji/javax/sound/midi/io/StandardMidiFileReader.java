@@ -3,6 +3,7 @@ package jp.kshoji.javax.sound.midi.io;
 import android.content.res.AssetManager.AssetInputStream;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -21,6 +22,7 @@ import jp.kshoji.javax.sound.midi.MidiFileFormat;
 import jp.kshoji.javax.sound.midi.MidiMessage;
 import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.ShortMessageInterner;
 import jp.kshoji.javax.sound.midi.SysexMessage;
 import jp.kshoji.javax.sound.midi.Track;
 import jp.kshoji.javax.sound.midi.Track.TrackUtils;
@@ -32,6 +34,25 @@ import jp.kshoji.javax.sound.midi.spi.MidiFileReader;
  * @author K.Shoji
  */
 public class StandardMidiFileReader extends MidiFileReader {
+    private volatile boolean internShortMessages = false;
+
+    /**
+     * Set whether identical {@link ShortMessage}s share one immutable instance, see {@link ShortMessageInterner}.
+     *
+     * @param internShortMessages true to share identical ShortMessages, they must not be modified afterwards
+     */
+    public void setInternShortMessages(final boolean internShortMessages) {
+        this.internShortMessages = internShortMessages;
+    }
+
+    /**
+     * Check whether identical {@link ShortMessage}s share one immutable instance
+     *
+     * @return true if identical ShortMessages are shared
+     */
+    public boolean isInternShortMessages() {
+        return internShortMessages;
+    }
 
     /**
      * Represents Extended MIDI File format
@@ -205,6 +226,7 @@ public class StandardMidiFileReader extends MidiFileReader {
         try {
             final ExtendedMidiFileFormat midiFileFormat = (ExtendedMidiFileFormat) getMidiFileFormat(midiDataInputStream);
             final Sequence sequence = new Sequence(midiFileFormat.getDivisionType(), midiFileFormat.getResolution());
+            final ShortMessageInterner interner = internShortMessages ? new ShortMessageInterner() : null;
 
             int numberOfTracks = midiFileFormat.getNumberTracks();
 
@@ -230,10 +252,10 @@ public class StandardMidiFileReader extends MidiFileReader {
                     if (data < 0x80) {
                         // data values
                         if (runningStatus >= 0 && runningStatus < 0xf0) {
-                            message = processRunningMessage(runningStatus, data, midiDataInputStream);
+                            message = processRunningMessage(runningStatus, data, midiDataInputStream, interner);
                         }
                         else if (runningStatus >= 0xf0 && runningStatus <= 0xff) {
-                            message = processSystemMessage(runningStatus, data, midiDataInputStream);
+                            message = processSystemMessage(runningStatus, data, midiDataInputStream, interner);
                         }
                         else {
                             throw new InvalidMidiDataException(String.format("Invalid data: %02x %02x", runningStatus, data));
@@ -241,7 +263,7 @@ public class StandardMidiFileReader extends MidiFileReader {
                     }
                     else if (data < 0xf0) {
                         // Control messages
-                        message = processRunningMessage(data, midiDataInputStream.readUnsignedByte(), midiDataInputStream);
+                        message = processRunningMessage(data, midiDataInputStream.readUnsignedByte(), midiDataInputStream, interner);
 
                         runningStatus = data;
                     }
@@ -277,7 +299,7 @@ public class StandardMidiFileReader extends MidiFileReader {
                     }
                     else {
                         // f1-f6, f8-fe
-                        message = processSystemMessage(data, null, midiDataInputStream);
+                        message = processSystemMessage(data, null, midiDataInputStream, interner);
 
                         runningStatus = data;
                     }
@@ -300,32 +322,31 @@ public class StandardMidiFileReader extends MidiFileReader {
      * @param data1               the first data
      * @param data2               the second data
      * @param midiDataInputStream the InputStream
+     * @param interner            the table of shared ShortMessages, or null to create a new ShortMessage
      * @return the processed MIDI message
      * @throws InvalidMidiDataException invalid MIDI data inputted
      * @throws IOException
      */
     @NonNull
-    private static ShortMessage processSystemMessage(final int data1, final Integer data2, @NonNull final DataInput midiDataInputStream) throws InvalidMidiDataException, IOException {
+    private static ShortMessage processSystemMessage(final int data1, final Integer data2, @NonNull final DataInput midiDataInputStream, @Nullable final ShortMessageInterner interner) throws InvalidMidiDataException, IOException {
         final ShortMessage shortMessage;
         switch (data1) {
             case ShortMessage.SONG_POSITION_POINTER://f2
-                shortMessage = new ShortMessage();
                 if (data2 == null) {
-                    shortMessage.setMessage(data1, midiDataInputStream.readUnsignedByte(), midiDataInputStream.readUnsignedByte());
+                    shortMessage = createShortMessage(data1, midiDataInputStream.readUnsignedByte(), midiDataInputStream.readUnsignedByte(), interner);
                 }
                 else {
-                    shortMessage.setMessage(data1, data2, midiDataInputStream.readUnsignedByte());
+                    shortMessage = createShortMessage(data1, data2, midiDataInputStream.readUnsignedByte(), interner);
                 }
                 break;
 
             case ShortMessage.SONG_SELECT://f3
             case ShortMessage.BUS_SELECT://f5
-                shortMessage = new ShortMessage();
                 if (data2 == null) {
-                    shortMessage.setMessage(data1, midiDataInputStream.readUnsignedByte(), 0);
+                    shortMessage = createShortMessage(data1, midiDataInputStream.readUnsignedByte(), 0, interner);
                 }
                 else {
-                    shortMessage.setMessage(data1, data2, 0);
+                    shortMessage = createShortMessage(data1, data2, 0, interner);
                 }
                 break;
 
@@ -339,8 +360,7 @@ public class StandardMidiFileReader extends MidiFileReader {
                     // XXX must be ignored??
                     throw new InvalidMidiDataException(String.format("Invalid data: %02x", data2));
                 }
-                shortMessage = new ShortMessage();
-                shortMessage.setMessage(data1, 0, 0);
+                shortMessage = createShortMessage(data1, 0, 0, interner);
                 break;
 
             default://f1, f9, fd
@@ -355,12 +375,13 @@ public class StandardMidiFileReader extends MidiFileReader {
      * @param status              running status
      * @param data1               the first data
      * @param midiDataInputStream the InputStream
+     * @param interner            the table of shared ShortMessages, or null to create a new ShortMessage
      * @return the processed MIDI message
      * @throws InvalidMidiDataException invalid MIDI data inputted
      * @throws IOException
      */
     @NonNull
-    private static ShortMessage processRunningMessage(final int status, final int data1, @NonNull final DataInput midiDataInputStream) throws InvalidMidiDataException, IOException {
+    private static ShortMessage processRunningMessage(final int status, final int data1, @NonNull final DataInput midiDataInputStream, @Nullable final ShortMessageInterner interner) throws InvalidMidiDataException, IOException {
         final ShortMessage shortMessage;
         switch (status & ShortMessage.MASK_EVENT) {
             case ShortMessage.NOTE_OFF://80
@@ -368,14 +389,12 @@ public class StandardMidiFileReader extends MidiFileReader {
             case ShortMessage.POLY_PRESSURE://a0
             case ShortMessage.CONTROL_CHANGE://b0
             case ShortMessage.PITCH_BEND://e0
-                shortMessage = new ShortMessage();
-                shortMessage.setMessage(status, data1, midiDataInputStream.readUnsignedByte());
+                shortMessage = createShortMessage(status, data1, midiDataInputStream.readUnsignedByte(), interner);
                 break;
 
             case ShortMessage.PROGRAM_CHANGE://c0
             case ShortMessage.CHANNEL_PRESSURE://d0
-                shortMessage = new ShortMessage();
-                shortMessage.setMessage(status, data1, 0);
+                shortMessage = createShortMessage(status, data1, 0, interner);
                 break;
 
             default:
@@ -385,6 +404,24 @@ public class StandardMidiFileReader extends MidiFileReader {
         return shortMessage;
     }
 
+    /**
+     * Create the {@link ShortMessage}, or get the shared one from the interner
+     *
+     * @param status   the status
+     * @param data1    the first data
+     * @param data2    the second data
+     * @param interner the table of shared ShortMessages, or null to create a new ShortMessage
+     * @return the ShortMessage
+     * @throws InvalidMidiDataException invalid MIDI data inputted
+     */
+    @NonNull
+    private static ShortMessage createShortMessage(final int status, final int data1, final int data2, @Nullable final ShortMessageInterner interner) throws InvalidMidiDataException {
+        if (interner != null) {
+            return interner.intern(status, data1, data2);
+        }
+        return new ShortMessage(status, data1, data2);
+    }
+
     /**
      * Convert inputStream into {@link ByteArrayInputStream}
      *
@@ -1,105 +1,37 @@
 package jp.kshoji.javax.sound.midi.io;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import jp.kshoji.javax.sound.midi.MetaMessage;
-import jp.kshoji.javax.sound.midi.MidiEvent;
 import jp.kshoji.javax.sound.midi.MidiFileFormat;
+import jp.kshoji.javax.sound.midi.MidiMessage;
 import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.SysexMessage;
 import jp.kshoji.javax.sound.midi.Track;
 import jp.kshoji.javax.sound.midi.spi.MidiFileWriter;
 
 /**
  * The implementation SMF writer
+ * <p>
+ * The exact length of each track chunk is computed first, then the whole file is written into one {@link ByteBuffer}
+ * of that size, which is written to the destination at once. Channel messages are written with running status.
  *
  * @author K.Shoji
  */
 public class StandardMidiFileWriter extends MidiFileWriter {
-
-    /**
-     * Represents OutputStream for MIDI Data
-     *
-     * @author K.Shoji
-     */
-    private static class MidiDataOutputStream extends DataOutputStream {
-
-        /**
-         * Constructor
-         *
-         * @param outputStream the source stream
-         */
-        public MidiDataOutputStream(@NonNull final OutputStream outputStream) {
-            super(outputStream);
-        }
-
-        /**
-         * Convert the specified value into the value for MIDI data
-         *
-         * @param value the original value
-         * @return the raw data to write
-         */
-        private static int getValueToWrite(final int value) {
-            int result = value & 0x7f;
-            int currentValue = value;
-
-            while ((currentValue >>= 7) != 0) {
-                result <<= 8;
-                result |= ((currentValue & 0x7f) | 0x80);
-            }
-            return result;
-        }
-
-        /**
-         * Get the data length for the specified value
-         *
-         * @param value the value
-         * @return the data length
-         */
-        private static int variableLengthIntLength(final int value) {
-            int valueToWrite = getValueToWrite(value);
-
-            int length = 0;
-            while (true) {
-                length++;
-
-                if ((valueToWrite & 0x80) != 0) {
-                    valueToWrite >>>= 8;
-                }
-                else {
-                    break;
-                }
-            }
-
-            return length;
-        }
-
-        /**
-         * Write the specified value to the OutputStream
-         *
-         * @param value the value
-         * @throws IOException
-         */
-        private void writeVariableLengthInt(final int value) throws IOException {
-            int valueToWrite = getValueToWrite(value);
-
-            while (true) {
-                writeByte(valueToWrite & 0xff);
-
-                if ((valueToWrite & 0x80) != 0) {
-                    valueToWrite >>>= 8;
-                }
-                else {
-                    break;
-                }
-            }
-        }
-    }
+    private static final int HEADER_LENGTH = 14;
+    private static final int TRACK_HEADER_LENGTH = 8;
+    // the largest delta time which a variable length quantity can hold
+    private static final long MAX_DELTA_TIME = 0x0fffffffL;
 
     @NonNull
     @Override
@@ -120,22 +52,90 @@ public class StandardMidiFileWriter extends MidiFileWriter {
 
     @Override
     public int write(@NonNull final Sequence sequence, final int fileType, @NonNull final File file) throws IOException {
+        final ByteBuffer buffer = toByteBuffer(sequence, fileType);
         final FileOutputStream fileOutputStream = new FileOutputStream(file);
-        final int written = write(sequence, fileType, fileOutputStream);
-        fileOutputStream.close();
-        return written;
+        try {
+            writeFully(fileOutputStream.getChannel(), buffer);
+        } finally {
+            fileOutputStream.close();
+        }
+        return buffer.limit();
     }
 
     @Override
     public int write(@NonNull final Sequence sequence, final int fileType, @NonNull final OutputStream outputStream) throws IOException {
-        final MidiDataOutputStream midiDataOutputStream = new MidiDataOutputStream(outputStream);
+        final ByteBuffer buffer = toByteBuffer(sequence, fileType);
+        try {
+            if (outputStream instanceof FileOutputStream) {
+                writeFully(((FileOutputStream) outputStream).getChannel(), buffer);
+            }
+            else {
+                outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                outputStream.flush();
+            }
+        } finally {
+            outputStream.close();
+        }
+        return buffer.limit();
+    }
+
+    /**
+     * Write the {@link Sequence} as SMF into a new {@link ByteBuffer}
+     *
+     * @param sequence the sequence
+     * @param fileType the file type
+     * @return the SMF data, in a buffer positioned at 0 and limited to the data length
+     * @throws IOException the sequence can't be written as SMF
+     * @throws IllegalArgumentException the file type is not supported for the sequence
+     */
+    @NonNull
+    public ByteBuffer toByteBuffer(@NonNull final Sequence sequence, final int fileType) throws IOException {
+        if (!isFileTypeSupported(fileType, sequence)) {
+            throw new IllegalArgumentException("Unsupported file type: " + fileType);
+        }
 
         final Track[] tracks = sequence.getTracks();
-        midiDataOutputStream.writeInt(MidiFileFormat.HEADER_MThd);
-        midiDataOutputStream.writeInt(6);
-        midiDataOutputStream.writeShort(fileType);
-        midiDataOutputStream.writeShort(tracks.length);
+        final Track.Snapshot[] snapshots = new Track.Snapshot[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            // sorted, so delta times are never negative; the tracks themselves are not changed
+            snapshots[i] = tracks[i].getSortedSnapshot();
+        }
+
+        // compute the exact length first
+        final int[] trackLengths = new int[snapshots.length];
+        long length = HEADER_LENGTH;
+        for (int i = 0; i < snapshots.length; i++) {
+            trackLengths[i] = writeTrack(snapshots[i], null);
+            length += TRACK_HEADER_LENGTH + trackLengths[i];
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Sequence is too large to write: " + length + " bytes");
+        }
 
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(MidiFileFormat.HEADER_MThd);
+        buffer.putInt(HEADER_LENGTH - 8);
+        buffer.putShort((short) fileType);
+        buffer.putShort((short) tracks.length);
+        buffer.putShort((short) getDivision(sequence));
+
+        for (int i = 0; i < snapshots.length; i++) {
+            buffer.putInt(MidiFileFormat.HEADER_MTrk);
+            buffer.putInt(trackLengths[i]);
+            writeTrack(snapshots[i], buffer);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Get the division field of the SMF header
+     *
+     * @param sequence the sequence
+     * @return the division
+     */
+    private static int getDivision(@NonNull final Sequence sequence) {
         final float divisionType = sequence.getDivisionType();
         final int resolution = sequence.getResolution();
         int division = 0;
@@ -158,74 +158,139 @@ public class StandardMidiFileWriter extends MidiFileWriter {
             division = (30 << 8) * -1;
             division += resolution & 0xff;
         }
-        midiDataOutputStream.writeShort(division);
-
-        int length = 0;
-        for (final Track track : tracks) {
-            length += writeTrack(track, midiDataOutputStream);
-        }
-
-        midiDataOutputStream.close();
-        return length + 14;
+        return division;
     }
 
     /**
-     * Write {@link Track} data into {@link MidiDataOutputStream}
+     * Write the events of a {@link Track} as the data of a track chunk, without the chunk header.
+     * Channel messages are written with running status; meta and system exclusive events cancel the running status.
+     * Events with empty messages are skipped.
      *
-     * @param track                the track
-     * @param midiDataOutputStream the OutputStream
-     * @return written byte length
-     * @throws IOException
+     * @param snapshot the snapshot of the track, sorted
+     * @param buffer   the buffer to write into, or null to only compute the length
+     * @return the length of the track data
+     * @throws IOException a delta time is too large for SMF
      */
-    private static int writeTrack(@NonNull final Track track, @NonNull final MidiDataOutputStream midiDataOutputStream) throws IOException {
-        final int eventCount = track.size();
-
-        // track header
-        midiDataOutputStream.writeInt(MidiFileFormat.HEADER_MTrk);
-
-        // calculate the track length
+    private static int writeTrack(@NonNull final Track.Snapshot snapshot, @Nullable final ByteBuffer buffer) throws IOException {
+        final int eventCount = snapshot.size();
         int trackLength = 0;
+        int runningStatus = -1;
         long lastTick = 0;
-        MidiEvent midiEvent = null;
+        boolean needEndOfTrack = true;
+
         for (int i = 0; i < eventCount; i++) {
-            midiEvent = track.get(i);
-            final long tick = midiEvent.getTick();
-            trackLength += MidiDataOutputStream.variableLengthIntLength((int) (tick - lastTick));
+            final int packed = snapshot.getPackedMessage(i);
+            final int messageLength;
+            MidiMessage message = null;
+            if (packed != -1) {
+                messageLength = (packed >>> 24) & 0x3;
+            }
+            else {
+                message = snapshot.getMessage(i);
+                messageLength = message.getLength();
+            }
+            if (messageLength == 0) {
+                continue;
+            }
+
+            final long tick = snapshot.getTick(i);
+            final long deltaTime = tick - lastTick;
+            if (deltaTime > MAX_DELTA_TIME) {
+                throw new IOException("Delta time too large at tick " + tick + ": " + deltaTime);
+            }
+            trackLength += writeVariableLengthInt((int) deltaTime, buffer);
             lastTick = tick;
 
-            trackLength += midiEvent.getMessage().getLength();
+            if (packed != -1) {
+                // ShortMessage
+                final int status = packed & 0xff;
+                int start = 0;
+                if (status < 0xf0) {
+                    if (status == runningStatus) {
+                        start = 1;
+                    }
+                    runningStatus = status;
+                }
+                else {
+                    // system common and real time messages are always written with their status
+                    runningStatus = -1;
+                }
+                if (buffer != null) {
+                    for (int j = start; j < messageLength; j++) {
+                        buffer.put((byte) (packed >>> (8 * j)));
+                    }
+                }
+                trackLength += messageLength - start;
+            }
+            else if (message instanceof SysexMessage) {
+                // status, length, data
+                final byte[] data = message.getMessage();
+                if (buffer != null) {
+                    buffer.put(data[0]);
+                }
+                trackLength += 1 + writeVariableLengthInt(messageLength - 1, buffer);
+                if (buffer != null) {
+                    buffer.put(data, 1, messageLength - 1);
+                }
+                trackLength += messageLength - 1;
+                runningStatus = -1;
+            }
+            else {
+                // MetaMessage holds its type and length already, other messages are written as they are
+                if (buffer != null) {
+                    buffer.put(message.getMessage(), 0, messageLength);
+                }
+                trackLength += messageLength;
+                runningStatus = -1;
+            }
+            needEndOfTrack = !(message instanceof MetaMessage) || ((MetaMessage) message).getType() != MetaMessage.TYPE_END_OF_TRACK;
         }
 
-        // process End of Track message
-        boolean needEndOfTrack = true;
-        if (midiEvent != null && (midiEvent.getMessage() instanceof MetaMessage) && //
-            ((MetaMessage) midiEvent.getMessage()).getType() == MetaMessage.TYPE_END_OF_TRACK) {
-            needEndOfTrack = false;
-        }
-        else {
-            trackLength += 4; // End of Track
+        // write End of Track message if the last event is not one
+        if (needEndOfTrack) {
+            trackLength += writeVariableLengthInt(0, buffer);
+            if (buffer != null) {
+                buffer.put((byte) MetaMessage.META);
+                buffer.put((byte) MetaMessage.TYPE_END_OF_TRACK);
+                buffer.put((byte) 0);
+            }
+            trackLength += 3;
         }
-        midiDataOutputStream.writeInt(trackLength);
 
-        // write the track data
-        lastTick = 0;
-        for (int i = 0; i < eventCount; i++) {
-            midiEvent = track.get(i);
-            final long tick = midiEvent.getTick();
-            midiDataOutputStream.writeVariableLengthInt((int) (tick - lastTick));
-            lastTick = tick;
+        return trackLength;
+    }
 
-            midiDataOutputStream.write(midiEvent.getMessage().getMessage(), 0, midiEvent.getMessage().getLength());
+    /**
+     * Write the specified value as variable length quantity
+     *
+     * @param value  the value, 0 to 0x0fffffff
+     * @param buffer the buffer to write into, or null to only compute the length
+     * @return the written byte length
+     */
+    private static int writeVariableLengthInt(final int value, @Nullable final ByteBuffer buffer) {
+        int length = 1;
+        while (length < 5 && (value >>> (7 * length)) != 0) {
+            length++;
         }
-
-        // write End of Track message if not found.
-        if (needEndOfTrack) {
-            midiDataOutputStream.writeVariableLengthInt(0);
-            midiDataOutputStream.writeByte(MetaMessage.META);
-            midiDataOutputStream.writeByte(MetaMessage.TYPE_END_OF_TRACK);
-            midiDataOutputStream.writeVariableLengthInt(0);
+        if (buffer != null) {
+            for (int shift = 7 * (length - 1); shift > 0; shift -= 7) {
+                buffer.put((byte) (((value >>> shift) & 0x7f) | 0x80));
+            }
+            buffer.put((byte) (value & 0x7f));
         }
+        return length;
+    }
 
-        return trackLength + 4;
+    /**
+     * Write the remaining data of the buffer to the channel
+     *
+     * @param channel the channel
+     * @param buffer  the data
+     * @throws IOException
+     */
+    private static void writeFully(@NonNull final FileChannel channel, @NonNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 }
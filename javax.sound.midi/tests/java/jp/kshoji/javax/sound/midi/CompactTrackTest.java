@@ -0,0 +1,167 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Track}s in compact storage: they must hold the same events as sorted Tracks of {@link MidiEvent}s,
+ * and changes made through {@link Track#get(int)} must reach the compact storage
+ */
+public class CompactTrackTest {
+
+    @NonNull
+    private static Track createTrack(@NonNull final Random random, final int eventCount) throws InvalidMidiDataException {
+        final Track track = new Track();
+        for (int i = 0; i < eventCount; i++) {
+            track.add(TrackSortTest.createEvent(random, eventCount * 4));
+        }
+        return track;
+    }
+
+    @NonNull
+    private static Track compactCopy(@NonNull final Track track) {
+        final Track.CompactEvents compactEvents = new Track.CompactEvents();
+        for (int i = 0; i < track.size(); i++) {
+            compactEvents.add(track.get(i).getTick(), track.get(i).getMessage());
+        }
+        final Track compactTrack = new Track();
+        compactTrack.setEvents(compactEvents);
+        return compactTrack;
+    }
+
+    private static void assertSameEvents(@NonNull final Track.Snapshot expected, @NonNull final Track.Snapshot actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("event " + i, expected.getTick(i), actual.getTick(i));
+            // the ShortMessages of compact storage are subclasses writing through to it
+            assertTrue("event " + i, expected.getMessage(i).getClass().isInstance(actual.getMessage(i)));
+            assertArrayEquals("event " + i, expected.getMessage(i).getMessage(), actual.getMessage(i).getMessage());
+            assertEquals("event " + i, expected.getPackedMessage(i), actual.getPackedMessage(i));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Random random = new Random(35);
+        for (int run = 0; run < 20; run++) {
+            final Track track = createTrack(random, random.nextInt(1000));
+            final Track compactTrack = compactCopy(track);
+            assertTrue(compactTrack.isCompact());
+            assertSameEvents(track.getSortedSnapshot(), compactTrack.getSnapshot());
+            assertEquals(track.ticks(), compactTrack.ticks());
+
+            // every event through the MidiEvent API, without converting the storage
+            for (int i = 0; i < compactTrack.size(); i++) {
+                final MidiEvent event = compactTrack.get(i);
+                assertSame(event, compactTrack.get(i));
+                assertEquals(track.get(i).getTick(), event.getTick());
+                assertArrayEquals(track.get(i).getMessage().getMessage(), event.getMessage().getMessage());
+            }
+            assertTrue(compactTrack.isCompact());
+
+            // and back to MidiEvents
+            compactTrack.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+            assertFalse(compactTrack.isCompact());
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+            track.ticks();
+            compactTrack.ticks();
+            assertSameEvents(track.getSnapshot(), compactTrack.getSnapshot());
+        }
+    }
+
+    @Test
+    public void compactInPlace() throws Exception {
+        final Track track = createTrack(new Random(135), 500);
+        final Track.Snapshot expected = track.getSortedSnapshot();
+        track.compact();
+        assertTrue(track.isCompact());
+        assertSameEvents(expected, track.getSnapshot());
+    }
+
+    @Test
+    public void setTickWritesThrough() throws Exception {
+        final Track track = compactCopy(createTrack(new Random(235), 100));
+        final Track.Snapshot compactSnapshot = track.getSnapshot();
+        final MidiEvent first = track.get(0);
+        final long lastTick = track.ticks() - 1;
+
+        first.setTick(lastTick + 10);
+        assertEquals(lastTick + 10, first.getTick());
+        assertEquals(lastTick + 10, compactSnapshot.getTick(0));
+
+        // sorted again, with the same MidiEvent moved to the end
+        assertEquals(lastTick + 11, track.ticks());
+        assertFalse(track.isCompact());
+        assertSame(first, track.get(track.size() - 2));
+        assertEquals(compactSnapshot.size(), track.size());
+    }
+
+    @Test
+    public void setMessageWritesThrough() throws Exception {
+        final Track track = new Track();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 1, 5, 0), 10));
+        track.compact();
+
+        final ShortMessage note = (ShortMessage) track.get(0).getMessage();
+        note.setMessage(ShortMessage.NOTE_OFF, 2, 61, 0);
+        final ShortMessage program = (ShortMessage) track.get(1).getMessage();
+        program.setMessage(new byte[]{ (byte) 0xc3, 7 }, 2);
+
+        assertTrue(track.isCompact());
+        final Track.Snapshot snapshot = track.getSnapshot();
+        assertArrayEquals(new byte[]{ (byte) 0x82, 61, 0 }, snapshot.getMessage(0).getMessage());
+        assertArrayEquals(new byte[]{ (byte) 0xc3, 7 }, snapshot.getMessage(1).getMessage());
+        assertEquals(Track.pack(note), snapshot.getPackedMessage(0));
+        assertEquals(Track.pack(program), snapshot.getPackedMessage(1));
+    }
+
+    @Test
+    public void removeReturnedEvent() throws Exception {
+        final Track track = compactCopy(createTrack(new Random(335), 50));
+        final int size = track.size();
+        final MidiEvent[] events = new MidiEvent[size];
+        for (int i = 0; i < size; i++) {
+            events[i] = track.get(i);
+        }
+
+        assertTrue(track.remove(events[3]));
+        assertFalse(track.isCompact());
+        assertEquals(size - 1, track.size());
+        for (int i = 0; i < size - 1; i++) {
+            assertSame(events[i < 3 ? i : i + 1], track.get(i));
+        }
+    }
+
+    @Test
+    public void setTickUpdatesTempoMap() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        final Track.CompactEvents compactEvents = new Track.CompactEvents();
+        compactEvents.add(480, new MetaMessage(0x51, new byte[]{ 0x03, 0x0d, 0x40 }, 3)); // 200000 MPQ
+        compactEvents.add(1440, ShortMessage.NOTE_ON, 60, 100);
+        sequence.createTrack().setEvents(compactEvents);
+        assertEquals(500000 + 200000 * 2, sequence.getMicrosecondLength() - 200000 / 480);
+
+        sequence.getTracks()[0].get(0).setTick(960);
+        assertEquals(500000 * 2 + 200000, sequence.getMicrosecondLength() - 200000 / 480);
+    }
+
+    @Test
+    public void otherChangesKeepCompactStorage() throws Exception {
+        final Track compactTrack = compactCopy(createTrack(new Random(435), 50));
+        final Track track = createTrack(new Random(535), 50);
+        track.get(0).setTick(7);
+        track.ticks();
+        compactTrack.ticks();
+        assertTrue(compactTrack.isCompact());
+    }
+}
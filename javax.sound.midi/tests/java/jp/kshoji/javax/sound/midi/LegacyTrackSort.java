@@ -0,0 +1,94 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The sorting of {@link Track.TrackUtils#sortEvents(Track)} before the events were sorted by precomputed keys,
+ * kept as the reference for the tests and the benchmark of the key sort
+ */
+final class LegacyTrackSort {
+    private static final byte[] END_OF_TRACK = Track.END_OF_TRACK;
+
+    /**
+     * The original {@link Comparator} for MIDI data sorting
+     */
+    static final Comparator<MidiEvent> midiEventComparator = new Comparator<MidiEvent>() {
+        @Override
+        public int compare(MidiEvent lhs, MidiEvent rhs) {
+            // sort by tick
+            final int tickDifference = (int) (lhs.getTick() - rhs.getTick());
+            if (tickDifference != 0) {
+                return tickDifference * 256;
+            }
+
+            byte[] lhsMessage = lhs.getMessage().getMessage();
+            byte[] rhsMessage = rhs.getMessage().getMessage();
+
+            // apply zero if message is empty
+            if (lhsMessage == null || lhsMessage.length < 1) {
+                lhsMessage = new byte[]{ 0 };
+            }
+            if (rhsMessage == null || rhsMessage.length < 1) {
+                rhsMessage = new byte[]{ 0 };
+            }
+
+            // same timing
+            // sort by the MIDI data priority order, as:
+            // system message > control messages > note on > note off
+            // swap the priority of note on, and note off
+            int lhsInt = lhsMessage[0] & 0xf0;
+            int rhsInt = rhsMessage[0] & 0xf0;
+
+            if ((lhsInt & 0x90) == 0x80) {
+                lhsInt |= 0x10;
+            }
+            else {
+                lhsInt &= ~0x10;
+            }
+            if ((rhsInt & 0x90) == 0x80) {
+                rhsInt |= 0x10;
+            }
+            else {
+                rhsInt &= ~0x10;
+            }
+
+            return -(lhsInt - rhsInt);
+        }
+    };
+
+    private LegacyTrackSort() {
+    }
+
+    /**
+     * Sort the events as the original sortEvents did: END_OF_TRACK events are removed, the others are sorted by
+     * {@link Collections#sort(List, Comparator)}, and END_OF_TRACK is added to last
+     *
+     * @param events the events, not changed
+     * @return the sorted events
+     */
+    @NonNull
+    static List<MidiEvent> sort(@NonNull final List<MidiEvent> events) throws InvalidMidiDataException {
+        final List<MidiEvent> sorted = new ArrayList<MidiEvent>();
+        for (final MidiEvent event : events) {
+            if (!Arrays.equals(END_OF_TRACK, event.getMessage().getMessage())) {
+                sorted.add(event);
+            }
+        }
+
+        Collections.sort(sorted, midiEventComparator);
+
+        if (sorted.isEmpty()) {
+            sorted.add(new MidiEvent(new MetaMessage(END_OF_TRACK), 0));
+        }
+        else {
+            sorted.add(new MidiEvent(new MetaMessage(END_OF_TRACK), sorted.get(sorted.size() - 1).getTick() + 1));
+        }
+        return sorted;
+    }
+}
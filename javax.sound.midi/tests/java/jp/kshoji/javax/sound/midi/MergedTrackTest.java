@@ -0,0 +1,204 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link MergedTrack}: the k-way merge must give the order of sorting all the events in one {@link Track}
+ */
+public class MergedTrackTest {
+
+    /**
+     * Create tracks of random events. Every other track is sorted, the others are left in the order of adding.
+     *
+     * @param random     the random source
+     * @param trackCount the number of tracks
+     * @param maxTick    the maximum tick
+     * @return the tracks
+     */
+    @NonNull
+    private static Track[] createTracks(@NonNull final Random random, final int trackCount, final int maxTick) throws InvalidMidiDataException {
+        final Track[] tracks = new Track[trackCount];
+        for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+            tracks[trackIndex] = new Track();
+            final int eventCount = trackIndex == 1 ? 0 : random.nextInt(300);
+            for (int i = 0; i < eventCount; i++) {
+                tracks[trackIndex].add(TrackSortTest.createEvent(random, maxTick));
+            }
+            if (trackIndex % 2 == 0) {
+                tracks[trackIndex].ticks();
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Merge the tracks the original way: all the events of the enabled tracks, by track, in one sorted Track
+     *
+     * @param tracks         the tracks
+     * @param disabledTracks the disabled flags by track index
+     * @return the events, ending with END_OF_TRACK
+     */
+    @NonNull
+    private static List<MidiEvent> mergeBySorting(@NonNull final Track[] tracks, @NonNull final boolean[] disabledTracks) {
+        final Track merged = new Track();
+        for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+            if (trackIndex < disabledTracks.length && disabledTracks[trackIndex]) {
+                continue;
+            }
+            for (int i = 0; i < tracks[trackIndex].size(); i++) {
+                final MidiEvent event = tracks[trackIndex].get(i);
+                if (!Track.isEndOfTrack(event.getMessage())) {
+                    merged.add(event);
+                }
+            }
+        }
+        merged.ticks();
+
+        final List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (int i = 0; i < merged.size(); i++) {
+            events.add(merged.get(i));
+        }
+        return events;
+    }
+
+    private static void assertEvents(@NonNull final List<MidiEvent> expected, @NonNull final Track actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size() - 1; i++) {
+            assertSame("index " + i, expected.get(i), actual.get(i));
+        }
+        final MidiEvent endOfTrack = actual.get(actual.size() - 1);
+        assertTrue(Track.isEndOfTrack(endOfTrack.getMessage()));
+        assertEquals(expected.get(expected.size() - 1).getTick(), endOfTrack.getTick());
+    }
+
+    @Test
+    public void mergeOrder() throws Exception {
+        final Random random = new Random(30);
+        for (int run = 0; run < 50; run++) {
+            final Track[] tracks = createTracks(random, 1 + random.nextInt(8), run % 2 == 0 ? 20 : 2000);
+            final MergedTrack merged = MergedTrack.merge(tracks);
+            final List<MidiEvent> expected = mergeBySorting(tracks, new boolean[0]);
+
+            assertEquals(expected.size(), merged.size());
+            for (int i = 0; i < expected.size() - 1; i++) {
+                final MidiEvent event = merged.get(i);
+                assertSame("index " + i, expected.get(i), event);
+                assertEquals(event.getTick(), merged.getTick(i));
+
+                // the event comes from the track it is reported to be from
+                final Track source = tracks[merged.getTrackIndex(i)];
+                boolean found = false;
+                for (int j = 0; j < source.size() && !found; j++) {
+                    found = source.get(j) == event;
+                }
+                assertTrue(found);
+            }
+
+            final int last = merged.size() - 1;
+            assertEquals(MergedTrack.NO_TRACK, merged.getTrackIndex(last));
+            assertTrue(Track.isEndOfTrack(merged.get(last).getMessage()));
+            assertEquals(expected.get(last).getTick(), merged.getTick(last));
+        }
+    }
+
+    @Test
+    public void sameKeysInTrackOrder() throws Exception {
+        // events of the same tick and priority are played in the order of their tracks
+        final Track[] tracks = { new Track(), new Track(), new Track() };
+        final MidiEvent[] notes = new MidiEvent[6];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i, 100), 10);
+        }
+        tracks[2].add(notes[4]);
+        tracks[2].add(notes[5]);
+        tracks[0].add(notes[0]);
+        tracks[1].add(notes[2]);
+        tracks[0].add(notes[1]);
+        tracks[1].add(notes[3]);
+
+        final MergedTrack merged = MergedTrack.merge(tracks);
+        assertEquals(notes.length + 1, merged.size());
+        for (int i = 0; i < notes.length; i++) {
+            assertSame(notes[i], merged.get(i));
+            assertEquals(i / 2, merged.getTrackIndex(i));
+        }
+        assertEquals(11, merged.getTick(notes.length));
+    }
+
+    @Test
+    public void disabledTracks() throws Exception {
+        final Random random = new Random(130);
+        for (int run = 0; run < 50; run++) {
+            final Track[] tracks = createTracks(random, 1 + random.nextInt(8), 500);
+            final MergedTrack merged = MergedTrack.merge(tracks);
+
+            // the mask may be shorter than the tracks, tracks out of its range are enabled
+            final boolean[] disabledTracks = new boolean[random.nextInt(tracks.length + 1)];
+            for (int i = 0; i < disabledTracks.length; i++) {
+                disabledTracks[i] = random.nextBoolean();
+            }
+
+            final List<MidiEvent> expected = mergeBySorting(tracks, disabledTracks);
+            assertEvents(expected, merged.toTrack(disabledTracks));
+
+            int enabledCount = 0;
+            for (int i = 0; i < merged.size(); i++) {
+                final int trackIndex = merged.getTrackIndex(i);
+                final boolean enabled = trackIndex == MergedTrack.NO_TRACK || trackIndex >= disabledTracks.length || !disabledTracks[trackIndex];
+                assertEquals(enabled, merged.isEnabled(i, disabledTracks));
+                if (enabled) {
+                    enabledCount++;
+                }
+            }
+            assertEquals(expected.size(), enabledCount);
+        }
+    }
+
+    @Test
+    public void allTracksDisabled() throws Exception {
+        final Track[] tracks = createTracks(new Random(230), 3, 100);
+        final MergedTrack merged = MergedTrack.merge(tracks);
+        final Track track = merged.toTrack(new boolean[]{ true, true, true });
+        assertEquals(1, track.size());
+        assertTrue(Track.isEndOfTrack(track.get(0).getMessage()));
+        assertEquals(0, track.get(0).getTick());
+        assertTrue(merged.isEnabled(merged.size() - 1, new boolean[]{ true, true, true }));
+    }
+
+    @Test
+    public void noEvents() throws Exception {
+        final MergedTrack noTracks = MergedTrack.merge(new Track[0]);
+        assertEquals(1, noTracks.size());
+        assertEquals(0, noTracks.getTick(0));
+        assertEquals(MergedTrack.NO_TRACK, noTracks.getTrackIndex(0));
+
+        final MergedTrack emptyTracks = MergedTrack.merge(new Track[]{ new Track(), new Track() });
+        assertEquals(1, emptyTracks.size());
+        assertTrue(Track.isEndOfTrack(emptyTracks.get(0).getMessage()));
+    }
+
+    @Test
+    public void validity() throws Exception {
+        final Track[] tracks = createTracks(new Random(330), 3, 100);
+        final MergedTrack merged = MergedTrack.merge(tracks);
+        assertTrue(merged.isValidFor(tracks));
+        assertTrue(merged.isValidFor(tracks.clone()));
+        assertFalse(merged.isValidFor(new Track[]{ tracks[0], tracks[1] }));
+        assertFalse(merged.isValidFor(new Track[]{ tracks[0], tracks[1], new Track() }));
+
+        tracks[2].add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 5));
+        assertFalse(merged.isValidFor(tracks));
+        assertTrue(MergedTrack.merge(tracks).isValidFor(tracks));
+    }
+}
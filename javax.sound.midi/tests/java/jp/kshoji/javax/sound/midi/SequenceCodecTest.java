@@ -0,0 +1,139 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link SequenceCodec}: decoding gives the sorted Sequence back, encoding does not change the Sequence, and
+ * damaged data is rejected with {@link InvalidMidiDataException} before anything is allocated for it
+ */
+public class SequenceCodecTest {
+    // offsets in the encoded header
+    private static final int SEGMENT_COUNT_OFFSET = 16;
+    private static final int TRACK_COUNT_OFFSET = 20;
+
+    @NonNull
+    private static Sequence createSequence(@NonNull final Random random, final int trackCount, final int eventsPerTrack) throws InvalidMidiDataException {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        for (int t = 0; t < trackCount; t++) {
+            final Track track = sequence.createTrack();
+            for (int i = 0; i < eventsPerTrack; i++) {
+                track.add(TrackSortTest.createEvent(random, eventsPerTrack * 10));
+            }
+        }
+        return sequence;
+    }
+
+    private static void assertSameEvents(@NonNull final Track.Snapshot expected, @NonNull final Track.Snapshot actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("event " + i, expected.getTick(i), actual.getTick(i));
+            assertSame("event " + i, expected.get(i).getMessage().getClass(), actual.get(i).getMessage().getClass());
+            assertArrayEquals("event " + i, expected.get(i).getMessage().getMessage(), actual.get(i).getMessage().getMessage());
+        }
+    }
+
+    private static void assertRejected(@NonNull final ByteBuffer data) {
+        try {
+            SequenceCodec.decode(data);
+            fail("decoding passed");
+        } catch (final InvalidMidiDataException ignored) {
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Random random = new Random(34);
+        for (int run = 0; run < 20; run++) {
+            final Sequence sequence = createSequence(random, random.nextInt(5), random.nextInt(500));
+            final Sequence decoded = SequenceCodec.decode(SequenceCodec.encode(sequence));
+
+            assertEquals(sequence.getDivisionType(), decoded.getDivisionType(), 0f);
+            assertEquals(sequence.getResolution(), decoded.getResolution());
+            assertEquals(sequence.getTracks().length, decoded.getTracks().length);
+            for (int t = 0; t < sequence.getTracks().length; t++) {
+                assertSameEvents(sequence.getTracks()[t].getSortedSnapshot(), decoded.getTracks()[t].getSnapshot());
+            }
+            assertEquals(sequence.getTickLength(), decoded.getTickLength());
+            assertEquals(sequence.getMicrosecondLength(), decoded.getMicrosecondLength());
+
+            final TempoMap expectedTempoMap = sequence.getTempoMap();
+            final TempoMap decodedTempoMap = decoded.getTempoMap();
+            assertEquals(expectedTempoMap.getSegmentCount(), decodedTempoMap.getSegmentCount());
+            for (int i = 0; i < expectedTempoMap.getSegmentCount(); i++) {
+                assertEquals(expectedTempoMap.getSegmentTick(i), decodedTempoMap.getSegmentTick(i));
+                assertEquals(expectedTempoMap.getSegmentTempoMPQ(i), decodedTempoMap.getSegmentTempoMPQ(i));
+            }
+        }
+    }
+
+    @Test
+    public void encodeDoesNotChangeTracks() throws Exception {
+        final Sequence sequence = createSequence(new Random(134), 3, 200);
+        final Track track = sequence.getTracks()[1];
+        final MidiEvent[] added = new MidiEvent[track.size()];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = track.get(i);
+        }
+        final int modificationCount = track.getModificationCount();
+
+        final ByteBuffer encoded = SequenceCodec.encode(sequence);
+
+        // still unsorted, in the order of adding, and without END_OF_TRACK
+        assertEquals(modificationCount, track.getModificationCount());
+        assertEquals(added.length, track.size());
+        for (int i = 0; i < added.length; i++) {
+            assertSame(added[i], track.get(i));
+        }
+
+        // the encoded track is sorted all the same
+        final Track.Snapshot decoded = SequenceCodec.decode(encoded).getTracks()[1].getSnapshot();
+        track.ticks();
+        assertSameEvents(track.getSnapshot(), decoded);
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        final ByteBuffer encoded = SequenceCodec.encode(createSequence(new Random(234), 2, 20));
+        for (int length = 0; length < encoded.limit(); length++) {
+            final ByteBuffer truncated = encoded.duplicate();
+            truncated.limit(length);
+            assertRejected(truncated);
+        }
+    }
+
+    @Test
+    public void countsLargerThanData() throws Exception {
+        final ByteBuffer encoded = SequenceCodec.encode(createSequence(new Random(334), 2, 20));
+        final int firstTrackOffset = 24 + Math.abs(encoded.getInt(SEGMENT_COUNT_OFFSET)) * (8 + 4);
+
+        // Math.abs(Integer.MIN_VALUE) is negative, and counts whose byte sizes overflow int
+        final int[] counts = { Integer.MIN_VALUE, Integer.MAX_VALUE, -Integer.MAX_VALUE, 0x20000000, 0x15555556, 1000 };
+        for (final int count : counts) {
+            final ByteBuffer segments = ByteBuffer.allocate(encoded.limit()).put(encoded.duplicate());
+            segments.putInt(SEGMENT_COUNT_OFFSET, count).flip();
+            assertRejected(segments);
+
+            final ByteBuffer tracks = ByteBuffer.allocate(encoded.limit()).put(encoded.duplicate());
+            tracks.putInt(TRACK_COUNT_OFFSET, count).flip();
+            assertRejected(tracks);
+
+            final ByteBuffer events = ByteBuffer.allocate(encoded.limit()).put(encoded.duplicate());
+            events.putInt(firstTrackOffset, count).flip();
+            assertRejected(events);
+
+            final ByteBuffer longMessageBytes = ByteBuffer.allocate(encoded.limit()).put(encoded.duplicate());
+            longMessageBytes.putInt(firstTrackOffset + 4, count).flip();
+            assertRejected(longMessageBytes);
+        }
+    }
+}
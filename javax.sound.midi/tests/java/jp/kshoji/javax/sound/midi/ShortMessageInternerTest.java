@@ -0,0 +1,93 @@
+package jp.kshoji.javax.sound.midi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link ShortMessageInterner}: one shared instance per distinct message, which can't be modified
+ */
+public class ShortMessageInternerTest {
+
+    @Test
+    public void sameDataSameInstance() throws Exception {
+        final ShortMessageInterner interner = new ShortMessageInterner();
+        final ShortMessage noteOn = interner.intern(0x90, 60, 100);
+        assertSame(noteOn, interner.intern(0x90, 60, 100));
+        assertNotSame(noteOn, interner.intern(0x90, 60, 101));
+        assertNotSame(noteOn, interner.intern(0x91, 60, 100));
+        assertArrayEquals(new byte[]{ (byte) 0x90, 60, 100 }, noteOn.getMessage());
+
+        // data bytes the status does not use are ignored
+        assertSame(interner.intern(0xc0, 5, 0), interner.intern(0xc0, 5, 99));
+        assertSame(interner.intern(0xf8, 0, 0), interner.intern(0xf8, 1, 2));
+        assertEquals(5, interner.size());
+    }
+
+    @Test
+    public void grows() throws Exception {
+        final ShortMessageInterner interner = new ShortMessageInterner();
+        final ShortMessage[] messages = new ShortMessage[128 * 16];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = interner.intern(0x90 | (i >> 7), i & 0x7f, 64);
+        }
+        assertEquals(messages.length, interner.size());
+        for (int i = 0; i < messages.length; i++) {
+            assertSame(messages[i], interner.intern(0x90 | (i >> 7), i & 0x7f, 64));
+        }
+    }
+
+    @Test
+    public void invalidData() throws Exception {
+        final ShortMessageInterner interner = new ShortMessageInterner();
+        try {
+            interner.intern(0x90, 128, 0);
+            fail("data1 out of range");
+        } catch (final InvalidMidiDataException ignored) {
+        }
+        try {
+            interner.intern(0xf4, 0, 0);
+            fail("undefined status");
+        } catch (final InvalidMidiDataException ignored) {
+        }
+        assertEquals(0, interner.size());
+    }
+
+    @Test
+    public void sharedMessagesRejectChanges() throws Exception {
+        final ShortMessage message = new ShortMessageInterner().intern(0x90, 60, 100);
+        try {
+            message.setMessage(ShortMessage.TIMING_CLOCK);
+            fail("setMessage(int)");
+        } catch (final UnsupportedOperationException ignored) {
+        }
+        try {
+            message.setMessage(0x80, 60, 0);
+            fail("setMessage(int, int, int)");
+        } catch (final UnsupportedOperationException ignored) {
+        }
+        try {
+            message.setMessage(ShortMessage.NOTE_OFF, 1, 60, 0);
+            fail("setMessage(int, int, int, int)");
+        } catch (final UnsupportedOperationException ignored) {
+        }
+        try {
+            message.setMessage(new byte[]{ (byte) 0x80, 60, 0 }, 3);
+            fail("setMessage(byte[], int)");
+        } catch (final UnsupportedOperationException ignored) {
+        }
+        assertArrayEquals(new byte[]{ (byte) 0x90, 60, 100 }, message.getMessage());
+
+        // getMessage returns a copy, and clone a modifiable message
+        message.getMessage()[1] = 61;
+        assertEquals(60, message.getData1());
+        final ShortMessage copy = (ShortMessage) message.clone();
+        copy.setMessage(0x80, 60, 0);
+        assertEquals(0x80, copy.getStatus());
+        assertEquals(0x90, message.getStatus());
+    }
+}
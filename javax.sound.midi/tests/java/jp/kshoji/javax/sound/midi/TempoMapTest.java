@@ -0,0 +1,254 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of {@link TempoMap} conversions against the linear scan over every tempo change it replaced
+ */
+public class TempoMapTest {
+
+    /**
+     * The original conversions of MidiUtils.TempoCache, walking every tempo change of track 0.
+     * Offsets are longs, the original int snapshot overflowed after ~35 minutes.
+     */
+    private static final class LinearScan {
+        final long[] ticks;
+        final int[] tempos;
+        final int resolution;
+        final boolean firstTempoIsFake;
+
+        LinearScan(@NonNull final Sequence sequence) {
+            final ArrayList<MidiEvent> list = new ArrayList<MidiEvent>();
+            final Track track = sequence.getTracks()[0];
+            for (int i = 0; i < track.size(); i++) {
+                final MidiEvent event = track.get(i);
+                if (MidiUtils.isMetaTempo(event.getMessage())) {
+                    list.add(event);
+                }
+            }
+            int size = list.size() + 1;
+            boolean fake = true;
+            if (size > 1 && list.get(0).getTick() == 0) {
+                size--;
+                fake = false;
+            }
+            firstTempoIsFake = fake;
+            ticks = new long[size];
+            tempos = new int[size];
+            int e = 0;
+            if (firstTempoIsFake) {
+                tempos[0] = MidiUtils.DEFAULT_TEMPO_MPQ;
+                e++;
+            }
+            for (final MidiEvent event : list) {
+                ticks[e] = event.getTick();
+                tempos[e] = MidiUtils.getTempoMPQ(event.getMessage());
+                e++;
+            }
+            resolution = sequence.getResolution();
+        }
+
+        long tick2microsecond(final long tick) {
+            long micros = 0;
+            int index = 0;
+            int i = 1;
+            while (i < ticks.length && ticks[i] <= tick) {
+                micros += MidiUtils.ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], resolution);
+                index = i;
+                i++;
+            }
+            return micros + MidiUtils.ticks2microsec(tick - ticks[index], tempos[index], resolution);
+        }
+
+        long microsecond2tick(final long micros) {
+            if (micros <= 0) {
+                return 0;
+            }
+            long us = 0;
+            int i = 1;
+            while (i < ticks.length) {
+                final long nextTime = us + MidiUtils.ticks2microsec(ticks[i] - ticks[i - 1], tempos[i - 1], resolution);
+                if (nextTime > micros) {
+                    break;
+                }
+                us = nextTime;
+                i++;
+            }
+            return ticks[i - 1] + MidiUtils.microsec2ticks(micros - us, tempos[i - 1], resolution);
+        }
+
+        float getTempoMPQAt(final long tick, final float startTempoMPQ) {
+            for (int i = 0; i < ticks.length; i++) {
+                if (ticks[i] > tick) {
+                    if (i > 0) i--;
+                    if (startTempoMPQ > 0 && i == 0 && firstTempoIsFake) {
+                        return startTempoMPQ;
+                    }
+                    return (float) tempos[i];
+                }
+            }
+            return tempos[tempos.length - 1];
+        }
+    }
+
+    @NonNull
+    private static MidiEvent createTempo(final long tick, final int mpq) throws InvalidMidiDataException {
+        final byte[] data = { (byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq };
+        return new MidiEvent(new MetaMessage(0x51, data, data.length), tick);
+    }
+
+    @NonNull
+    private static MidiEvent createNote(final long tick) throws InvalidMidiDataException {
+        return new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), tick);
+    }
+
+    private static void assertSameAsLinearScan(@NonNull final Sequence sequence, final long maxTick) {
+        // the map doesn't need track 0 to be sorted, the linear scan does
+        final TempoMap unsortedMap = sequence.getTempoMap();
+        sequence.getTracks()[0].ticks();
+        final TempoMap map = sequence.getTempoMap();
+        final LinearScan scan = new LinearScan(sequence);
+        for (long tick = 0; tick <= maxTick; tick += 7) {
+            assertEquals("tick " + tick, scan.tick2microsecond(tick), unsortedMap.tick2microsecond(tick));
+            assertEquals("tick " + tick, scan.tick2microsecond(tick), map.tick2microsecond(tick));
+            assertEquals("tick " + tick, scan.tick2microsecond(tick), MidiUtils.tick2microsecond(sequence, tick, null));
+            assertEquals("tick " + tick, scan.getTempoMPQAt(tick, -1.0f), map.getTempoMPQAt(tick, -1.0f), 0.0f);
+            assertEquals("tick " + tick, scan.getTempoMPQAt(tick, 400000.0f), map.getTempoMPQAt(tick, 400000.0f), 0.0f);
+        }
+        final long maxMicros = scan.tick2microsecond(maxTick);
+        for (long micros = -1000; micros <= maxMicros; micros += 997) {
+            assertEquals("us " + micros, scan.microsecond2tick(micros), map.microsecond2tick(micros));
+            assertEquals("us " + micros, scan.microsecond2tick(micros), MidiUtils.microsecond2tick(sequence, micros, null));
+        }
+    }
+
+    @Test
+    public void defaultTempo() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480, 1);
+        sequence.getTracks()[0].add(createNote(960));
+
+        final TempoMap map = sequence.getTempoMap();
+        assertEquals(1, map.getSegmentCount());
+        assertEquals(MidiUtils.DEFAULT_TEMPO_MPQ, map.getTempoMPQAt(0));
+        assertEquals(1000000, map.tick2microsecond(960));
+        assertSameAsLinearScan(sequence, 5000);
+    }
+
+    @Test
+    public void tempoChanges() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 96, 2);
+        final Track track = sequence.getTracks()[0];
+        track.add(createTempo(0, 600000));
+        track.add(createTempo(100, 250000));
+        track.add(createTempo(101, 1000000));
+        track.add(createTempo(1000, 333333));
+        track.add(createTempo(1000, 700000)); // two changes at the same tick, the latter wins
+        track.add(createTempo(5000, 123456));
+        sequence.getTracks()[1].add(createNote(4000));
+        sequence.getTracks()[1].add(createTempo(3000, 100000)); // ignored, tempo is only read from track 0
+
+        assertEquals(6, sequence.getTempoMap().getSegmentCount());
+        assertSameAsLinearScan(sequence, 8000);
+    }
+
+    @Test
+    public void firstTempoAfterTickZero() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480, 1);
+        final Track track = sequence.getTracks()[0];
+        track.add(createTempo(480, 250000));
+        track.add(createTempo(1440, 750000));
+
+        final TempoMap map = sequence.getTempoMap();
+        assertEquals(3, map.getSegmentCount());
+        assertEquals(400000.0f, map.getTempoMPQAt(100, 400000.0f), 0.0f);
+        assertEquals(MidiUtils.DEFAULT_TEMPO_MPQ, map.getTempoMPQAt(100, -1.0f), 0.0f);
+        assertSameAsLinearScan(sequence, 3000);
+    }
+
+    @Test
+    public void randomTempoChanges() throws Exception {
+        final Random random = new Random(26);
+        for (int run = 0; run < 20; run++) {
+            final Sequence sequence = new Sequence(Sequence.PPQ, 24 + random.nextInt(960), 1);
+            final Track track = sequence.getTracks()[0];
+            final int count = random.nextInt(40);
+            for (int i = 0; i < count; i++) {
+                track.add(createTempo(random.nextInt(20000), 100000 + random.nextInt(1500000)));
+            }
+            assertSameAsLinearScan(sequence, 25000);
+        }
+    }
+
+    @Test
+    public void ticksPastLastSegment() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480, 1);
+        final Track track = sequence.getTracks()[0];
+        track.add(createTempo(0, 500000));
+        track.add(createTempo(960, 1000000));
+
+        track.ticks();
+        final TempoMap map = sequence.getTempoMap();
+        final LinearScan scan = new LinearScan(sequence);
+        assertEquals(1, map.segmentAtTick(Long.MAX_VALUE / 1000000));
+        for (long tick = 960; tick < 10000000000L; tick = tick * 3 + 1) {
+            final long micros = map.tick2microsecond(tick);
+            assertEquals(scan.tick2microsecond(tick), micros);
+            assertEquals(1000000 + (tick - 960) * 1000000.0 / 480, micros, 1);
+            assertEquals(scan.microsecond2tick(micros), map.microsecond2tick(micros));
+            assertEquals(tick, map.microsecond2tick(micros), 1);
+        }
+
+        // longer than the int snapshot of the linear scan could hold
+        final long hour = 3600L * 1000000L;
+        assertEquals(hour, map.tick2microsecond(map.microsecond2tick(hour)));
+    }
+
+    @Test
+    public void smpteDivisions() throws Exception {
+        final float[] divisions = { Sequence.SMPTE_24, Sequence.SMPTE_25, Sequence.SMPTE_30DROP, Sequence.SMPTE_30 };
+        for (final float division : divisions) {
+            final Sequence sequence = new Sequence(division, 40, 1);
+            // tempo events don't affect SMPTE timing
+            sequence.getTracks()[0].add(createTempo(0, 250000));
+            sequence.getTracks()[0].add(createTempo(500, 900000));
+            sequence.getTracks()[0].add(createNote(12345));
+
+            for (long tick = 0; tick < 100000; tick += 13) {
+                final double seconds = (double) tick / (double) (division * 40);
+                assertEquals((long) (1000000 * seconds), MidiUtils.tick2microsecond(sequence, tick, null));
+            }
+            for (long micros = 0; micros < 10000000; micros += 1013) {
+                assertEquals((long) (((double) micros) * division * 40 / 1000000), MidiUtils.microsecond2tick(sequence, micros, null));
+            }
+            assertEquals(MidiUtils.tick2microsecond(sequence, sequence.getTickLength(), null), sequence.getMicrosecondLength());
+        }
+    }
+
+    @Test
+    public void mapFollowsTrackZero() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480, 1);
+        final Track track = sequence.getTracks()[0];
+        track.add(createTempo(0, 500000));
+
+        final TempoMap map = sequence.getTempoMap();
+        assertSame(map, sequence.getTempoMap());
+
+        final MidiEvent tempo = createTempo(960, 250000);
+        track.add(tempo);
+        assertNotSame(map, sequence.getTempoMap());
+        assertSameAsLinearScan(sequence, 3000);
+
+        track.remove(tempo);
+        assertEquals(1, sequence.getTempoMap().getSegmentCount());
+        assertSameAsLinearScan(sequence, 3000);
+    }
+}
@@ -0,0 +1,285 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link Track.Snapshot}s, and of {@link Track#ticks()} sorting again after events change
+ */
+public class TrackSnapshotTest {
+
+    @NonNull
+    private static MidiEvent createNote(final long tick) throws InvalidMidiDataException {
+        return new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), tick);
+    }
+
+    @NonNull
+    private static long[] getTicks(@NonNull final Track.Snapshot snapshot) {
+        final long[] ticks = new long[snapshot.size()];
+        for (int i = 0; i < ticks.length; i++) {
+            ticks[i] = snapshot.getTick(i);
+        }
+        return ticks;
+    }
+
+    private static void assertTicks(@NonNull final long[] expected, @NonNull final long[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void snapshotIsShared() throws Exception {
+        final Track track = new Track();
+        track.add(createNote(0));
+        track.add(createNote(10));
+
+        final Track.Snapshot snapshot = track.getSnapshot();
+        assertSame(snapshot, track.getSnapshot());
+        assertEquals(2, snapshot.size());
+
+        // changes replace the snapshot, older snapshots are not changed
+        final MidiEvent added = createNote(5);
+        track.add(added);
+        final Track.Snapshot afterAdd = track.getSnapshot();
+        assertNotSame(snapshot, afterAdd);
+        assertEquals(2, snapshot.size());
+        assertEquals(3, afterAdd.size());
+
+        track.remove(added);
+        assertEquals(3, afterAdd.size());
+        assertEquals(2, track.getSnapshot().size());
+    }
+
+    @Test
+    public void setTickSortsAgain() throws Exception {
+        final Track track = new Track();
+        final MidiEvent first = createNote(0);
+        track.add(first);
+        track.add(createNote(10));
+        track.add(createNote(20));
+        assertEquals(21, track.ticks());
+        final Track.Snapshot sorted = track.getSnapshot();
+        assertTicks(new long[]{ 0, 10, 20, 21 }, getTicks(sorted));
+
+        // the event is shared with the snapshot, so its new tick is seen without any sorting
+        first.setTick(30);
+        assertTicks(new long[]{ 30, 10, 20, 21 }, getTicks(sorted));
+
+        // the track drops the snapshot, and sorts again
+        assertEquals(31, track.ticks());
+        assertNotSame(sorted, track.getSnapshot());
+        assertTicks(new long[]{ 10, 20, 30, 31 }, getTicks(track.getSnapshot()));
+        assertSame(first, track.get(2));
+
+        // ticks of events which are not in the track don't change it
+        final Track.Snapshot unchanged = track.getSnapshot();
+        createNote(0).setTick(100);
+        assertEquals(31, track.ticks());
+        assertTicks(new long[]{ 10, 20, 30, 31 }, getTicks(unchanged));
+    }
+
+    @Test
+    public void sortedSnapshotLeavesTrack() throws Exception {
+        final Track track = new Track();
+        final MidiEvent late = createNote(20);
+        final MidiEvent early = createNote(10);
+        track.add(late);
+        track.add(early);
+        final int modificationCount = track.getModificationCount();
+
+        final Track.Snapshot sorted = track.getSortedSnapshot();
+        assertTicks(new long[]{ 10, 20, 21 }, getTicks(sorted));
+        assertSame(early, sorted.get(0));
+        assertArrayEquals(new byte[]{ -1, 47, 0 }, sorted.get(2).getMessage().getMessage());
+
+        // the track is still in the order of adding
+        assertEquals(modificationCount, track.getModificationCount());
+        assertTicks(new long[]{ 20, 10 }, getTicks(track.getSnapshot()));
+
+        // a sorted track gives its own snapshot
+        track.ticks();
+        assertSame(track.getSnapshot(), track.getSortedSnapshot());
+
+        // changes in place are seen
+        early.setTick(30);
+        assertTicks(new long[]{ 20, 30, 31 }, getTicks(track.getSortedSnapshot()));
+    }
+
+    @Test
+    public void setTickUpdatesTempoMap() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480, 1);
+        final byte[] data = { 0x03, 0x0d, 0x40 }; // 200000 MPQ
+        final MidiEvent tempo = new MidiEvent(new MetaMessage(0x51, data, data.length), 480);
+        sequence.getTracks()[0].add(tempo);
+        assertEquals(500000 + 200000, sequence.getTempoMap().tick2microsecond(960));
+
+        tempo.setTick(0);
+        assertEquals(400000, sequence.getTempoMap().tick2microsecond(960));
+    }
+
+    @Test
+    public void snapshotsWhileChanging() throws Exception {
+        // the writer keeps a window of LIVE consecutive events, adding the next one then removing the oldest one,
+        // so any consistent snapshot holds LIVE or LIVE + 1 consecutive ticks in insertion order
+        final int LIVE = 50;
+        final int ADDS = 20000;
+        final Track track = new Track();
+        final List<MidiEvent> added = new ArrayList<MidiEvent>();
+        for (int i = 0; i < LIVE; i++) {
+            final MidiEvent event = createNote(i);
+            added.add(event);
+            track.add(event);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = LIVE; i < LIVE + ADDS; i++) {
+                        final MidiEvent event = createNote(i);
+                        added.add(event);
+                        track.add(event);
+                        if (!track.remove(added.get(i - LIVE))) {
+                            throw new AssertionError("event " + (i - LIVE) + " not removed");
+                        }
+                    }
+                } catch (final Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+
+        final Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long lastFirstTick = 0;
+                        while (writer.isAlive()) {
+                            final Track.Snapshot snapshot = track.getSnapshot();
+                            final int size = snapshot.size();
+                            if (size != LIVE && size != LIVE + 1) {
+                                throw new AssertionError("snapshot of " + size + " events");
+                            }
+                            final long firstTick = snapshot.getTick(0);
+                            if (firstTick < lastFirstTick) {
+                                throw new AssertionError("snapshot went back from " + lastFirstTick + " to " + firstTick);
+                            }
+                            lastFirstTick = firstTick;
+                            for (int i = 0; i < size; i++) {
+                                if (snapshot.get(i).getTick() != firstTick + i) {
+                                    throw new AssertionError("tick " + snapshot.get(i).getTick() + " at " + i + " after " + firstTick);
+                                }
+                            }
+                            if (snapshot.size() != size) {
+                                throw new AssertionError("snapshot size changed");
+                            }
+                        }
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (final Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // the final snapshot is the list of events
+        final Track.Snapshot snapshot = track.getSnapshot();
+        assertEquals(LIVE, snapshot.size());
+        assertEquals(LIVE, track.size());
+        for (int i = 0; i < LIVE; i++) {
+            assertSame(added.get(ADDS + i), snapshot.get(i));
+            assertSame(added.get(ADDS + i), track.get(i));
+        }
+    }
+
+    @Test
+    public void snapshotsWhileSorting() throws Exception {
+        // events are added in reverse order, readers sort the track and read the sorted snapshots
+        final Track track = new Track();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 5000; i > 0; i--) {
+                        track.add(createNote(i));
+                    }
+                } catch (final Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+
+        final Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writer.isAlive()) {
+                            final long ticks = track.ticks();
+                            final Track.Snapshot snapshot = track.getSnapshot();
+                            // a snapshot taken after the sort may already hold later adds, but never loses events
+                            assertTrue(snapshot.size() > 0);
+                            assertTrue(ticks >= 0);
+                            for (int i = 0; i < snapshot.size(); i++) {
+                                if (snapshot.get(i) == null) {
+                                    fail("null event at " + i);
+                                }
+                            }
+                        }
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (final Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+
+        assertEquals(5001, track.ticks());
+        final Track.Snapshot snapshot = track.getSnapshot();
+        assertEquals(5001, snapshot.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i + 1, snapshot.getTick(i));
+        }
+        assertArrayEquals(new byte[]{ -1, 47, 0 }, snapshot.get(5000).getMessage().getMessage());
+    }
+}
@@ -0,0 +1,76 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertSame;
+
+/**
+ * Benchmark of {@link Track.TrackUtils#sortEvents(Track)} against the original comparator sort, on tracks of
+ * 100k events. Not part of the unit tests, run with {@code ./gradlew test -Pbenchmarks}.
+ */
+public class TrackSortBenchmark {
+    private static final int EVENT_COUNT = 100000;
+    private static final int PASSES = 15;
+
+    /**
+     * Time both sorts of the events, and print the median times
+     *
+     * @param name   the name of the input
+     * @param events the events, in the order they are added to the track
+     */
+    private static void benchmark(@NonNull final String name, @NonNull final List<MidiEvent> events) throws InvalidMidiDataException {
+        final long[] legacyTimes = new long[PASSES];
+        final long[] keyTimes = new long[PASSES];
+        for (int pass = 0; pass < PASSES; pass++) {
+            long start = System.nanoTime();
+            final List<MidiEvent> expected = LegacyTrackSort.sort(events);
+            legacyTimes[pass] = System.nanoTime() - start;
+
+            final Track track = new Track();
+            for (final MidiEvent event : events) {
+                track.add(event);
+            }
+            start = System.nanoTime();
+            Track.TrackUtils.sortEvents(track);
+            keyTimes[pass] = System.nanoTime() - start;
+
+            for (int i = 0; i < expected.size() - 1; i++) {
+                assertSame(expected.get(i), track.get(i));
+            }
+        }
+
+        Arrays.sort(legacyTimes);
+        Arrays.sort(keyTimes);
+        System.out.printf("TrackSortBenchmark %s, %d events: comparator %.2f ms, keys %.2f ms (median of %d)%n",
+                name, events.size(), legacyTimes[PASSES / 2] / 1e6, keyTimes[PASSES / 2] / 1e6, PASSES);
+    }
+
+    @Test
+    public void shuffled() throws Exception {
+        final Random random = new Random(28);
+        final List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            events.add(TrackSortTest.createEvent(random, EVENT_COUNT / 4));
+        }
+        benchmark("shuffled", events);
+    }
+
+    @Test
+    public void fileOrder() throws Exception {
+        // tracks read from files are nearly always sorted already
+        final Random random = new Random(28);
+        final List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            events.add(TrackSortTest.createEvent(random, EVENT_COUNT / 4));
+        }
+        final List<MidiEvent> sorted = LegacyTrackSort.sort(events);
+        benchmark("in file order", sorted.subList(0, sorted.size() - 1));
+    }
+}
@@ -0,0 +1,163 @@
+package jp.kshoji.javax.sound.midi;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the sorting of {@link Track} events by precomputed keys, against the original comparator sort
+ */
+public class TrackSortTest {
+
+    /**
+     * Create a random event: mostly notes and controls on few ticks, so many events share their tick and priority
+     *
+     * @param random  the random source
+     * @param maxTick the maximum tick
+     * @return the event
+     */
+    @NonNull
+    static MidiEvent createEvent(@NonNull final Random random, final int maxTick) throws InvalidMidiDataException {
+        final long tick = random.nextInt(maxTick + 1);
+        final MidiMessage message;
+        switch (random.nextInt(10)) {
+            case 0:
+                message = new MetaMessage(0x51, new byte[]{ 7, (byte) 0xa1, 0x20 }, 3);
+                break;
+            case 1:
+                message = new SysexMessage(new byte[]{ (byte) 0xf0, 0x7e, 0x7f, 0x09, 0x01, (byte) 0xf7 }, 6);
+                break;
+            case 2:
+                message = new ShortMessage(ShortMessage.CONTROL_CHANGE, random.nextInt(16), random.nextInt(128), random.nextInt(128));
+                break;
+            case 3:
+                message = new ShortMessage(ShortMessage.PROGRAM_CHANGE, random.nextInt(16), random.nextInt(128), 0);
+                break;
+            case 4:
+                message = new ShortMessage(ShortMessage.PITCH_BEND, random.nextInt(16), random.nextInt(128), random.nextInt(128));
+                break;
+            case 5:
+            case 6:
+                message = new ShortMessage(ShortMessage.NOTE_OFF, random.nextInt(16), random.nextInt(128), 0);
+                break;
+            default:
+                message = new ShortMessage(ShortMessage.NOTE_ON, random.nextInt(16), random.nextInt(128), random.nextInt(128));
+                break;
+        }
+        return new MidiEvent(message, tick);
+    }
+
+    /**
+     * Sort the events with a {@link Track} and with the original sort, and check the orders are the same.
+     * Both sorts are stable, so events of the same tick and priority must stay in the order they were added.
+     *
+     * @param events the events
+     */
+    private static void assertSameOrder(@NonNull final List<MidiEvent> events) throws InvalidMidiDataException {
+        final Track track = new Track();
+        for (final MidiEvent event : events) {
+            track.add(event);
+        }
+        final List<MidiEvent> expected = LegacyTrackSort.sort(events);
+
+        final long ticks = track.ticks();
+        assertEquals(expected.size(), track.size());
+        for (int i = 0; i < expected.size() - 1; i++) {
+            assertSame("index " + i, expected.get(i), track.get(i));
+        }
+        final MidiEvent endOfTrack = track.get(track.size() - 1);
+        assertTrue(Track.isEndOfTrack(endOfTrack.getMessage()));
+        assertEquals(expected.get(expected.size() - 1).getTick(), endOfTrack.getTick());
+        assertEquals(endOfTrack.getTick(), ticks);
+    }
+
+    @Test
+    public void sortKeyOrdersAsComparator() throws Exception {
+        final Random random = new Random(28);
+        for (int i = 0; i < 100000; i++) {
+            final MidiEvent lhs = createEvent(random, 3);
+            final MidiEvent rhs = createEvent(random, 3);
+            final int expected = Integer.signum(LegacyTrackSort.midiEventComparator.compare(lhs, rhs));
+            assertEquals(expected, Long.signum(Long.compare(Track.sortKey(lhs), Track.sortKey(rhs))));
+        }
+    }
+
+    @Test
+    public void emptyMessage() throws Exception {
+        final MidiEvent empty = new MidiEvent(new MetaMessage(new byte[0]), 5);
+        final MidiEvent noteOff = new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 5);
+        assertEquals(Integer.signum(LegacyTrackSort.midiEventComparator.compare(empty, noteOff)),
+                Long.signum(Long.compare(Track.sortKey(empty), Track.sortKey(noteOff))));
+    }
+
+    @Test
+    public void stableAgainstComparator() throws Exception {
+        final Random random = new Random(1028);
+        // sizes around the insertion sort runs, and larger ones with several merge passes
+        final int[] sizes = { 0, 1, 2, 15, 16, 17, 31, 32, 33, 100, 1000, 10000 };
+        for (final int size : sizes) {
+            for (final int maxTick : new int[]{ 0, 3, 100, 100000 }) {
+                final List<MidiEvent> events = new ArrayList<MidiEvent>();
+                for (int i = 0; i < size; i++) {
+                    events.add(createEvent(random, maxTick));
+                }
+                assertSameOrder(events);
+            }
+        }
+    }
+
+    @Test
+    public void sortedAndReversedInput() throws Exception {
+        final Random random = new Random(2028);
+        final List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (int i = 0; i < 5000; i++) {
+            events.add(createEvent(random, 500));
+        }
+
+        final List<MidiEvent> sorted = LegacyTrackSort.sort(events);
+        sorted.remove(sorted.size() - 1);
+        assertSameOrder(sorted);
+
+        final List<MidiEvent> reversed = new ArrayList<MidiEvent>();
+        for (int i = sorted.size() - 1; i >= 0; i--) {
+            reversed.add(sorted.get(i));
+        }
+        assertSameOrder(reversed);
+    }
+
+    @Test
+    public void endOfTrackIsMoved() throws Exception {
+        final Random random = new Random(3028);
+        final List<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (int i = 0; i < 200; i++) {
+            events.add(createEvent(random, 50));
+            if (i % 50 == 0) {
+                events.add(new MidiEvent(new MetaMessage(0x2f, new byte[0], 0), random.nextInt(50)));
+            }
+        }
+        assertSameOrder(events);
+    }
+
+    @Test
+    public void ticksBeyondIntRange() throws Exception {
+        // the original comparator overflowed on tick differences of 2^23 and more, the keys do not
+        final Track track = new Track();
+        final long[] ticks = { 1L << 40, 0, 1L << 23, (1L << 31) + 5, 1L << 24, 3 };
+        for (final long tick : ticks) {
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), tick));
+        }
+        assertEquals((1L << 40) + 1, track.ticks());
+        final long[] expected = { 0, 3, 1L << 23, 1L << 24, (1L << 31) + 5, 1L << 40, (1L << 40) + 1 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], track.get(i).getTick());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.Sequence;
+
+/**
+ * Benchmark of the parse throughput of {@link ByteBufferMidiFileReader} against {@link StandardMidiFileReader}, reading
+ * a generated 16-track file of about 1.6 million events from disk. Not part of the unit tests, run with
+ * {@code ./gradlew test -Pbenchmarks}.
+ */
+public class ByteBufferMidiFileReaderBenchmark {
+    private static final int TRACK_COUNT = 16;
+    private static final int EVENTS_PER_TRACK = 100000;
+    private static final int PASSES = 10;
+
+    private interface Reader {
+        @NonNull
+        Sequence read(@NonNull File file) throws Exception;
+    }
+
+    private static void benchmark(@NonNull final String name, @NonNull final File file, @NonNull final Reader reader) throws Exception {
+        final long[] times = new long[PASSES];
+        for (int pass = 0; pass < PASSES; pass++) {
+            final long start = System.nanoTime();
+            reader.read(file);
+            times[pass] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        final double milliseconds = times[PASSES / 2] / 1e6;
+        System.out.printf("ByteBufferMidiFileReaderBenchmark %s: %.1f ms, %.1f MB/s (median of %d, %d KB)%n",
+                name, milliseconds, file.length() / 1e3 / milliseconds, PASSES, file.length() / 1024);
+    }
+
+    @Test
+    public void parseThroughput() throws Exception {
+        final byte[] bytes = RandomMidiFiles.create(new Random(31), 1, 480, TRACK_COUNT, EVENTS_PER_TRACK);
+        final File file = File.createTempFile("ByteBufferMidiFileReaderBenchmark", ".mid");
+        try {
+            final FileOutputStream outputStream = new FileOutputStream(file);
+            try {
+                outputStream.write(bytes);
+            } finally {
+                outputStream.close();
+            }
+
+            // both readers must read the same sequence
+            ByteBufferMidiFileReaderTest.assertSameSequence(new StandardMidiFileReader().getSequence(file), new ByteBufferMidiFileReader().getSequence(file));
+
+            benchmark("StandardMidiFileReader", file, new Reader() {
+                @NonNull
+                @Override
+                public Sequence read(@NonNull final File file) throws Exception {
+                    return new StandardMidiFileReader().getSequence(file);
+                }
+            });
+            benchmark("ByteBufferMidiFileReader", file, new Reader() {
+                @NonNull
+                @Override
+                public Sequence read(@NonNull final File file) throws Exception {
+                    return new ByteBufferMidiFileReader().getSequence(file);
+                }
+            });
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.Track;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link ByteBufferMidiFileReader}: for valid files, the {@link Sequence} must be the same as the one read by
+ * {@link StandardMidiFileReader}
+ */
+public class ByteBufferMidiFileReaderTest {
+
+    /**
+     * Check that the sequences have the same timing and the same events, of the same classes, in the same order.
+     * Shared ShortMessages of {@link jp.kshoji.javax.sound.midi.ShortMessageInterner} count as ShortMessages.
+     *
+     * @param expected the expected sequence
+     * @param actual   the actual sequence
+     */
+    static void assertSameSequence(@NonNull final Sequence expected, @NonNull final Sequence actual) {
+        assertEquals(expected.getDivisionType(), actual.getDivisionType(), 0f);
+        assertEquals(expected.getResolution(), actual.getResolution());
+        assertEquals(expected.getTickLength(), actual.getTickLength());
+        final Track[] expectedTracks = expected.getTracks();
+        final Track[] actualTracks = actual.getTracks();
+        assertEquals(expectedTracks.length, actualTracks.length);
+        for (int t = 0; t < expectedTracks.length; t++) {
+            final Track.Snapshot expectedEvents = expectedTracks[t].getSnapshot();
+            final Track.Snapshot actualEvents = actualTracks[t].getSnapshot();
+            assertEquals("track " + t, expectedEvents.size(), actualEvents.size());
+            for (int i = 0; i < expectedEvents.size(); i++) {
+                final MidiMessage expectedMessage = expectedEvents.get(i).getMessage();
+                final MidiMessage actualMessage = actualEvents.get(i).getMessage();
+                assertEquals("track " + t + " event " + i, expectedEvents.getTick(i), actualEvents.getTick(i));
+                assertTrue("track " + t + " event " + i, expectedMessage.getClass().isInstance(actualMessage));
+                assertArrayEquals("track " + t + " event " + i, expectedMessage.getMessage(), actualMessage.getMessage());
+            }
+        }
+    }
+
+    @NonNull
+    static Sequence readWithStandardReader(@NonNull final byte[] file) throws Exception {
+        return new StandardMidiFileReader().getSequence(new ByteArrayInputStream(file));
+    }
+
+    @Test
+    public void sameAsStandardReader() throws Exception {
+        final Random random = new Random(31);
+        for (int run = 0; run < 30; run++) {
+            final int trackCount = run % 3 == 0 ? 1 : 1 + random.nextInt(16);
+            final byte[] file = RandomMidiFiles.create(random, trackCount == 1 ? 0 : 1, 24 + random.nextInt(960), trackCount, random.nextInt(2000));
+            final Sequence expected = readWithStandardReader(file);
+
+            assertSameSequence(expected, new ByteBufferMidiFileReader().getSequence(ByteBuffer.wrap(file)));
+            assertSameSequence(expected, new ByteBufferMidiFileReader().getSequence(new ByteArrayInputStream(file)));
+        }
+    }
+
+    @Test
+    public void sameAsStandardReaderFromFile() throws Exception {
+        final byte[] bytes = RandomMidiFiles.create(new Random(131), 1, 480, 8, 5000);
+        final File file = File.createTempFile("ByteBufferMidiFileReaderTest", ".mid");
+        try {
+            final FileOutputStream outputStream = new FileOutputStream(file);
+            try {
+                outputStream.write(bytes);
+            } finally {
+                outputStream.close();
+            }
+
+            // the file is memory-mapped
+            assertSameSequence(new StandardMidiFileReader().getSequence(file), new ByteBufferMidiFileReader().getSequence(file));
+            assertEquals(bytes.length, new ByteBufferMidiFileReader().getMidiFileFormat(file).getByteLength());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void directAndReadOnlyBuffers() throws Exception {
+        final byte[] file = RandomMidiFiles.create(new Random(231), 1, 96, 4, 1000);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(file.length);
+        direct.put(file).flip();
+
+        // a buffer not starting at zero, read without changing its position
+        final ByteBuffer offset = ByteBuffer.allocate(file.length + 10);
+        offset.position(10);
+        offset.put(file).position(10);
+        final ByteBuffer readOnly = offset.asReadOnlyBuffer();
+
+        final Sequence expected = readWithStandardReader(file);
+        assertSameSequence(expected, new ByteBufferMidiFileReader().getSequence(direct));
+        assertSameSequence(expected, new ByteBufferMidiFileReader().getSequence(readOnly));
+        assertEquals(10, readOnly.position());
+    }
+
+    @Test
+    public void smpteDivisions() throws Exception {
+        final float[] divisionTypes = { Sequence.SMPTE_24, Sequence.SMPTE_25, Sequence.SMPTE_30DROP, Sequence.SMPTE_30 };
+        final int[] formats = { 24, 25, 29, 30 };
+        for (int i = 0; i < formats.length; i++) {
+            final byte[] file = RandomMidiFiles.create(new Random(i), 0, ((-formats[i] & 0xff) << 8) | 40, 1, 100);
+            final Sequence sequence = new ByteBufferMidiFileReader().getSequence(ByteBuffer.wrap(file));
+            assertEquals(divisionTypes[i], sequence.getDivisionType(), 0f);
+            assertEquals(40, sequence.getResolution());
+        }
+    }
+
+    @Test
+    public void unknownChunksAreSkipped() throws Exception {
+        final byte[] file = RandomMidiFiles.create(new Random(331), 1, 480, 2, 300);
+        final Sequence expected = readWithStandardReader(file);
+
+        // insert a chunk of an unknown type between the header and the first track
+        final byte[] unknown = { 'X', 'F', 'I', 'H', 0, 0, 0, 4, 1, 2, 3, 4 };
+        final ByteBuffer withChunk = ByteBuffer.allocate(file.length + unknown.length);
+        withChunk.put(file, 0, 14).put(unknown).put(file, 14, file.length - 14).flip();
+        assertSameSequence(expected, new ByteBufferMidiFileReader().getSequence(withChunk));
+    }
+
+    @Test
+    public void parallelSameAsSequential() throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            final Random random = new Random(32);
+            for (int run = 0; run < 30; run++) {
+                final int trackCount = 1 + random.nextInt(20);
+                final ByteBuffer file = ByteBuffer.wrap(RandomMidiFiles.create(random, 1, 480, trackCount, random.nextInt(3000)));
+                final Sequence sequential = new ByteBufferMidiFileReader().getSequence(file);
+
+                assertSameSequence(sequential, new ByteBufferMidiFileReader(pool).getSequence(file));
+                assertSameSequence(sequential, new ByteBufferMidiFileReader(ByteBufferMidiFileReader.getDefaultExecutor()).getSequence(file));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void callingThreadExecutor() throws Exception {
+        final ByteBuffer file = ByteBuffer.wrap(RandomMidiFiles.create(new Random(132), 1, 480, 6, 1000));
+        final Executor direct = new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                command.run();
+            }
+        };
+        assertSameSequence(new ByteBufferMidiFileReader().getSequence(file), new ByteBufferMidiFileReader(direct).getSequence(file));
+    }
+
+    @Test
+    public void rejectedTracksAreReadOnCallingThread() throws Exception {
+        final ByteBuffer file = ByteBuffer.wrap(RandomMidiFiles.create(new Random(232), 1, 480, 6, 1000));
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        pool.shutdown();
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("the pool accepted a task after shutdown");
+        } catch (final RejectedExecutionException ignored) {
+        }
+        assertSameSequence(new ByteBufferMidiFileReader().getSequence(file), new ByteBufferMidiFileReader(pool).getSequence(file));
+    }
+
+    @Test
+    public void invalidTrackInParallel() throws Exception {
+        final Random random = new Random(332);
+        final byte[] invalidTrack = { 0, (byte) 0x90, 60, 100, 0, (byte) 0xf1, 0, 0, (byte) 0xff, 0x2f, 0 }; // f1 is undefined
+        final ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            // the invalid track read on the calling thread, and by the Executor
+            for (int invalidIndex = 0; invalidIndex < 4; invalidIndex++) {
+                final byte[][] tracks = new byte[4][];
+                for (int i = 0; i < tracks.length; i++) {
+                    tracks[i] = i == invalidIndex ? invalidTrack : RandomMidiFiles.createTrack(random, i, 2000);
+                }
+                final ByteBuffer file = ByteBuffer.wrap(RandomMidiFiles.createFile(1, 480, tracks));
+                try {
+                    new ByteBufferMidiFileReader().getSequence(file);
+                    fail("sequential reading passed");
+                } catch (final InvalidMidiDataException ignored) {
+                }
+                try {
+                    new ByteBufferMidiFileReader(pool).getSequence(file);
+                    fail("parallel reading passed");
+                } catch (final InvalidMidiDataException ignored) {
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void interruptedWhileWaiting() throws Exception {
+        // an Executor which never runs the tracks, so the calling thread waits for them
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final Executor never = new Executor() {
+            @Override
+            public void execute(@NonNull final Runnable command) {
+                queued.add(command);
+            }
+        };
+        final ByteBuffer file = ByteBuffer.wrap(RandomMidiFiles.create(new Random(432), 1, 480, 4, 100));
+
+        Thread.currentThread().interrupt();
+        try {
+            new ByteBufferMidiFileReader(never).getSequence(file);
+            fail("reading passed");
+        } catch (final InterruptedIOException ignored) {
+        }
+        // the interrupt is kept, and clearing it here
+        assertTrue(Thread.interrupted());
+
+        // the waiting tracks were cancelled, running them does nothing
+        assertEquals(3, queued.size());
+        for (final Runnable task : queued) {
+            task.run();
+        }
+    }
+
+    /**
+     * Count the ShortMessage objects of the tracks
+     *
+     * @param tracks the tracks
+     * @return the number of distinct ShortMessage instances, and the number of distinct message data
+     */
+    @NonNull
+    private static int[] countShortMessages(@NonNull final Track... tracks) {
+        final Set<MidiMessage> instances = Collections.newSetFromMap(new IdentityHashMap<MidiMessage, Boolean>());
+        final Set<String> data = new HashSet<String>();
+        for (final Track track : tracks) {
+            for (int i = 0; i < track.size(); i++) {
+                final MidiMessage message = track.get(i).getMessage();
+                if (message instanceof ShortMessage) {
+                    instances.add(message);
+                    data.add(Arrays.toString(message.getMessage()));
+                }
+            }
+        }
+        return new int[]{ instances.size(), data.size() };
+    }
+
+    /**
+     * Create the data of a track of notes, as in typical files: two octaves of pitches, a few velocities
+     *
+     * @param random    the random source
+     * @param channel   the channel
+     * @param noteCount the number of notes
+     * @return the track data
+     */
+    @NonNull
+    private static byte[] createNoteTrack(@NonNull final Random random, final int channel, final int noteCount) {
+        final ByteArrayOutputStream track = new ByteArrayOutputStream();
+        for (int i = 0; i < noteCount; i++) {
+            final int note = 48 + random.nextInt(25);
+            track.write(0);
+            track.write(0x90 | channel);
+            track.write(note);
+            track.write(80 + 10 * random.nextInt(4));
+            RandomMidiFiles.writeVariableLengthInt(track, 1 + random.nextInt(480));
+            track.write(0x80 | channel);
+            track.write(note);
+            track.write(0);
+        }
+        track.write(0);
+        track.write(0xff);
+        track.write(0x2f);
+        track.write(0);
+        return track.toByteArray();
+    }
+
+    @Test
+    public void internedShortMessages() throws Exception {
+        final Random random = new Random(37);
+        final byte[][] tracks = new byte[8][];
+        for (int t = 0; t < tracks.length; t++) {
+            tracks[t] = createNoteTrack(random, t, 10000);
+        }
+        final byte[] file = RandomMidiFiles.createFile(1, 480, tracks);
+        final Sequence expected = readWithStandardReader(file);
+
+        final ByteBufferMidiFileReader byteBufferReader = new ByteBufferMidiFileReader();
+        byteBufferReader.setInternShortMessages(true);
+        final Sequence interned = byteBufferReader.getSequence(ByteBuffer.wrap(file));
+        final StandardMidiFileReader standardReader = new StandardMidiFileReader();
+        standardReader.setInternShortMessages(true);
+        final Sequence standardInterned = standardReader.getSequence(new ByteArrayInputStream(file));
+
+        assertSameSequence(expected, interned);
+        assertSameSequence(expected, standardInterned);
+
+        // without interning, one object per ShortMessage event
+        final int[] counts = countShortMessages(expected.getTracks());
+        assertEquals(tracks.length * 10000 * 2, counts[0]);
+
+        // StandardMidiFileReader shares messages in the whole file
+        final int[] standardCounts = countShortMessages(standardInterned.getTracks());
+        assertEquals(counts[1], standardCounts[1]);
+        assertEquals(standardCounts[1], standardCounts[0]);
+
+        // ByteBufferMidiFileReader in each track, as tracks may be read in parallel
+        int internedMessages = 0;
+        for (final Track track : interned.getTracks()) {
+            final int[] trackCounts = countShortMessages(track);
+            assertEquals(trackCounts[1], trackCounts[0]);
+            internedMessages += trackCounts[0];
+        }
+        // 25 pitches, 4 velocities and note off, on 8 channels
+        assertTrue(counts[0] + " messages, " + internedMessages + " interned", internedMessages <= tracks.length * 25 * 5);
+    }
+}
@@ -0,0 +1,157 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Sequence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link MidiFileProbe}: a file passing the probe must be readable strictly by {@link ByteBufferMidiFileReader}
+ */
+public class MidiFileProbeTest {
+
+    /**
+     * Create a format 0 file with one track
+     *
+     * @param trackData the events of the track
+     * @return the file
+     */
+    @NonNull
+    private static ByteBuffer createFile(@NonNull final byte[] trackData) {
+        final ByteBuffer buffer = ByteBuffer.allocate(22 + trackData.length);
+        buffer.putInt(0x4d546864).putInt(6).putShort((short) 0).putShort((short) 1).putShort((short) 480);
+        buffer.putInt(0x4d54726b).putInt(trackData.length).put(trackData);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertRejectedByBoth(@NonNull final ByteBuffer file) throws Exception {
+        try {
+            MidiFileProbe.probe(file);
+            fail("probe passed");
+        } catch (final InvalidMidiDataException ignored) {
+        }
+        try {
+            new ByteBufferMidiFileReader().getSequence(file);
+            fail("strict reading passed");
+        } catch (final InvalidMidiDataException ignored) {
+        }
+    }
+
+    @Test
+    public void probe() throws Exception {
+        final ByteBuffer file = createFile(new byte[]{
+                0, (byte) 0x90, 60, 100,
+                120, 60, 0,
+                0, (byte) 0xff, 0x2f, 0 });
+        final MidiFileProbe probe = MidiFileProbe.probe(file);
+        final Sequence sequence = new ByteBufferMidiFileReader().getSequence(file);
+        assertEquals(1, probe.getNoteCount());
+        assertEquals(1, probe.getChannelMask());
+        assertEquals(sequence.getTickLength(), probe.getTickLength());
+        assertEquals(sequence.getMicrosecondLength(), probe.getMicrosecondLength());
+    }
+
+    @Test
+    public void dataOutOfRange() throws Exception {
+        // data2 of NOTE_ON
+        assertRejectedByBoth(createFile(new byte[]{ 0, (byte) 0x90, 60, (byte) 0xe4, 0, (byte) 0xff, 0x2f, 0 }));
+        // data1 of PROGRAM_CHANGE
+        assertRejectedByBoth(createFile(new byte[]{ 0, (byte) 0xc0, (byte) 0x85, 0, (byte) 0xff, 0x2f, 0 }));
+        // data of SONG_POSITION_POINTER
+        assertRejectedByBoth(createFile(new byte[]{ 0, (byte) 0xf2, 1, (byte) 0x80, 0, (byte) 0xff, 0x2f, 0 }));
+    }
+
+    @Test
+    public void unreadableSystemMessage() throws Exception {
+        // BUS_SELECT can't be created as a ShortMessage
+        assertRejectedByBoth(createFile(new byte[]{ 0, (byte) 0xf5, 1, 0, (byte) 0xff, 0x2f, 0 }));
+    }
+
+    @Test
+    public void endOfTrackCutOff() throws Exception {
+        // END_OF_TRACK with data beyond the end of the track
+        assertRejectedByBoth(createFile(new byte[]{ 0, (byte) 0x90, 60, 100, 0, (byte) 0xff, 0x2f, 5 }));
+    }
+
+    @Test
+    public void variableLengthQuantityTooLong() throws Exception {
+        // a delta time of 5 bytes
+        assertRejectedByBoth(createFile(new byte[]{ (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0, (byte) 0x90, 60, 100, 0, (byte) 0xff, 0x2f, 0 }));
+        // a SysEx length of 5 bytes
+        assertRejectedByBoth(createFile(new byte[]{ 0, (byte) 0xf0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1, (byte) 0xf7, 0, (byte) 0xff, 0x2f, 0 }));
+
+        // 4 bytes is the longest allowed
+        final ByteBuffer file = createFile(new byte[]{ (byte) 0x80, (byte) 0x80, (byte) 0x80, 1, (byte) 0x90, 60, 100, 0, (byte) 0xff, 0x2f, 0 });
+        assertEquals(1, MidiFileProbe.probe(file).getNoteCount());
+        assertEquals(2, new ByteBufferMidiFileReader().getSequence(file).getTickLength());
+    }
+
+    @Test
+    public void negativeLengthRejected() throws Exception {
+        // lengths of 5 bytes, which overflow to negative values and moved the position of the probe backwards
+        final byte[] negative = { (byte) 0x8f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f };
+        final byte[] sysex = new byte[2 + negative.length + 4];
+        sysex[1] = (byte) 0xf0;
+        System.arraycopy(negative, 0, sysex, 2, negative.length);
+        System.arraycopy(new byte[]{ 0, (byte) 0xff, 0x2f, 0 }, 0, sysex, 2 + negative.length, 4);
+        assertRejectedByBoth(createFile(sysex));
+
+        final byte[] meta = new byte[3 + negative.length + 4];
+        meta[1] = (byte) 0xff;
+        meta[2] = 0x01;
+        System.arraycopy(negative, 0, meta, 3, negative.length);
+        System.arraycopy(new byte[]{ 0, (byte) 0xff, 0x2f, 0 }, 0, meta, 3 + negative.length, 4);
+        assertRejectedByBoth(createFile(meta));
+    }
+
+    @Test
+    public void progressiveLenientReport() throws Exception {
+        // the last track chunk is cut off by the end of the file: the probe passes, the lenient reader reports it
+        final ByteBuffer file = createFile(new byte[]{ 0, (byte) 0x90, 60, 100, 120, 60, 0, 0, (byte) 0xff, 0x2f, 0 });
+        file.putInt(18, 100);
+        final RecoveryReport report = new RecoveryReport();
+        final ProgressiveSequence sequence = new ByteBufferMidiFileReader().getSequenceProgressively(file, report);
+        sequence.awaitLoaded();
+        assertTrue(report.hasProblems());
+        assertEquals(3, sequence.getTracks()[0].size());
+
+        // an undamaged file has nothing to report
+        final RecoveryReport validReport = new RecoveryReport();
+        final ProgressiveSequence validSequence = new ByteBufferMidiFileReader().getSequenceProgressively(createFile(new byte[]{ 0, (byte) 0x90, 60, 100, 120, 60, 0, 0, (byte) 0xff, 0x2f, 0 }), validReport);
+        validSequence.awaitLoaded();
+        assertFalse(validReport.hasProblems());
+        assertEquals(3, validSequence.getTracks()[0].size());
+    }
+
+    @Test
+    public void damagedStructureFailsProbe() throws Exception {
+        // the first of two track chunks is 4 bytes too long, so the second chunk header is only found by the lenient reader
+        final byte[] trackData = { 0, (byte) 0x90, 60, 100, 120, 60, 0, 0, (byte) 0xff, 0x2f, 0 };
+        final ByteBuffer file = ByteBuffer.allocate(22 + trackData.length + 12);
+        file.putInt(0x4d546864).putInt(6).putShort((short) 1).putShort((short) 2).putShort((short) 480);
+        file.putInt(0x4d54726b).putInt(trackData.length + 4).put(trackData);
+        file.putInt(0x4d54726b).putInt(4).put(new byte[]{ 0, (byte) 0xff, 0x2f, 0 });
+        file.flip();
+
+        try {
+            new ByteBufferMidiFileReader().getSequenceProgressively(file, new RecoveryReport());
+            fail("probe passed");
+        } catch (final InvalidMidiDataException ignored) {
+        }
+        final RecoveryReport report = new RecoveryReport();
+        final Sequence sequence = new ByteBufferMidiFileReader().getSequence(file, report);
+        assertTrue(report.hasProblems());
+        assertEquals(2, sequence.getTracks().length);
+        assertEquals(3, sequence.getTracks()[0].size());
+    }
+}
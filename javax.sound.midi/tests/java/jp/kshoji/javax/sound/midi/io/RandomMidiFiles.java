@@ -0,0 +1,161 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Generator of valid Standard MIDI Files with random events, written byte by byte so the readers are tested
+ * against files they did not write themselves: running status, multi-byte delta times, SysEx, meta and system messages.
+ */
+final class RandomMidiFiles {
+    private static final int[] CHANNEL_COMMANDS = { 0x80, 0x90, 0x90, 0x90, 0xa0, 0xb0, 0xb0, 0xc0, 0xd0, 0xe0 };
+
+    private RandomMidiFiles() {
+    }
+
+    /**
+     * Create a file
+     *
+     * @param random         the random source
+     * @param format         the MIDI file type, 0 or 1
+     * @param division       the division of the header: ticks per quarter note, or a negative SMPTE format in the upper byte
+     * @param trackCount     the number of tracks
+     * @param eventsPerTrack the number of events per track
+     * @return the file
+     */
+    @NonNull
+    static byte[] create(@NonNull final Random random, final int format, final int division, final int trackCount, final int eventsPerTrack) {
+        final byte[][] tracks = new byte[trackCount][];
+        for (int t = 0; t < trackCount; t++) {
+            tracks[t] = createTrack(random, t, eventsPerTrack);
+        }
+        return createFile(format, division, tracks);
+    }
+
+    /**
+     * Create a file of the specified track chunks
+     *
+     * @param format   the MIDI file type
+     * @param division the division of the header
+     * @param tracks   the data of the track chunks
+     * @return the file
+     */
+    @NonNull
+    static byte[] createFile(final int format, final int division, @NonNull final byte[]... tracks) {
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        writeInt(file, 0x4d546864); // MThd
+        writeInt(file, 6);
+        writeShort(file, format);
+        writeShort(file, tracks.length);
+        writeShort(file, division);
+        for (final byte[] track : tracks) {
+            writeInt(file, 0x4d54726b); // MTrk
+            writeInt(file, track.length);
+            file.write(track, 0, track.length);
+        }
+        return file.toByteArray();
+    }
+
+    /**
+     * Create the data of a track chunk, ending with END_OF_TRACK
+     *
+     * @param random     the random source
+     * @param trackIndex the index of the track, its main channel
+     * @param eventCount the number of events
+     * @return the track data
+     */
+    @NonNull
+    static byte[] createTrack(@NonNull final Random random, final int trackIndex, final int eventCount) {
+        final ByteArrayOutputStream track = new ByteArrayOutputStream();
+        int runningStatus = -1;
+        for (int i = 0; i < eventCount; i++) {
+            // mostly short delta times, some of 2 to 4 bytes
+            final int kind = random.nextInt(100);
+            final int delta = kind < 40 ? 0 : kind < 90 ? random.nextInt(0x80) : kind < 98 ? random.nextInt(0x4000) : random.nextInt(0x200000);
+            writeVariableLengthInt(track, delta);
+
+            final int type = random.nextInt(100);
+            if (type < 88) {
+                final int channel = random.nextInt(4) == 0 ? random.nextInt(16) : trackIndex % 16;
+                final int status = CHANNEL_COMMANDS[random.nextInt(CHANNEL_COMMANDS.length)] | channel;
+                if (status != runningStatus || random.nextInt(4) == 0) {
+                    track.write(status);
+                }
+                runningStatus = status;
+                track.write(random.nextInt(128));
+                if ((status & 0xf0) != 0xc0 && (status & 0xf0) != 0xd0) {
+                    track.write(random.nextInt(128));
+                }
+            }
+            else if (type < 92) {
+                // tempo, text, time signature or key signature
+                final int[] metaTypes = { 0x51, 0x01, 0x58, 0x59 };
+                final int metaType = metaTypes[random.nextInt(metaTypes.length)];
+                final int length = metaType == 0x51 ? 3 : metaType == 0x58 ? 4 : metaType == 0x59 ? 2 : random.nextInt(200);
+                track.write(0xff);
+                track.write(metaType);
+                writeVariableLengthInt(track, length);
+                for (int j = 0; j < length; j++) {
+                    track.write(metaType == 0x51 ? 1 + random.nextInt(255) : random.nextInt(128));
+                }
+                runningStatus = -1;
+            }
+            else if (type < 96) {
+                // SysEx, or a SysEx continuation
+                final int length = 1 + random.nextInt(150);
+                track.write(random.nextBoolean() ? 0xf0 : 0xf7);
+                writeVariableLengthInt(track, length);
+                for (int j = 0; j < length - 1; j++) {
+                    track.write(random.nextInt(128));
+                }
+                track.write(0xf7);
+                runningStatus = -1;
+            }
+            else {
+                // system common and real time messages
+                final int[] systemStatuses = { 0xf2, 0xf3, 0xf6, 0xf8, 0xfa, 0xfc };
+                final int status = systemStatuses[random.nextInt(systemStatuses.length)];
+                track.write(status);
+                if (status == 0xf2) {
+                    track.write(random.nextInt(128));
+                    track.write(random.nextInt(128));
+                }
+                else if (status == 0xf3) {
+                    track.write(random.nextInt(128));
+                }
+                // a system message sets running status in the readers, so the next channel message has its status byte
+                runningStatus = status;
+            }
+        }
+        writeVariableLengthInt(track, random.nextInt(100));
+        track.write(0xff);
+        track.write(0x2f);
+        track.write(0);
+        return track.toByteArray();
+    }
+
+    static void writeVariableLengthInt(@NonNull final ByteArrayOutputStream stream, final int value) {
+        if (value >= 0x200000) {
+            stream.write(0x80 | (value >>> 21));
+        }
+        if (value >= 0x4000) {
+            stream.write(0x80 | ((value >>> 14) & 0x7f));
+        }
+        if (value >= 0x80) {
+            stream.write(0x80 | ((value >>> 7) & 0x7f));
+        }
+        stream.write(value & 0x7f);
+    }
+
+    private static void writeInt(@NonNull final ByteArrayOutputStream stream, final int value) {
+        writeShort(stream, value >>> 16);
+        writeShort(stream, value);
+    }
+
+    private static void writeShort(@NonNull final ByteArrayOutputStream stream, final int value) {
+        stream.write(value >>> 8);
+        stream.write(value);
+    }
+}
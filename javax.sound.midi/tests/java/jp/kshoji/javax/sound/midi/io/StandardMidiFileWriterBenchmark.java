@@ -0,0 +1,58 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.Sequence;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark of {@link StandardMidiFileWriter}, writing a sequence of 8 tracks with 100000 notes each to a ByteBuffer and
+ * to a File. Not part of the unit tests, run with {@code ./gradlew test -Pbenchmarks}.
+ */
+public class StandardMidiFileWriterBenchmark {
+    private static final int TRACK_COUNT = 8;
+    private static final int NOTES_PER_TRACK = 100000;
+    private static final int PASSES = 10;
+
+    @Test
+    public void largeSequence() throws Exception {
+        final Sequence sequence = StandardMidiFileWriterTest.createSequence(new Random(4), TRACK_COUNT, NOTES_PER_TRACK, false);
+        final StandardMidiFileWriter writer = new StandardMidiFileWriter();
+        final File file = File.createTempFile("StandardMidiFileWriterBenchmark", ".mid");
+        try {
+            final long[] bufferTimes = new long[PASSES];
+            final long[] fileTimes = new long[PASSES];
+            int length = 0;
+            for (int pass = 0; pass < PASSES; pass++) {
+                final long start = System.nanoTime();
+                final ByteBuffer buffer = writer.toByteBuffer(sequence, 1);
+                final long written = System.nanoTime();
+                length = writer.write(sequence, 1, file);
+                final long end = System.nanoTime();
+
+                assertEquals(buffer.remaining(), length);
+                bufferTimes[pass] = written - start;
+                fileTimes[pass] = end - written;
+            }
+
+            // the file can be read back completely
+            final Sequence read = new StandardMidiFileReader().getSequence(file);
+            assertEquals(TRACK_COUNT, read.getTracks().length);
+            assertEquals(sequence.getTickLength(), read.getTickLength());
+
+            Arrays.sort(bufferTimes);
+            Arrays.sort(fileTimes);
+            System.out.printf("StandardMidiFileWriterBenchmark %d events, %d KB: to ByteBuffer %.1f ms, to File %.1f ms (median of %d)%n",
+                    read.getTracks()[0].size() * TRACK_COUNT, length / 1024, bufferTimes[PASSES / 2] / 1e6, fileTimes[PASSES / 2] / 1e6, PASSES);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.SysexMessage;
+import jp.kshoji.javax.sound.midi.Track;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip tests of {@link StandardMidiFileWriter} against {@link StandardMidiFileReader}
+ */
+public class StandardMidiFileWriterTest {
+    private static final int[] SCALE = { 0, 2, 4, 5, 7, 9, 11 };
+    // MThd chunk and MTrk chunk header
+    private static final int HEADERS_LENGTH = 22;
+
+    /**
+     * Create a song like sequence: one channel per track, notes with note off as NOTE_ON with velocity zero, some controllers
+     *
+     * @param random           the random source
+     * @param trackCount       the number of tracks
+     * @param notesPerTrack    the number of notes per track
+     * @param withLongMessages true to add meta and system exclusive messages
+     * @return the sequence
+     */
+    @NonNull
+    static Sequence createSequence(@NonNull final Random random, final int trackCount, final int notesPerTrack, final boolean withLongMessages) throws InvalidMidiDataException {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        for (int t = 0; t < trackCount; t++) {
+            final Track track = sequence.createTrack();
+            final int channel = t % 16;
+            long tick = 0;
+            if (withLongMessages) {
+                track.add(new MidiEvent(new MetaMessage(0x03, ("Track " + t).getBytes(), ("Track " + t).length()), 0));
+                track.add(new MidiEvent(new SysexMessage(new byte[]{ (byte) 0xf0, 0x7e, 0x7f, 0x09, 0x01, (byte) 0xf7 }, 6), 0));
+            }
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 7, 100), 0));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, random.nextInt(128), 0), 0));
+            for (int n = 0; n < notesPerTrack; n++) {
+                final int note = 36 + 12 * (t % 4) + SCALE[random.nextInt(SCALE.length)] + 12 * random.nextInt(2);
+                tick += random.nextInt(3) * 120;
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, note, 64 + random.nextInt(64)), tick));
+                if (random.nextInt(20) == 0) {
+                    track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 64, random.nextBoolean() ? 127 : 0), tick));
+                }
+                if (withLongMessages && random.nextInt(50) == 0) {
+                    track.add(new MidiEvent(new MetaMessage(0x01, new byte[]{ 'x' }, 1), tick));
+                }
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, note, 0), tick + 240));
+            }
+        }
+        return sequence;
+    }
+
+    @NonNull
+    private static Sequence read(@NonNull final ByteBuffer buffer) throws InvalidMidiDataException, IOException {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new StandardMidiFileReader().getSequence(new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertSameEvents(@NonNull final Sequence expected, @NonNull final Sequence actual) {
+        assertEquals(expected.getResolution(), actual.getResolution());
+        assertEquals(expected.getDivisionType(), actual.getDivisionType(), 0f);
+        final Track[] expectedTracks = expected.getTracks();
+        final Track[] actualTracks = actual.getTracks();
+        assertEquals(expectedTracks.length, actualTracks.length);
+        for (int t = 0; t < expectedTracks.length; t++) {
+            // the written track ends with End of Track, the reader keeps it
+            final Track.Snapshot expectedEvents = expectedTracks[t].getSnapshot();
+            final Track.Snapshot actualEvents = actualTracks[t].getSnapshot();
+            assertEquals("track " + t, expectedEvents.size(), actualEvents.size());
+            for (int i = 0; i < expectedEvents.size(); i++) {
+                assertEquals("track " + t + " event " + i, expectedEvents.getTick(i), actualEvents.getTick(i));
+                assertArrayEquals("track " + t + " event " + i, expectedEvents.getMessage(i).getMessage(), actualEvents.getMessage(i).getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Sequence sequence = createSequence(new Random(1), 4, 500, true);
+        // add End of Track to each track, as the reader does
+        for (final Track track : sequence.getTracks()) {
+            Track.TrackUtils.sortEvents(track);
+        }
+
+        final StandardMidiFileWriter writer = new StandardMidiFileWriter();
+        final ByteBuffer buffer = writer.toByteBuffer(sequence, 1);
+        final Sequence read = read(buffer);
+        assertSameEvents(sequence, read);
+
+        // writing the read sequence again gives the same bytes
+        assertEquals(buffer, writer.toByteBuffer(read, 1));
+    }
+
+    @Test
+    public void roundTripCompactTracks() throws Exception {
+        final Sequence sequence = createSequence(new Random(2), 3, 500, true);
+        for (final Track track : sequence.getTracks()) {
+            Track.TrackUtils.sortEvents(track);
+        }
+        final ByteBuffer expected = new StandardMidiFileWriter().toByteBuffer(sequence, 1);
+
+        for (final Track track : sequence.getTracks()) {
+            track.compact();
+        }
+        assertEquals(expected, new StandardMidiFileWriter().toByteBuffer(sequence, 1));
+    }
+
+    @Test
+    public void runningStatus() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        final Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 0), 10));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 100), 20));
+
+        final ByteBuffer buffer = new StandardMidiFileWriter().toByteBuffer(sequence, 0);
+        final byte[] trackData = new byte[buffer.remaining() - HEADERS_LENGTH];
+        buffer.position(buffer.position() + HEADERS_LENGTH);
+        buffer.get(trackData);
+        assertArrayEquals(new byte[]{
+                0, (byte) 0x90, 60, 100,
+                10, 60, 0, // running status
+                10, (byte) 0x91, 60, 100,
+                1, (byte) 0xff, 0x2f, 0 }, trackData); // End of Track is added one tick after the last event
+    }
+
+    @Test
+    public void writeToFileAndStream() throws Exception {
+        final Sequence sequence = createSequence(new Random(3), 2, 200, true);
+        final StandardMidiFileWriter writer = new StandardMidiFileWriter();
+        final ByteBuffer expected = writer.toByteBuffer(sequence, 1);
+        final byte[] expectedBytes = new byte[expected.remaining()];
+        expected.duplicate().get(expectedBytes);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals(expectedBytes.length, writer.write(sequence, 1, outputStream));
+        assertArrayEquals(expectedBytes, outputStream.toByteArray());
+
+        final File file = File.createTempFile("StandardMidiFileWriterTest", ".mid");
+        try {
+            assertEquals(expectedBytes.length, writer.write(sequence, 1, file));
+            assertEquals(expectedBytes.length, file.length());
+            final byte[] fileBytes = new byte[expectedBytes.length];
+            final FileInputStream inputStream = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < fileBytes.length) {
+                    final int read = inputStream.read(fileBytes, offset, fileBytes.length - offset);
+                    assertTrue(read > 0);
+                    offset += read;
+                }
+            } finally {
+                inputStream.close();
+            }
+            assertArrayEquals(expectedBytes, fileBytes);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writeDoesNotChangeTracks() throws Exception {
+        final Sequence sequence = createSequence(new Random(5), 2, 100, true);
+        final Track track = sequence.getTracks()[0];
+        // out of order, and END_OF_TRACK is not added
+        final MidiEvent early = new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 30, 100), 0);
+        track.add(early);
+        final int size = track.size();
+
+        final ByteBuffer buffer = new StandardMidiFileWriter().toByteBuffer(sequence, 1);
+        assertEquals(size, track.size());
+        assertSame(early, track.get(size - 1));
+
+        // the written tracks are sorted all the same
+        for (final Track sequenceTrack : sequence.getTracks()) {
+            sequenceTrack.ticks();
+        }
+        assertSameEvents(sequence, read(buffer));
+    }
+
+    @Test(expected = IOException.class)
+    public void deltaTimeTooLarge() throws Exception {
+        final Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        sequence.createTrack().add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0x10000000L));
+        new StandardMidiFileWriter().toByteBuffer(sequence, 0);
+    }
+}
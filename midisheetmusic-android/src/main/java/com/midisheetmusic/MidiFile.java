@@ -1,3 +1,5 @@
+// Modified to also be created from an already parsed jp.kshoji.javax.sound.midi.Sequence
+
 /*
  * Copyright (c) 2007-2012 Madhav Vaidyanathan
  *
@@ -18,6 +20,11 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import android.util.*;
 
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.Track;
+
 /** @class Pair - A pair of ints */
 class PairInt {
     public int low;
@@ -170,7 +177,14 @@ class PairInt {
  * contains the parsed data from the midi file.
  *
  * The methods ReadTrack() and ReadMetaEvent() are helper functions called
- * by the constructor during the parsing.
+ * by the constructor during the parsing.  SortEvents() then puts the events
+ * starting at the same time into the order they are played in.
+ *
+ * A MidiFile can also be created from a Sequence that has already been
+ * parsed for playback.  ConvertTrack() then converts each Track into
+ * MidiEvents, without reading the file again.  Both ways give the same
+ * notes and events, apart from the time of the EndOfTrack event, which a
+ * Track keeps one pulse after its last event.
  *
  * After the MidiFile is parsed and created, the user can retrieve the 
  * tracks and notes by using the property Tracks and Tracks.Notes.
@@ -442,6 +456,21 @@ public class MidiFile {
         parse(rawdata);
     }
 
+    /** Create a new MidiFile from an already parsed Sequence.
+     * The Sequence is not modified.
+     */
+    public MidiFile(Sequence sequence, String filename) {
+        this.filename = filename;
+        trackmode = (short) (sequence.getTracks().length > 1 ? 1 : 0);
+        quarternote = sequence.getResolution();
+
+        allevents = new ArrayList<ArrayList<MidiEvent>>();
+        for (Track track : sequence.getTracks()) {
+            allevents.add(ConvertTrack(track));
+        }
+        CreateTracks();
+    }
+
     /** Parse the given Midi file, and return an instance of this MidiFile
      * class.  After reading the midi file, this object will contain:
      * - The raw list of midi events
@@ -453,9 +482,6 @@ public class MidiFile {
         String id;
         int len;
 
-        tracks = new ArrayList<MidiTrack>();
-        trackPerChannel = false;
-
         MidiFileReader file = new MidiFileReader(rawdata);
         id = file.ReadAscii(4);
         if (!id.equals("MThd")) {
@@ -471,7 +497,78 @@ public class MidiFile {
 
         allevents = new ArrayList<ArrayList<MidiEvent>>();
         for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
-            allevents.add(ReadTrack(file));
+            allevents.add(SortEvents(ReadTrack(file)));
+        }
+        CreateTracks();
+    }
+
+    /** Return the order of an event among the events starting at the
+     * same time, the same order a javax Track plays them in: pitch bends,
+     * system and meta events, program changes, channel and key pressure,
+     * controller changes, NoteOff and then NoteOn events.
+     */
+    private static int PlaybackOrder(MidiEvent mevent) {
+        int priority = mevent.EventFlag & 0xF0;
+        if ((priority & 0x90) == 0x80) {
+            priority |= 0x10;
+        }
+        else {
+            priority &= ~0x10;
+        }
+        return 0xFF - priority;
+    }
+
+    /** Sort the events read from a track into the order a parsed Sequence
+     * has them in, so both constructors pair the same NoteOn and NoteOff
+     * events: by start time, then by PlaybackOrder(), keeping the file
+     * order otherwise.  The last EndOfTrack event is kept at the end, and
+     * the delta times are updated.
+     */
+    private static ArrayList<MidiEvent> SortEvents(ArrayList<MidiEvent> events) {
+        MidiEvent endoftrack = null;
+        ArrayList<MidiEvent> result = new ArrayList<MidiEvent>(events.size());
+        for (MidiEvent mevent : events) {
+            if (mevent.EventFlag == MetaEvent && mevent.Metaevent == MetaEventEndOfTrack) {
+                endoftrack = mevent;
+            }
+            else {
+                result.add(mevent);
+            }
+        }
+
+        /* Collections.sort is stable */
+        Collections.sort(result, new Comparator<MidiEvent>() {
+            @Override
+            public int compare(MidiEvent x, MidiEvent y) {
+                if (x.StartTime != y.StartTime) {
+                    return x.StartTime < y.StartTime ? -1 : 1;
+                }
+                return PlaybackOrder(x) - PlaybackOrder(y);
+            }
+        });
+        if (endoftrack != null) {
+            if (result.size() > 0) {
+                endoftrack.StartTime = Math.max(endoftrack.StartTime, result.get(result.size() - 1).StartTime);
+            }
+            result.add(endoftrack);
+        }
+
+        int prevtime = 0;
+        for (MidiEvent mevent : result) {
+            mevent.DeltaTime = mevent.StartTime - prevtime;
+            prevtime = mevent.StartTime;
+        }
+        return result;
+    }
+
+    /** Create the tracks with notes, the song length and the time
+     * signature from the raw list of midi events.
+     */
+    private void CreateTracks() {
+        tracks = new ArrayList<MidiTrack>();
+        trackPerChannel = false;
+
+        for (int tracknum = 0; tracknum < allevents.size(); tracknum++) {
             MidiTrack track = new MidiTrack(allevents.get(tracknum), tracknum);
             if (track.getNotes().size() > 0) {
                 tracks.add(track);
@@ -526,6 +623,88 @@ public class MidiFile {
         timesig = new TimeSignature(numer, denom, quarternote, (int)tempo);
     }
 
+    /** Convert a single parsed Track into a list of MidiEvents,
+     * the same as ReadTrack() returns for the track in the file.
+     * The Track's sorted snapshot is read directly, so no javax MidiEvents
+     * are created and the Track isn't sorted.
+     */
+    private static ArrayList<MidiEvent> ConvertTrack(Track track) {
+        Track.Snapshot snapshot = track.getSortedSnapshot();
+        ArrayList<MidiEvent> result = new ArrayList<MidiEvent>(snapshot.size());
+        int prevtime = 0;
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            MidiEvent mevent = new MidiEvent();
+            mevent.StartTime = (int) snapshot.getTick(i);
+            mevent.DeltaTime = mevent.StartTime - prevtime;
+            mevent.HasEventflag = true;
+            prevtime = mevent.StartTime;
+
+            int packed = snapshot.getPackedMessage(i);
+            if (packed != -1) {
+                byte eventflag = (byte) (packed & 0xF0);
+                byte data1 = (byte) ((packed >> 8) & 0xFF);
+                byte data2 = (byte) ((packed >> 16) & 0xFF);
+                if ((packed & 0xF0) == 0xF0) {
+                    // System common and real time messages are not stored in midi files
+                    continue;
+                }
+                mevent.EventFlag = eventflag;
+                mevent.Channel = (byte) (packed & 0x0F);
+                if (eventflag == EventNoteOn || eventflag == EventNoteOff) {
+                    mevent.Notenumber = data1;
+                    mevent.Velocity = data2;
+                }
+                else if (eventflag == EventKeyPressure) {
+                    mevent.Notenumber = data1;
+                    mevent.KeyPressure = data2;
+                }
+                else if (eventflag == EventControlChange) {
+                    mevent.ControlNum = data1;
+                    mevent.ControlValue = data2;
+                }
+                else if (eventflag == EventProgramChange) {
+                    mevent.Instrument = data1;
+                }
+                else if (eventflag == EventChannelPressure) {
+                    mevent.ChanPressure = data1;
+                }
+                else if (eventflag == EventPitchBend) {
+                    mevent.PitchBend = (short) (((data1 & 0xFF) << 8) | (data2 & 0xFF));
+                }
+                result.add(mevent);
+                continue;
+            }
+
+            MidiMessage message = snapshot.getMessage(i);
+            if (message instanceof MetaMessage) {
+                MetaMessage meta = (MetaMessage) message;
+                mevent.EventFlag = MetaEvent;
+                mevent.Metaevent = (byte) meta.getType();
+                mevent.Value = meta.getData();
+                mevent.Metalength = mevent.Value.length;
+                if (mevent.Metaevent == MetaEventTimeSignature && mevent.Metalength >= 2) {
+                    mevent.Numerator = ((byte)mevent.Value[0]);
+                    mevent.Denominator = ((byte)Math.pow(2, mevent.Value[1]));
+                }
+                else if (mevent.Metaevent == MetaEventTempo && mevent.Metalength == 3) {
+                    mevent.Tempo = ((mevent.Value[0] & 0xFF) << 16) |
+                                   ((mevent.Value[1] & 0xFF) << 8) |
+                                    (mevent.Value[2] & 0xFF);
+                }
+            }
+            else {
+                // Sysex: the data after the status byte
+                byte[] data = message.getMessage();
+                mevent.EventFlag = (byte) message.getStatus();
+                mevent.Value = Arrays.copyOfRange(data, Math.min(1, data.length), data.length);
+                mevent.Metalength = mevent.Value.length;
+            }
+            result.add(mevent);
+        }
+        return result;
+    }
+
     /** Parse a single Midi track into a list of MidiEvents.
      * Entering this function, the file offset should be at the start of
      * the MTrk header.  Upon exiting, the file offset should be at the
@@ -0,0 +1,337 @@
+package com.midisheetmusic;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.Track;
+import jp.kshoji.javax.sound.midi.io.ByteBufferMidiFileReader;
+
+import static org.junit.Assert.*;
+
+/** Tests that a MidiFile made from a parsed Sequence is the same as
+ * the MidiFile parsed from the bytes of the file: the same notes,
+ * instruments, lyrics, time signature and tempo, and the same events
+ * written back by Write(), apart from where END_OF_TRACK is.
+ *
+ * Note: Sequences don't keep the format of the file, so single track
+ * files are written as format 0 and others as format 1.
+ */
+public class MidiFileTest {
+
+    /** Write a variable length quantity */
+    private static void writeVarlen(ByteArrayOutputStream out, int value) {
+        if (value >= 0x200000) { out.write(0x80 | (value >>> 21)); }
+        if (value >= 0x4000) { out.write(0x80 | ((value >>> 14) & 0x7F)); }
+        if (value >= 0x80) { out.write(0x80 | ((value >>> 7) & 0x7F)); }
+        out.write(value & 0x7F);
+    }
+
+    /** Write a meta event */
+    private static void writeMeta(ByteArrayOutputStream out, int type, byte[] data) {
+        out.write(0xFF);
+        out.write(type);
+        writeVarlen(out, data.length);
+        out.write(data, 0, data.length);
+    }
+
+    /** Create a Midi file from the data of its tracks */
+    private static byte[] createFile(int quarter, byte[]... tracks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { 'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, (byte)(tracks.length > 1 ? 1 : 0),
+                               0, (byte)tracks.length, (byte)(quarter >> 8), (byte)quarter }, 0, 14);
+        for (byte[] track : tracks) {
+            out.write(new byte[] { 'M', 'T', 'r', 'k', (byte)(track.length >> 24), (byte)(track.length >> 16),
+                                   (byte)(track.length >> 8), (byte)track.length }, 0, 8);
+            out.write(track, 0, track.length);
+        }
+        return out.toByteArray();
+    }
+
+    /** Create the data of a track of random notes, pitch bends, controller
+     * and program changes, with running status, meta events and sysex.
+     * Each note ends on its own channel, with NOTE-OFF or a NOTE-ON of
+     * velocity 0, and the same note may be struck again while playing.
+     */
+    private static byte[] createTrack(Random random, int channel, int eventcount) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = -1;
+        for (int i = 0; i < eventcount; i++) {
+            int kind = random.nextInt(100);
+            writeVarlen(out, kind < 30 ? 0 : kind < 95 ? random.nextInt(200) : random.nextInt(0x8000));
+
+            int type = random.nextInt(100);
+            if (type < 85) {
+                int[] commands = { 0x90, 0x90, 0x90, 0x80, 0xE0, 0xB0, 0xC0, 0xA0, 0xD0 };
+                int command = commands[random.nextInt(commands.length)];
+                int next = command | (random.nextInt(5) == 0 ? random.nextInt(16) : channel);
+                if (next != status || random.nextInt(3) == 0) {
+                    out.write(next);
+                }
+                status = next;
+                out.write(command == 0x90 || command == 0x80 ? 40 + random.nextInt(12) : random.nextInt(128));
+                if (command != 0xC0 && command != 0xD0) {
+                    out.write(command == 0x90 && random.nextInt(3) == 0 ? 0 : random.nextInt(128));
+                }
+            }
+            else if (type < 88) {
+                /* Tempo, between 250000 and 1250000 microseconds */
+                int tempo = 250000 + random.nextInt(1000000);
+                writeMeta(out, 0x51, new byte[] { (byte)(tempo >> 16), (byte)(tempo >> 8), (byte)tempo });
+                status = -1;
+            }
+            else if (type < 90) {
+                writeMeta(out, 0x58, new byte[] { (byte)(2 + random.nextInt(6)), (byte)(1 + random.nextInt(3)), 24, 8 });
+                status = -1;
+            }
+            else if (type < 95) {
+                byte[] text = new byte[random.nextInt(20)];
+                for (int j = 0; j < text.length; j++) { text[j] = (byte)('a' + random.nextInt(26)); }
+                writeMeta(out, random.nextBoolean() ? 0x05 : 0x01, text);
+                status = -1;
+            }
+            else {
+                int length = 1 + random.nextInt(30);
+                out.write(0xF0);
+                writeVarlen(out, length);
+                for (int j = 0; j < length - 1; j++) { out.write(random.nextInt(128)); }
+                out.write(0xF7);
+                status = -1;
+            }
+        }
+        writeVarlen(out, random.nextInt(100));
+        writeMeta(out, 0x2F, new byte[0]);
+        return out.toByteArray();
+    }
+
+    /** Get the bytes written by Write() */
+    private static byte[] write(MidiFile midifile) throws IOException {
+        File file = File.createTempFile("MidiFileTest", ".mid");
+        try {
+            midifile.Write(new FileOutputStream(file), null);
+            return Files.readAllBytes(file.toPath());
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /** Check that two MidiFiles have the same notes, instruments, lyrics,
+     * time signature and tempo, and write the same events.
+     */
+    private static void assertSameMidiFile(MidiFile expected, MidiFile actual) throws IOException {
+        assertEquals(expected.getTotalPulses(), actual.getTotalPulses());
+        assertEquals(expected.getTime().getNumerator(), actual.getTime().getNumerator());
+        assertEquals(expected.getTime().getDenominator(), actual.getTime().getDenominator());
+        assertEquals(expected.getTime().getQuarter(), actual.getTime().getQuarter());
+        assertEquals(expected.getTime().getTempo(), actual.getTime().getTempo());
+        assertEquals(expected.hasLyrics(), actual.hasLyrics());
+
+        ArrayList<MidiTrack> expectedtracks = expected.getTracks();
+        ArrayList<MidiTrack> actualtracks = actual.getTracks();
+        assertEquals(expectedtracks.size(), actualtracks.size());
+        for (int t = 0; t < expectedtracks.size(); t++) {
+            MidiTrack expectedtrack = expectedtracks.get(t);
+            MidiTrack actualtrack = actualtracks.get(t);
+            assertEquals(expectedtrack.trackNumber(), actualtrack.trackNumber());
+            assertEquals(expectedtrack.getInstrument(), actualtrack.getInstrument());
+            assertEquals(expectedtrack.getLyrics() == null, actualtrack.getLyrics() == null);
+            if (expectedtrack.getLyrics() != null) {
+                assertEquals(expectedtrack.getLyrics().size(), actualtrack.getLyrics().size());
+            }
+            assertEquals("track " + t, expectedtrack.getNotes().size(), actualtrack.getNotes().size());
+            for (int n = 0; n < expectedtrack.getNotes().size(); n++) {
+                MidiNote expectednote = expectedtrack.getNotes().get(n);
+                MidiNote actualnote = actualtrack.getNotes().get(n);
+                String message = "track " + t + " note " + n;
+                assertEquals(message, expectednote.getStartTime(), actualnote.getStartTime());
+                assertEquals(message, expectednote.getChannel(), actualnote.getChannel());
+                assertEquals(message, expectednote.getNumber(), actualnote.getNumber());
+                assertEquals(message, expectednote.getDuration(), actualnote.getDuration());
+            }
+        }
+
+        /* The written files are compared as read back, since a Track keeps
+         * END_OF_TRACK at the pulse after its last event rather than where
+         * the file had it.
+         */
+        Track[] expectedwritten = read(write(expected)).getTracks();
+        Track[] actualwritten = read(write(actual)).getTracks();
+        assertEquals(expectedwritten.length, actualwritten.length);
+        for (int t = 0; t < expectedwritten.length; t++) {
+            Track.Snapshot expectedevents = expectedwritten[t].getSnapshot();
+            Track.Snapshot actualevents = actualwritten[t].getSnapshot();
+            assertEquals("track " + t, expectedevents.size(), actualevents.size());
+            for (int i = 0; i < expectedevents.size(); i++) {
+                String message = "track " + t + " event " + i;
+                assertEquals(message, expectedevents.getTick(i), actualevents.getTick(i));
+                assertArrayEquals(message, expectedevents.getMessage(i).getMessage(), actualevents.getMessage(i).getMessage());
+            }
+        }
+    }
+
+    /** Parse a file into a Sequence, as the player does */
+    private static Sequence read(byte[] data) throws IOException {
+        try {
+            return new ByteBufferMidiFileReader().getSequence(ByteBuffer.wrap(data));
+        }
+        catch (InvalidMidiDataException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Parse a file both ways and check the MidiFiles are the same */
+    private static void assertSameParse(byte[] data) throws IOException, InvalidMidiDataException {
+        assertSameMidiFile(new MidiFile(data, "test.mid"), new MidiFile(read(data), "test.mid"));
+    }
+
+    @Test
+    public void randomFiles() throws IOException, InvalidMidiDataException {
+        for (int round = 0; round < 100; round++) {
+            Random random = new Random(round);
+            byte[][] tracks = new byte[1 + random.nextInt(4)][];
+            for (int t = 0; t < tracks.length; t++) {
+                tracks[t] = createTrack(random, t, random.nextInt(500));
+            }
+            assertSameParse(createFile(24 + random.nextInt(960), tracks));
+        }
+    }
+
+    @Test
+    public void notePairing() throws IOException, InvalidMidiDataException {
+        /* Note 40 struck again while playing and ended by NOTE-ON velocity 0,
+         * the last one struck ending first, and note 41 ended and struck
+         * again at the same pulse.
+         */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[][] events = {
+            { 0, 0x90, 40, 100 }, { 10, 0x90, 40, 90 }, { 10, 0x90, 41, 80 }, { 0, 0x90, 40, 0 },
+            { 5, 0x80, 41, 0 }, { 0, 0x90, 41, 70 }, { 20, 0x90, 40, 0 }, { 0, 0x80, 41, 0 }
+        };
+        for (int[] event : events) {
+            writeVarlen(out, event[0]);
+            out.write(event[1]);
+            out.write(event[2]);
+            out.write(event[3]);
+        }
+        writeVarlen(out, 0);
+        writeMeta(out, 0x2F, new byte[0]);
+        byte[] data = createFile(96, out.toByteArray());
+        assertSameParse(data);
+
+        ArrayList<MidiNote> notes = new MidiFile(read(data), "test.mid")
+                .getTracks().get(0).getNotes();
+        assertEquals(4, notes.size());
+        assertEquals(0, notes.get(0).getStartTime());
+        assertEquals(45, notes.get(0).getDuration());
+        assertEquals(10, notes.get(1).getStartTime());
+        assertEquals(10, notes.get(1).getDuration());
+        assertEquals(41, notes.get(2).getNumber());
+        assertEquals(5, notes.get(2).getDuration());
+        assertEquals(25, notes.get(3).getStartTime());
+        assertEquals(20, notes.get(3).getDuration());
+    }
+
+    @Test
+    public void sameTimeOrder() throws IOException, InvalidMidiDataException {
+        /* A zero length note, NoteOn before NoteOff, is played NoteOff first,
+         * so the NoteOn lasts until the next NoteOff.  A program change after
+         * the note is played before it.
+         */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarlen(out, 0);
+        out.write(new byte[] { (byte)0x90, 40, 100 }, 0, 3);
+        writeVarlen(out, 0);
+        out.write(new byte[] { (byte)0x80, 40, 0 }, 0, 3);
+        writeVarlen(out, 0);
+        out.write(new byte[] { (byte)0xC0, 7 }, 0, 2);
+        writeVarlen(out, 30);
+        out.write(new byte[] { (byte)0x80, 40, 0 }, 0, 3);
+        writeVarlen(out, 0);
+        writeMeta(out, 0x2F, new byte[0]);
+        byte[] data = createFile(96, out.toByteArray());
+        assertSameParse(data);
+
+        MidiTrack track = new MidiFile(data, "test.mid").getTracks().get(0);
+        assertEquals(1, track.getNotes().size());
+        assertEquals(30, track.getNotes().get(0).getDuration());
+        assertEquals(7, track.getInstrument());
+    }
+
+    @Test
+    public void tempoAndTimeSignature() throws IOException, InvalidMidiDataException {
+        /* Two tempos are averaged, and the first time signature is used */
+        ByteArrayOutputStream conductor = new ByteArrayOutputStream();
+        writeVarlen(conductor, 0);
+        writeMeta(conductor, 0x58, new byte[] { 3, 3, 24, 8 });
+        writeVarlen(conductor, 0);
+        writeMeta(conductor, 0x51, new byte[] { 0x07, (byte)0xA1, 0x20 });
+        writeVarlen(conductor, 480);
+        writeMeta(conductor, 0x58, new byte[] { 6, 3, 24, 8 });
+        writeVarlen(conductor, 0);
+        writeMeta(conductor, 0x51, new byte[] { 0x03, (byte)0xD0, (byte)0x90 });
+        writeVarlen(conductor, 0);
+        writeMeta(conductor, 0x2F, new byte[0]);
+        ByteArrayOutputStream notes = new ByteArrayOutputStream();
+        for (int i = 0; i < 8; i++) {
+            writeVarlen(notes, 0);
+            notes.write(new byte[] { (byte)0x90, (byte)(40 + i), 100 }, 0, 3);
+            writeVarlen(notes, 120);
+            notes.write(new byte[] { (byte)0x80, (byte)(40 + i), 0 }, 0, 3);
+        }
+        writeVarlen(notes, 0);
+        writeMeta(notes, 0x2F, new byte[0]);
+        byte[] data = createFile(480, conductor.toByteArray(), notes.toByteArray());
+        assertSameParse(data);
+
+        TimeSignature time = new MidiFile(read(data), "test.mid").getTime();
+        assertEquals(3, time.getNumerator());
+        assertEquals(8, time.getDenominator());
+        assertEquals((500000 + 250000) / 2, time.getTempo());
+    }
+
+    @Test
+    public void pitchBend() throws IOException, InvalidMidiDataException {
+        /* The pitch bends are kept as the two data bytes, LSB first */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarlen(out, 0);
+        out.write(new byte[] { (byte)0x90, 40, 100 }, 0, 3);
+        int[][] bends = { { 0x00, 0x00 }, { 0x7F, 0x7F }, { 0x00, 0x40 }, { 0x12, 0x34 } };
+        for (int[] bend : bends) {
+            writeVarlen(out, 10);
+            out.write(new byte[] { (byte)0xE3, (byte)bend[0], (byte)bend[1] }, 0, 3);
+        }
+        writeVarlen(out, 10);
+        out.write(new byte[] { (byte)0x80, 40, 0 }, 0, 3);
+        writeVarlen(out, 0);
+        writeMeta(out, 0x2F, new byte[0]);
+        assertSameParse(createFile(96, out.toByteArray()));
+    }
+
+    @Test
+    public void sequenceNotModified() throws InvalidMidiDataException {
+        /* An unsorted Track is read in tick order, without sorting it */
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        Track track = sequence.createTrack();
+        track.add(new jp.kshoji.javax.sound.midi.MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 40, 0), 100));
+        track.add(new jp.kshoji.javax.sound.midi.MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 40, 100), 0));
+        jp.kshoji.javax.sound.midi.MidiEvent first = track.get(0);
+
+        MidiFile midifile = new MidiFile(sequence, "test.mid");
+        assertEquals(1, midifile.getTracks().get(0).getNotes().size());
+        assertEquals(100, midifile.getTracks().get(0).getNotes().get(0).getDuration());
+        assertEquals(2, track.size());
+        assertSame(first, track.get(0));
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.noahr_atc.midisplitter;
+
+/*
+Copyright 2020 Noah Reeder
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Chooses the MIDI channel that a {@link MidiProcessor} translates each NOTE-ON message to. A strategy is only used by
+ * one {@code MidiProcessor} and is called for every NOTE-ON, so it must be quick; the channel state it needs is available
+ * through {@link MidiProcessor#getFreeChannels()}, {@link MidiProcessor#leastUsedChannels(int)} and
+ * {@link MidiProcessor#leastUsedChannel(int)}, which all take constant time. The strategy must choose one of the
+ * allowed channels, which are the channels of the {@link ChannelCapabilities} that can play the note and aren't
+ * already playing as many notes as they can.
+ * <br><br>
+ * Note: Channel sets are passed around as bitmaps, with bit {@code n} set if channel {@code n} is in the set.
+ *
+ * @author Noah Reeder
+ * @version 1.0
+ * @see MidiProcessor#setAllocationStrategy(ChannelAllocationStrategy)
+ */
+public interface ChannelAllocationStrategy {
+    /**
+     * Selects the channel to translate a NOTE-ON message to.
+     *
+     * @param processor       the {@code MidiProcessor} translating the message
+     * @param channel         the original 4-bit MIDI channel of the message
+     * @param noteNumber      the 7-bit MIDI number of the note to play, after any transposition
+     * @param allowedChannels the bitmap of channels the note may be translated to, never 0
+     * @return the 4-bit number of the MIDI channel to translate the message to, one of {@code allowedChannels}
+     */
+    int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels);
+
+    /**
+     * Forgets any state kept about previous selections. Called when the {@code MidiProcessor} clears its translations.
+     */
+    void reset();
+
+    /**
+     * Keeps a note on its original channel if that channel is allowed and available, otherwise moves it to the first
+     * available allowed channel from 0, or to the least used allowed channel if all are in use. This is the default strategy.
+     */
+    class FirstAvailable implements ChannelAllocationStrategy {
+        @Override
+        public int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels) {
+            // Note: The least used channel is the first available channel whenever one is available
+            if ((allowedChannels & (1 << channel)) != 0 && processor.channelAvailable(channel)) { return channel; }
+            return processor.leastUsedChannel(allowedChannels);
+        } // End selectChannel method
+
+        @Override
+        public void reset() {}
+    } // End FirstAvailable class
+
+    /**
+     * Cycles through the channels, moving each note to the next available channel after the one chosen last, or to the
+     * next of the least used channels if all are in use. This spreads the notes evenly across all channels even when few
+     * notes play at once.
+     */
+    class RoundRobin implements ChannelAllocationStrategy {
+        private int nextChannel; // The channel to start looking from for the next note
+
+        /**
+         * Constructs a {@code RoundRobin} strategy starting from channel 0.
+         */
+        public RoundRobin() { nextChannel = 0; }
+
+        @Override
+        public int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels) {
+            int candidates = processor.leastUsedChannels(allowedChannels); // The available allowed channels, or the least used ones
+
+            // Rotate the 16-bit candidate set so that nextChannel becomes bit 0 and take the lowest candidate from there
+            int rotated = ((candidates >>> nextChannel) | (candidates << (16 - nextChannel))) & 0xffff;
+            int selected = (Integer.numberOfTrailingZeros(rotated) + nextChannel) & 0x0f;
+            nextChannel = (selected + 1) & 0x0f;
+            return selected;
+        } // End selectChannel method
+
+        @Override
+        public void reset() { nextChannel = 0; }
+    } // End RoundRobin class
+
+    /**
+     * Moves each note to the available channel that was chosen the longest time ago, or to the least recently chosen of
+     * the least used channels if all are in use. This gives each drive as much time as possible between notes.
+     */
+    class LeastRecentlyUsed implements ChannelAllocationStrategy {
+        private final long[] lastSelections; // The selection counter value of the latest selection of each channel
+        private long selectionCounter;       // The number of selections made
+
+        /**
+         * Constructs a {@code LeastRecentlyUsed} strategy treating all channels as never used.
+         */
+        public LeastRecentlyUsed() {
+            lastSelections = new long[16];
+            selectionCounter = 0;
+        } // End LeastRecentlyUsed() constructor
+
+        @Override
+        public int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels) {
+            int candidates = processor.leastUsedChannels(allowedChannels); // The available allowed channels, or the least used ones
+            int selected = Integer.numberOfTrailingZeros(candidates);
+
+            // Find the candidate selected the longest time ago, going through the set bits only
+            for (int remaining = candidates & (candidates - 1); remaining != 0; remaining &= remaining - 1) {
+                int candidate = Integer.numberOfTrailingZeros(remaining);
+                if (lastSelections[candidate] < lastSelections[selected]) { selected = candidate; }
+            }
+            lastSelections[selected] = ++selectionCounter;
+            return selected;
+        } // End selectChannel method
+
+        @Override
+        public void reset() {
+            Arrays.fill(lastSelections, 0);
+            selectionCounter = 0;
+        } // End reset method
+    } // End LeastRecentlyUsed class
+
+    /**
+     * Only moves each note to channels whose instrument can play it, for example floppy drives that can't reach high notes.
+     * The original channel is kept if it is available and in range, otherwise the least used channel in range is chosen,
+     * preferring available and lower channels. Notes that no allowed channel can play are handled like {@link FirstAvailable}.
+     * <br><br>
+     * Note: Ranges that limit the channels for every song are better set as {@link ChannelCapabilities}, which can also
+     * transpose the notes that no channel can play.
+     */
+    class RegisterRange implements ChannelAllocationStrategy {
+        private final int[] noteChannels; // The set of channels that can play each note number
+
+        /**
+         * Constructs a {@code RegisterRange} strategy with the playable range of every channel.
+         *
+         * @param lowestNotes  the lowest MIDI note number each of the 16 channels can play
+         * @param highestNotes the highest MIDI note number each of the 16 channels can play
+         * @throws IllegalArgumentException if either array doesn't contain 16 note numbers
+         */
+        public RegisterRange(int[] lowestNotes, int[] highestNotes) {
+            if (lowestNotes == null || highestNotes == null || lowestNotes.length != 16 || highestNotes.length != 16) {
+                throw new IllegalArgumentException("A note range is required for each of the 16 MIDI channels");
+            }
+            noteChannels = new int[128];
+            for (int channel = 0; channel < 16; channel++) {
+                for (int note = Math.max(lowestNotes[channel], 0); note <= Math.min(highestNotes[channel], 127); note++) {
+                    noteChannels[note] |= 1 << channel;
+                }
+            }
+        } // End RegisterRange(int[], int[]) constructor
+
+        @Override
+        public int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels) {
+            int inRange = noteChannels[noteNumber & 0x7f] & allowedChannels; // The allowed channels that can play the note
+
+            // Note: The least used channel in range is the first available one in range whenever one is available
+            if (inRange == 0) { inRange = allowedChannels; }
+            if ((inRange & (1 << channel)) != 0 && processor.channelAvailable(channel)) { return channel; }
+            return processor.leastUsedChannel(inRange);
+        } // End selectChannel method
+
+        @Override
+        public void reset() {}
+    } // End RegisterRange class
+
+    /**
+     * Moves the notes of each original channel back to the channel chosen for its previous note whenever that channel
+     * is available, so each part tends to stay on the same drive. Otherwise the note is handled like {@link FirstAvailable}
+     * and the chosen channel becomes the new one to return to.
+     */
+    class StickyPerChannel implements ChannelAllocationStrategy {
+        private final int[] lastSelections; // The channel chosen for the previous note of each original channel, or -1
+
+        /**
+         * Constructs a {@code StickyPerChannel} strategy with no previous selections.
+         */
+        public StickyPerChannel() {
+            lastSelections = new int[16];
+            Arrays.fill(lastSelections, -1);
+        } // End StickyPerChannel() constructor
+
+        @Override
+        public int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels) {
+            int selected = lastSelections[channel];
+            if (selected < 0 || (allowedChannels & (1 << selected)) == 0 || !processor.channelAvailable(selected)) {
+                boolean keepChannel = (allowedChannels & (1 << channel)) != 0 && processor.channelAvailable(channel);
+                selected = keepChannel ? channel : processor.leastUsedChannel(allowedChannels);
+                lastSelections[channel] = selected;
+            }
+            return selected;
+        } // End selectChannel method
+
+        @Override
+        public void reset() { Arrays.fill(lastSelections, -1); }
+    } // End StickyPerChannel class
+} // End ChannelAllocationStrategy interface
@@ -0,0 +1,276 @@
+package com.github.noahr_atc.midisplitter;
+
+/*
+Copyright 2020 Noah Reeder
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Describes the instruments behind the MIDI channels that notes are split across: which channels exist, which notes
+ * each one can play, and how many notes each one can play at once. Notes that no channel can play are transposed or
+ * dropped according to an {@link UnplayablePolicy}.
+ * <br><br>
+ * Note: A {@code ChannelCapabilities} is immutable, and the channels able to play each note are worked out when it is
+ * built, so looking up a note takes constant time. Channel sets are bitmaps, with bit {@code n} set for channel {@code n}.
+ * <br>
+ * Note 2: Moppy's default mapper plays MIDI channel {@code n} on sub-address {@code n + 1} of a device, so a device
+ * with sub-addresses 1 to 8 has channels 0 to 7; see {@link #forSubAddresses(int, int, int, int, int, UnplayablePolicy)}.
+ *
+ * @author Noah Reeder
+ * @version 1.0
+ * @see MidiProcessor#setCapabilities(ChannelCapabilities)
+ * @see SequenceSplitter#SequenceSplitter(ChannelCapabilities)
+ */
+public final class ChannelCapabilities {
+    /**
+     * The lowest note a floppy drive can play, the same as Moppy's "Only Supported Notes" condition {@code n>22 && n<67}
+     */
+    public static final int FLOPPY_LOWEST_NOTE = 23;
+    /**
+     * The highest note a floppy drive can play, the same as Moppy's "Only Supported Notes" condition {@code n>22 && n<67}
+     */
+    public static final int FLOPPY_HIGHEST_NOTE = 66;
+    /**
+     * The polyphony of a channel without a limit on the number of notes it plays at once
+     */
+    public static final int UNLIMITED_POLYPHONY = Integer.MAX_VALUE;
+
+    /**
+     * What to do with a note that no channel can play.
+     */
+    public enum UnplayablePolicy {
+        /**
+         * Drop the note, along with its NOTE-OFF
+         */
+        DROP,
+        /**
+         * Move the note by as few octaves as possible until a channel can play it, and drop it if no octave can be played
+         */
+        TRANSPOSE
+    } // End UnplayablePolicy enum
+
+    private static final int CHANNEL_COUNT = 16;   // The number of MIDI channels
+    private static final int NOTE_COUNT = 128;     // The number of MIDI note numbers
+
+    private final int channels;                    // The set of channels that exist
+    private final int[] lowestNotes;               // The lowest note each channel can play
+    private final int[] highestNotes;              // The highest note each channel can play
+    private final int[] maxPolyphonies;            // The number of notes each channel can play at once
+    private final UnplayablePolicy policy;         // What to do with notes that no channel can play
+    private final int[] noteChannels;              // The set of channels that can play each note
+    private final int[] playedNotes;               // The note played for each note after applying the policy, or -1 if dropped
+
+    /**
+     * Constructs a {@code ChannelCapabilities} from the table of a {@link Builder}.
+     *
+     * @param builder the builder holding the table
+     */
+    private ChannelCapabilities(Builder builder) {
+        channels = builder.channels;
+        lowestNotes = builder.lowestNotes.clone();
+        highestNotes = builder.highestNotes.clone();
+        maxPolyphonies = builder.maxPolyphonies.clone();
+        policy = builder.policy;
+
+        // Work out the channels that can play each note
+        noteChannels = new int[NOTE_COUNT];
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((channels & (1 << channel)) == 0) { continue; }
+            for (int note = lowestNotes[channel]; note <= highestNotes[channel]; note++) { noteChannels[note] |= 1 << channel; }
+        }
+
+        // Work out the note played for each note, searching the nearest octaves first if transposing
+        playedNotes = new int[NOTE_COUNT];
+        for (int note = 0; note < NOTE_COUNT; note++) {
+            playedNotes[note] = -1;
+            if (noteChannels[note] != 0) { playedNotes[note] = note; }
+            else if (policy == UnplayablePolicy.TRANSPOSE) {
+                for (int shift = 12; shift < NOTE_COUNT && playedNotes[note] < 0; shift += 12) {
+                    if (note + shift < NOTE_COUNT && noteChannels[note + shift] != 0) { playedNotes[note] = note + shift; }
+                    else if (note - shift >= 0 && noteChannels[note - shift] != 0) { playedNotes[note] = note - shift; }
+                }
+            } // End if(noteChannels[note] != 0) {} else if(TRANSPOSE)
+        } // End for(note < NOTE_COUNT)
+    } // End ChannelCapabilities(Builder) constructor
+
+    /**
+     * Creates the capabilities of the first {@code channelCount} MIDI channels, each able to play any number of
+     * any notes. Splitting with these capabilities behaves the same as splitting without a capability table.
+     *
+     * @param channelCount the number of channels, from 1 to 16
+     * @return the {@code ChannelCapabilities}
+     * @throws IllegalArgumentException if {@code channelCount} is out of range
+     */
+    public static ChannelCapabilities unrestricted(int channelCount) {
+        if (channelCount < 1 || channelCount > CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Channel count must be from 1 to 16: " + channelCount);
+        }
+        Builder builder = new Builder();
+        for (int channel = 0; channel < channelCount; channel++) { builder.channel(channel, 0, NOTE_COUNT - 1, UNLIMITED_POLYPHONY); }
+        return builder.build();
+    } // End unrestricted method
+
+    /**
+     * Creates the capabilities of the channels played by a range of sub-addresses of a Moppy device, as reported in
+     * its device descriptor, where every instrument has the same range and polyphony. Channel {@code n} is played by
+     * sub-address {@code n + 1}.
+     *
+     * @param minSubAddress the lowest sub-address of the device, from 1 to 16
+     * @param maxSubAddress the highest sub-address of the device, from {@code minSubAddress} to 16
+     * @param lowestNote    the lowest note each instrument can play, for example {@link #FLOPPY_LOWEST_NOTE}
+     * @param highestNote   the highest note each instrument can play, for example {@link #FLOPPY_HIGHEST_NOTE}
+     * @param maxPolyphony  the number of notes each instrument can play at once, 1 for floppy drives
+     * @param policy        what to do with notes that no instrument can play
+     * @return the {@code ChannelCapabilities}
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public static ChannelCapabilities forSubAddresses(int minSubAddress, int maxSubAddress, int lowestNote, int highestNote,
+                                                      int maxPolyphony, UnplayablePolicy policy) {
+        if (minSubAddress < 1 || maxSubAddress > CHANNEL_COUNT || minSubAddress > maxSubAddress) {
+            throw new IllegalArgumentException("Invalid sub-address range: " + minSubAddress + " to " + maxSubAddress);
+        }
+        Builder builder = new Builder().policy(policy);
+        for (int subAddress = minSubAddress; subAddress <= maxSubAddress; subAddress++) {
+            builder.channel(subAddress - 1, lowestNote, highestNote, maxPolyphony);
+        }
+        return builder.build();
+    } // End forSubAddresses method
+
+    /**
+     * Retrieves the set of channels that exist.
+     *
+     * @return the bitmap of channels
+     */
+    public int getChannels() { return channels; }
+
+    /**
+     * Retrieves the lowest note a channel can play.
+     *
+     * @param channel the 4-bit number of the channel
+     * @return the 7-bit MIDI number of the note
+     */
+    public int getLowestNote(int channel) { return lowestNotes[channel]; }
+
+    /**
+     * Retrieves the highest note a channel can play.
+     *
+     * @param channel the 4-bit number of the channel
+     * @return the 7-bit MIDI number of the note
+     */
+    public int getHighestNote(int channel) { return highestNotes[channel]; }
+
+    /**
+     * Retrieves the number of notes a channel can play at once.
+     *
+     * @param channel the 4-bit number of the channel
+     * @return the polyphony, {@link #UNLIMITED_POLYPHONY} if unlimited, or 0 if the channel doesn't exist
+     */
+    public int getMaxPolyphony(int channel) { return maxPolyphonies[channel]; }
+
+    /**
+     * Retrieves what is done with notes that no channel can play.
+     *
+     * @return the {@link UnplayablePolicy}
+     */
+    public UnplayablePolicy getPolicy() { return policy; }
+
+    /**
+     * Finds the note to play for a note, after applying the {@link UnplayablePolicy} if no channel can play it.
+     *
+     * @param noteNumber the 7-bit MIDI number of the note
+     * @return the 7-bit MIDI number of the note to play, or -1 if the note is dropped
+     */
+    public int getPlayedNote(int noteNumber) { return playedNotes[noteNumber & 0x7f]; }
+
+    /**
+     * Retrieves the set of channels that can play a note.
+     *
+     * @param noteNumber the 7-bit MIDI number of the note
+     * @return the bitmap of channels, 0 if no channel can play the note
+     */
+    public int getChannelsForNote(int noteNumber) { return noteChannels[noteNumber & 0x7f]; }
+
+    /**
+     * Builds a {@link ChannelCapabilities} table one channel at a time. Channels that aren't added don't exist, so no
+     * notes are split onto them. The default {@link UnplayablePolicy} is {@link UnplayablePolicy#DROP}.
+     */
+    public static final class Builder {
+        private int channels;                  // The set of channels added
+        private final int[] lowestNotes;       // The lowest note each channel can play
+        private final int[] highestNotes;      // The highest note each channel can play
+        private final int[] maxPolyphonies;    // The number of notes each channel can play at once
+        private UnplayablePolicy policy;       // What to do with notes that no channel can play
+
+        /**
+         * Constructs a {@code Builder} without channels.
+         */
+        public Builder() {
+            channels = 0;
+            lowestNotes = new int[CHANNEL_COUNT];
+            highestNotes = new int[CHANNEL_COUNT];
+            maxPolyphonies = new int[CHANNEL_COUNT];
+            Arrays.fill(highestNotes, -1);
+            policy = UnplayablePolicy.DROP;
+        } // End Builder() constructor
+
+        /**
+         * Adds a channel, or replaces its capabilities if it was already added.
+         *
+         * @param channel      the 4-bit number of the channel
+         * @param lowestNote   the lowest note the channel can play
+         * @param highestNote  the highest note the channel can play
+         * @param maxPolyphony the number of notes the channel can play at once, at least 1
+         * @return this {@code Builder}
+         * @throws IllegalArgumentException if a value is out of range
+         */
+        public Builder channel(int channel, int lowestNote, int highestNote, int maxPolyphony) {
+            if (channel < 0 || channel >= CHANNEL_COUNT) { throw new IllegalArgumentException("Invalid channel: " + channel); }
+            if (lowestNote < 0 || highestNote >= NOTE_COUNT || lowestNote > highestNote) {
+                throw new IllegalArgumentException("Invalid note range: " + lowestNote + " to " + highestNote);
+            }
+            if (maxPolyphony < 1) { throw new IllegalArgumentException("Invalid polyphony: " + maxPolyphony); }
+            channels |= 1 << channel;
+            lowestNotes[channel] = lowestNote;
+            highestNotes[channel] = highestNote;
+            maxPolyphonies[channel] = maxPolyphony;
+            return this;
+        } // End channel method
+
+        /**
+         * Sets what to do with notes that no channel can play.
+         *
+         * @param policy the {@link UnplayablePolicy}
+         * @return this {@code Builder}
+         * @throws IllegalArgumentException if {@code policy} is null
+         */
+        public Builder policy(UnplayablePolicy policy) {
+            if (policy == null) { throw new IllegalArgumentException(); }
+            this.policy = policy;
+            return this;
+        } // End policy method
+
+        /**
+         * Builds the {@link ChannelCapabilities} from the channels added.
+         *
+         * @return the {@code ChannelCapabilities}
+         * @throws IllegalStateException if no channel was added
+         */
+        public ChannelCapabilities build() {
+            if (channels == 0) { throw new IllegalStateException("No channel added"); }
+            return new ChannelCapabilities(this);
+        } // End build method
+    } // End Builder class
+} // End ChannelCapabilities class
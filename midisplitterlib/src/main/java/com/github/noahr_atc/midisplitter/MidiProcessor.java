@@ -20,28 +20,57 @@ limitations under the License.
 
 import jp.kshoji.javax.sound.midi.*;
 import java.io.Serializable;
-import java.util.List;
-import java.util.Objects;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.google.common.collect.ArrayListMultimap;
-
 /**
  * A {@link Receiver} that splits MIDI chords into notes distributed across all MIDI channels before
  * forwarding the new {@link MidiMessage}s to another Receiver.
+ * <br><br>
+ * Note: The active translations are kept in fixed primitive arrays indexed by channel and note number, and the channels
+ * are grouped by their number of uses in bitmaps, so translating a message allocates nothing and takes constant time.
+ * The channel each note is moved to is chosen by a {@link ChannelAllocationStrategy}, out of the channels of the
+ * {@link ChannelCapabilities} that can play the note and aren't already playing as many notes as they can. Notes that
+ * no channel can play are transposed or dropped, and so are their NOTE-OFF messages.
+ * <br><br>
+ * Note 2: {@code send} may be called from several threads at once, for example by live MIDI input and a sequencer.
+ * Messages are translated and forwarded by one thread at a time: a thread finding the {@code MidiProcessor} busy queues
+ * its message without waiting and returns, and the busy thread forwards the queued messages before it returns. The
+ * messages of each thread are forwarded in the order they were sent. Messages passed in are never modified; a
+ * translated copy is forwarded instead.
  *
  * @author Noah Reeder
  * @version 1.0
  * @since 2020-03-08
  */
 public class MidiProcessor implements Receiver {
-    private MidiDevice midiReceiver;         // The MIDI device that owns the receiver represented by midiOut
-    private Receiver midiOut;                // The MIDI receiver to forward processed messages to
-    private ChannelStatus[] channelStatuses; // The array containing the status of all MIDI channels
-    private ArrayListMultimap<NoteMapping, NoteMapping> noteTranslations;
-    //                                       // ^ The duplicate-value-supporting map containing the active message translations
-    private boolean isOpen;                  // Boolean for whether or not the MidiProcessor has been closed
+    private static final int CHANNEL_COUNT = 16;      // The number of MIDI channels
+    private static final int NOTE_COUNT = 128;        // The number of MIDI note numbers
+    private static final int TRANSLATION_DEPTH = 16;  // The number of active translations kept per note of each channel, a power of 2
+    private static final int USE_BUCKET_COUNT = 64;   // The number of use count groups, the last group holds all higher use counts
+    private static final int ALL_CHANNELS = 0xffff;   // The bitmap of all MIDI channels
+
+    private MidiDevice midiReceiver;                  // The MIDI device that owns the receiver represented by midiOut
+    private volatile Receiver midiOut;                // The MIDI receiver to forward processed messages to
+    private final ConcurrentLinkedQueue<PendingMessage> pendingMessages;
+    //                                                // ^ The messages sent while another thread was forwarding messages
+    private final AtomicInteger pendingCount;         // The number of messages sent and not yet forwarded, the thread that
+    //                                                // ^ raises it from 0 forwards messages until it is back at 0
+    private final int[] uses;                         // The number of active translations onto each MIDI channel
+    private final int[] useBuckets;                   // The bitmap of the channels with each number of uses, index 0 being the free channels
+    private int minUses;                              // The index of the lowest non-empty use bucket
+    private int fullChannels;                         // The bitmap of the channels playing as many notes as they can
+    private ChannelAllocationStrategy allocationStrategy; // The strategy choosing the channel of each NOTE-ON
+    private ChannelCapabilities capabilities;         // The channels notes may be translated to and the notes they can play
+    private final byte[] translationChannels;         // The target channels of the active translations, TRANSLATION_DEPTH per note
+    //                                                // ^ of each original channel, used as a ring buffer from the oldest translation
+    private final byte[] translationNotes;            // The played notes of the active translations, alongside translationChannels
+    private final byte[] translationStarts;           // The ring buffer index of the oldest active translation of each note of each channel
+    private final byte[] translationCounts;           // The number of active translations of each note of each channel
+    private volatile boolean isOpen;                  // Boolean for whether or not the MidiProcessor has been closed
     private boolean debugMode;
 
     /**
@@ -53,13 +82,19 @@ public class MidiProcessor implements Receiver {
      * @throws MidiUnavailableException if the provided {@link MidiDevice} won't supply a receiver
      */
     public MidiProcessor(MidiDevice midiReceiver, boolean debugMode) throws MidiUnavailableException {
-        channelStatuses = new ChannelStatus[]{
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus()
-        }; // End ChannelStatus[] initialization
-        noteTranslations = ArrayListMultimap.create();
+        uses = new int[CHANNEL_COUNT];
+        useBuckets = new int[USE_BUCKET_COUNT];
+        useBuckets[0] = ALL_CHANNELS;
+        minUses = 0;
+        fullChannels = 0;
+        allocationStrategy = new ChannelAllocationStrategy.FirstAvailable();
+        capabilities = ChannelCapabilities.unrestricted(CHANNEL_COUNT);
+        pendingMessages = new ConcurrentLinkedQueue<>();
+        pendingCount = new AtomicInteger(0);
+        translationChannels = new byte[CHANNEL_COUNT * NOTE_COUNT * TRANSLATION_DEPTH];
+        translationNotes = new byte[CHANNEL_COUNT * NOTE_COUNT * TRANSLATION_DEPTH];
+        translationStarts = new byte[CHANNEL_COUNT * NOTE_COUNT];
+        translationCounts = new byte[CHANNEL_COUNT * NOTE_COUNT];
         this.midiReceiver = midiReceiver;
         try {
             this.midiReceiver.open();
@@ -93,13 +128,19 @@ public class MidiProcessor implements Receiver {
      * @param debugMode specifies whether to enable debugging messages
      */
     public MidiProcessor(Receiver receiver, boolean debugMode) {
-        channelStatuses = new ChannelStatus[]{
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus()
-        }; // End ChannelStatus[] initialization
-        noteTranslations = ArrayListMultimap.create();
+        uses = new int[CHANNEL_COUNT];
+        useBuckets = new int[USE_BUCKET_COUNT];
+        useBuckets[0] = ALL_CHANNELS;
+        minUses = 0;
+        fullChannels = 0;
+        allocationStrategy = new ChannelAllocationStrategy.FirstAvailable();
+        capabilities = ChannelCapabilities.unrestricted(CHANNEL_COUNT);
+        pendingMessages = new ConcurrentLinkedQueue<>();
+        pendingCount = new AtomicInteger(0);
+        translationChannels = new byte[CHANNEL_COUNT * NOTE_COUNT * TRANSLATION_DEPTH];
+        translationNotes = new byte[CHANNEL_COUNT * NOTE_COUNT * TRANSLATION_DEPTH];
+        translationStarts = new byte[CHANNEL_COUNT * NOTE_COUNT];
+        translationCounts = new byte[CHANNEL_COUNT * NOTE_COUNT];
         this.midiOut = receiver;
         this.debugMode = debugMode;
         isOpen = true;
@@ -117,6 +158,7 @@ public class MidiProcessor implements Receiver {
 
     /**
      * Sends a MIDI message to this receiver, along with an optional timestamp. Set timestamp to -1 if not used.
+     * Safe to call from multiple threads; see the class description for the ordering of the forwarded messages.
      *
      * @param message   the message to be received and processed by this {@code MidiProcessor}
      * @param timeStamp the timestamp (in microseconds) of the message
@@ -126,27 +168,65 @@ public class MidiProcessor implements Receiver {
         // Drop the message if closing
         if (!isOpen) { return; }
 
-        // Ensure that the midi receiver objects are valid, aborting the send operation if unavailable since we can't throw
-        // an exception in the overridden method
-        if (midiOut == null) { return; }
-
-        // If the message is a ShortMessage send it to the translator for processing, regardless forwarding the message to the receiver
-        // If the receiver is closed, log it and continue
-        if (message instanceof ShortMessage) { message = translateMessage((ShortMessage) message); }
-        try { midiOut.send(message, timeStamp); } catch (IllegalStateException e) {
-            Logger.getLogger("MidiProcessor").log(
-                    Level.SEVERE,
-                    "Receiver " + midiOut.toString() + "closed",
-                    e
-            ); // End Logger.log call
-        } // End try {} catch(IllegalStateException)
+        // If no other thread is forwarding messages, forward this one directly without queueing it. Otherwise queue it
+        // and count it, and if the forwarding thread finished in the meantime, take over forwarding
+        if (pendingCount.compareAndSet(0, 1)) {
+            forward(message, timeStamp);
+            if (pendingCount.decrementAndGet() == 0) { return; }
+        }
+        else {
+            pendingMessages.offer(new PendingMessage(message, timeStamp));
+            if (pendingCount.getAndIncrement() != 0) { return; }
+        }
+
+        // Forward the messages queued by other threads until there are none left
+        // Note: Each message is counted after it is queued, so the queue is never empty while the count isn't 0
+        do {
+            PendingMessage pending = pendingMessages.poll();
+            forward(pending.message, pending.timeStamp);
+        } while (pendingCount.decrementAndGet() != 0);
     } // End send method
 
+    /**
+     * Translates a message and forwards it to the receiver. Only called by the thread currently forwarding messages.
+     *
+     * @param message   the message to forward
+     * @param timeStamp the timestamp (in microseconds) of the message
+     */
+    private void forward(MidiMessage message, long timeStamp) {
+        // Ensure that the midi receiver objects are valid, dropping the message if unavailable since we can't throw
+        // an exception in the overridden method
+        Receiver receiver = midiOut;
+        if (receiver == null || !isOpen) { return; }
+
+        // If the message is a ShortMessage send it to the translator for processing, dropping it if the translation fails
+        // Note: A failing allocation strategy throws before any use is added, so the message can be dropped safely.
+        //      It's caught here rather than with the receiver's exceptions so it isn't reported as a closed receiver
+        try {
+            if (message instanceof ShortMessage) { message = translateMessage((ShortMessage) message); }
+        } catch (RuntimeException e) {
+            Logger.getLogger("MidiProcessor").log(Level.SEVERE, "Failed to translate message", e);
+            return;
+        } // End try {} catch(RuntimeException)
+
+        // Forward the message to the receiver. If the receiver is closed or fails, log it and continue so that the
+        // messages of other threads are still forwarded
+        // Note: Dropped notes translate to null and aren't forwarded
+        if (message == null) { return; }
+        try {
+            receiver.send(message, timeStamp);
+        } catch (IllegalStateException e) {
+            Logger.getLogger("MidiProcessor").log(Level.SEVERE, "Receiver " + receiver + " closed", e);
+        } catch (RuntimeException e) {
+            Logger.getLogger("MidiProcessor").log(Level.SEVERE, "Failed to forward message", e);
+        } // End try {} catch(IllegalStateException) catch(RuntimeException)
+    } // End forward method
+
     /**
      * Closes this {@code MidiProcessor} and releases its resources, specifically the MIDI device assigned with setReceiver or the constructor.
      */
     @Override
-    public void close() {
+    public synchronized void close() {
         isOpen = false; // Stop advertising as available to process messages
         if (midiReceiver != null && midiReceiver.isOpen()) { midiReceiver.close(); }
         midiReceiver = null;
@@ -168,7 +248,7 @@ public class MidiProcessor implements Receiver {
      * @throws NullPointerException     if the provided {@link MidiDevice} is null
      * @see #setReceiver(Receiver)
      */
-    public void setReceiver(MidiDevice midiReceiver) throws MidiUnavailableException, NullPointerException {
+    public synchronized void setReceiver(MidiDevice midiReceiver) throws MidiUnavailableException, NullPointerException {
         if (midiReceiver == null) { throw new IllegalArgumentException(); }
 
         Receiver receiver; // The new MIDI receiver to use
@@ -198,7 +278,7 @@ public class MidiProcessor implements Receiver {
      * @param receiver the desired MIDI receiver
      * @see #setReceiver(MidiDevice)
      */
-    public void setReceiver(Receiver receiver) {
+    public synchronized void setReceiver(Receiver receiver) {
         if (midiReceiver != null) {
             if (midiReceiver.isOpen()) { midiReceiver.close(); }
             midiReceiver = null;
@@ -215,7 +295,22 @@ public class MidiProcessor implements Receiver {
      * @param channel the channel to check for availability
      * @return {@code true} if {@code channel} is available; {@code false} if {@code channel} is out of range or in use
      */
-    public boolean channelAvailable(int channel) { return (!channelStatuses[channel].inUse()); }
+    public synchronized boolean channelAvailable(int channel) { return uses[channel] == 0; }
+
+    /**
+     * Retrieves the number of notes currently translated to a MIDI channel.
+     *
+     * @param channel the channel to check
+     * @return the number of uses of {@code channel}
+     */
+    public synchronized int getUses(int channel) { return uses[channel]; }
+
+    /**
+     * Retrieves the set of MIDI channels that aren't currently in use.
+     *
+     * @return the bitmap of available channels, with bit {@code n} set if channel {@code n} is available
+     */
+    public synchronized int getFreeChannels() { return useBuckets[0]; }
 
     /**
      * Finds the first MIDI channel from 0 that a message hasn't currently been translated to.
@@ -223,10 +318,9 @@ public class MidiProcessor implements Receiver {
      * @return the MIDI channel number of the available channel
      * @throws ExceededMidiChannelsException if all MIDI channels are in use
      */
-    public int firstAvailableChannel() throws ExceededMidiChannelsException {
-        // Iterate over the array returning as soon as an available channel is found, throwing an exception if array exhausted
-        for (byte i = 0; i < channelStatuses.length; i++) { if (!channelStatuses[i].inUse()) { return i; }}
-        throw new ExceededMidiChannelsException();
+    public synchronized int firstAvailableChannel() throws ExceededMidiChannelsException {
+        if (useBuckets[0] == 0) { throw new ExceededMidiChannelsException(); }
+        return Integer.numberOfTrailingZeros(useBuckets[0]);
     } // End firstAvailableChannel method
 
     /**
@@ -234,64 +328,171 @@ public class MidiProcessor implements Receiver {
      *
      * @return the MIDI channel number of the least used channel
      */
-    public int leastUsedChannel() {
-        int indexOfLeastUsed = 0;
-        for (byte i = 1; i < channelStatuses.length; i++) {
-            if (channelStatuses[i].getUses() < channelStatuses[indexOfLeastUsed].getUses()) { indexOfLeastUsed = i; }
+    public synchronized int leastUsedChannel() { return leastUsedChannel(ALL_CHANNELS); }
+
+    /**
+     * Finds the MIDI channel with the least amount of uses out of a set of channels, returning the lower channel if multiple
+     * have an equal number of uses.
+     *
+     * @param channelMask the bitmap of channels to choose from, with bit {@code n} set to include channel {@code n}
+     * @return the MIDI channel number of the least used channel, or -1 if {@code channelMask} contains no channel
+     */
+    public synchronized int leastUsedChannel(int channelMask) {
+        channelMask &= ALL_CHANNELS;
+        if (channelMask == 0) { return -1; }
+
+        // Go through the use buckets from the lowest non-empty one, stopping at the first one containing a wanted channel
+        for (int u = minUses; u < USE_BUCKET_COUNT - 1; u++) {
+            int bucket = useBuckets[u] & channelMask;
+            if (bucket != 0) { return Integer.numberOfTrailingZeros(bucket); }
+        }
+
+        // All wanted channels are in the last bucket, which doesn't keep them apart, so compare their uses directly
+        int indexOfLeastUsed = -1;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if ((channelMask & (1 << i)) != 0 && (indexOfLeastUsed < 0 || uses[i] < uses[indexOfLeastUsed])) { indexOfLeastUsed = i; }
         }
         return indexOfLeastUsed;
-    } // End leastUsedChannel method
+    } // End leastUsedChannel(int) method
+
+    /**
+     * Retrieves the set of MIDI channels with the least amount of uses, which are the available channels whenever
+     * any channel is available.
+     *
+     * @return the bitmap of the least used channels, with bit {@code n} set if channel {@code n} is one of them
+     */
+    public synchronized int leastUsedChannels() { return leastUsedChannels(ALL_CHANNELS); }
+
+    /**
+     * Retrieves the channels with the least amount of uses out of a set of channels, which are the available channels of
+     * the set whenever any of them is available.
+     *
+     * @param channelMask the bitmap of channels to choose from, with bit {@code n} set to include channel {@code n}
+     * @return the bitmap of the least used channels of {@code channelMask}, 0 if {@code channelMask} contains no channel
+     */
+    public synchronized int leastUsedChannels(int channelMask) {
+        channelMask &= ALL_CHANNELS;
+        if (channelMask == 0) { return 0; }
+
+        // Go through the use buckets from the lowest non-empty one, stopping at the first one containing a wanted channel
+        for (int u = minUses; u < USE_BUCKET_COUNT - 1; u++) {
+            int bucket = useBuckets[u] & channelMask;
+            if (bucket != 0) { return bucket; }
+        }
+
+        // All wanted channels are in the last bucket, which doesn't keep them apart, so compare their uses directly
+        int leastUses = Integer.MAX_VALUE;
+        int leastUsed = 0;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if ((channelMask & (1 << i)) == 0) { continue; }
+            if (uses[i] < leastUses) { leastUses = uses[i]; leastUsed = 0; }
+            if (uses[i] == leastUses) { leastUsed |= 1 << i; }
+        }
+        return leastUsed;
+    } // End leastUsedChannels(int) method
+
+    /**
+     * Retrieves the capabilities of the channels that notes are translated to.
+     *
+     * @return the current {@link ChannelCapabilities}
+     */
+    public synchronized ChannelCapabilities getCapabilities() { return capabilities; }
+
+    /**
+     * Sets the capabilities of the channels that notes are translated to. Notes that are already playing keep their
+     * channels, and count towards the polyphony of their channels. The default is
+     * {@link ChannelCapabilities#unrestricted(int) ChannelCapabilities.unrestricted(16)}, all 16 channels playing any notes.
+     *
+     * @param capabilities the desired {@link ChannelCapabilities}
+     * @throws IllegalArgumentException if the provided capabilities are null
+     */
+    public synchronized void setCapabilities(ChannelCapabilities capabilities) {
+        if (capabilities == null) { throw new IllegalArgumentException(); }
+        this.capabilities = capabilities;
+        fullChannels = 0;
+        for (int i = 0; i < CHANNEL_COUNT; i++) { if (isFull(i)) { fullChannels |= 1 << i; }}
+    } // End setCapabilities method
+
+    /**
+     * Retrieves the strategy that chooses the MIDI channel each NOTE-ON message is translated to.
+     *
+     * @return the current {@link ChannelAllocationStrategy}
+     */
+    public synchronized ChannelAllocationStrategy getAllocationStrategy() { return allocationStrategy; }
+
+    /**
+     * Sets the strategy that chooses the MIDI channel each NOTE-ON message is translated to. Notes that are already
+     * playing keep their channels. The default is {@link ChannelAllocationStrategy.FirstAvailable}.
+     *
+     * @param allocationStrategy the desired {@link ChannelAllocationStrategy}
+     * @throws IllegalArgumentException if the provided strategy is null
+     */
+    public synchronized void setAllocationStrategy(ChannelAllocationStrategy allocationStrategy) {
+        if (allocationStrategy == null) { throw new IllegalArgumentException(); }
+        this.allocationStrategy = allocationStrategy;
+    } // End setAllocationStrategy method
 
     /**
      * Translates the provided message onto the correct MIDI channel. If it is available, the original channel of {@code message} is chosen,
-     * otherwise the next available channel from 0 is chosen.
+     * otherwise the next available channel from 0 is chosen. {@code message} itself is never modified.
      *
      * @param message the message to be translated
-     * @return the translated version of {@code message}
+     * @return a translated copy of {@code message}, {@code message} itself if its channel and note don't change, or
+     * {@code null} if the note is dropped because no channel can play it
      */
-    public ShortMessage translateMessage(ShortMessage message) {
+    public synchronized ShortMessage translateMessage(ShortMessage message) {
         if (message == null) { return null; } // Null check
 
         // Interpret the command contained in the message
         switch (message.getCommand()) {
             case ShortMessage.NOTE_ON: { // MIDI NOTE-ON event
-                int newChannel;     // The new channel to assign to the MIDI message
-                NoteMapping key;    // The hashmap key for the MIDI message
+                int channel = message.getChannel();             // The original channel of the MIDI message
+                int key = translationKey(channel, message.getData1()); // The translation table index of the MIDI message
+                int newNote = capabilities.getPlayedNote(message.getData1()); // The note to play, or -1 if unplayable
+                int allowedChannels;                            // The channels that can play newNote now
+                int newChannel;                                 // The new channel to assign to the MIDI message
+
+                // Drop the note if no channel can play it, or all channels that can are playing as many notes as they can
+                // Note: The dropped note is remembered so that its NOTE-OFF is dropped too
+                allowedChannels = newNote < 0 ? 0 : capabilities.getChannelsForNote(newNote) & ~fullChannels;
+                if (allowedChannels == 0) {
+                    addTranslation(key, -1, 0);
+                    if (debugMode) {
+                        StringBuilder debugMessage = new StringBuilder();
+                        debugMessage.append("NOTE-ON [").append(channel).append("] <DROPPED>; ");
+                        appendUses(debugMessage);
+                        System.out.println(debugMessage.toString());
+                    } // End if(debugMode)
+                    return null;
+                } // End if(allowedChannels == 0)
 
-                // If the original channel isn't available, attempt to assign the first available channel. If no channels
-                // are available, lazily distribute the message and any that come before a channel becomes available across
-                // all of the MIDI channels
+                // Let the allocation strategy choose the channel. By default, if the original channel isn't available,
+                // the first available channel is assigned. If no channels are available, the message and any that come
+                // before a channel becomes available are lazily distributed across all of the MIDI channels
                 // Note: This distribution is done so that if a channel opens up a new note immediately starts playing,
                 //      therefore even if a burst of messages come through it is more unlikely for one channel to be empty
                 //      when there are multiple notes stacked on another
-                if (!channelAvailable(message.getChannel())) {
-                    try { newChannel = firstAvailableChannel(); } catch (ExceededMidiChannelsException e) {
-                        newChannel = leastUsedChannel();
-                    } // End try {} catch (ExceededMidiChannelsException)
-                } // End if(!channelAvailable(message.channel))
-                else { newChannel = message.getChannel(); }
-
-                // Create the translation table entry, add a usage to the channel status, and update the message with the
-                // new channel, ignoring the possibility of an InvalidMidiDataException.
+                newChannel = allocationStrategy.selectChannel(this, channel, newNote, allowedChannels);
+                if (newChannel < 0 || newChannel >= CHANNEL_COUNT || (allowedChannels & (1 << newChannel)) == 0) {
+                    throw new IllegalStateException("Allocation strategy selected invalid channel " + newChannel);
+                }
+
+                // Copy the message onto the new channel, then create the translation table entry and add a usage to
+                // the channel, ignoring the possibility of an InvalidMidiDataException.
                 // Rationale: I know newChannel is valid, and that is the only value I'm changing in the message that is
                 //      currently guaranteed to be valid, so there should not be any issues. Additionally, in the *extremely*
                 //      unlikely case the exception does get raised, the message will simply be untranslated with no side effects
-                // Note: In order to avoid any side effects upon an exception, we must introduce 'key' in order to support having
-                //      the exception-producing method call before the translation is created
                 try {
-                    key = new NoteMapping(message.getChannel(), message.getData1());
-                    message.setMessage(message.getCommand(), newChannel, message.getData1(), message.getData2());
-                    noteTranslations.put(
-                            key,
-                            new NoteMapping(newChannel, message.getData1())
-                    ); // End put call
-                    channelStatuses[newChannel].addUse();
+                    if (newChannel != channel || newNote != message.getData1()) {
+                        message = new ShortMessage(message.getCommand(), newChannel, newNote, message.getData2());
+                    }
+                    addTranslation(key, newChannel, newNote);
 
                     // If in debug mode, construct and output the translation debugging message
                     if (debugMode) {
                         StringBuilder debugMessage = new StringBuilder();
-                        debugMessage.append("NOTE-ON [").append(key.getChannel()).append("] --> [").append(newChannel).append("]; ");
-                        for (ChannelStatus c : channelStatuses) { debugMessage.append(c.getUses()).append(","); }
+                        debugMessage.append("NOTE-ON [").append(channel).append("] --> [").append(newChannel).append("]; ");
+                        appendUses(debugMessage);
                         System.out.println(debugMessage.toString());
                     } // End if(debugMode)
                 } catch (InvalidMidiDataException ignored) {}
@@ -300,49 +501,44 @@ public class MidiProcessor implements Receiver {
                 return message;
             } // End message == NOTE_ON case
             case ShortMessage.NOTE_OFF: { // MIDI NOTE-OFF event
-                NoteMapping originalMessage;     // The NoteMapping of the original message
-                NoteMapping translatedMessage;   // The NoteMapping of the translated message
-                List<NoteMapping> multimapEntry; // The List entry from the noteTranslations multimap
-
-                // Make a NoteMapping for the original message
-                originalMessage = new NoteMapping(message.getChannel(), message.getData1());
-
-                // Retrieve the corresponding translated message, returning the original message if an entry isn't found
-                // Note: noteTranslations.get returns empty list if not found
-                // Note 2: If an entry isn't found, the NOTE-ON event was probably sent before we started splitting notes,
+                int channel = message.getChannel();             // The original channel of the MIDI message
+                int key = translationKey(channel, message.getData1()); // The translation table index of the MIDI message
+                int translation;                                // The channel and note the matching NOTE-ON was translated to
+                int translatedChannel;                          // The channel the matching NOTE-ON was translated to
+                int translatedNote;                             // The note the matching NOTE-ON was translated to
+
+                // Retrieve the oldest corresponding translation, returning the original message if there isn't one
+                // Note: If a translation isn't found, the NOTE-ON event was probably sent before we started splitting notes,
                 //      so it's probably a good idea to send the unmodified NOTE-OFF anyways
-                multimapEntry = noteTranslations.get(originalMessage);
-                if (multimapEntry.isEmpty() || multimapEntry.get(0) == null) {
+                if (translationCounts[key] == 0) {
                     if (debugMode) {
                         StringBuilder debugMessage = new StringBuilder();
-                        debugMessage.append("NOTE-OFF [").append(message.getChannel()).append("] <X>; ");
-                        for (ChannelStatus c : channelStatuses) { debugMessage.append(c.getUses()).append(","); }
+                        debugMessage.append("NOTE-OFF [").append(channel).append("] <X>; ");
+                        appendUses(debugMessage);
                         System.out.println(debugMessage.toString());
                     } // End if(debugMode)
                     return message;
                 }
-                translatedMessage = noteTranslations.get(originalMessage).get(0);
 
-                // Remove the hashmap entry and channel usage, and attempt to recreate the message with the translated channel
+                // Remove the translation and channel usage, and attempt to copy the message onto the translated channel
                 // Note: See above for related rationale about ignoring the InvalidMidiDataException, but in this case we
                 //      will always remove the entry so it does not get orphaned
-                NoteMapping key = new NoteMapping(message.getChannel(), message.getData1());
-                noteTranslations.remove(key, translatedMessage);
-                channelStatuses[translatedMessage.getChannel()].removeUse();
+                // Note 2: If the NOTE-ON was dropped, the NOTE-OFF is dropped as well
+                translation = removeTranslation(key);
+                if (translation < 0) { return null; }
+                translatedChannel = translation >>> 7;
+                translatedNote = translation & 0x7f;
                 try {
-                    message.setMessage(
-                            message.getCommand(),
-                            translatedMessage.getChannel(),
-                            message.getData1(),
-                            message.getData2()
-                    ); // End setMessage call
+                    if (translatedChannel != channel || translatedNote != message.getData1()) {
+                        message = new ShortMessage(message.getCommand(), translatedChannel, translatedNote, message.getData2());
+                    }
                 } catch (InvalidMidiDataException ignored) {}
 
                 // If in debug mode, construct and output the translation debugging message
                 if (debugMode) {
                     StringBuilder debugMessage = new StringBuilder();
-                    debugMessage.append("NOTE-OFF [").append(key.getChannel()).append("] --> [").append(translatedMessage.getChannel()).append("]; ");
-                    for (ChannelStatus c : channelStatuses) { debugMessage.append(c.getUses()).append(","); }
+                    debugMessage.append("NOTE-OFF [").append(channel).append("] --> [").append(translatedChannel).append("]; ");
+                    appendUses(debugMessage);
                     System.out.println(debugMessage.toString());
                 } // End if(debugMode)
 
@@ -350,18 +546,19 @@ public class MidiProcessor implements Receiver {
                 return message;
             } // End message == NOTE_OFF case
             case ShortMessage.PROGRAM_CHANGE: { // Triggered by loading/seeking/stopping
-                // Clear all note mappings to prevent orphaning notes
-                noteTranslations.clear();
-                channelStatuses = new ChannelStatus[]{
-                        new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                        new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                        new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus(),
-                        new ChannelStatus(), new ChannelStatus(), new ChannelStatus(), new ChannelStatus()
-                }; // End ChannelStatus[] initialization
+                // Clear all note translations to prevent orphaning notes
+                // Note: The ring buffer starts don't need to be reset since the translations are empty
+                Arrays.fill(translationCounts, (byte) 0);
+                Arrays.fill(uses, 0);
+                Arrays.fill(useBuckets, 0);
+                useBuckets[0] = ALL_CHANNELS;
+                minUses = 0;
+                fullChannels = 0;
+                allocationStrategy.reset();
                 if (debugMode) {
                     StringBuilder debugMessage = new StringBuilder();
                     debugMessage.append("RESET-TRANSLATIONS; ");
-                    for (ChannelStatus c : channelStatuses) { debugMessage.append(c.getUses()).append(","); }
+                    appendUses(debugMessage);
                     System.out.println(debugMessage.toString());
                 } // End if(debugMode)
                 return message;
@@ -373,171 +570,148 @@ public class MidiProcessor implements Receiver {
     } // End translateMessage method
 
     /**
-     * Indicates that all 16 MIDI channels are in use and the current note cannot be distributed to a unique channel.
+     * Calculates the index of a note of a channel in the translation table.
      *
-     * @author Noah Reeder
-     * @version 1.0
-     * @since 2020-03-08
+     * @param channel    the 4-bit number of the original MIDI channel
+     * @param noteNumber the 7-bit MIDI number of the note
+     * @return the index into {@code translationStarts} and {@code translationCounts}
      */
-    public static class ExceededMidiChannelsException extends Exception implements Serializable {
-        /**
-         * Constructs a {@code ExceededMidiChannelsException} with a detailed message of {@code null}.
-         */
-        public ExceededMidiChannelsException() { super(); }
-
-        /**
-         * Constructs an {@code ExceededMidiChannelsException} with a specific detailed error message.
-         *
-         * @param message the detailed error message to be contained
-         */
-        public ExceededMidiChannelsException(String message) { super(message); }
-
-        /**
-         * Constructs an {@code ExceededMidiChannelsException} containing the cause of the exception.
-         *
-         * @param cause the throwable that caused the {@code ExceededMidiChannelsException} to be raised
-         */
-        public ExceededMidiChannelsException(Throwable cause) { super(cause); }
-
-        /**
-         * Constructs an {@code ExceededMidiChannelsException} containing an error message and the cause of the exception.
-         *
-         * @param message the detailed error message to be contained
-         * @param cause   the throwable that caused the {@code ExceededMidiChannelsException} to be raised
-         */
-        public ExceededMidiChannelsException(String message, Throwable cause) { super(message, cause); }
-    } // End ExceededMidiChannelsException class
+    private static int translationKey(int channel, int noteNumber) { return (channel << 7) | (noteNumber & 0x7f); }
 
     /**
-     * Represents an entry in a {@link MidiProcessor}'s note translation map.
-     * <br><br>
-     * Note: The Java implementation of MIDI uses {@code int} to represent all MIDI values, however they should still reflect the
-     * 7/4 bit values specified in the MIDI standard.<br>
-     * Note 2: MIDI note velocity is not stored because the velocity of the NOTE-OFF message is always 0 and thus won't match the NOTE-ON.
+     * Adds a translation of a note to a channel and a usage to that channel. If the note already has
+     * {@code TRANSLATION_DEPTH} active translations, the oldest one is dropped first since its NOTE-OFF was probably lost.
      *
-     * @author Noah Reeder
-     * @version 1.0
-     * @see <a href=https://www.midi.org/specifications-old/item/table-1-summary-of-midi-message>Summary of MIDI Messages</a>
-     * @since 2020-03-08
+     * @param key        the translation table index of the original note
+     * @param newChannel the channel the note is translated to, or -1 if the note is dropped
+     * @param newNote    the note played instead of the original note
      */
-    protected static class NoteMapping {
-        private int channel;    // The MIDI channel of the note
-        private int noteNumber; // The MIDI note/key number of the note
+    private void addTranslation(int key, int newChannel, int newNote) {
+        if (translationCounts[key] == TRANSLATION_DEPTH) { removeTranslation(key); }
+        int slot = key * TRANSLATION_DEPTH + ((translationStarts[key] + translationCounts[key]) & (TRANSLATION_DEPTH - 1));
+        translationChannels[slot] = (byte) newChannel;
+        translationNotes[slot] = (byte) newNote;
+        translationCounts[key]++;
+        if (newChannel >= 0) { addUse(newChannel); }
+    } // End addTranslation method
 
-        /**
-         * Constructs a {@code NoteMapping} with the channel and note set to 0.
-         */
-        public NoteMapping() { noteNumber = 0; channel = 0; }
-
-        /**
-         * Constructs a {@code NoteMapping} verbosely using the provided information.
-         *
-         * @param channel    the note's channel
-         * @param noteNumber the MIDI key/note that the message concerns
-         */
-        public NoteMapping(int channel, int noteNumber) {
-            this.channel = channel;
-            this.noteNumber = noteNumber;
-        } // End NoteMapping(byte, byte, byte) constructor
+    /**
+     * Removes the oldest translation of a note and the usage of its channel. The note must have an active translation.
+     *
+     * @param key the translation table index of the original note
+     * @return the channel the note was translated to shifted left by 7 bits, ORed with the note played instead, or -1
+     * if the note was dropped
+     */
+    private int removeTranslation(int key) {
+        int start = translationStarts[key];
+        int slot = key * TRANSLATION_DEPTH + start;
+        int translatedChannel = translationChannels[slot];
+        translationStarts[key] = (byte) ((start + 1) & (TRANSLATION_DEPTH - 1));
+        translationCounts[key]--;
+        if (translatedChannel < 0) { return -1; }
+        removeUse(translatedChannel);
+        return (translatedChannel << 7) | translationNotes[slot];
+    } // End removeTranslation method
 
-        /**
-         * Determines whether or not an object is equal to this {@code NoteMapping}.
-         *
-         * @param o the object to compare
-         * @return {@code true} if {@code o} is equal to this {@code NoteMapping}, otherwise {@code false}
-         */
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            NoteMapping that = (NoteMapping) o;
-            return channel == that.channel &&
-                    noteNumber == that.noteNumber;
-        } // End equals method
+    /**
+     * Checks whether a channel is playing as many notes as its capabilities allow.
+     *
+     * @param channel the channel to check
+     * @return {@code true} if no more notes may be translated to {@code channel}
+     */
+    private boolean isFull(int channel) { return uses[channel] >= capabilities.getMaxPolyphony(channel); }
 
-        /**
-         * Calculates the hash code of this NoteMapping.
-         *
-         * @return the hash code
-         */
-        @Override
-        public int hashCode() { return Objects.hash(channel, noteNumber); }
+    /**
+     * Adds one to the number of uses of a channel, moving it to the next use bucket.
+     *
+     * @param channel the channel being used
+     */
+    private void addUse(int channel) {
+        int oldUses = uses[channel]++;
+        if (isFull(channel)) { fullChannels |= 1 << channel; }
+
+        // Channels in the last bucket stay there
+        if (oldUses < USE_BUCKET_COUNT - 1) {
+            useBuckets[oldUses] &= ~(1 << channel);
+            useBuckets[oldUses + 1] |= 1 << channel;
+            if (oldUses == minUses && useBuckets[oldUses] == 0) { minUses = oldUses + 1; }
+        }
+    } // End addUse method
 
-        /**
-         * Retrieves the MIDI channel of the note contained in this mapping entry.
-         *
-         * @return the 4-bit number of the MIDI channel
-         */
-        public int getChannel() { return channel; }
+    /**
+     * Subtracts one from the number of uses of a channel, moving it to the previous use bucket. When all uses are
+     * subtracted, the channel is considered available.
+     *
+     * @param channel the channel no longer being used
+     */
+    private void removeUse(int channel) {
+        if (uses[channel] == 0) { return; }
+        int oldUses = uses[channel]--;
+        if (!isFull(channel)) { fullChannels &= ~(1 << channel); }
+
+        // Channels only leave the last bucket when dropping below its use count
+        if (oldUses < USE_BUCKET_COUNT) {
+            useBuckets[oldUses] &= ~(1 << channel);
+            useBuckets[oldUses - 1] |= 1 << channel;
+            if (oldUses - 1 < minUses) { minUses = oldUses - 1; }
+        }
+    } // End removeUse method
 
-        /**
-         * Assigns the MIDI channel of the note contained in this mapping entry.
-         *
-         * @param channel the 4-bit number of the MIDI channel to set
-         */
-        public void setChannel(int channel) { this.channel = channel; }
+    /**
+     * Appends the number of uses of every channel to a debugging message.
+     *
+     * @param debugMessage the debugging message to append to
+     */
+    private void appendUses(StringBuilder debugMessage) {
+        for (int u : uses) { debugMessage.append(u).append(","); }
+    } // End appendUses method
 
-        /**
-         * Retrieves the MIDI number for the note/key contained in this mapping entry.
-         *
-         * @return the 7-bit MIDI number of the note
-         */
-        public int getNoteNumber() { return noteNumber; }
+    /**
+     * A message sent to a {@link MidiProcessor} while another thread was forwarding messages.
+     */
+    private static class PendingMessage {
+        final MidiMessage message; // The message to forward
+        final long timeStamp;      // The timestamp (in microseconds) of the message
 
-        /**
-         * Assigns the MIDI number for the note/key contained in this mapping entry.
-         *
-         * @param noteNumber the 7-bit MIDI number of the note to set
-         */
-        public void setNoteNumber(int noteNumber) { this.noteNumber = noteNumber; }
-    } // End NoteMapping class
+        PendingMessage(MidiMessage message, long timeStamp) {
+            this.message = message;
+            this.timeStamp = timeStamp;
+        } // End PendingMessage(MidiMessage, long) constructor
+    } // End PendingMessage class
 
     /**
-     * Represents whether or not a MIDI channel is available, as well as how many notes need to be turned off before the
-     * will be available.
+     * Indicates that all 16 MIDI channels are in use and the current note cannot be distributed to a unique channel.
      *
      * @author Noah Reeder
      * @version 1.0
      * @since 2020-03-08
      */
-    protected static class ChannelStatus {
-        private int uses; // The counter for the current number of uses/note-on events on this channel
-
+    public static class ExceededMidiChannelsException extends Exception implements Serializable {
         /**
-         * Constructs a {@code ChannelStatus} with the current number of uses at 0.
+         * Constructs a {@code ExceededMidiChannelsException} with a detailed message of {@code null}.
          */
-        public ChannelStatus() { uses = 0; }
+        public ExceededMidiChannelsException() { super(); }
 
         /**
-         * Constructs a {@code ChannelStatus} with a specific number of current uses.
+         * Constructs an {@code ExceededMidiChannelsException} with a specific detailed error message.
          *
-         * @param initialUses the number of times this channel is currently being used
-         */
-        public ChannelStatus(int initialUses) {uses = initialUses;}
-
-        /**
-         * Adds one to the number of times this channel is being used.
-         */
-        public void addUse() { uses += 1; }
-
-        /**
-         * Subtracts one from the number of times this channel is being used. When all uses are subtracted, the channel is
-         * considered available.
+         * @param message the detailed error message to be contained
          */
-        public void removeUse() {if (uses > 0) {uses -= 1;}}
+        public ExceededMidiChannelsException(String message) { super(message); }
 
         /**
-         * Checks whether or not the channel is currently in use.
+         * Constructs an {@code ExceededMidiChannelsException} containing the cause of the exception.
          *
-         * @return {@code true} if uses is greater than 0, otherwise {@code false}
+         * @param cause the throwable that caused the {@code ExceededMidiChannelsException} to be raised
          */
-        public boolean inUse() { return uses > 0; }
+        public ExceededMidiChannelsException(Throwable cause) { super(cause); }
 
         /**
-         * Retrieves the number of times this channel is in use.
+         * Constructs an {@code ExceededMidiChannelsException} containing an error message and the cause of the exception.
          *
-         * @return number of uses
+         * @param message the detailed error message to be contained
+         * @param cause   the throwable that caused the {@code ExceededMidiChannelsException} to be raised
          */
-        public int getUses() { return uses; }
-    } // End ChannelStatus class
+        public ExceededMidiChannelsException(String message, Throwable cause) { super(message, cause); }
+    } // End ExceededMidiChannelsException class
 } // End MidiProcessor class
@@ -0,0 +1,415 @@
+package com.github.noahr_atc.midisplitter;
+
+/*
+Copyright 2020 Noah Reeder
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import jp.kshoji.javax.sound.midi.*;
+import java.util.Arrays;
+
+/**
+ * Splits the chords of a whole {@link Sequence} into notes distributed across MIDI channels ahead of playback, so
+ * that the sequence can be played without a {@link MidiProcessor}.
+ * <br><br>
+ * Unlike {@code MidiProcessor}, which has to decide each note as it arrives, the {@code SequenceSplitter} knows when
+ * every note ends. The notes of all tracks are assigned in the order a sequencer plays them, tick by tick and track by
+ * track, with each note released when its NOTE-OFF is played, and each note goes to a channel that is free for its
+ * whole duration. Since overlapping notes form an interval graph, this uses the fewest channels possible: no two
+ * overlapping notes share a channel unless more notes overlap than there are channels. Notes stay on their original
+ * channel whenever it is free, otherwise they prefer the channel the previous note of their original channel was moved
+ * to, so as few notes as possible are moved.
+ * <br><br>
+ * Notes only go to the channels of the {@link ChannelCapabilities} that can play them, and never to a channel already
+ * playing as many notes as it can. Notes that no channel can play are transposed or dropped according to the
+ * capabilities, and notes that arrive while every channel that can play them is full are dropped, along with their NOTE-OFFs.
+ * <br><br>
+ * Note: NOTE-ON messages with a velocity of 0 are treated as NOTE-OFF messages. Notes are matched to their NOTE-OFF
+ * by channel and note number within their track, before any channel is assigned, so every NOTE-OFF goes to the
+ * channel of its own note, including notes ending at the tick they start. A NOTE-ON of a note that is still playing
+ * ends it, as on a single channel, and notes without a NOTE-OFF end with their track; both get a NOTE-OFF added on
+ * their channel where needed. NOTE-OFFs without a note, and notes restruck on another channel at the tick they start,
+ * are left out.
+ *
+ * @author Noah Reeder
+ * @version 1.0
+ */
+public class SequenceSplitter {
+    private static final int CHANNEL_COUNT = 16;      // The number of MIDI channels
+    private static final int NOTE_COUNT = 128;        // The number of MIDI note numbers
+
+    private final ChannelCapabilities capabilities; // The channels that notes are distributed across and the notes they can play
+
+    /**
+     * Constructs a {@code SequenceSplitter} distributing notes across all 16 MIDI channels.
+     */
+    public SequenceSplitter() { this(CHANNEL_COUNT); }
+
+    /**
+     * Constructs a {@code SequenceSplitter} distributing notes across the first {@code channelCount} MIDI channels,
+     * for example one channel per available drive.
+     *
+     * @param channelCount the number of channels to use, from 1 to 16
+     * @throws IllegalArgumentException if {@code channelCount} is out of range
+     */
+    public SequenceSplitter(int channelCount) { this(ChannelCapabilities.unrestricted(channelCount)); }
+
+    /**
+     * Constructs a {@code SequenceSplitter} distributing notes across the channels of a capability table, for example
+     * the sub-addresses of the connected devices and the notes their drives can play.
+     *
+     * @param capabilities the capabilities of the channels to use
+     * @throws IllegalArgumentException if {@code capabilities} is null
+     */
+    public SequenceSplitter(ChannelCapabilities capabilities) {
+        if (capabilities == null) { throw new IllegalArgumentException(); }
+        this.capabilities = capabilities;
+    } // End SequenceSplitter(ChannelCapabilities) constructor
+
+    /**
+     * Retrieves the number of channels that notes are distributed across.
+     *
+     * @return the number of channels
+     */
+    public int getChannelCount() { return Integer.bitCount(capabilities.getChannels()); }
+
+    /**
+     * Retrieves the capabilities of the channels that notes are distributed across.
+     *
+     * @return the {@link ChannelCapabilities}
+     */
+    public ChannelCapabilities getCapabilities() { return capabilities; }
+
+    /**
+     * Creates a copy of a {@link Sequence} with its notes distributed across the channels. The tracks of the copy hold
+     * the same events in compact storage, with only the channels and notes of moved notes changed and dropped notes
+     * left out. {@code sequence} itself is not modified, not even sorted, so it can still be shared with other readers.
+     *
+     * @param sequence the sequence to split, which must not be modified while it is being split
+     * @return the split copy of {@code sequence}
+     * @throws InvalidMidiDataException if the split sequence can't be created
+     */
+    public Sequence split(Sequence sequence) throws InvalidMidiDataException {
+        Track[] tracks = sequence.getTracks();
+        Track.Snapshot[] snapshots = new Track.Snapshot[tracks.length];
+        for (int i = 0; i < tracks.length; i++) { snapshots[i] = tracks[i].getSortedSnapshot(); }
+
+        // Assign the notes, then copy the tracks with the assigned channels
+        Assignment assignment = new Assignment(snapshots);
+        short[][] rewrites = assignment.assignAll();
+        Sequence splitSequence = new Sequence(sequence.getDivisionType(), sequence.getResolution());
+        for (int i = 0; i < snapshots.length; i++) {
+            Track.Snapshot snapshot = snapshots[i];
+            Track.CompactEvents events = new Track.CompactEvents(snapshot.size());
+            for (int j = 0; j < snapshot.size(); j++) {
+                int packed = snapshot.getPackedMessage(j);
+                int rewrite = rewrites[i][j];
+                if (packed == -1 || (packed >>> 24) == 0) { events.add(snapshot.getTick(j), snapshot.getMessage(j)); }
+                else if (rewrite >= 0) {
+                    // Note: rewrites holds 1 + (channel << 7 | note) of moved notes, 0 for events kept as they are,
+                    //      and -1 for dropped notes, which are left out
+                    int status = packed & 0xff;
+                    int data1 = (packed >>> 8) & 0xff;
+                    if (rewrite != 0) {
+                        status = (status & 0xf0) | ((rewrite - 1) >>> 7);
+                        data1 = (rewrite - 1) & 0x7f;
+                    }
+                    events.add(snapshot.getTick(j), status, data1, (packed >>> 16) & 0xff);
+                }
+            } // End for(j < snapshot.size)
+            assignment.addNoteOffs(i, events);
+            splitSequence.createTrack().setEvents(events);
+        } // End for(i < snapshots.length)
+        return splitSequence;
+    } // End split method
+
+    /**
+     * The state of the channel assignment of one {@link Sequence}, walking through the events of all tracks in tick order.
+     */
+    private class Assignment {
+        private final Track.Snapshot[] snapshots;    // The sorted events of each track
+        private final short[][] rewrites;            // 1 + (channel << 7 | note) of each moved event of each track, 0 if
+        //                                           // ^ not moved, -1 if dropped
+        private final int[][] starts;                // The index of the NOTE-ON of each NOTE-OFF, -1 if it has none, and the
+        //                                           // ^ index of the NOTE-ON of the same key ended by each NOTE-ON, or -1
+        private final byte[][] targets;              // The channel each NOTE-ON was assigned to, -1 if dropped
+        private final byte[][] playedNotes;          // The note each NOTE-ON plays
+        private final boolean[][] active;            // Whether each NOTE-ON is still playing
+        private final int[] uses;                    // The number of active notes on each channel
+        private final int[] lastTargets;             // The channel the previous note of each original channel went to, or -1
+        private int freeChannels;                    // The bitmap of channels without active notes
+        private int fullChannels;                    // The bitmap of channels playing as many notes as they can
+        private int[] addedTracks;                   // The track of each NOTE-OFF added for a note without one
+        private long[] addedTicks;                   // The tick of each added NOTE-OFF
+        private int[] addedNotes;                    // The channel << 7 | note of each added NOTE-OFF
+        private int addedCount;                      // The number of added NOTE-OFFs
+
+        /**
+         * Constructs an {@code Assignment} with no active notes, pairing the NOTE-ONs and NOTE-OFFs of each track.
+         *
+         * @param snapshots the sorted events of each track
+         */
+        Assignment(Track.Snapshot[] snapshots) {
+            this.snapshots = snapshots;
+            rewrites = new short[snapshots.length][];
+            starts = new int[snapshots.length][];
+            targets = new byte[snapshots.length][];
+            playedNotes = new byte[snapshots.length][];
+            active = new boolean[snapshots.length][];
+            int[] playing = new int[CHANNEL_COUNT * NOTE_COUNT];
+            for (int i = 0; i < snapshots.length; i++) {
+                int size = snapshots[i].size();
+                rewrites[i] = new short[size];
+                starts[i] = new int[size];
+                targets[i] = new byte[size];
+                playedNotes[i] = new byte[size];
+                active[i] = new boolean[size];
+                pairNotes(i, playing);
+            }
+            uses = new int[CHANNEL_COUNT];
+            lastTargets = new int[CHANNEL_COUNT];
+            Arrays.fill(lastTargets, -1);
+            freeChannels = capabilities.getChannels();
+            fullChannels = 0;
+            addedTracks = new int[16];
+            addedTicks = new long[16];
+            addedNotes = new int[16];
+            addedCount = 0;
+        } // End Assignment(Track.Snapshot[]) constructor
+
+        /**
+         * Pairs the NOTE-ONs of a track with its NOTE-OFFs by channel and note number, in the order they are played, the
+         * same as a single channel would: a NOTE-OFF ends the note of its key that is playing, if any, and a NOTE-ON
+         * ends the note of its key that is still playing before it starts.
+         *
+         * @param track   the index of the track
+         * @param playing a table of the NOTE-ON playing each key, overwritten
+         */
+        private void pairNotes(int track, int[] playing) {
+            Track.Snapshot snapshot = snapshots[track];
+            Arrays.fill(playing, -1);
+            Arrays.fill(starts[track], -1);
+
+            for (int j = 0; j < snapshot.size(); j++) {
+                int packed = snapshot.getPackedMessage(j);
+                int key = (packed & 0x0f) << 7 | (packed >>> 8) & 0x7f;
+                if (isNoteOn(packed)) {
+                    starts[track][j] = playing[key];
+                    playing[key] = j;
+                }
+                else if (isNoteOff(packed) && playing[key] >= 0) {
+                    starts[track][j] = playing[key];
+                    playing[key] = -1;
+                }
+            } // End for(j < snapshot.size)
+        } // End pairNotes method
+
+        /**
+         * Assigns a channel to every note of every track.
+         *
+         * @return 1 + (channel << 7 | note) of each moved event of each track, 0 for events kept as they are, and -1
+         * for dropped events
+         */
+        short[][] assignAll() {
+            int[] firsts = new int[snapshots.length]; // The index of the first event of each track at the current tick
+
+            while (true) {
+                // Find the next tick with events in any track
+                long tick = Long.MAX_VALUE;
+                for (int i = 0; i < snapshots.length; i++) {
+                    if (firsts[i] < snapshots[i].size()) { tick = Math.min(tick, snapshots[i].getTick(firsts[i])); }
+                }
+                if (tick == Long.MAX_VALUE) { break; }
+
+                // Note: The events of a tick are played one track after the other, so a channel is only given to a
+                //      note after the NOTE-OFF releasing it is played, and no NOTE-OFF can end the note that replaced it
+                for (int i = 0; i < snapshots.length; i++) {
+                    Track.Snapshot snapshot = snapshots[i];
+                    int j = firsts[i];
+                    for (; j < snapshot.size() && snapshot.getTick(j) == tick; j++) {
+                        int packed = snapshot.getPackedMessage(j);
+                        int start = starts[i][j];
+                        if (isNoteOn(packed)) {
+                            // A note still playing the same key ends now, keeping its channel until the new note starts
+                            if (start >= 0) { release(i, start); }
+                            assign(i, j, packed);
+                            if (start >= 0) { endRestruck(i, start, j, tick); }
+                        }
+                        else if (isNoteOff(packed)) {
+                            if (start >= 0) { release(i, start); }
+                            rewrites[i][j] = start < 0 ? -1 : rewrites[i][start];
+                        }
+                    } // End for(j < snapshot.size)
+                    firsts[i] = j;
+                } // End for(i < snapshots.length)
+            } // End while(true)
+
+            // Notes without a NOTE-OFF end with their track
+            for (int i = 0; i < snapshots.length; i++) {
+                int size = snapshots[i].size();
+                for (int j = 0; j < size; j++) {
+                    if (active[i][j]) {
+                        release(i, j);
+                        addNoteOff(i, snapshots[i].getTick(size - 1), targets[i][j], playedNotes[i][j]);
+                    }
+                }
+            } // End for(i < snapshots.length)
+            return rewrites;
+        } // End assignAll method
+
+        /**
+         * Assigns a channel to a starting note, out of the channels that can play it and aren't full. The note keeps its
+         * original channel if it is free, otherwise it goes to the channel the previous note of its original channel went
+         * to if that is free, then to the first free channel, and to the least used channel if none is free. The note is
+         * dropped if no channel can play it.
+         *
+         * @param track  the index of the track of the note
+         * @param index  the index of the NOTE-ON event in the track
+         * @param packed the packed NOTE-ON message
+         */
+        private void assign(int track, int index, int packed) {
+            int channel = packed & 0x0f;
+            int note = (packed >>> 8) & 0x7f;
+            int played = capabilities.getPlayedNote(note);
+            int allowed = played < 0 ? 0 : capabilities.getChannelsForNote(played) & ~fullChannels;
+            int free = freeChannels & allowed;
+            int lastTarget = lastTargets[channel];
+            int target;
+            if (allowed == 0) { target = -1; }
+            else if ((free & (1 << channel)) != 0) { target = channel; }
+            else if (lastTarget >= 0 && (free & (1 << lastTarget)) != 0) { target = lastTarget; }
+            else if (free != 0) { target = Integer.numberOfTrailingZeros(free); }
+            else { target = leastUsedChannel(allowed); }
+            targets[track][index] = (byte) target;
+            playedNotes[track][index] = (byte) played;
+            if (target < 0) {
+                // Note: The NOTE-OFF of a dropped note is dropped too
+                rewrites[track][index] = -1;
+                return;
+            }
+            lastTargets[channel] = target;
+            if (target != channel || played != note) { rewrites[track][index] = (short) (1 + ((target << 7) | played)); }
+
+            active[track][index] = true;
+            uses[target]++;
+            freeChannels &= ~(1 << target);
+            if (uses[target] >= capabilities.getMaxPolyphony(target)) { fullChannels |= 1 << target; }
+        } // End assign(int, int, int) method
+
+        /**
+         * Ends a note restruck by a NOTE-ON of the same key. The note gets a NOTE-OFF of its own unless the new note plays
+         * the same note on the same channel, which restrikes it there. A note restruck at the tick it starts is dropped
+         * instead, since an added NOTE-OFF would be played before it.
+         *
+         * @param track the index of the track of the notes
+         * @param start the index of the NOTE-ON of the restruck note
+         * @param index the index of the restriking NOTE-ON
+         * @param tick  the tick of the restriking NOTE-ON
+         */
+        private void endRestruck(int track, int start, int index, long tick) {
+            int target = targets[track][start];
+            if (target < 0) { return; }
+            if (target == targets[track][index] && playedNotes[track][start] == playedNotes[track][index]) { return; }
+            if (snapshots[track].getTick(start) == tick) { rewrites[track][start] = -1; }
+            else { addNoteOff(track, tick, target, playedNotes[track][start]); }
+        } // End endRestruck method
+
+        /**
+         * Releases the channel of a note that ends.
+         *
+         * @param track the index of the track of the note
+         * @param start the index of the NOTE-ON of the note
+         */
+        private void release(int track, int start) {
+            if (!active[track][start]) { return; }
+            active[track][start] = false;
+            int target = targets[track][start];
+            if (--uses[target] == 0) { freeChannels |= 1 << target; }
+            if (uses[target] < capabilities.getMaxPolyphony(target)) { fullChannels &= ~(1 << target); }
+        } // End release method
+
+        /**
+         * Adds a NOTE-OFF for a note that has none in the sequence.
+         *
+         * @param track   the index of the track of the note
+         * @param tick    the tick the note ends at
+         * @param channel the channel the note was assigned to
+         * @param note    the note played
+         */
+        private void addNoteOff(int track, long tick, int channel, int note) {
+            if (addedCount == addedTracks.length) {
+                addedTracks = Arrays.copyOf(addedTracks, addedCount * 2);
+                addedTicks = Arrays.copyOf(addedTicks, addedCount * 2);
+                addedNotes = Arrays.copyOf(addedNotes, addedCount * 2);
+            }
+            addedTracks[addedCount] = track;
+            addedTicks[addedCount] = tick;
+            addedNotes[addedCount] = (channel << 7) | note;
+            addedCount++;
+        } // End addNoteOff method
+
+        /**
+         * Adds the NOTE-OFFs of the notes without one to the events of a track of the split sequence.
+         *
+         * @param track  the index of the track
+         * @param events the events of the split track
+         * @throws InvalidMidiDataException if a NOTE-OFF can't be created
+         */
+        void addNoteOffs(int track, Track.CompactEvents events) throws InvalidMidiDataException {
+            for (int i = 0; i < addedCount; i++) {
+                if (addedTracks[i] == track) {
+                    events.add(addedTicks[i], ShortMessage.NOTE_OFF | (addedNotes[i] >>> 7), addedNotes[i] & 0x7f, 0);
+                }
+            }
+        } // End addNoteOffs method
+
+        /**
+         * Finds the channel with the fewest active notes out of a set of channels, returning the lower channel if
+         * multiple are equal.
+         *
+         * @param channels the bitmap of channels to choose from, not 0
+         * @return the least used channel of {@code channels}
+         */
+        private int leastUsedChannel(int channels) {
+            int leastUsed = Integer.numberOfTrailingZeros(channels);
+            for (int remaining = channels & (channels - 1); remaining != 0; remaining &= remaining - 1) {
+                int channel = Integer.numberOfTrailingZeros(remaining);
+                if (uses[channel] < uses[leastUsed]) { leastUsed = channel; }
+            }
+            return leastUsed;
+        } // End leastUsedChannel method
+    } // End Assignment class
+
+    /**
+     * Checks whether a packed message starts a note.
+     *
+     * @param packed the packed message, or -1 for messages other than {@link ShortMessage}s
+     * @return {@code true} for NOTE-ON messages with a velocity above 0
+     */
+    private static boolean isNoteOn(int packed) {
+        return packed != -1 && (packed & 0xf0) == ShortMessage.NOTE_ON && ((packed >>> 16) & 0x7f) != 0;
+    }
+
+    /**
+     * Checks whether a packed message ends a note.
+     *
+     * @param packed the packed message, or -1 for messages other than {@link ShortMessage}s
+     * @return {@code true} for NOTE-OFF messages and NOTE-ON messages with a velocity of 0
+     */
+    private static boolean isNoteOff(int packed) {
+        if (packed == -1) { return false; }
+        int command = packed & 0xf0;
+        return command == ShortMessage.NOTE_OFF || (command == ShortMessage.NOTE_ON && ((packed >>> 16) & 0x7f) == 0);
+    }
+} // End SequenceSplitter class
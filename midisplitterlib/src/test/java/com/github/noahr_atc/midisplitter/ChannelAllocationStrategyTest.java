@@ -0,0 +1,199 @@
+package com.github.noahr_atc.midisplitter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of each {@link ChannelAllocationStrategy}, through the channels {@link MidiProcessor#translateMessage(ShortMessage)}
+ * moves the notes to.
+ */
+public class ChannelAllocationStrategyTest {
+    /**
+     * Creates a {@code MidiProcessor} without a receiver, using a strategy.
+     *
+     * @param strategy the strategy
+     * @return the processor
+     */
+    private static MidiProcessor createProcessor(ChannelAllocationStrategy strategy) {
+        MidiProcessor processor = new MidiProcessor((Receiver) null);
+        processor.setAllocationStrategy(strategy);
+        return processor;
+    } // End createProcessor method
+
+    /**
+     * Translates a NOTE-ON.
+     *
+     * @return the channel the note is moved to
+     */
+    private static int noteOn(MidiProcessor processor, int channel, int note) throws InvalidMidiDataException {
+        return processor.translateMessage(new ShortMessage(ShortMessage.NOTE_ON, channel, note, 100)).getChannel();
+    } // End noteOn method
+
+    /**
+     * Translates a NOTE-OFF.
+     *
+     * @return the channel the note is released on
+     */
+    private static int noteOff(MidiProcessor processor, int channel, int note) throws InvalidMidiDataException {
+        return processor.translateMessage(new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0)).getChannel();
+    } // End noteOff method
+
+    /**
+     * Plays a note and releases it.
+     *
+     * @return the channel the note was moved to
+     */
+    private static int playNote(MidiProcessor processor, int channel, int note) throws InvalidMidiDataException {
+        int selected = noteOn(processor, channel, note);
+        assertEquals(selected, noteOff(processor, channel, note));
+        return selected;
+    } // End playNote method
+
+    private static void programChange(MidiProcessor processor) throws InvalidMidiDataException {
+        processor.translateMessage(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 1, 0));
+    } // End programChange method
+
+    @Test
+    public void firstAvailableKeepsChannel() throws InvalidMidiDataException {
+        MidiProcessor processor = createProcessor(new ChannelAllocationStrategy.FirstAvailable());
+        assertEquals(3, noteOn(processor, 3, 60));
+        assertEquals(0, noteOn(processor, 3, 62));
+        assertEquals(1, noteOn(processor, 0, 64));
+        for (int i = 0; i < 13; i++) { noteOn(processor, 5, 70 + i); }
+
+        // All channels play one note, the lowest least used one is chosen
+        assertEquals(0xffff, processor.leastUsedChannels());
+        assertEquals(0, noteOn(processor, 7, 90));
+        assertEquals(1, noteOn(processor, 7, 91));
+    } // End firstAvailableKeepsChannel method
+
+    @Test
+    public void roundRobinRotates() throws InvalidMidiDataException {
+        MidiProcessor processor = createProcessor(new ChannelAllocationStrategy.RoundRobin());
+
+        // Every channel in turn, even though the original channel is always free
+        for (int i = 0; i < 40; i++) { assertEquals(i % 16, playNote(processor, 4, 60)); }
+
+        // Busy channels are skipped
+        programChange(processor);
+        assertEquals(0, noteOn(processor, 0, 60));
+        assertEquals(1, noteOn(processor, 0, 61));
+        assertEquals(1, noteOff(processor, 0, 61));
+        for (int i = 0; i < 15; i++) { assertEquals(2 + i < 16 ? 2 + i : 1, playNote(processor, 0, 70)); }
+    } // End roundRobinRotates method
+
+    @Test
+    public void roundRobinResets() throws InvalidMidiDataException {
+        MidiProcessor processor = createProcessor(new ChannelAllocationStrategy.RoundRobin());
+        for (int i = 0; i < 5; i++) { playNote(processor, 0, 60); }
+        programChange(processor);
+        assertEquals(0, playNote(processor, 0, 60));
+    } // End roundRobinResets method
+
+    @Test
+    public void leastRecentlyUsedPicksOldest() throws InvalidMidiDataException {
+        MidiProcessor processor = createProcessor(new ChannelAllocationStrategy.LeastRecentlyUsed());
+
+        // Never used channels first, from 0
+        for (int i = 0; i < 16; i++) { assertEquals(i, playNote(processor, 9, 60)); }
+
+        // Channel 0 was chosen the longest time ago, then 1, unless it is busy
+        assertEquals(0, noteOn(processor, 9, 60));
+        assertEquals(1, noteOn(processor, 9, 61));
+        assertEquals(2, noteOn(processor, 9, 62));
+        noteOff(processor, 9, 60);
+        noteOff(processor, 9, 61);
+        noteOff(processor, 9, 62);
+        assertEquals(3, playNote(processor, 9, 60));
+
+        // With every channel busy, the least recently chosen of the least used channels
+        programChange(processor);
+        for (int i = 0; i < 16; i++) { assertEquals(i, noteOn(processor, 0, 40 + i)); }
+        assertEquals(0, noteOn(processor, 0, 80));
+        assertEquals(1, noteOn(processor, 0, 81));
+        noteOff(processor, 0, 45);
+        assertEquals(5, noteOn(processor, 0, 82));
+    } // End leastRecentlyUsedPicksOldest method
+
+    @Test
+    public void registerRangeRespectsRanges() throws InvalidMidiDataException {
+        // Channels 0-3 play 30-50, channels 4-15 play 60-90
+        int[] lowest = new int[16];
+        int[] highest = new int[16];
+        Arrays.fill(lowest, 0, 4, 30);
+        Arrays.fill(highest, 0, 4, 50);
+        Arrays.fill(lowest, 4, 16, 60);
+        Arrays.fill(highest, 4, 16, 90);
+        MidiProcessor processor = createProcessor(new ChannelAllocationStrategy.RegisterRange(lowest, highest));
+
+        // The original channel is kept when in range
+        assertEquals(8, playNote(processor, 8, 70));
+        assertEquals(2, playNote(processor, 2, 40));
+
+        // Otherwise the least used channel in range, never one out of range
+        for (int i = 0; i < 4; i++) { assertEquals(i, noteOn(processor, 8, 40 + i)); }
+        for (int i = 0; i < 6; i++) { assertEquals(i % 4, noteOn(processor, 8, 44 + i)); }
+        assertEquals(4, noteOn(processor, 1, 60));
+
+        // Notes out of every range are handled like FirstAvailable
+        assertEquals(5, noteOn(processor, 5, 100));
+        assertEquals(6, noteOn(processor, 5, 101));
+    } // End registerRangeRespectsRanges method
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerRangeNeedsAllChannels() {
+        new ChannelAllocationStrategy.RegisterRange(new int[15], new int[16]);
+    } // End registerRangeNeedsAllChannels method
+
+    @Test
+    public void stickyPerChannelReturnsToChannel() throws InvalidMidiDataException {
+        MidiProcessor processor = createProcessor(new ChannelAllocationStrategy.StickyPerChannel());
+
+        // The second note of channel 3 moves to channel 0, which becomes the channel to return to
+        assertEquals(3, noteOn(processor, 3, 60));
+        assertEquals(0, noteOn(processor, 3, 62));
+        noteOff(processor, 3, 60);
+        noteOff(processor, 3, 62);
+        assertEquals(0, playNote(processor, 3, 64));
+        assertEquals(0, playNote(processor, 3, 65));
+
+        // Other channels are not affected
+        assertEquals(5, playNote(processor, 5, 60));
+
+        // While channel 0 is busy, the note is handled like FirstAvailable and channel 3 becomes the one to return to
+        assertEquals(0, noteOn(processor, 0, 70));
+        assertEquals(3, playNote(processor, 3, 66));
+        noteOff(processor, 0, 70);
+        assertEquals(3, playNote(processor, 3, 67));
+
+        // Forgotten after a reset
+        noteOn(processor, 3, 60);
+        assertEquals(0, noteOn(processor, 3, 61));
+        programChange(processor);
+        assertEquals(3, playNote(processor, 3, 62));
+    } // End stickyPerChannelReturnsToChannel method
+
+    @Test
+    public void strategiesAgreeOnUses() throws InvalidMidiDataException {
+        // Whatever the strategy, every note is released on the channel it was moved to
+        ChannelAllocationStrategy[] strategies = {
+                new ChannelAllocationStrategy.FirstAvailable(),
+                new ChannelAllocationStrategy.RoundRobin(),
+                new ChannelAllocationStrategy.LeastRecentlyUsed(),
+                new ChannelAllocationStrategy.StickyPerChannel()
+        };
+        for (ChannelAllocationStrategy strategy : strategies) {
+            MidiProcessor processor = createProcessor(strategy);
+            for (int i = 0; i < 40; i++) { noteOn(processor, i % 3, 40 + i); }
+            for (int i = 0; i < 40; i++) { noteOff(processor, i % 3, 40 + i); }
+            assertEquals(strategy.getClass().getSimpleName(), 0xffff, processor.getFreeChannels());
+        } // End for(strategy : strategies)
+    } // End strategiesAgreeOnUses method
+}
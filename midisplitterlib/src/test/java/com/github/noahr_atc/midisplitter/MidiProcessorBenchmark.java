@@ -0,0 +1,65 @@
+package com.github.noahr_atc.midisplitter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of {@link MidiProcessor#translateMessage(ShortMessage)} against the original multimap implementation,
+ * modelled by {@link MidiProcessorTest.ReferenceProcessor}. Not part of the unit tests, run with
+ * {@code ./gradlew test -Pbenchmarks}.
+ */
+public class MidiProcessorBenchmark {
+    private static final int PASSES = 15;    // The number of timed passes, the median is printed
+    private static final int REPEATS = 20;   // The number of times the messages are translated per pass
+
+    @Test
+    public void singleNotes() throws InvalidMidiDataException {
+        benchmark("single notes", MidiProcessorTest.createChords(new Random(1), 1));
+    } // End singleNotes method
+
+    @Test
+    public void chords() throws InvalidMidiDataException {
+        benchmark("chords of 8", MidiProcessorTest.createChords(new Random(2), 8));
+    } // End chords method
+
+    /**
+     * Translates the messages with the reference and a {@code MidiProcessor}, printing the median time per message.
+     *
+     * @param name     the name of the workload
+     * @param messages the messages to translate
+     */
+    private static void benchmark(String name, ShortMessage[] messages) {
+        MidiProcessor processor = new MidiProcessor((Receiver) null);
+        MidiProcessorTest.ReferenceProcessor reference = new MidiProcessorTest.ReferenceProcessor();
+        long[] referenceTimes = new long[PASSES];
+        long[] processorTimes = new long[PASSES];
+
+        for (int pass = 0; pass < PASSES; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                for (ShortMessage message : messages) { reference.translate(message.getCommand(), message.getChannel(), message.getData1()); }
+            }
+            long referenceEnd = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++) {
+                for (ShortMessage message : messages) { processor.translateMessage(message); }
+            }
+            long end = System.nanoTime();
+            referenceTimes[pass] = referenceEnd - start;
+            processorTimes[pass] = end - referenceEnd;
+        } // End for(pass < PASSES)
+        for (int c = 0; c < 16; c++) { assertEquals(reference.uses[c], processor.getUses(c)); }
+
+        Arrays.sort(referenceTimes);
+        Arrays.sort(processorTimes);
+        System.out.printf("MidiProcessorBenchmark %s: reference %.1f ns/message, translateMessage %.1f ns/message (median of %d)%n", name,
+                referenceTimes[PASSES / 2] / ((double) REPEATS * messages.length), processorTimes[PASSES / 2] / ((double) REPEATS * messages.length), PASSES);
+    } // End benchmark(String, ShortMessage[]) method
+}
@@ -0,0 +1,202 @@
+package com.github.noahr_atc.midisplitter;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress test of {@link MidiProcessor#send(MidiMessage, long)} called by several threads at once, as by live MIDI
+ * input and a sequencer.
+ */
+public class MidiProcessorStressTest {
+    private static final int THREAD_COUNT = 8;        // The number of sending threads, each on its own MIDI channel
+    private static final int CHORD_COUNT = 10000;     // The number of chords sent by each thread
+    private static final int CHORD_SIZE = 4;          // The number of notes held at once by each thread
+
+    /**
+     * A {@link Receiver} checking the forwarded messages. Each message carries its sending thread and sequence number
+     * in its timestamp, so every NOTE-OFF can be matched with the NOTE-ON of the same thread and note.
+     */
+    private static class CheckingReceiver implements Receiver {
+        final AtomicBoolean inside = new AtomicBoolean(false); // Set while a message is being received
+        final long[] lastSequence = new long[THREAD_COUNT];    // The sequence number of the last message of each thread
+        final ArrayDeque<?>[] heldChannels = new ArrayDeque<?>[THREAD_COUNT * 128]; // The channels of the held notes of each thread
+        final int[] activeNotes = new int[16];                 // The number of notes held on each output channel
+        int received = 0;                                      // The number of messages received
+        volatile String failure = null;                        // The first check that failed
+
+        CheckingReceiver() {
+            Arrays.fill(lastSequence, -1);
+            for (int i = 0; i < heldChannels.length; i++) { heldChannels[i] = new ArrayDeque<Integer>(); }
+        } // End CheckingReceiver constructor
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void send(MidiMessage message, long timeStamp) {
+            if (!inside.compareAndSet(false, true)) { recordFailure("Messages were forwarded concurrently"); }
+            int thread = (int) (timeStamp >>> 32);
+            long sequence = timeStamp & 0xffffffffL;
+            ShortMessage shortMessage = (ShortMessage) message;
+            ArrayDeque<Integer> held = (ArrayDeque<Integer>) heldChannels[thread * 128 + shortMessage.getData1()];
+
+            received++;
+            if (sequence != lastSequence[thread] + 1) { recordFailure("Message " + sequence + " of thread " + thread + " out of order"); }
+            lastSequence[thread] = sequence;
+            if (shortMessage.getCommand() == ShortMessage.NOTE_ON) {
+                held.add(shortMessage.getChannel());
+                activeNotes[shortMessage.getChannel()]++;
+            }
+            else {
+                Integer channel = held.poll();
+                if (channel == null) { recordFailure("NOTE-OFF without NOTE-ON from thread " + thread); }
+                else if (channel != shortMessage.getChannel()) {
+                    recordFailure("NOTE-OFF of thread " + thread + " on channel " + shortMessage.getChannel() + ", its NOTE-ON was on " + channel);
+                }
+                activeNotes[shortMessage.getChannel()]--;
+            } // End if(NOTE_ON) {} else
+            inside.set(false);
+        } // End send method
+
+        private void recordFailure(String message) { if (failure == null) { failure = message; } }
+
+        @Override
+        public void close() {}
+    } // End CheckingReceiver class
+
+    @Test
+    public void concurrentSenders() throws Exception {
+        stress(new ChannelAllocationStrategy.FirstAvailable());
+        stress(new ChannelAllocationStrategy.RoundRobin());
+        stress(new ChannelAllocationStrategy.LeastRecentlyUsed());
+    } // End concurrentSenders method
+
+    @Test
+    public void failuresDontStopForwarding() throws Exception {
+        // A strategy selecting an invalid channel for note 61, and a receiver closed for note 62
+        final List<ShortMessage> received = new ArrayList<>();
+        Receiver receiver = new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                if (((ShortMessage) message).getData1() == 62) { throw new IllegalStateException("Receiver is closed"); }
+                received.add((ShortMessage) message);
+            } // End send method
+
+            @Override
+            public void close() {}
+
+            @Override
+            public String toString() { return "TestReceiver"; }
+        }; // End Receiver anonymous class
+        MidiProcessor processor = new MidiProcessor(receiver);
+        processor.setAllocationStrategy(new ChannelAllocationStrategy.FirstAvailable() {
+            @Override
+            public int selectChannel(MidiProcessor processor, int channel, int noteNumber, int allowedChannels) {
+                return noteNumber == 61 ? 16 : super.selectChannel(processor, channel, noteNumber, allowedChannels);
+            } // End selectChannel method
+        }); // End FirstAvailable anonymous class
+
+        // Record what is logged instead of printing it
+        final List<String> logged = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) { logged.add(record.getMessage()); }
+
+            @Override
+            public void flush() {}
+
+            @Override
+            public void close() {}
+        }; // End Handler anonymous class
+        Logger logger = Logger.getLogger("MidiProcessor");
+        boolean useParentHandlers = logger.getUseParentHandlers();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        try {
+            processor.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 61, 64), -1);
+            processor.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 62, 64), -1);
+            processor.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 63, 64), -1);
+        } finally {
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(useParentHandlers);
+        } // End try {} finally
+
+        // The strategy's failure isn't reported as a closed receiver, and both failures drop only their own message
+        assertEquals(Arrays.asList("Failed to translate message", "Receiver TestReceiver closed"), logged);
+        // Note 62 still holds channel 0, so note 63 moves to channel 1
+        assertEquals(1, received.size());
+        assertEquals(63, received.get(0).getData1());
+        assertEquals(1, received.get(0).getChannel());
+        assertEquals(1, processor.getUses(0));
+        assertEquals(1, processor.getUses(1));
+    } // End failuresDontStopForwarding method
+
+    /**
+     * Sends chords from {@link #THREAD_COUNT} threads at once and checks the forwarded messages.
+     *
+     * @param strategy the allocation strategy of the {@code MidiProcessor}
+     */
+    private static void stress(ChannelAllocationStrategy strategy) throws Exception {
+        final CheckingReceiver receiver = new CheckingReceiver();
+        final MidiProcessor processor = new MidiProcessor(receiver);
+        processor.setAllocationStrategy(strategy);
+        final CyclicBarrier start = new CyclicBarrier(THREAD_COUNT);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[THREAD_COUNT];
+
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(thread);
+                        long sequence = 0;
+                        int[] notes = new int[CHORD_SIZE];
+                        start.await();
+                        for (int i = 0; i < CHORD_COUNT; i++) {
+                            // Hold a chord of distinct notes, then release it, checking the sent messages aren't modified
+                            for (int j = 0; j < CHORD_SIZE; j++) {
+                                notes[j] = 32 + j * 16 + random.nextInt(16);
+                                ShortMessage on = new ShortMessage(ShortMessage.NOTE_ON, thread, notes[j], 64);
+                                processor.send(on, ((long) thread << 32) | sequence++);
+                                assertEquals(thread, on.getChannel());
+                            }
+                            for (int j = 0; j < CHORD_SIZE; j++) {
+                                ShortMessage off = new ShortMessage(ShortMessage.NOTE_OFF, thread, notes[j], 0);
+                                processor.send(off, ((long) thread << 32) | sequence++);
+                                assertEquals(thread, off.getChannel());
+                            }
+                        } // End for(i < CHORD_COUNT)
+                    } catch (Throwable e) { error.compareAndSet(null, e); }
+                } // End run method
+            }); // End Runnable anonymous class
+            threads[t].start();
+        } // End for(t < THREAD_COUNT)
+        for (Thread thread : threads) { thread.join(); }
+
+        if (error.get() != null) { throw new AssertionError(error.get()); }
+        assertNull(receiver.failure);
+        assertEquals("Messages were lost", THREAD_COUNT * CHORD_COUNT * CHORD_SIZE * 2, receiver.received);
+        for (int c = 0; c < 16; c++) {
+            assertEquals("Notes stuck on channel " + c, 0, receiver.activeNotes[c]);
+            assertEquals("Uses left on channel " + c, 0, processor.getUses(c));
+        }
+        assertEquals(0xffff, processor.getFreeChannels());
+    } // End stress method
+}
@@ -0,0 +1,201 @@
+package com.github.noahr_atc.midisplitter;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Regression tests of {@link MidiProcessor#translateMessage(ShortMessage)}, against a model of the original
+ * implementation which kept the translations in a multimap of note mapping objects.
+ */
+public class MidiProcessorTest {
+    static final int MESSAGE_COUNT = 1 << 16;  // The number of messages created by createChords
+
+    /**
+     * The original translation algorithm: a {@link NoteMapping} key and value per NOTE-ON, kept in lists in a
+     * {@link HashMap} as the Guava multimap did, and looked up with newly allocated keys.
+     */
+    static class ReferenceProcessor {
+        private final Map<NoteMapping, List<NoteMapping>> translations = new HashMap<>();
+        int[] uses = new int[16];
+
+        int translate(int command, int channel, int note) {
+            switch (command) {
+                case ShortMessage.NOTE_ON: {
+                    int newChannel = channel;
+                    if (uses[channel] != 0) {
+                        newChannel = -1;
+                        for (int i = 0; i < 16 && newChannel < 0; i++) { if (uses[i] == 0) { newChannel = i; } }
+                        if (newChannel < 0) {
+                            newChannel = 0;
+                            for (int i = 1; i < 16; i++) { if (uses[i] < uses[newChannel]) { newChannel = i; } }
+                        }
+                    } // End if(uses[channel] != 0)
+                    NoteMapping key = new NoteMapping(channel, note);
+                    List<NoteMapping> entry = translations.get(key);
+                    if (entry == null) {
+                        entry = new ArrayList<>();
+                        translations.put(key, entry);
+                    }
+                    entry.add(new NoteMapping(newChannel, note));
+                    uses[newChannel]++;
+                    return newChannel;
+                } // End NOTE_ON case
+                case ShortMessage.NOTE_OFF: {
+                    NoteMapping key = new NoteMapping(channel, note);
+                    List<NoteMapping> entry = translations.get(key);
+                    if (entry == null || entry.isEmpty()) { return channel; }
+                    NoteMapping translation = entry.get(0);
+                    entry.remove(translation);
+                    if (entry.isEmpty()) { translations.remove(key); }
+                    uses[translation.channel]--;
+                    return translation.channel;
+                } // End NOTE_OFF case
+                case ShortMessage.PROGRAM_CHANGE: {
+                    translations.clear();
+                    uses = new int[16];
+                    return channel;
+                } // End PROGRAM_CHANGE case
+                default: { return channel; }
+            } // End switch(command)
+        } // End translate method
+    } // End ReferenceProcessor class
+
+    /**
+     * The original key and value of the translation multimap.
+     */
+    private static class NoteMapping {
+        final int channel;    // The MIDI channel of the note
+        final int noteNumber; // The MIDI note/key number of the note
+
+        NoteMapping(int channel, int noteNumber) {
+            this.channel = channel;
+            this.noteNumber = noteNumber;
+        } // End NoteMapping(int, int) constructor
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NoteMapping)) { return false; }
+            return channel == ((NoteMapping) o).channel && noteNumber == ((NoteMapping) o).noteNumber;
+        } // End equals method
+
+        @Override
+        public int hashCode() { return Objects.hash(channel, noteNumber); }
+    } // End NoteMapping class
+
+    /**
+     * Creates random chords on a few channels, as played by a sequencer: the NOTE-ONs of each chord, then its NOTE-OFFs.
+     *
+     * @param random    the random source
+     * @param chordSize the number of notes per chord
+     * @return the messages
+     */
+    static ShortMessage[] createChords(Random random, int chordSize) throws InvalidMidiDataException {
+        ShortMessage[] messages = new ShortMessage[MESSAGE_COUNT];
+        for (int i = 0; i < messages.length; i += 2 * chordSize) {
+            int channel = random.nextInt(4);
+            for (int j = 0; j < chordSize; j++) {
+                int note = 40 + random.nextInt(40);
+                messages[i + j] = new ShortMessage(ShortMessage.NOTE_ON, channel, note, 64);
+                messages[i + chordSize + j] = new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0);
+            }
+        } // End for(i < messages.length)
+        return messages;
+    } // End createChords method
+
+    @Test
+    public void translatesLikeReference() throws InvalidMidiDataException {
+        for (int round = 0; round < 50; round++) {
+            Random random = new Random(round);
+            MidiProcessor processor = new MidiProcessor((Receiver) null);
+            ReferenceProcessor reference = new ReferenceProcessor();
+            int[] depths = new int[16 * 128];
+            int keyCount = 1 + random.nextInt(40);
+
+            for (int i = 0; i < 5000; i++) {
+                int key = random.nextInt(keyCount);
+                int channel = key % 16;
+                int note = 60 + key / 16;
+                int choice = random.nextInt(100);
+                int command;
+                // Note: At most 16 NOTE-ONs of the same note are held, the depth of the translation table
+                if (choice == 0) {
+                    command = ShortMessage.PROGRAM_CHANGE;
+                    Arrays.fill(depths, 0);
+                }
+                else if (choice < 50 && depths[channel * 128 + note] < 16) {
+                    command = ShortMessage.NOTE_ON;
+                    depths[channel * 128 + note]++;
+                }
+                else if (choice < 95) {
+                    command = ShortMessage.NOTE_OFF;
+                    if (depths[channel * 128 + note] > 0) { depths[channel * 128 + note]--; }
+                }
+                else { command = ShortMessage.CONTROL_CHANGE; }
+
+                ShortMessage message = new ShortMessage(command, channel, note, 64);
+                byte[] original = message.getMessage();
+                ShortMessage translated = processor.translateMessage(message);
+                assertEquals("round " + round + " message " + i, reference.translate(command, channel, note), translated.getChannel());
+                assertEquals(command, translated.getCommand());
+                assertEquals(note, translated.getData1());
+                assertArrayEquals("input modified", original, message.getMessage());
+                for (int c = 0; c < 16; c++) { assertEquals(reference.uses[c], processor.getUses(c)); }
+            } // End for(i < 5000)
+        } // End for(round < 50)
+    } // End translatesLikeReference method
+
+    @Test
+    public void releasesAllUses() throws InvalidMidiDataException {
+        MidiProcessor processor = new MidiProcessor((Receiver) null);
+        ShortMessage[] messages = createChords(new Random(1), 1);
+
+        // Hold all notes, then release them
+        for (int i = 0; i < messages.length; i += 2) { processor.translateMessage(messages[i]); }
+        for (int i = 1; i < messages.length; i += 2) { processor.translateMessage(messages[i]); }
+        for (int c = 0; c < 16; c++) { assertTrue(processor.channelAvailable(c)); }
+        assertEquals(0xffff, processor.getFreeChannels());
+    } // End releasesAllUses method
+
+    @Test
+    public void translatesWithoutAllocating() throws InvalidMidiDataException {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) { return; }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) { return; }
+        long threadId = Thread.currentThread().getId();
+
+        // Each note is played on its own channel and note, so no message is copied
+        MidiProcessor processor = new MidiProcessor((Receiver) null);
+        ShortMessage[] messages = new ShortMessage[32];
+        for (int c = 0; c < 16; c++) {
+            messages[c] = new ShortMessage(ShortMessage.NOTE_ON, c, 60, 64);
+            messages[16 + c] = new ShortMessage(ShortMessage.NOTE_OFF, c, 60, 0);
+        }
+        ShortMessage programChange = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 1, 0);
+
+        // Warm up, then measure
+        for (int i = 0; i < 20000; i++) { for (ShortMessage message : messages) { assertSame(message, processor.translateMessage(message)); } }
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            for (ShortMessage message : messages) { processor.translateMessage(message); }
+            processor.translateMessage(programChange);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // Allow for the few bytes getThreadAllocatedBytes itself may allocate
+        assertTrue("allocated " + allocated + " bytes for 330000 messages", allocated < 4096);
+    } // End translatesWithoutAllocating method
+}
@@ -0,0 +1,239 @@
+package com.github.noahr_atc.midisplitter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.Track;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the pairing of NOTE-ONs and NOTE-OFFs by {@link SequenceSplitter#split(Sequence)}: every NOTE-OFF of the
+ * split sequence must end the note of its NOTE-ON on the same channel, so that no note is left playing.
+ */
+public class SequenceSplitterTest {
+
+    /**
+     * Adds a track of short messages to a sequence.
+     *
+     * @param sequence the sequence to add the track to
+     * @param events   the tick, command, channel, data1 and data2 of each message
+     */
+    private static void addTrack(Sequence sequence, int[][] events) throws InvalidMidiDataException {
+        Track track = sequence.createTrack();
+        for (int[] event : events) {
+            track.add(new MidiEvent(new ShortMessage(event[1], event[2], event[3], event[4]), event[0]));
+        }
+    } // End addTrack method
+
+    /**
+     * Lists the short messages of a track in playback order, without sorting the track.
+     *
+     * @param track the track
+     * @return the tick, command, channel, data1 and data2 of each short message
+     */
+    private static List<int[]> shortMessages(Track track) {
+        List<int[]> messages = new ArrayList<>();
+        Track.Snapshot snapshot = track.getSortedSnapshot();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!(snapshot.getMessage(i) instanceof ShortMessage)) { continue; }
+            ShortMessage message = (ShortMessage) snapshot.getMessage(i);
+            messages.add(new int[]{ (int) snapshot.getTick(i), message.getCommand(), message.getChannel(), message.getData1(), message.getData2() });
+        }
+        return messages;
+    } // End shortMessages method
+
+    /**
+     * Plays every track of a split sequence on a model of a device, where a NOTE-OFF ends the note playing on its
+     * channel and note, and checks that every NOTE-OFF ends a note and that no note is left playing.
+     *
+     * @param split the split sequence
+     */
+    private static void assertNoStuckNotes(Sequence split) {
+        for (Track track : split.getTracks()) {
+            boolean[] playing = new boolean[16 * 128];
+            for (int[] message : shortMessages(track)) {
+                int key = message[2] * 128 + message[3];
+                if (message[1] == ShortMessage.NOTE_ON && message[4] != 0) { playing[key] = true; }
+                else if (message[1] == ShortMessage.NOTE_OFF || message[1] == ShortMessage.NOTE_ON) {
+                    assertTrue("NOTE-OFF at " + message[0] + " without a note on channel " + message[2], playing[key]);
+                    playing[key] = false;
+                }
+            } // End for(message)
+            for (int key = 0; key < playing.length; key++) {
+                assertFalse("Note " + (key & 0x7f) + " stuck on channel " + (key >>> 7), playing[key]);
+            }
+        } // End for(track)
+    } // End assertNoStuckNotes method
+
+    @Test
+    public void zeroLengthNotes() throws InvalidMidiDataException {
+        // A note held on channel 0 moves the zero length note to channel 1, along with its NOTE-OFF
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        addTrack(sequence, new int[][]{
+                { 0, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 0, ShortMessage.NOTE_ON, 0, 64, 64 },
+                { 0, ShortMessage.NOTE_OFF, 0, 64, 0 },
+                { 480, ShortMessage.NOTE_OFF, 0, 60, 0 } });
+        Sequence split = new SequenceSplitter(2).split(sequence);
+
+        List<int[]> messages = shortMessages(split.getTracks()[0]);
+        assertEquals(4, messages.size());
+        for (int[] message : messages) { assertEquals(message[3] == 64 ? 1 : 0, message[2]); }
+        assertNoStuckNotes(split);
+    } // End zeroLengthNotes method
+
+    @Test
+    public void repeatedNoteOns() throws InvalidMidiDataException {
+        // The note restruck at 240 was moved to channel 1, and goes back to its free original channel
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        addTrack(sequence, new int[][]{
+                { 0, ShortMessage.NOTE_ON, 0, 62, 64 },
+                { 240, ShortMessage.NOTE_OFF, 0, 62, 0 },
+                { 120, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 240, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 360, ShortMessage.NOTE_OFF, 0, 60, 0 } });
+        Sequence split = new SequenceSplitter(2).split(sequence);
+
+        // The restruck note gets a NOTE-OFF on its own channel, played with the NOTE-OFFs before the NOTE-ONs of the tick
+        List<int[]> messages = shortMessages(split.getTracks()[0]);
+        assertEquals(6, messages.size());
+        assertArrayEquals(new int[]{ 120, ShortMessage.NOTE_ON, 1, 60, 64 }, messages.get(1));
+        assertArrayEquals(new int[]{ 240, ShortMessage.NOTE_OFF, 0, 62, 0 }, messages.get(2));
+        assertArrayEquals(new int[]{ 240, ShortMessage.NOTE_OFF, 1, 60, 0 }, messages.get(3));
+        assertArrayEquals(new int[]{ 240, ShortMessage.NOTE_ON, 0, 60, 64 }, messages.get(4));
+        assertArrayEquals(new int[]{ 360, ShortMessage.NOTE_OFF, 0, 60, 0 }, messages.get(5));
+        assertNoStuckNotes(split);
+
+        // A note restruck on its own channel needs no NOTE-OFF of its own
+        sequence = new Sequence(Sequence.PPQ, 480);
+        addTrack(sequence, new int[][]{
+                { 0, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 240, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 480, ShortMessage.NOTE_ON, 0, 60, 0 } });
+        split = new SequenceSplitter(2).split(sequence);
+        assertEquals(3, shortMessages(split.getTracks()[0]).size());
+        for (int[] message : shortMessages(split.getTracks()[0])) { assertEquals(0, message[2]); }
+        assertNoStuckNotes(split);
+    } // End repeatedNoteOns method
+
+    @Test
+    public void missingNoteOffs() throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        addTrack(sequence, new int[][]{
+                { 0, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 0, ShortMessage.NOTE_ON, 0, 62, 64 },
+                { 240, ShortMessage.NOTE_OFF, 0, 60, 0 },
+                { 300, ShortMessage.NOTE_OFF, 0, 65, 0 },
+                { 960, ShortMessage.CONTROL_CHANGE, 0, 7, 100 } });
+        Sequence split = new SequenceSplitter(2).split(sequence);
+
+        // The note without a NOTE-OFF ends with its track, and the NOTE-OFF without a note is left out
+        List<int[]> messages = shortMessages(split.getTracks()[0]);
+        assertEquals(5, messages.size());
+        assertArrayEquals(new int[]{ 0, ShortMessage.NOTE_ON, 1, 62, 64 }, messages.get(1));
+        assertEquals(ShortMessage.NOTE_OFF, messages.get(4)[1]);
+        assertEquals(1, messages.get(4)[2]);
+        assertEquals(62, messages.get(4)[3]);
+        assertTrue(messages.get(4)[0] >= 960);
+        assertNoStuckNotes(split);
+    } // End missingNoteOffs method
+
+    @Test
+    public void splitDoesNotChangeSequence() throws InvalidMidiDataException {
+        // An unsorted track, as added, and a compact one
+        Sequence sequence = new Sequence(Sequence.PPQ, 96);
+        addTrack(sequence, new int[][]{
+                { 50, ShortMessage.NOTE_OFF, 0, 60, 0 },
+                { 0, ShortMessage.NOTE_ON, 0, 60, 64 },
+                { 40, ShortMessage.NOTE_OFF, 0, 62, 0 },
+                { 10, ShortMessage.NOTE_ON, 0, 62, 64 }
+        });
+        addTrack(sequence, new int[][]{
+                { 0, ShortMessage.NOTE_ON, 0, 64, 64 },
+                { 30, ShortMessage.NOTE_OFF, 0, 64, 0 }
+        });
+        sequence.getTracks()[1].compact();
+        Track unsorted = sequence.getTracks()[0];
+        MidiEvent[] added = new MidiEvent[unsorted.size()];
+        for (int i = 0; i < added.length; i++) { added[i] = unsorted.get(i); }
+        Track.Snapshot compactSnapshot = sequence.getTracks()[1].getSnapshot();
+
+        Sequence split = new SequenceSplitter(16).split(sequence);
+
+        // Still in the order of adding, without END_OF_TRACK, and the compact track keeps its storage
+        assertEquals(added.length, unsorted.size());
+        for (int i = 0; i < added.length; i++) { assertSame(added[i], unsorted.get(i)); }
+        assertSame(compactSnapshot, sequence.getTracks()[1].getSnapshot());
+
+        // The split copy is sorted all the same, with the second note moved off the channel of the first
+        List<int[]> messages = shortMessages(split.getTracks()[0]);
+        assertArrayEquals(new int[]{ 0, 60, 10, 62, 40, 62, 50, 60 }, new int[]{
+                messages.get(0)[0], messages.get(0)[3], messages.get(1)[0], messages.get(1)[3],
+                messages.get(2)[0], messages.get(2)[3], messages.get(3)[0], messages.get(3)[3] });
+        assertNotEquals(messages.get(0)[2], messages.get(1)[2]);
+        assertNoStuckNotes(split);
+    } // End splitDoesNotChangeSequence method
+
+    @Test
+    public void randomSequences() throws InvalidMidiDataException {
+        for (int round = 0; round < 200; round++) {
+            Random random = new Random(round);
+            Sequence sequence = new Sequence(Sequence.PPQ, 96);
+            int trackCount = 1 + random.nextInt(3);
+            int noteOnCount = 0;
+
+            // Few keys per track, so that the notes of all tracks fit on the channels without sharing any
+            for (int t = 0; t < trackCount; t++) {
+                Track track = sequence.createTrack();
+                for (int i = 0; i < 200; i++) {
+                    int channel = random.nextInt(2);
+                    int note = 60 + random.nextInt(2);
+                    long start = random.nextInt(1000);
+                    int length = random.nextInt(4) == 0 ? 0 : random.nextInt(50);
+                    int kind = random.nextInt(10);
+                    if (kind > 0) {
+                        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, note, 64), start));
+                        noteOnCount++;
+                    }
+                    if (kind != 1) {
+                        track.add(new MidiEvent(random.nextBoolean() ? new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0)
+                                : new ShortMessage(ShortMessage.NOTE_ON, channel, note, 0), start + length));
+                    }
+                } // End for(i < 200)
+                if (random.nextBoolean()) { track.compact(); }
+            } // End for(t < trackCount)
+            Sequence split = new SequenceSplitter(16).split(sequence);
+
+            // Only notes restruck at the tick they start may be left out
+            int restruckCount = 0;
+            for (Track track : sequence.getTracks()) {
+                long[] starts = new long[16 * 128];
+                Arrays.fill(starts, -1);
+                for (int[] message : shortMessages(track)) {
+                    int key = message[2] * 128 + message[3];
+                    boolean noteOn = message[1] == ShortMessage.NOTE_ON && message[4] != 0;
+                    if (noteOn && starts[key] == message[0]) { restruckCount++; }
+                    if (noteOn) { starts[key] = message[0]; }
+                    else if (message[1] == ShortMessage.NOTE_OFF || message[1] == ShortMessage.NOTE_ON) { starts[key] = -1; }
+                }
+            } // End for(track)
+            int splitNoteOnCount = 0;
+            for (Track track : split.getTracks()) {
+                for (int[] message : shortMessages(track)) {
+                    if (message[1] == ShortMessage.NOTE_ON && message[4] != 0) { splitNoteOnCount++; }
+                }
+            }
+            assertTrue("round " + round, splitNoteOnCount <= noteOnCount && splitNoteOnCount >= noteOnCount - restruckCount);
+            assertNoStuckNotes(split);
+        } // End for(round < 200)
+    } // End randomSequences method
+}
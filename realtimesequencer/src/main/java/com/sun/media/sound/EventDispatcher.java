@@ -1,5 +1,6 @@
 // Pulled from http://hg.openjdk.java.net/jdk8/jdk8/jdk/file/687fd7c7986d/src/share/classes/com/sun/media/sound/EventDispatcher.java
 // on 2020-03-22
+// Change: the event queue is a lock-free ConcurrentLinkedQueue drained in batches; the dispatcher thread is only notified while it is idle
 
 /*
  * Copyright (c) 1998, 2013, Oracle and/or its affiliates. All rights reserved.
@@ -30,6 +31,7 @@ package com.sun.media.sound;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import jp.kshoji.javax.sound.midi.ControllerEventListener;
 import jp.kshoji.javax.sound.midi.MetaEventListener;
@@ -59,9 +61,16 @@ final class EventDispatcher implements Runnable {
 
 
     /**
-     * List of events
+     * Queue of events
      */
-    private final ArrayList eventQueue = new ArrayList();
+    private final ConcurrentLinkedQueue<EventInfo> eventQueue = new ConcurrentLinkedQueue<EventInfo>();
+
+
+    /**
+     * True while the dispatcher thread is waiting, or about to wait, for events.
+     * Posting threads only take the monitor to notify it when this is set.
+     */
+    private volatile boolean idle = false;
 
 
     /**
@@ -159,23 +168,32 @@ final class EventDispatcher implements Runnable {
 
 
     /**
-     * Wait until there is something in the event queue to process.  Then
-     * dispatch the event to the listeners.The entire method does not
-     * need to be synchronized since this includes taking the event out
-     * from the queue and processing the event. We only need to provide
-     * exclusive access over the code where an event is removed from the
-     *queue.
+     * Dispatch all the events in the event queue to the listeners.
+     * If there are none, wait until there is something in the event
+     * queue to process. The queue is lock-free, so only waiting
+     * needs to be synchronized.
      */
     void dispatchEvents() {
 
-        EventInfo eventInfo = null;
+        boolean dispatched = false;
+        EventInfo eventInfo;
+        while ((eventInfo = eventQueue.poll()) != null) {
+            processEvent(eventInfo);
+            dispatched = true;
+        }
+        if (dispatched) {
+            return;
+        }
 
         synchronized (this) {
 
             // Wait till there is an event in the event queue.
+            // idle must be set before checking the queue, so that
+            // postEvent() either sees it or its event is seen here.
+            idle = true;
             try {
 
-                if (eventQueue.size() == 0) {
+                if (eventQueue.isEmpty()) {
                     if (autoClosingClips.size() > 0 || lineMonitors.size() > 0) {
                         int waitTime = AUTO_CLOSE_TIME;
                         if (lineMonitors.size() > 0) {
@@ -187,16 +205,12 @@ final class EventDispatcher implements Runnable {
                     }
                 }
             } catch (InterruptedException e) {
-            }
-            if (eventQueue.size() > 0) {
-                // Remove the event from the queue and dispatch it to the listeners.
-                eventInfo = (EventInfo) eventQueue.remove(0);
+            } finally {
+                idle = false;
             }
 
         } // end of synchronized
-        if (eventInfo != null) {
-            processEvent(eventInfo);
-        } else {
+        if (eventQueue.isEmpty()) {
             if (autoClosingClips.size() > 0) {
                 closeAutoClosingClips();
             }
@@ -210,9 +224,13 @@ final class EventDispatcher implements Runnable {
     /**
      * Queue the given event in the event queue.
      */
-    private synchronized void postEvent(EventInfo eventInfo) {
-        eventQueue.add(eventInfo);
-        notifyAll();
+    private void postEvent(EventInfo eventInfo) {
+        eventQueue.offer(eventInfo);
+        if (idle) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
     }
 
 
@@ -243,6 +261,25 @@ final class EventDispatcher implements Runnable {
 
         start();
 
+        EventInfo eventInfo = new EventInfo(event, listeners.toArray());
+        postEvent(eventInfo);
+    }
+
+
+    /**
+     * Send audio and MIDI events.
+     *
+     * @param listeners listener array; not copied, so it must not be modified afterwards
+     */
+    void sendAudioEvents(Object event, Object[] listeners) {
+        if ((listeners == null)
+            || (listeners.length == 0)) {
+            // nothing to do
+            return;
+        }
+
+        start();
+
         EventInfo eventInfo = new EventInfo(event, listeners);
         postEvent(eventInfo);
     }
@@ -394,11 +431,11 @@ final class EventDispatcher implements Runnable {
         /**
          * Create a new instance of this event Info class
          * @param event the event to be dispatched
-         * @param listeners listener list; will be copied
+         * @param listeners listener array; will not be copied
          */
-        EventInfo(Object event, List listeners) {
+        EventInfo(Object event, Object[] listeners) {
             this.event = event;
-            this.listeners = listeners.toArray();
+            this.listeners = listeners;
         }
 
         Object getEvent() {
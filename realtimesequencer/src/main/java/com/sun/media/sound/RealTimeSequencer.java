@@ -1,6 +1,10 @@
 
 // Pulled from http://hg.openjdk.java.net/jdk8/jdk8/jdk/file/687fd7c7986d/src/share/classes/com/sun/media/sound/RealTimeSequencer.java
 // on 2020-03-22
+// Change: the DataPump reads lock-free Track snapshots instead of the synchronized Track accessors
+// Change: meta and controller listeners are dispatched from copy-on-write arrays, controllers indexed by number
+// Change: short messages are read from the snapshots as packed ints and sent without creating MidiEvents
+// Change: a ProgressiveSequence is only played up to its playable tick, waiting for the loader if needed
 
 
 /*
@@ -39,6 +43,7 @@ import java.util.Map;
 import java.util.WeakHashMap;
 
 import jp.kshoji.javax.sound.midi.*;
+import jp.kshoji.javax.sound.midi.io.ProgressiveSequence;
 
 /**
  * A Real Time Sequencer
@@ -135,9 +140,11 @@ final class RealTimeSequencer extends AbstractMidiDevice
 
 
     /**
-     * Meta event listeners
+     * Meta event listeners, replaced on every change (copy-on-write).
+     * Changes are synchronized on metaEventListenersLock.
      */
-    private final ArrayList metaEventListeners = new ArrayList();
+    private volatile MetaEventListener[] metaEventListeners = new MetaEventListener[0];
+    private final Object metaEventListenersLock = new Object();
 
 
     /**
@@ -146,6 +153,13 @@ final class RealTimeSequencer extends AbstractMidiDevice
     private final ArrayList controllerEventListeners = new ArrayList();
 
 
+    /**
+     * Control change listeners by controller number, rebuilt from
+     * controllerEventListeners on every change (copy-on-write)
+     */
+    private volatile ControllerEventListener[][] controllerEventListenersByNumber = createControllerEventListenersByNumber(null);
+
+
     /** automatic connection support */
     private boolean autoConnect = false;
 
@@ -620,10 +634,13 @@ final class RealTimeSequencer extends AbstractMidiDevice
 
 
     public boolean addMetaEventListener(MetaEventListener listener) {
-        synchronized(metaEventListeners) {
-            if (! metaEventListeners.contains(listener)) {
-
-                metaEventListeners.add(listener);
+        synchronized(metaEventListenersLock) {
+            MetaEventListener[] current = metaEventListeners;
+            if (indexOf(current, listener) < 0) {
+                MetaEventListener[] updated = new MetaEventListener[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = listener;
+                metaEventListeners = updated;
             }
             return true;
         }
@@ -631,15 +648,29 @@ final class RealTimeSequencer extends AbstractMidiDevice
 
 
     public void removeMetaEventListener(MetaEventListener listener) {
-        synchronized(metaEventListeners) {
-            int index = metaEventListeners.indexOf(listener);
+        synchronized(metaEventListenersLock) {
+            MetaEventListener[] current = metaEventListeners;
+            int index = indexOf(current, listener);
             if (index >= 0) {
-                metaEventListeners.remove(index);
+                MetaEventListener[] updated = new MetaEventListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+                metaEventListeners = updated;
             }
         }
     }
 
 
+    private static int indexOf(Object[] array, Object element) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == null ? element == null : array[i].equals(element)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
     public int[] addControllerEventListener(ControllerEventListener listener, int[] controllers) {
         synchronized(controllerEventListeners) {
 
@@ -661,6 +692,7 @@ final class RealTimeSequencer extends AbstractMidiDevice
                 cve = new ControllerListElement(listener, controllers);
                 controllerEventListeners.add(cve);
             }
+            controllerEventListenersByNumber = createControllerEventListenersByNumber(controllerEventListeners);
 
             // and return all the controllers this listener is interested in
             return cve.getControllers();
@@ -688,8 +720,10 @@ final class RealTimeSequencer extends AbstractMidiDevice
                 if (index >= 0) {
                     controllerEventListeners.remove(index);
                 }
+                controllerEventListenersByNumber = createControllerEventListenersByNumber(controllerEventListeners);
                 return new int[0];
             }
+            controllerEventListenersByNumber = createControllerEventListenersByNumber(controllerEventListeners);
             return cve.getControllers();
         }
     }
@@ -923,38 +957,82 @@ final class RealTimeSequencer extends AbstractMidiDevice
      * must not be synchronized on "this"
      */
     void sendMetaEvents(MidiMessage message) {
-        if (metaEventListeners.size() == 0) return;
+        MetaEventListener[] listeners = metaEventListeners;
+        if (listeners.length == 0) return;
 
         //if (Printer.debug) Printer.debug("sending a meta event");
-        getEventDispatcher().sendAudioEvents(message, metaEventListeners);
+        getEventDispatcher().sendAudioEvents(message, listeners);
     }
 
     /**
      * Send midi player events.
      */
     void sendControllerEvents(MidiMessage message) {
-        int size = controllerEventListeners.size();
-        if (size == 0) return;
-
-        //if (Printer.debug) Printer.debug("sending a controller event");
-
         if (! (message instanceof ShortMessage)) {
             if (Printer.debug) Printer.debug("sendControllerEvents: message is NOT instanceof ShortMessage!");
             return;
         }
         ShortMessage msg = (ShortMessage) message;
         int controller = msg.getData1();
-        List sendToListeners = new ArrayList();
+        ControllerEventListener[] sendToListeners = controllerEventListenersByNumber[controller & 0x7F];
+        if (sendToListeners.length == 0) return;
+
+        //if (Printer.debug) Printer.debug("sending a controller event");
+        getEventDispatcher().sendAudioEvents(message, sendToListeners);
+    }
+
+    /**
+     * Send a packed controller message to the listeners.
+     * The message object is only created if there are listeners for the controller.
+     */
+    void sendControllerEvents(int packedMsg) {
+        ControllerEventListener[] sendToListeners = controllerEventListenersByNumber[(packedMsg >> 8) & 0x7F];
+        if (sendToListeners.length == 0) return;
+
+        try {
+            getEventDispatcher().sendAudioEvents(new FastShortMessage(packedMsg & 0xFFFFFF), sendToListeners);
+        } catch (InvalidMidiDataException e) {
+            // not a valid controller message
+        }
+    }
+
+    /**
+     * Build the controller number to listeners table.
+     * The arrays are shared with the EventDispatcher, so they must never be modified once published.
+     *
+     * @param elements list of ControllerListElement, or null for no listeners
+     */
+    private static ControllerEventListener[][] createControllerEventListenersByNumber(List elements) {
+        ControllerEventListener[] none = new ControllerEventListener[0];
+        ControllerEventListener[][] byNumber = new ControllerEventListener[128][];
+        int size = (elements == null) ? 0 : elements.size();
+
+        // the controllers each listener is interested in, ignoring duplicates
+        boolean[][] wanted = new boolean[size][128];
+        int[] counts = new int[128];
         for (int i = 0; i < size; i++) {
-            ControllerListElement cve = (ControllerListElement) controllerEventListeners.get(i);
-            for(int j = 0; j < cve.controllers.length; j++) {
-                if (cve.controllers[j] == controller) {
-                    sendToListeners.add(cve.listener);
-                    break;
+            ControllerListElement cve = (ControllerListElement) elements.get(i);
+            for (int j = 0; j < cve.controllers.length; j++) {
+                int controller = cve.controllers[j];
+                if (controller >= 0 && controller < 128 && !wanted[i][controller]) {
+                    wanted[i][controller] = true;
+                    counts[controller]++;
                 }
             }
         }
-        getEventDispatcher().sendAudioEvents(message, sendToListeners);
+        for (int controller = 0; controller < 128; controller++) {
+            byNumber[controller] = (counts[controller] == 0) ? none : new ControllerEventListener[counts[controller]];
+            counts[controller] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            ControllerEventListener listener = ((ControllerListElement) elements.get(i)).listener;
+            for (int controller = 0; controller < 128; controller++) {
+                if (wanted[i][controller]) {
+                    byNumber[controller][counts[controller]++] = listener;
+                }
+            }
+        }
+        return byNumber;
     }
 
 
@@ -1429,6 +1507,7 @@ final class RealTimeSequencer extends AbstractMidiDevice
         private long checkPointTick;     // ticks at checkpoint
         private int[] noteOnCache;       // bit-mask of notes that are currently on
         private Track[] tracks;
+        private ProgressiveSequence progressiveSequence; // null if the sequence is completely loaded
         private boolean[] trackDisabled; // if true, do not play this track
         private int[] trackReadPos;      // read index per track
         private long lastTick;
@@ -1449,6 +1528,7 @@ final class RealTimeSequencer extends AbstractMidiDevice
             inverseTempoFactor = 1.0f;
             noteOnCache = new int[128];
             tracks = null;
+            progressiveSequence = null;
             trackDisabled = null;
         }
 
@@ -1528,6 +1608,7 @@ final class RealTimeSequencer extends AbstractMidiDevice
                 return;
             }
             tracks = seq.getTracks();
+            progressiveSequence = (seq instanceof ProgressiveSequence) ? (ProgressiveSequence) seq : null;
             muteSoloChanged();
             resolution = seq.getResolution();
             divisionType = seq.getDivisionType();
@@ -1616,30 +1697,22 @@ final class RealTimeSequencer extends AbstractMidiDevice
          * but better than more complicated logic to detect
          * which notes are really from this track
          */
-        private void sendNoteOffIfOn(Track track, long endTick) {
+        private void sendNoteOffIfOn(Track.Snapshot track, long endTick) {
             int size = track.size();
             int done = 0;
             try {
                 for (int i = 0; i < size; i++) {
-                    MidiEvent event = track.get(i);
-                    if (event.getTick() > endTick) break;
-                    MidiMessage msg = event.getMessage();
-                    int status = msg.getStatus();
-                    int len = msg.getLength();
+                    if (track.getTick(i) > endTick) break;
+                    // only short messages can be Note On
+                    int packedMsg = track.getPackedMessage(i);
+                    if (packedMsg == -1) continue;
+                    int status = packedMsg & 0xFF;
+                    int len = (packedMsg >>> 24) & 0x03;
                     if (len == 3 && ((status & 0xF0) == ShortMessage.NOTE_ON)) {
                         int note = -1;
-                        if (msg instanceof ShortMessage) {
-                            ShortMessage smsg = (ShortMessage) msg;
-                            if (smsg.getData2() > 0) {
-                                // only consider Note On with velocity > 0
-                                note = smsg.getData1();
-                            }
-                        } else {
-                            byte[] data = msg.getMessage();
-                            if ((data[2] & 0x7F) > 0) {
-                                // only consider Note On with velocity > 0
-                                note = data[1] & 0x7F;
-                            }
+                        if (((packedMsg >> 16) & 0x7F) > 0) {
+                            // only consider Note On with velocity > 0
+                            note = (packedMsg >> 8) & 0x7F;
                         }
                         if (note >= 0) {
                             int bit = 1<<(status & 0x0F);
@@ -1679,7 +1752,7 @@ final class RealTimeSequencer extends AbstractMidiDevice
                         // hanging notes
 
                         if (tracks.length > i) {
-                            sendNoteOffIfOn(tracks[i], lastTick);
+                            sendNoteOffIfOn(tracks[i].getSnapshot(), lastTick);
                         }
                     }
                     else if ((oldDisabled != null)
@@ -1721,38 +1794,27 @@ final class RealTimeSequencer extends AbstractMidiDevice
                     tempArray[co][ch] = -1;
                 }
             }
-            Track track = tracks[trackNum];
+            Track.Snapshot track = tracks[trackNum].getSnapshot();
             int size = track.size();
             try {
                 for (int i = 0; i < size; i++) {
-                    MidiEvent event = track.get(i);
-                    if (event.getTick() >= endTick) {
+                    if (track.getTick(i) >= endTick) {
                         if (doReindex && (trackNum < trackReadPos.length)) {
                             trackReadPos[trackNum] = (i > 0)?(i-1):0;
                             if (DEBUG_PUMP) Printer.println("  chaseEvents: setting trackReadPos["+trackNum+"] = "+trackReadPos[trackNum]);
                         }
                         break;
                     }
-                    MidiMessage msg = event.getMessage();
-                    int status = msg.getStatus();
-                    int len = msg.getLength();
+                    // only short messages can be controllers or program changes
+                    int packedMsg = track.getPackedMessage(i);
+                    if (packedMsg == -1) continue;
+                    int status = packedMsg & 0xFF;
+                    int len = (packedMsg >>> 24) & 0x03;
                     if (len == 3 && ((status & 0xF0) == ShortMessage.CONTROL_CHANGE)) {
-                        if (msg instanceof ShortMessage) {
-                            ShortMessage smsg = (ShortMessage) msg;
-                            tempArray[smsg.getData1() & 0x7F][status & 0x0F] = (byte) smsg.getData2();
-                        } else {
-                            byte[] data = msg.getMessage();
-                            tempArray[data[1] & 0x7F][status & 0x0F] = data[2];
-                        }
+                        tempArray[(packedMsg >> 8) & 0x7F][status & 0x0F] = (byte) ((packedMsg >> 16) & 0xFF);
                     }
                     if (len == 2 && ((status & 0xF0) == ShortMessage.PROGRAM_CHANGE)) {
-                        if (msg instanceof ShortMessage) {
-                            ShortMessage smsg = (ShortMessage) msg;
-                            progs[status & 0x0F] = (byte) smsg.getData1();
-                        } else {
-                            byte[] data = msg.getMessage();
-                            progs[status & 0x0F] = data[1];
-                        }
+                        progs[status & 0x0F] = (byte) ((packedMsg >> 8) & 0xFF);
                     }
                 }
             } catch (ArrayIndexOutOfBoundsException aioobe) {
@@ -1841,9 +1903,8 @@ final class RealTimeSequencer extends AbstractMidiDevice
         }
 
         /* returns if changes are pending */
-        private boolean dispatchMessage(int trackNum, MidiEvent event) {
+        private boolean dispatchMessage(int trackNum, long tick, MidiMessage message) {
             boolean changesPending = false;
-            MidiMessage message = event.getMessage();
             int msgStatus = message.getStatus();
             int msgLen = message.getLength();
             if (msgStatus == MetaMessage.META && msgLen >= 2) {
@@ -1856,7 +1917,7 @@ final class RealTimeSequencer extends AbstractMidiDevice
                 if (trackNum == 0) {
                     int newTempo = MidiUtils.getTempoMPQ(message);
                     if (newTempo > 0) {
-                        if (event.getTick() != ignoreTempoEventAt) {
+                        if (tick != ignoreTempoEventAt) {
                             setTempoMPQ(newTempo); // sets ignoreTempoEventAt!
                             changesPending = true;
                         }
@@ -1904,6 +1965,42 @@ final class RealTimeSequencer extends AbstractMidiDevice
             return changesPending;
         }
 
+        /** send a packed short message read from a track snapshot */
+        private void dispatchShortMessage(int packedMsg) {
+            int msgStatus = packedMsg & 0xFF;
+            // send to device
+            getTransmitterList().sendMessage(packedMsg & 0xFFFFFF, -1);
+
+            switch (msgStatus & 0xF0) {
+                case ShortMessage.NOTE_OFF: {
+                    // note off - clear the bit in the noteOnCache array
+                    int note = (packedMsg >> 8) & 0x7F;
+                    noteOnCache[note] &= (0xFFFF ^ (1<<(msgStatus & 0x0F)));
+                    break;
+                }
+
+                case ShortMessage.NOTE_ON: {
+                    // note on
+                    int note = (packedMsg >> 8) & 0x7F;
+                    int vel = (packedMsg >> 16) & 0x7F;
+                    if (vel > 0) {
+                        // if velocity > 0 set the bit in the noteOnCache array
+                        noteOnCache[note] |= 1<<(msgStatus & 0x0F);
+                    } else {
+                        // if velocity = 0 clear the bit in the noteOnCache array
+                        noteOnCache[note] &= (0xFFFF ^ (1<<(msgStatus & 0x0F)));
+                    }
+                    break;
+                }
+
+                case ShortMessage.CONTROL_CHANGE:
+                    // if controller message, send controller listeners
+                    sendControllerEvents(packedMsg);
+                    break;
+
+            }
+        }
+
 
         /** the main pump method
          * @return true if end of sequence is reached
@@ -1911,12 +2008,18 @@ final class RealTimeSequencer extends AbstractMidiDevice
         synchronized boolean pump() {
             long currMillis;
             long targetTick = lastTick;
-            MidiEvent currEvent;
+            MidiMessage currMessage;
             boolean changesPending = false;
             boolean doLoop = false;
             boolean EOM = false;
 
             currMillis = getCurrentTimeMillis();
+            long playableTick = (progressiveSequence == null) ? Long.MAX_VALUE : progressiveSequence.getPlayableTick();
+            if (lastTick > playableTick) {
+                // the current position is not loaded yet, restart the clock once it is
+                checkPointMillis = 0;
+                return false;
+            }
             int finishedTracks = 0;
             do {
                 changesPending = false;
@@ -1949,6 +2052,13 @@ final class RealTimeSequencer extends AbstractMidiDevice
                     // calculate current tick based on current time in milliseconds
                     targetTick = checkPointTick + millis2tick(currMillis - checkPointMillis);
                     if (DEBUG_PUMP_ALL) Printer.println("targetTick = "+targetTick+" at "+currMillis+" millis");
+                    if (targetTick > playableTick) {
+                        // never play past the loaded part, hold the position until more is loaded
+                        targetTick = playableTick;
+                        checkPointMillis = currMillis;
+                        checkPointTick = targetTick;
+                        if (DEBUG_PUMP) Printer.println("Waiting for loader at tick "+targetTick);
+                    }
                     if ((loopEnd != -1)
                         && ((loopCount > 0 && currLoopCounter > 0)
                             || (loopCount == LOOP_CONTINUOUSLY))) {
@@ -1976,14 +2086,25 @@ final class RealTimeSequencer extends AbstractMidiDevice
                 for (int t = 0; t < tracks.length; t++) {
                     try {
                         boolean disabled = trackDisabled[t];
-                        Track thisTrack = tracks[t];
+                        Track.Snapshot thisTrack = tracks[t].getSnapshot();
                         int readPos = trackReadPos[t];
                         int size = thisTrack.size();
                         // play all events that are due until targetTick
                         while (!changesPending && (readPos < size)
-                               && (currEvent = thisTrack.get(readPos)).getTick() <= targetTick) {
+                               && thisTrack.getTick(readPos) <= targetTick) {
+                            int packedMsg = thisTrack.getPackedMessage(readPos);
+                            if (packedMsg != -1) {
+                                // short message, no need to get the message object
+                                readPos++;
+                                if (!disabled) {
+                                    dispatchShortMessage(packedMsg);
+                                }
+                                continue;
+                            }
+                            long currTick = thisTrack.getTick(readPos);
+                            currMessage = thisTrack.getMessage(readPos);
 
-                            if ((readPos == size -1) &&  MidiUtils.isMetaEndOfTrack(currEvent.getMessage())) {
+                            if ((readPos == size -1) &&  MidiUtils.isMetaEndOfTrack(currMessage)) {
                                 // do not send out this message. Finished with this track
                                 readPos = size;
                                 break;
@@ -1997,8 +2118,8 @@ final class RealTimeSequencer extends AbstractMidiDevice
                             // Note: cannot put this check outside
                             //       this inner loop in order to detect end of file
                             if (!disabled ||
-                                ((t == 0) && (MidiUtils.isMetaTempo(currEvent.getMessage())))) {
-                                changesPending = dispatchMessage(t, currEvent);
+                                ((t == 0) && (MidiUtils.isMetaTempo(currMessage)))) {
+                                changesPending = dispatchMessage(t, currTick, currMessage);
                             }
                         }
                         if (readPos >= size) {
@@ -2010,13 +2131,13 @@ final class RealTimeSequencer extends AbstractMidiDevice
                                              +" to "+(readPos-1));
                             System.out.print(" -> ticks: ");
                             if (trackReadPos[t] < size) {
-                                System.out.print(""+(thisTrack.get(trackReadPos[t]).getTick()));
+                                System.out.print(""+(thisTrack.getTick(trackReadPos[t])));
                             } else {
                                 System.out.print("EOT");
                             }
                             System.out.print(" to ");
                             if (readPos < size) {
-                                System.out.print(""+(thisTrack.get(readPos-1).getTick()));
+                                System.out.print(""+(thisTrack.getTick(readPos-1)));
                             } else {
                                 System.out.print("EOT");
                             }